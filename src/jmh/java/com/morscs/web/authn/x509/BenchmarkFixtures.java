@@ -0,0 +1,115 @@
+/*
+ *  BenchmarkFixtures.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Certificate chains and request stand-ins shared by the benchmarks.
+ * <p>
+ * Chains live in fixtures/chain-&lt;type&gt;-&lt;n&gt;.pem, leaf first, and are regenerated by
+ * fixtures/generate.sh.
+ */
+final class BenchmarkFixtures {
+
+  static final String PLAIN_DN =
+      "CN=TARGARYEN.DAENERYS.MIDDLE.1234567890,OU=CONTRACTOR,OU=PKI,OU=DoD,O=U.S. Government,C=US";
+  static final String ESCAPED_DN =
+      "CN=TARGARYEN.DAENERYS.MIDDLE.1234567890+UID=dtargaryen,OU=CONTRACTOR\\, Dragonstone,"
+          + "OU=PKI,OU=DoD,O=\"U.S. Government, Inc.\",C=US";
+
+  private BenchmarkFixtures() {
+  }
+
+  /**
+   * Base64 of the concatenated DER chain, as a proxy would put it in a header.
+   *
+   * @param keyType rsa4096 or ec
+   * @param length number of certificates, 1 to 4
+   * @return encoded chain
+   */
+  static String chainHeader(String keyType, int length) {
+    return Base64.getEncoder().encodeToString(chainDer(keyType, length));
+  }
+
+  static byte[] chainDer(String keyType, int length) {
+    String resource = "/fixtures/chain-" + keyType + "-" + length + ".pem";
+    try (InputStream in = BenchmarkFixtures.class.getResourceAsStream(resource)) {
+      if (in == null) {
+        throw new IllegalArgumentException("missing fixture " + resource);
+      }
+      ByteArrayOutputStream der = new ByteArrayOutputStream();
+      for (Certificate cert : CertificateFactory.getInstance("X.509").generateCertificates(in)) {
+        der.write(cert.getEncoded());
+      }
+      return der.toByteArray();
+    } catch (IOException | CertificateException exc) {
+      throw new IllegalStateException("failed to load fixture " + resource, exc);
+    }
+  }
+
+  /**
+   * Minimal request stand-in answering getAttribute and getHeader from fixed maps.
+   *
+   * @param attributes request attributes
+   * @param headers request headers
+   * @return request proxy
+   */
+  static HttpServletRequest request(Map<String, Object> attributes, Map<String, String> headers) {
+    Map<String, Object> attrs = new HashMap<>(attributes);
+    return (HttpServletRequest) Proxy.newProxyInstance(BenchmarkFixtures.class.getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getAttribute":
+              return attrs.get(args[0]);
+            case "setAttribute":
+              attrs.put((String) args[0], args[1]);
+              return null;
+            case "removeAttribute":
+              attrs.remove(args[0]);
+              return null;
+            case "getHeader":
+              return headers.get(args[0]);
+            default:
+              return null;
+          }
+        });
+  }
+
+  /**
+   * Servlet context stand-in, only needed as an event source.
+   *
+   * @return context proxy answering null to everything
+   */
+  static ServletContext servletContext() {
+    return (ServletContext) Proxy.newProxyInstance(BenchmarkFixtures.class.getClassLoader(),
+        new Class<?>[] {ServletContext.class}, (proxy, method, args) -> null);
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ *  CertificateDecodingBenchmark.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import javax.mail.internet.InternetAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Header decoding and certificate parsing stages, per key type and chain length.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CertificateDecodingBenchmark {
+
+  @Param({"rsa4096", "ec"})
+  public String keyType;
+
+  @Param({"1", "2", "3", "4"})
+  public int chainLength;
+
+  private String header;
+  private X509Certificate primaryCert;
+  private X509CertificateView primaryView;
+
+  @Setup
+  public void setup() throws X509Exception {
+    header = BenchmarkFixtures.chainHeader(keyType, chainLength);
+    primaryCert = X509Extraction.extractPrimaryCertFromChain(
+        X509Extraction.buildCertChainFromBase64Encoding(header));
+    primaryView = X509Extraction.extractPrimaryCertViewFromChain(
+        X509Extraction.buildCertViewChainFromBase64Encoding(header));
+  }
+
+  @Benchmark
+  public byte[] base64Decode() {
+    return Base64.getDecoder().decode(header);
+  }
+
+  @Benchmark
+  public int headerDecode() {
+    byte[] der = CertificateHeaderDecoder.newBuffer(header);
+    return CertificateHeaderDecoder.decode(header, der);
+  }
+
+  @Benchmark
+  public X509Certificate[] buildCertChain() throws X509Exception {
+    return X509Extraction.buildCertChainFromBase64Encoding(header);
+  }
+
+  @Benchmark
+  public X509CertificateView[] buildCertViewChain() throws X509Exception {
+    return X509Extraction.buildCertViewChainFromBase64Encoding(header);
+  }
+
+  @Benchmark
+  public String subjectDnFromCert() throws X509Exception {
+    return X509Extraction.extractPrimarySubjectDnFromCert(primaryCert);
+  }
+
+  @Benchmark
+  public InternetAddress emailFromCert() throws X509Exception {
+    return X509Extraction.extractPrimaryEmailFromCert(primaryCert);
+  }
+
+  @Benchmark
+  public String cnFromHeaderViaCertView() throws X509Exception {
+    return X509Extraction.extractPrimaryCertViewFromChain(
+        X509Extraction.buildCertViewChainFromBase64Encoding(header)).getSubjectCn();
+  }
+
+  @Benchmark
+  public String rfc822NameFromFreshView() throws X509Exception {
+    // a fresh view so the memoized value is not measured
+    return X509CertificateView.parse(primaryView.getEncoded()).getRfc822Name();
+  }
+
+  @Benchmark
+  public CommonName fullHeaderPipeline() throws X509Exception {
+    X509Certificate cert = X509Extraction.extractPrimaryCertFromChain(
+        X509Extraction.buildCertChainFromBase64Encoding(header));
+    return X509Extraction.extractCommonNameFromCn(X509Extraction.extractCnFromSubjectDn(
+        X509Extraction.extractPrimarySubjectDnFromCert(cert)));
+  }
+}
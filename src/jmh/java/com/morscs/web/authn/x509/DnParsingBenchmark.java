@@ -0,0 +1,87 @@
+/*
+ *  DnParsingBenchmark.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DN and CN parsing stages, split based versus single pass scanning.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DnParsingBenchmark {
+
+  @Param({"plain", "escaped"})
+  public String dnStyle;
+
+  private String subjectDn;
+  private String cn;
+
+  @Setup
+  public void setup() {
+    subjectDn = "plain".equals(dnStyle)
+        ? BenchmarkFixtures.PLAIN_DN : BenchmarkFixtures.ESCAPED_DN;
+    cn = X509Extraction.scanCnFromSubjectDn(subjectDn);
+  }
+
+  @Benchmark
+  public String extractCnFromSubjectDn() {
+    return X509Extraction.extractCnFromSubjectDn(subjectDn);
+  }
+
+  @Benchmark
+  public String scanCnFromSubjectDn() {
+    return X509Extraction.scanCnFromSubjectDn(subjectDn);
+  }
+
+  @Benchmark
+  public CommonName extractCommonNameFromCn() throws X509Exception {
+    return X509Extraction.extractCommonNameFromCn(cn);
+  }
+
+  @Benchmark
+  public CommonName scanCommonNameFromCn() throws X509Exception {
+    return X509Extraction.scanCommonNameFromCn(cn);
+  }
+
+  @Benchmark
+  public CommonName parseCnPattern() {
+    return CnPattern.DOD.parse(cn);
+  }
+
+  @Benchmark
+  public long scanEdipiFromSubjectDn() throws X509Exception {
+    return X509Extraction.scanEdipiFromSubjectDn(subjectDn);
+  }
+}
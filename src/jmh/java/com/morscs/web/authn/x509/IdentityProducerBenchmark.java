@@ -0,0 +1,78 @@
+/*
+ *  IdentityProducerBenchmark.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.http.HttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per request cost of the CDI identity producer, from request start to identity CN. The
+ * producer method is private to CDI, so the benchmark calls {@link X509Identity#fromRequest},
+ * the whole of its body, between the listener's request events.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IdentityProducerBenchmark {
+
+  @Param({"rsa4096", "ec"})
+  public String keyType;
+
+  private final X509IdentityProducingServletListener listener =
+      new X509IdentityProducingServletListener();
+  private HttpServletRequest request;
+  private ServletRequestEvent event;
+
+  @Setup
+  public void setup() throws X509Exception {
+    X509Certificate[] chain = X509Extraction.buildCertChainFromBase64Encoding(
+        BenchmarkFixtures.chainHeader(keyType, 2));
+    request = BenchmarkFixtures.request(
+        Collections.singletonMap("javax.servlet.request.X509Certificate", chain),
+        Collections.emptyMap());
+    event = new ServletRequestEvent(BenchmarkFixtures.servletContext(), request);
+  }
+
+  @Benchmark
+  public String produceIdentity() throws X509Exception {
+    listener.requestInitialized(event);
+    try {
+      return X509Identity.fromRequest(request).getCommonName();
+    } finally {
+      listener.requestDestroyed(event);
+    }
+  }
+}
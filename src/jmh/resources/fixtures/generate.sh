@@ -0,0 +1,64 @@
+#!/bin/sh
+#
+#  generate.sh
+#
+#    Copyright 2018 Moriarty Software & Consulting Services
+#
+#     Licensed under the Apache License, Version 2.0 (the "License");
+#     you may not use this file except in compliance with the License.
+#     You may obtain a copy of the License at
+#
+#         http://www.apache.org/licenses/LICENSE-2.0
+#
+#     Unless required by applicable law or agreed to in writing, software
+#     distributed under the License is distributed on an "AS IS" BASIS,
+#     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#     See the License for the specific language governing permissions and
+#     limitations under the License.
+#
+# Regenerates the benchmark certificate fixtures: for each key type a root CA, two
+# intermediates and a leaf, written as chain-<type>-<n>.pem with the leaf first and
+# n certificates total. Keys are throwaway and not kept.
+
+set -e
+cd "$(dirname "$0")"
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+newkey() {
+  case "$1" in
+    rsa4096) openssl genpkey -algorithm RSA -pkeyopt rsa_keygen_bits:4096 -out "$2" 2>/dev/null ;;
+    ec) openssl genpkey -algorithm EC -pkeyopt ec_paramgen_curve:P-256 -out "$2" ;;
+  esac
+}
+
+for type in rsa4096 ec; do
+  newkey $type "$work/root.key"
+  openssl req -x509 -new -key "$work/root.key" -days 36500 -out "$work/root.pem" \
+    -subj "/C=US/O=U.S. Government/OU=DoD/OU=PKI/CN=Bench Root CA $type" \
+    -addext "basicConstraints=critical,CA:true" -addext "keyUsage=critical,keyCertSign,cRLSign"
+  issuer=root
+  for level in 1 2; do
+    newkey $type "$work/int$level.key"
+    openssl req -new -key "$work/int$level.key" -out "$work/int$level.csr" \
+      -subj "/C=US/O=U.S. Government/OU=DoD/OU=PKI/CN=Bench Intermediate CA $level $type"
+    printf 'basicConstraints=critical,CA:true\nkeyUsage=critical,keyCertSign,cRLSign\n' \
+      > "$work/int.ext"
+    openssl x509 -req -in "$work/int$level.csr" -CA "$work/$issuer.pem" \
+      -CAkey "$work/$issuer.key" -set_serial "$((level + 100))" -days 36500 \
+      -extfile "$work/int.ext" -out "$work/int$level.pem" 2>/dev/null
+    issuer=int$level
+  done
+  newkey $type "$work/leaf.key"
+  openssl req -new -key "$work/leaf.key" -out "$work/leaf.csr" \
+    -subj "/C=US/O=U.S. Government/OU=DoD/OU=PKI/OU=CONTRACTOR/CN=TARGARYEN.DAENERYS.MIDDLE.1234567890"
+  printf 'basicConstraints=CA:false\nkeyUsage=critical,digitalSignature\nsubjectAltName=email:daenerys.targeryen@dragonstone.got\n' \
+    > "$work/leaf.ext"
+  openssl x509 -req -in "$work/leaf.csr" -CA "$work/int2.pem" -CAkey "$work/int2.key" \
+    -set_serial 4096 -days 36500 -extfile "$work/leaf.ext" -out "$work/leaf.pem" 2>/dev/null
+
+  cat "$work/leaf.pem" > "chain-$type-1.pem"
+  cat "$work/leaf.pem" "$work/int2.pem" > "chain-$type-2.pem"
+  cat "$work/leaf.pem" "$work/int2.pem" "$work/int1.pem" > "chain-$type-3.pem"
+  cat "$work/leaf.pem" "$work/int2.pem" "$work/int1.pem" "$work/root.pem" > "chain-$type-4.pem"
+done
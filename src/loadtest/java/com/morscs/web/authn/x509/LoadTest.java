@@ -0,0 +1,423 @@
+/*
+ *  LoadTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * End-to-end load test of the library behind an embedded servlet container.
+ * <pre>
+ *   java com.morscs.web.authn.x509.LoadTest [--threads n] [--server-threads n]
+ *       [--warmup seconds] [--duration seconds] [--clients n] [--distinct fraction]
+ *       [--distinct-pool n] [--chains 1,2,3] [--malformed fraction] [--missing fraction]
+ *       [--cache entries] [--port n]
+ * </pre>
+ * Starts {@link LoadTestServer} on the loopback interface and drives it from closed-loop client
+ * threads over HTTP keep-alive. Each request carries one of:
+ * <ul>
+ *   <li>the certificate of one of {@code --clients} repeat clients, as a returning user would;
+ *   <li>with probability {@code --distinct}, a certificate never sent before, taken in turn from
+ *       a pool of {@code --distinct-pool} (reused only once the pool runs out);
+ *   <li>with probability {@code --malformed}, a truncated or undecodable chain;
+ *   <li>with probability {@code --missing}, no certificate at all.
+ * </ul>
+ * Chain lengths are drawn evenly from {@code --chains}. Every response is checked: a
+ * certificate must come back with its own CN, a malformed chain with 400 and a missing one with
+ * 401, so identity leaking between concurrent requests shows up as a wrong response.
+ * <p>
+ * After the warm-up the test reports throughput, latency percentiles and bytes allocated per
+ * request by the server threads. Exits with 0 when every response was right, 1 when any was
+ * wrong or failed and 2 on invalid arguments.
+ */
+public final class LoadTest {
+
+  private static final int MAX_CHAIN_LENGTH = 4;
+
+  private final Options options;
+  private final LoadTestCertificates certs;
+  // repeat clients by client and chain length index
+  private final String[][] repeatHeaders;
+  private final String[] distinctHeaders;
+  private final String[] malformedHeaders;
+  private final AtomicLong distinctNext = new AtomicLong();
+
+  private final LogHistogram latency = new LogHistogram();
+  private final LongAdder[] sent = newCounters();
+  private final LongAdder[] wrong = newCounters();
+  private final LongAdder failed = new LongAdder();
+  private volatile boolean stopped;
+
+  private enum Kind {
+    REPEAT, DISTINCT, MALFORMED, MISSING
+  }
+
+  private LoadTest(Options options) throws GeneralSecurityException {
+    this.options = options;
+    this.certs = new LoadTestCertificates(MAX_CHAIN_LENGTH);
+    int[] chains = options.chains;
+    repeatHeaders = new String[options.clients][chains.length];
+    for (int client = 0; client < options.clients; client++) {
+      byte[] cert = certs.issueClient(client);
+      for (int c = 0; c < chains.length; c++) {
+        repeatHeaders[client][c] = certs.header(cert, chains[c]);
+      }
+    }
+    // signing dominates start-up, so the pool is issued on all cores
+    distinctHeaders = IntStream.range(0, options.distinct > 0 ? options.distinctPool : 0)
+        .parallel().mapToObj(this::distinctHeader).toArray(String[]::new);
+    byte[] der = Base64.getDecoder().decode(repeatHeaders[0][0]);
+    malformedHeaders = new String[] {
+        Base64.getEncoder().encodeToString(Arrays.copyOf(der, der.length / 2)),
+        Base64.getEncoder().encodeToString(Arrays.copyOfRange(der, 4, der.length)),
+        "not a certificate chain"};
+  }
+
+  private String distinctHeader(int index) {
+    try {
+      return certs.header(certs.issueClient(options.clients + index),
+          options.chains[index % options.chains.length]);
+    } catch (GeneralSecurityException exc) {
+      throw new IllegalStateException("failed to issue client certificate", exc);
+    }
+  }
+
+  public static void main(String[] args) {
+    System.exit(run(args, System.out, System.err));
+  }
+
+  /**
+   * Run the load test.
+   *
+   * @param args command line arguments
+   * @param out report output
+   * @param err error output
+   * @return exit status
+   */
+  static int run(String[] args, PrintStream out, PrintStream err) {
+    Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException exc) {
+      err.println(exc.getMessage());
+      err.println("usage: LoadTest [--threads n] [--server-threads n] [--warmup seconds]"
+          + " [--duration seconds] [--clients n] [--distinct fraction] [--distinct-pool n]"
+          + " [--chains 1,2,3] [--malformed fraction] [--missing fraction] [--cache entries]"
+          + " [--port n]");
+      return 2;
+    }
+    try {
+      int generated = options.clients + (options.distinct > 0 ? options.distinctPool : 0);
+      out.println("generating " + generated + " client certificates");
+      LoadTest test = new LoadTest(options);
+      return test.execute(out) ? 0 : 1;
+    } catch (Exception exc) {
+      err.println("failed: " + exc);
+      return 1;
+    }
+  }
+
+  private boolean execute(PrintStream out) throws Exception {
+    X509IdentityCache cache = options.cacheEntries > 0
+        ? new X509IdentityCache(options.cacheEntries, Duration.ofHours(1)) : null;
+    try (LoadTestServer server = new LoadTestServer(options.port, options.serverThreads, cache)) {
+      URL url = new URL("http", "127.0.0.1", server.getPort(), LoadTestServer.PATH);
+      List<Thread> workers = new ArrayList<>();
+      for (int i = 0; i < options.threads; i++) {
+        Thread worker = new Thread(() -> work(url), "x509-loadtest-client-" + i);
+        worker.setDaemon(true);
+        workers.add(worker);
+        worker.start();
+      }
+      out.println("warming up for " + options.warmupSeconds + " s with " + options.threads
+          + " client threads");
+      Thread.sleep(options.warmupSeconds * 1000L);
+
+      resetStatistics();
+      long hits = cache == null ? 0 : cache.getHitCount();
+      long misses = cache == null ? 0 : cache.getMissCount();
+      long allocatedBefore = LoadTestServer.allocatedBytes();
+      long start = System.nanoTime();
+      out.println("measuring for " + options.durationSeconds + " s");
+      Thread.sleep(options.durationSeconds * 1000L);
+      long elapsed = System.nanoTime() - start;
+      long allocatedAfter = LoadTestServer.allocatedBytes();
+      long requests = latency.getCount();
+      long[] sentByKind = new long[sent.length];
+      for (int i = 0; i < sent.length; i++) {
+        sentByKind[i] = sent[i].sum();
+      }
+      stopped = true;
+      for (Thread worker : workers) {
+        worker.join();
+      }
+
+      out.println();
+      out.printf(Locale.ROOT, "requests        %d (%.0f/s)%n", requests,
+          requests * 1e9 / elapsed);
+      for (Kind kind : Kind.values()) {
+        out.printf(Locale.ROOT, "  %-13s %d%n", kind.name().toLowerCase(Locale.ROOT),
+            sentByKind[kind.ordinal()]);
+      }
+      out.printf(Locale.ROOT, "latency p50     %.1f ms%n", millis(latency.valueAtPercentile(50)));
+      out.printf(Locale.ROOT, "latency p99     %.1f ms%n", millis(latency.valueAtPercentile(99)));
+      out.printf(Locale.ROOT, "latency p99.9   %.1f ms%n",
+          millis(latency.valueAtPercentile(99.9)));
+      out.printf(Locale.ROOT, "latency max     %.1f ms%n", millis(latency.getMax()));
+      if (allocatedBefore >= 0 && allocatedAfter >= 0 && requests > 0) {
+        out.printf(Locale.ROOT, "server alloc    %d bytes/request%n",
+            (allocatedAfter - allocatedBefore) / requests);
+      }
+      if (cache != null) {
+        long lookups = cache.getHitCount() - hits + cache.getMissCount() - misses;
+        out.printf(Locale.ROOT, "cache hits      %.1f%%%n",
+            lookups == 0 ? 0.0 : 100.0 * (cache.getHitCount() - hits) / lookups);
+      }
+      long wrongTotal = 0;
+      for (Kind kind : Kind.values()) {
+        long count = wrong[kind.ordinal()].sum();
+        wrongTotal += count;
+        if (count > 0) {
+          out.println("WRONG RESPONSES " + count + " to "
+              + kind.name().toLowerCase(Locale.ROOT) + " requests");
+        }
+      }
+      if (failed.sum() > 0) {
+        out.println("FAILED REQUESTS " + failed.sum());
+      }
+      return wrongTotal == 0 && failed.sum() == 0;
+    } finally {
+      if (cache != null) {
+        cache.close();
+      }
+    }
+  }
+
+  private void resetStatistics() {
+    latency.reset();
+    for (int i = 0; i < sent.length; i++) {
+      sent[i].reset();
+      wrong[i].reset();
+    }
+    failed.reset();
+  }
+
+  private void work(URL url) {
+    byte[] buffer = new byte[256];
+    while (!stopped) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      double draw = random.nextDouble();
+      Kind kind;
+      String header;
+      String expected;
+      if (draw < options.missing) {
+        kind = Kind.MISSING;
+        header = null;
+        expected = null;
+      } else if (draw < options.missing + options.malformed) {
+        kind = Kind.MALFORMED;
+        header = malformedHeaders[random.nextInt(malformedHeaders.length)];
+        expected = null;
+      } else if (draw < options.missing + options.malformed + options.distinct) {
+        kind = Kind.DISTINCT;
+        int index = (int) (distinctNext.getAndIncrement() % distinctHeaders.length);
+        header = distinctHeaders[index];
+        expected = LoadTestCertificates.expectedCn(options.clients + index);
+      } else {
+        kind = Kind.REPEAT;
+        int client = random.nextInt(options.clients);
+        header = repeatHeaders[client][random.nextInt(options.chains.length)];
+        expected = LoadTestCertificates.expectedCn(client);
+      }
+
+      long start = System.nanoTime();
+      try {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (header != null) {
+          connection.setRequestProperty(LoadTestServer.HEADER, header);
+        }
+        int status = connection.getResponseCode();
+        String body = readBody(connection, status, buffer);
+        latency.record(System.nanoTime() - start);
+        sent[kind.ordinal()].increment();
+        if (!isRight(kind, status, body, expected)) {
+          wrong[kind.ordinal()].increment();
+        }
+      } catch (IOException exc) {
+        failed.increment();
+      }
+    }
+  }
+
+  private static boolean isRight(Kind kind, int status, String body, String expected) {
+    switch (kind) {
+      case MISSING:
+        return status == HttpURLConnection.HTTP_UNAUTHORIZED;
+      case MALFORMED:
+        return status == HttpURLConnection.HTTP_BAD_REQUEST;
+      default:
+        return status == HttpURLConnection.HTTP_OK && expected.equals(body);
+    }
+  }
+
+  /**
+   * Read the whole response, so the connection goes back to the keep-alive pool.
+   */
+  private static String readBody(HttpURLConnection connection, int status, byte[] buffer)
+      throws IOException {
+    InputStream in = status < HttpURLConnection.HTTP_BAD_REQUEST
+        ? connection.getInputStream() : connection.getErrorStream();
+    if (in == null) {
+      return "";
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (InputStream stream = in) {
+      int n;
+      while ((n = stream.read(buffer)) > 0) {
+        body.write(buffer, 0, n);
+      }
+    }
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private static LongAdder[] newCounters() {
+    LongAdder[] counters = new LongAdder[Kind.values().length];
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new LongAdder();
+    }
+    return counters;
+  }
+
+  /**
+   * Command line options.
+   */
+  private static final class Options {
+    private int threads = Runtime.getRuntime().availableProcessors() * 2;
+    private int serverThreads = 32;
+    private int warmupSeconds = 10;
+    private int durationSeconds = 30;
+    private int clients = 100;
+    private double distinct = 0.1;
+    private int distinctPool = 10000;
+    private int[] chains = {1, 2, 3};
+    private double malformed = 0.01;
+    private double missing = 0.01;
+    private int cacheEntries = 10000;
+    private int port;
+
+    static Options parse(String[] args) {
+      Options options = new Options();
+      for (int i = 0; i < args.length; i++) {
+        if (!args[i].startsWith("--") || i + 1 >= args.length) {
+          throw new IllegalArgumentException("unexpected argument " + args[i]);
+        }
+        String value = args[++i];
+        try {
+          switch (args[i - 1]) {
+            case "--threads":
+              options.threads = Integer.parseInt(value);
+              break;
+            case "--server-threads":
+              options.serverThreads = Integer.parseInt(value);
+              break;
+            case "--warmup":
+              options.warmupSeconds = Integer.parseInt(value);
+              break;
+            case "--duration":
+              options.durationSeconds = Integer.parseInt(value);
+              break;
+            case "--clients":
+              options.clients = Integer.parseInt(value);
+              break;
+            case "--distinct":
+              options.distinct = Double.parseDouble(value);
+              break;
+            case "--distinct-pool":
+              options.distinctPool = Integer.parseInt(value);
+              break;
+            case "--chains":
+              options.chains = Arrays.stream(value.split(","))
+                  .mapToInt(length -> Integer.parseInt(length.trim())).toArray();
+              break;
+            case "--malformed":
+              options.malformed = Double.parseDouble(value);
+              break;
+            case "--missing":
+              options.missing = Double.parseDouble(value);
+              break;
+            case "--cache":
+              options.cacheEntries = Integer.parseInt(value);
+              break;
+            case "--port":
+              options.port = Integer.parseInt(value);
+              break;
+            default:
+              throw new IllegalArgumentException("unexpected argument " + args[i - 1]);
+          }
+        } catch (NumberFormatException exc) {
+          throw new IllegalArgumentException("invalid value " + value + " for " + args[i - 1],
+              exc);
+        }
+      }
+      if (options.threads <= 0 || options.clients <= 0 || options.distinctPool <= 0) {
+        throw new IllegalArgumentException("threads, clients and distinct-pool must be positive");
+      }
+      if (options.serverThreads < 4) {
+        throw new IllegalArgumentException("server-threads must be at least 4");
+      }
+      if (options.warmupSeconds < 0 || options.durationSeconds <= 0) {
+        throw new IllegalArgumentException("warmup must not be negative, duration positive");
+      }
+      if (options.distinct < 0 || options.malformed < 0 || options.missing < 0
+          || options.distinct + options.malformed + options.missing > 1) {
+        throw new IllegalArgumentException("fractions must be between 0 and 1 in total");
+      }
+      for (int length : options.chains) {
+        if (length < 1 || length > MAX_CHAIN_LENGTH) {
+          throw new IllegalArgumentException(
+              "chain lengths must be between 1 and " + MAX_CHAIN_LENGTH);
+        }
+      }
+      if (options.cacheEntries < 0 || options.port < 0 || options.port > 65535) {
+        throw new IllegalArgumentException("invalid cache size or port");
+      }
+      return options;
+    }
+  }
+}
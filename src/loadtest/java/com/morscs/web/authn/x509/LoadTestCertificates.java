@@ -0,0 +1,171 @@
+/*
+ *  LoadTestCertificates.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+
+/**
+ * Client certificate chains generated in memory for the load test, so no fixtures or external
+ * CA are needed.
+ * <p>
+ * A root and intermediate CAs form one issuing hierarchy; each client certificate is issued by
+ * the last intermediate and carries a DoD style CN and an email SAN. Keys are EC P-256, and all
+ * clients share one key pair, so issuing thousands of clients costs one signature each.
+ */
+final class LoadTestCertificates {
+
+  static final long FIRST_EDIPI = 1000000000L;
+
+  private static final String ECDSA_WITH_SHA256 = "1.2.840.10045.4.3.2";
+  private static final String COMMON_NAME = "2.5.4.3";
+  private static final String ORGANIZATIONAL_UNIT = "2.5.4.11";
+  private static final String ORGANIZATION = "2.5.4.10";
+  private static final String COUNTRY = "2.5.4.6";
+  private static final DateTimeFormatter UTC_TIME = DateTimeFormatter.ofPattern("yyMMddHHmmss'Z'");
+
+  // issuing hierarchy, root first
+  private final byte[][] caCerts;
+  private final byte[][] caNames;
+  private final PrivateKey issuerKey;
+  private final KeyPair clientKeys;
+  private final String notBefore;
+  private final String notAfter;
+  private long serial = 1;
+
+  /**
+   * Generate the issuing hierarchy.
+   *
+   * @param maxChainLength longest chain to serve, client certificate included
+   */
+  LoadTestCertificates(int maxChainLength) throws GeneralSecurityException {
+    KeyPairGenerator keys = KeyPairGenerator.getInstance("EC");
+    keys.initialize(new ECGenParameterSpec("secp256r1"));
+    ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+    notBefore = now.minusDays(1).format(UTC_TIME);
+    notAfter = now.plusDays(30).format(UTC_TIME);
+
+    int cas = Math.max(1, maxChainLength - 1);
+    caCerts = new byte[cas][];
+    caNames = new byte[cas][];
+    PrivateKey signer = null;
+    byte[] issuer = null;
+    for (int i = 0; i < cas; i++) {
+      KeyPair pair = keys.generateKeyPair();
+      caNames[i] = name(i == 0 ? "Load Test Root CA" : "Load Test CA " + i, "PKI");
+      caCerts[i] = certificate(issuer == null ? caNames[i] : issuer, caNames[i], pair,
+          signer == null ? pair.getPrivate() : signer, null);
+      issuer = caNames[i];
+      signer = pair.getPrivate();
+    }
+    issuerKey = signer;
+    clientKeys = keys.generateKeyPair();
+  }
+
+  /**
+   * Issue a client certificate.
+   *
+   * @param client client number, which also sets the EDIPI
+   * @return DER encoded certificate
+   */
+  byte[] issueClient(int client) throws GeneralSecurityException {
+    long edipi = FIRST_EDIPI + client;
+    byte[] subject = name("CLIENT.LOAD.TEST." + edipi, "CONTRACTOR");
+    return certificate(caNames[caNames.length - 1], subject, clientKeys, issuerKey,
+        "client" + edipi + "@loadtest.example");
+  }
+
+  /**
+   * Header value for a client certificate and its issuers, as a proxy would forward it.
+   *
+   * @param clientCert DER encoded client certificate
+   * @param chainLength number of certificates, client certificate included
+   * @return Base64 of the concatenated DER chain
+   */
+  String header(byte[] clientCert, int chainLength) {
+    ByteArrayOutputStream chain = new ByteArrayOutputStream();
+    chain.write(clientCert, 0, clientCert.length);
+    for (int i = 1; i < chainLength && i <= caCerts.length; i++) {
+      byte[] ca = caCerts[caCerts.length - i];
+      chain.write(ca, 0, ca.length);
+    }
+    return Base64.getEncoder().encodeToString(chain.toByteArray());
+  }
+
+  static String expectedCn(int client) {
+    return "CLIENT.LOAD.TEST." + (FIRST_EDIPI + client);
+  }
+
+  private byte[] certificate(byte[] issuer, byte[] subject, KeyPair pair, PrivateKey signer,
+      String email) throws GeneralSecurityException {
+    byte[] algorithm = DerWriter.sequence(DerWriter.oid(ECDSA_WITH_SHA256));
+    byte[] extensions = email == null ? new byte[0] : DerWriter.element(0xa3,
+        DerWriter.sequence(DerWriter.sequence(DerWriter.oid("2.5.29.17"),
+            DerWriter.octetString(DerWriter.sequence(DerWriter.element(0x81,
+                email.getBytes(StandardCharsets.US_ASCII)))))));
+    byte[] tbs = DerWriter.sequence(
+        DerWriter.element(0xa0, DerWriter.integer(new byte[] {2})),
+        DerWriter.integer(BigInteger.valueOf(nextSerial()).toByteArray()),
+        algorithm,
+        issuer,
+        DerWriter.sequence(time(notBefore), time(notAfter)),
+        subject,
+        pair.getPublic().getEncoded(),
+        extensions);
+    Signature signature = Signature.getInstance("SHA256withECDSA");
+    signature.initSign(signer);
+    signature.update(tbs);
+    byte[] value = signature.sign();
+    byte[] bits = new byte[value.length + 1];
+    System.arraycopy(value, 0, bits, 1, value.length);
+    return DerWriter.sequence(tbs, algorithm, DerWriter.element(DerReader.TAG_BIT_STRING, bits));
+  }
+
+  private synchronized long nextSerial() {
+    return serial++;
+  }
+
+  private static byte[] time(String utcTime) {
+    return DerWriter.element(DerReader.TAG_UTC_TIME, utcTime.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static byte[] name(String commonName, String unit) {
+    return DerWriter.sequence(
+        rdn(COUNTRY, DerReader.TAG_PRINTABLE_STRING, "US"),
+        rdn(ORGANIZATION, DerReader.TAG_UTF8_STRING, "U.S. Government"),
+        rdn(ORGANIZATIONAL_UNIT, DerReader.TAG_UTF8_STRING, unit),
+        rdn(COMMON_NAME, DerReader.TAG_UTF8_STRING, commonName));
+  }
+
+  private static byte[] rdn(String type, int tag, String value) {
+    return DerWriter.element(DerReader.TAG_SET, DerWriter.sequence(DerWriter.oid(type),
+        DerWriter.element(tag, value.getBytes(StandardCharsets.UTF_8))));
+  }
+}
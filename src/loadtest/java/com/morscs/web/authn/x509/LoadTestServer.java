@@ -0,0 +1,144 @@
+/*
+ *  LoadTestServer.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumSet;
+import javax.enterprise.inject.spi.CDI;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.jboss.weld.environment.servlet.Listener;
+
+/**
+ * Embedded Jetty with Weld, set up as an application would deploy the library.
+ * <p>
+ * {@link X509AuthenticationFilter} reads the chain from the {@value #HEADER} header, optionally
+ * through an {@link X509IdentityCache}, and {@link X509IdentityProducingServletListener} produces
+ * the identity for CDI. The servlet at {@value #PATH} obtains the identity from CDI and answers
+ * with its CN, so the client can check every response belongs to the certificate it sent.
+ * <p>
+ * All server threads are named {@value #THREAD_PREFIX}..., which lets the load test sum their
+ * allocations.
+ */
+final class LoadTestServer implements AutoCloseable {
+
+  static final String HEADER = "X-SSL-Client-Cert";
+  static final String PATH = "/identity";
+  static final String THREAD_PREFIX = "x509-loadtest-server";
+
+  private final Server server;
+  private final ServerConnector connector;
+
+  /**
+   * Start the server.
+   *
+   * @param port port to listen on, 0 for any free port
+   * @param threads server threads, the acceptor and selector thread included
+   * @param cache identity cache for header chains, or null to parse every request
+   */
+  LoadTestServer(int port, int threads, X509IdentityCache cache) throws Exception {
+    QueuedThreadPool pool = new QueuedThreadPool(threads, threads);
+    pool.setName(THREAD_PREFIX);
+    server = new Server(pool);
+    connector = new ServerConnector(server, 1, 1);
+    connector.setHost("127.0.0.1");
+    connector.setPort(port);
+    server.addConnector(connector);
+
+    ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+    context.setContextPath("/");
+    context.addEventListener(new Listener());
+    context.addEventListener(new X509IdentityProducingServletListener());
+    context.addFilter(new FilterHolder(new X509AuthenticationFilter(
+        Collections.singletonList("header:" + HEADER), cache)), "/*",
+        EnumSet.of(DispatcherType.REQUEST));
+    context.addServlet(new ServletHolder(new IdentityServlet()), PATH);
+    server.setHandler(context);
+    server.start();
+  }
+
+  int getPort() {
+    return connector.getLocalPort();
+  }
+
+  /**
+   * Bytes allocated so far by the server threads, or -1 when the JVM cannot tell.
+   *
+   * @return allocated bytes
+   */
+  static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    if (!allocations.isThreadAllocatedMemorySupported()
+        || !allocations.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    long total = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith(THREAD_PREFIX)) {
+        total += Math.max(0, allocations.getThreadAllocatedBytes(thread.getId()));
+      }
+    }
+    return total;
+  }
+
+  @Override
+  public void close() throws Exception {
+    server.stop();
+  }
+
+  /**
+   * Answers with the CN of the injected identity, 401 when there is none.
+   */
+  private static final class IdentityServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+      X509Identity identity;
+      try {
+        identity = CDI.current().select(X509Identity.class).get();
+      } catch (RuntimeException exc) {
+        // producer failures reach the caller wrapped by the container
+        response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+        return;
+      }
+      if (identity == null || !identity.hasCert()) {
+        response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+        return;
+      }
+      response.setContentType("text/plain;charset=UTF-8");
+      response.getWriter().write(identity.getCommonName());
+    }
+  }
+}
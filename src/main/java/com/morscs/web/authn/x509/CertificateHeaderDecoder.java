@@ -0,0 +1,275 @@
+/*
+ *  CertificateHeaderDecoder.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.util.Arrays;
+
+/**
+ * Decodes certificate header values straight into DER bytes in a single pass.
+ * <p>
+ * Accepted forms, detected while decoding:
+ * <ul>
+ *   <li>raw Base64 of one or more concatenated DER certificates</li>
+ *   <li>PEM, one or more BEGIN/END blocks, with line breaks, spaces or nothing between lines
+ *   and any text outside the blocks ignored</li>
+ *   <li>either of the above URL escaped, e.g. nginx {@code $ssl_client_escaped_cert} or the
+ *   Envoy XFCC {@code Cert} field</li>
+ * </ul>
+ * Percent escapes, PEM armor and whitespace are handled as the characters are read, so the only
+ * allocation is the output buffer.
+ */
+final class CertificateHeaderDecoder {
+
+  private static final int INVALID = -1;
+  private static final int SKIP = -2;
+  private static final int PAD = -3;
+  private static final int ARMOR_DASHES = 5;
+  private static final int FAILURE_KIND_BITS = 3;
+  private static final int FAILED_TRUNCATED = 0;
+  private static final int FAILED_ARMOR = 1;
+  private static final int FAILED_PERCENT_TRUNCATED = 2;
+  private static final int FAILED_PERCENT_INVALID = 3;
+  private static final int FAILED_AFTER_PADDING = 4;
+  private static final int FAILED_CHARACTER = 5;
+  private static final int[] BASE64_VALUES = new int[128];
+
+  static {
+    Arrays.fill(BASE64_VALUES, INVALID);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64_VALUES[alphabet.charAt(i)] = i;
+    }
+    BASE64_VALUES[' '] = SKIP;
+    BASE64_VALUES['\t'] = SKIP;
+    BASE64_VALUES['\r'] = SKIP;
+    BASE64_VALUES['\n'] = SKIP;
+    BASE64_VALUES['='] = PAD;
+  }
+
+  private CertificateHeaderDecoder() {
+  }
+
+  /**
+   * Allocate a buffer large enough for any decoding of the given text.
+   *
+   * @param text encoded header value
+   * @return output buffer
+   */
+  static byte[] newBuffer(CharSequence text) {
+    return new byte[text.length() / 4 * 3 + 3];
+  }
+
+  /**
+   * Decode header text into DER bytes.
+   *
+   * @param text encoded header value
+   * @param out output buffer, at least {@link #newBuffer(CharSequence)} sized
+   * @return number of bytes written
+   * @throws IllegalArgumentException when the text is not valid in any accepted form
+   */
+  static int decode(CharSequence text, byte[] out) {
+    int length = tryDecode(text, out);
+    if (length < 0) {
+      throw new IllegalArgumentException(failureMessage(text, length));
+    }
+    return length;
+  }
+
+  /**
+   * Decode header text into DER bytes, reporting invalid text by return value so rejecting it
+   * costs neither a message nor an exception.
+   *
+   * @param text encoded header value
+   * @param out output buffer, at least {@link #newBuffer(CharSequence)} sized
+   * @return number of bytes written, or a negative value when the text is not valid in any
+   *     accepted form
+   */
+  static int tryDecode(CharSequence text, byte[] out) {
+    int len = text.length();
+    boolean pem = containsBeginArmor(text);
+    boolean insideBlock = !pem;
+    int o = 0;
+    int bits = 0;
+    int sextets = 0;
+    boolean padded = false;
+    int i = 0;
+    while (i < len) {
+      char ch = text.charAt(i);
+      if (ch == '-' && (insideBlock || isArmor(text, i))) {
+        o = finishQuantum(out, o, bits, sextets);
+        if (o < 0) {
+          return o;
+        }
+        if (!isArmor(text, i)) {
+          return failure(FAILED_ARMOR, i);
+        }
+        bits = 0;
+        sextets = 0;
+        padded = false;
+        insideBlock = !pem || regionMatches(text, skipDashes(text, i), "BEGIN");
+        i = skipArmor(text, i);
+        continue;
+      }
+      if (!insideBlock) {
+        // text around PEM blocks, e.g. openssl "subject=" and "issuer=" lines
+        i++;
+        continue;
+      }
+      int next = i + 1;
+      if (ch == '%') {
+        if (i + 2 >= len) {
+          return failure(FAILED_PERCENT_TRUNCATED, i);
+        }
+        int high = Character.digit(text.charAt(i + 1), 16);
+        int low = Character.digit(text.charAt(i + 2), 16);
+        if (high < 0 || low < 0) {
+          return failure(FAILED_PERCENT_INVALID, i);
+        }
+        ch = (char) (high << 4 | low);
+        next = i + 3;
+      }
+      int value = ch < BASE64_VALUES.length ? BASE64_VALUES[ch] : INVALID;
+      if (value >= 0) {
+        if (padded) {
+          return failure(FAILED_AFTER_PADDING, i);
+        }
+        bits = bits << 6 | value;
+        if (++sextets == 4) {
+          out[o++] = (byte) (bits >> 16);
+          out[o++] = (byte) (bits >> 8);
+          out[o++] = (byte) bits;
+          bits = 0;
+          sextets = 0;
+        }
+      } else if (value == PAD) {
+        padded = true;
+      } else if (value == INVALID) {
+        return failure(FAILED_CHARACTER, i);
+      }
+      i = next;
+    }
+    return finishQuantum(out, o, bits, sextets);
+  }
+
+  /**
+   * Negative result carrying the kind of failure and the index it was found at.
+   */
+  private static int failure(int kind, int index) {
+    // indexes past 2^28 only occur in texts no proxy sends; they are reported clamped
+    return -1 - (Math.min(index, Integer.MAX_VALUE >>> FAILURE_KIND_BITS) << FAILURE_KIND_BITS
+        | kind);
+  }
+
+  private static String failureMessage(CharSequence text, int failure) {
+    int code = -1 - failure;
+    int index = code >>> FAILURE_KIND_BITS;
+    switch (code & (1 << FAILURE_KIND_BITS) - 1) {
+      case FAILED_ARMOR:
+        return "Illegal base64 character 2d at index " + index;
+      case FAILED_PERCENT_TRUNCATED:
+        return "truncated percent escape at index " + index;
+      case FAILED_PERCENT_INVALID:
+        return "invalid percent escape at index " + index;
+      case FAILED_AFTER_PADDING:
+        return "base64 data after padding at index " + index;
+      case FAILED_CHARACTER:
+        return "Illegal base64 character " + Integer.toHexString(decodedChar(text, index))
+            + " at index " + index;
+      default:
+        return "truncated base64 data";
+    }
+  }
+
+  private static int decodedChar(CharSequence text, int index) {
+    char ch = text.charAt(index);
+    if (ch != '%') {
+      return ch;
+    }
+    return Character.digit(text.charAt(index + 1), 16) << 4
+        | Character.digit(text.charAt(index + 2), 16);
+  }
+
+  private static int finishQuantum(byte[] out, int o, int bits, int sextets) {
+    switch (sextets) {
+      case 0:
+        return o;
+      case 2:
+        out[o++] = (byte) (bits >> 4);
+        return o;
+      case 3:
+        out[o++] = (byte) (bits >> 10);
+        out[o++] = (byte) (bits >> 2);
+        return o;
+      default:
+        return failure(FAILED_TRUNCATED, 0);
+    }
+  }
+
+  private static boolean containsBeginArmor(CharSequence text) {
+    int len = text.length();
+    int dashes = 0;
+    for (int i = 0; i < len; i++) {
+      if (text.charAt(i) == '-') {
+        dashes++;
+      } else if (dashes >= ARMOR_DASHES && regionMatches(text, i, "BEGIN")) {
+        return true;
+      } else {
+        dashes = 0;
+      }
+    }
+    return false;
+  }
+
+  private static boolean regionMatches(CharSequence text, int start, String expected) {
+    if (start + expected.length() > text.length()) {
+      return false;
+    }
+    for (int i = 0; i < expected.length(); i++) {
+      if (text.charAt(start + i) != expected.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isArmor(CharSequence text, int i) {
+    return skipDashes(text, i) - i >= ARMOR_DASHES;
+  }
+
+  private static int skipDashes(CharSequence text, int i) {
+    while (i < text.length() && text.charAt(i) == '-') {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Skip a PEM armor line such as -----BEGIN CERTIFICATE-----, in plain or escaped form.
+   *
+   * @return index just past the closing dashes
+   */
+  private static int skipArmor(CharSequence text, int i) {
+    int len = text.length();
+    i = skipDashes(text, i);
+    while (i < len && text.charAt(i) != '-') {
+      i++;
+    }
+    return skipDashes(text, i);
+  }
+}
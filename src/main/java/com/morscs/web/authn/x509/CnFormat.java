@@ -0,0 +1,46 @@
+/*
+ *  CnFormat.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+/**
+ * Layout of the CN in the certificates of some PKI, registered with {@link CnFormats}.
+ * <p>
+ * {@link CnPattern} compiles the usual layouts from a short pattern; implement this interface
+ * directly for anything a pattern cannot express. Implementations must be thread safe.
+ */
+public interface CnFormat {
+
+  /**
+   * Name the format is reported under in {@link CnFormats} statistics.
+   *
+   * @return format name, unique within one {@link CnFormats}
+   */
+  String getName();
+
+  /**
+   * Parse a CN that follows this format.
+   * <p>
+   * A CN in another format is expected, not exceptional, so it is answered with null rather
+   * than an exception.
+   *
+   * @param cn unescaped CN value
+   * @return parsed common name, or null when the CN does not follow this format
+   */
+  CommonName parse(CharSequence cn);
+}
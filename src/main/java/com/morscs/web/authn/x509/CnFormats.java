@@ -0,0 +1,196 @@
+/*
+ *  CnFormats.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import com.morscs.web.authn.x509.X509Exception.Code;
+import com.morscs.web.authn.x509.X509Metrics.Stage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * {@link CnFormat}s selected by certificate issuer.
+ * <p>
+ * Each issuer DN maps to the formats of its PKI, followed by the fallback formats; issuers
+ * without a mapping get the fallback formats alone. The chain of every issuer is built once, so
+ * parsing costs one map lookup and tries only the formats of that chain, however many formats
+ * are registered in total.
+ * <p>
+ * Attempts and matches are counted per format, so the parse rate of each format can be
+ * watched. Instances are immutable apart from those counters, and thread safe.
+ */
+public final class CnFormats {
+
+  private static final Counted[] NO_FORMATS = new Counted[0];
+
+  private final Map<X500Principal, Counted[]> byIssuer;
+  private final Counted[] fallback;
+  private final Map<String, Counted> byName;
+  private final LongAdder unmatched = new LongAdder();
+
+  /**
+   * Construct formats by issuer.
+   *
+   * @param issuerFormats formats per issuer DN, in order of preference
+   * @param fallbackFormats formats tried for every issuer after its own, in order of preference
+   * @throws IllegalArgumentException when an issuer DN is malformed, or two different formats
+   *     share a name
+   */
+  public CnFormats(Map<String, List<CnFormat>> issuerFormats, List<CnFormat> fallbackFormats) {
+    Map<CnFormat, Counted> counted = new IdentityHashMap<>();
+    Map<String, Counted> names = new LinkedHashMap<>();
+    this.fallback = count(fallbackFormats, NO_FORMATS, counted, names);
+    Map<X500Principal, Counted[]> index = new HashMap<>();
+    for (Map.Entry<String, List<CnFormat>> entry : issuerFormats.entrySet()) {
+      X500Principal issuer = new X500Principal(entry.getKey());
+      index.put(issuer, count(entry.getValue(), fallback, counted, names));
+    }
+    this.byIssuer = index;
+    this.byName = names;
+  }
+
+  /**
+   * The same formats for every issuer.
+   *
+   * @param formats formats in order of preference
+   * @return formats
+   */
+  public static CnFormats of(CnFormat... formats) {
+    List<CnFormat> list = new ArrayList<>();
+    Collections.addAll(list, formats);
+    return new CnFormats(Collections.emptyMap(), list);
+  }
+
+  private static Counted[] count(List<CnFormat> formats, Counted[] tail,
+      Map<CnFormat, Counted> counted, Map<String, Counted> names) {
+    List<Counted> chain = new ArrayList<>(formats.size() + tail.length);
+    for (CnFormat format : formats) {
+      Counted entry = counted.get(format);
+      if (entry == null) {
+        if (names.containsKey(format.getName())) {
+          throw new IllegalArgumentException("duplicate CN format name " + format.getName());
+        }
+        entry = new Counted(format);
+        counted.put(format, entry);
+        names.put(format.getName(), entry);
+      }
+      if (!chain.contains(entry)) {
+        chain.add(entry);
+      }
+    }
+    for (Counted entry : tail) {
+      if (!chain.contains(entry)) {
+        chain.add(entry);
+      }
+    }
+    return chain.toArray(NO_FORMATS);
+  }
+
+  /**
+   * Parse a CN in the format of its issuer.
+   *
+   * @param issuer issuer of the certificate, or null to use the fallback formats
+   * @param cn unescaped CN value
+   * @return parsed common name
+   * @throws X509Exception when no format of the issuer matches
+   */
+  public CommonName parse(X500Principal issuer, CharSequence cn) throws X509Exception {
+    long start = X509Metrics.start();
+    Counted[] chain = issuer == null ? fallback : byIssuer.getOrDefault(issuer, fallback);
+    for (Counted entry : chain) {
+      entry.attempts.increment();
+      CommonName parsed = entry.format.parse(cn);
+      if (parsed != null) {
+        entry.matches.increment();
+        X509Metrics.completed(Stage.COMMON_NAME_PARSE, start);
+        return parsed;
+      }
+    }
+    unmatched.increment();
+    X509Exception exc = X509Extraction.isGuarded()
+        ? X509Exception.preallocated(Code.CN_UNPARSEABLE)
+        : new X509Exception(Code.CN_UNPARSEABLE, "cn " + cn + " matches no format of issuer "
+            + (issuer == null ? "(none)" : issuer.getName()));
+    X509Metrics.failed(Stage.COMMON_NAME_PARSE, start, exc);
+    throw exc;
+  }
+
+  /**
+   * Parse a CN in the format of its issuer.
+   *
+   * @param issuerDn issuer DN of the certificate, or null to use the fallback formats
+   * @param cn unescaped CN value
+   * @return parsed common name
+   * @throws X509Exception when no format of the issuer matches
+   * @throws IllegalArgumentException when the issuer DN is malformed
+   */
+  public CommonName parse(String issuerDn, CharSequence cn) throws X509Exception {
+    return parse(issuerDn == null ? null : new X500Principal(issuerDn), cn);
+  }
+
+  /**
+   * Number of CNs each format was tried on, by format name.
+   *
+   * @return attempt counts
+   */
+  public Map<String, Long> getAttemptCounts() {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    byName.forEach((name, entry) -> counts.put(name, entry.attempts.sum()));
+    return counts;
+  }
+
+  /**
+   * Number of CNs each format parsed, by format name.
+   *
+   * @return match counts
+   */
+  public Map<String, Long> getMatchCounts() {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    byName.forEach((name, entry) -> counts.put(name, entry.matches.sum()));
+    return counts;
+  }
+
+  /**
+   * Number of CNs no format of their issuer matched.
+   *
+   * @return unmatched count
+   */
+  public long getUnmatchedCount() {
+    return unmatched.sum();
+  }
+
+  /**
+   * A format and its counters.
+   */
+  private static final class Counted {
+    private final CnFormat format;
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder matches = new LongAdder();
+
+    Counted(CnFormat format) {
+      this.format = format;
+    }
+  }
+}
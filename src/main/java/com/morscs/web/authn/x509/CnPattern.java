@@ -0,0 +1,387 @@
+/*
+ *  CnPattern.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link CnFormat} compiled once from a pattern such as {@code LAST.FIRST[.MIDDLE].EDIPI}.
+ * <p>
+ * A pattern is a sequence of the fields {@code LAST}, {@code FIRST}, {@code MIDDLE},
+ * {@code SUFFIX} and {@code EDIPI}, separated by literal text, with optional parts in square
+ * brackets. {@code LAST} and {@code FIRST} are required, the others may appear at most once.
+ * Name fields take letters, hyphens, apostrophes and inner spaces, so hyphenated and multi-part
+ * names match; {@code SUFFIX} takes a generation qualifier (JR, SR, II, III, IV); {@code EDIPI}
+ * takes 1 to 18 digits. No field may contain a character of the literal text, which makes every
+ * match deterministic.
+ * <p>
+ * At compile time the optional parts are expanded into fixed layouts and indexed by how often
+ * the separator occurs in them. Parsing counts the separator in the CN once, then checks only
+ * the layouts with that count, each in a single scan. Where two layouts fit the same CN, one
+ * with a {@code SUFFIX} is preferred, so a qualifier is not taken for a middle name.
+ * <p>
+ * Instances are immutable and thread safe.
+ */
+public final class CnPattern implements CnFormat {
+
+  /**
+   * DoD layout, {@code LAST.FIRST[.MIDDLE][.SUFFIX].EDIPI}.
+   */
+  public static final CnPattern DOD = compile("dod", "LAST.FIRST[.MIDDLE][.SUFFIX].EDIPI");
+
+  private static final int MAX_OPTIONALS = 6;
+  private static final int MAX_EDIPI_DIGITS = 18; // always fits in a long
+  private static final Set<String> SUFFIXES =
+      new HashSet<>(Arrays.asList("JR", "SR", "II", "III", "IV"));
+
+  private enum Field {
+    LAST, FIRST, MIDDLE, SUFFIX, EDIPI
+  }
+
+  /**
+   * One expansion of the pattern: fields and the literal text before, between and after them.
+   */
+  private static final class Layout {
+    private final Field[] fields;
+    private final String[] literals;
+    private final boolean hasSuffix;
+
+    Layout(List<Field> fields, List<String> literals) {
+      this.fields = fields.toArray(new Field[0]);
+      this.literals = literals.toArray(new String[0]);
+      this.hasSuffix = fields.contains(Field.SUFFIX);
+    }
+  }
+
+  private final String name;
+  private final String pattern;
+  private final String literalChars;
+  private final char separator;
+  // layouts by number of separator occurrences
+  private final Layout[][] layouts;
+
+  private CnPattern(String name, String pattern, String literalChars, char separator,
+      Layout[][] layouts) {
+    this.name = name;
+    this.pattern = pattern;
+    this.literalChars = literalChars;
+    this.separator = separator;
+    this.layouts = layouts;
+  }
+
+  /**
+   * Compile a pattern.
+   *
+   * @param name format name reported in statistics
+   * @param pattern CN layout, e.g. {@code LAST.FIRST[.MIDDLE].EDIPI}
+   * @return compiled format
+   * @throws IllegalArgumentException when the pattern is malformed
+   */
+  public static CnPattern compile(String name, String pattern) {
+    List<Object> tokens = new ArrayList<>();
+    List<Integer> groups = new ArrayList<>();
+    StringBuilder literals = new StringBuilder();
+    int group = -1;
+    int optionals = 0;
+    int i = 0;
+    while (i < pattern.length()) {
+      char ch = pattern.charAt(i);
+      if (ch == '[') {
+        if (group >= 0) {
+          throw new IllegalArgumentException("nested optional part in CN pattern " + pattern);
+        }
+        group = ++optionals;
+        i++;
+      } else if (ch == ']') {
+        if (group < 0) {
+          throw new IllegalArgumentException("unbalanced ']' in CN pattern " + pattern);
+        }
+        group = -1;
+        i++;
+      } else if (ch >= 'A' && ch <= 'Z') {
+        int end = i;
+        while (end < pattern.length() && pattern.charAt(end) >= 'A' && pattern.charAt(end) <= 'Z') {
+          end++;
+        }
+        String word = pattern.substring(i, end);
+        try {
+          tokens.add(Field.valueOf(word));
+        } catch (IllegalArgumentException exc) {
+          throw new IllegalArgumentException(
+              "unknown field " + word + " in CN pattern " + pattern, exc);
+        }
+        groups.add(group);
+        i = end;
+      } else {
+        tokens.add(String.valueOf(ch));
+        groups.add(group);
+        if (literals.indexOf(String.valueOf(ch)) < 0) {
+          literals.append(ch);
+        }
+        i++;
+      }
+    }
+    if (group >= 0) {
+      throw new IllegalArgumentException("unbalanced '[' in CN pattern " + pattern);
+    }
+    if (optionals > MAX_OPTIONALS) {
+      throw new IllegalArgumentException("more than " + MAX_OPTIONALS
+          + " optional parts in CN pattern " + pattern);
+    }
+
+    List<Layout> expanded = new ArrayList<>();
+    for (int mask = (1 << optionals) - 1; mask >= 0; mask--) {
+      expanded.add(layout(tokens, groups, mask, pattern));
+    }
+    if (literals.length() == 0) {
+      throw new IllegalArgumentException("no separator in CN pattern " + pattern);
+    }
+    char separator = mostFrequent(tokens, literals);
+    int maxCount = 0;
+    for (Layout layout : expanded) {
+      maxCount = Math.max(maxCount, count(layout.literals, separator));
+    }
+    List<List<Layout>> byCount = new ArrayList<>();
+    for (int count = 0; count <= maxCount; count++) {
+      byCount.add(new ArrayList<>());
+    }
+    for (Layout layout : expanded) {
+      byCount.get(count(layout.literals, separator)).add(layout);
+    }
+    Layout[][] layouts = new Layout[maxCount + 1][];
+    for (int count = 0; count <= maxCount; count++) {
+      List<Layout> candidates = byCount.get(count);
+      // the sort is stable, so expansion order decides among layouts that agree on SUFFIX
+      candidates.sort((a, b) -> Boolean.compare(b.hasSuffix, a.hasSuffix));
+      layouts[count] = candidates.toArray(new Layout[0]);
+    }
+    return new CnPattern(name, pattern, literals.toString(), separator, layouts);
+  }
+
+  private static Layout layout(List<Object> tokens, List<Integer> groups, int mask,
+      String pattern) {
+    List<Field> fields = new ArrayList<>();
+    List<String> literals = new ArrayList<>();
+    StringBuilder literal = new StringBuilder();
+    for (int t = 0; t < tokens.size(); t++) {
+      int group = groups.get(t);
+      if (group > 0 && (mask & 1 << (group - 1)) == 0) {
+        continue;
+      }
+      Object token = tokens.get(t);
+      if (token instanceof Field) {
+        if (fields.contains(token)) {
+          throw new IllegalArgumentException(
+              "field " + token + " repeated in CN pattern " + pattern);
+        }
+        if (!fields.isEmpty() && literal.length() == 0) {
+          throw new IllegalArgumentException(
+              "fields without separator in CN pattern " + pattern);
+        }
+        literals.add(literal.toString());
+        literal.setLength(0);
+        fields.add((Field) token);
+      } else {
+        literal.append((String) token);
+      }
+    }
+    literals.add(literal.toString());
+    if (!fields.contains(Field.LAST) || !fields.contains(Field.FIRST)) {
+      throw new IllegalArgumentException(
+          "LAST and FIRST must not be optional in CN pattern " + pattern);
+    }
+    return new Layout(fields, literals);
+  }
+
+  private static char mostFrequent(List<Object> tokens, CharSequence literals) {
+    char best = literals.charAt(0);
+    int bestCount = 0;
+    for (int c = 0; c < literals.length(); c++) {
+      int count = 0;
+      for (Object token : tokens) {
+        if (token instanceof String && ((String) token).charAt(0) == literals.charAt(c)) {
+          count++;
+        }
+      }
+      if (count > bestCount) {
+        best = literals.charAt(c);
+        bestCount = count;
+      }
+    }
+    return best;
+  }
+
+  private static int count(String[] literals, char separator) {
+    int count = 0;
+    for (String literal : literals) {
+      for (int i = 0; i < literal.length(); i++) {
+        if (literal.charAt(i) == separator) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  public String getPattern() {
+    return pattern;
+  }
+
+  @Override
+  public CommonName parse(CharSequence cn) {
+    int count = 0;
+    for (int i = 0; i < cn.length(); i++) {
+      if (cn.charAt(i) == separator) {
+        count++;
+      }
+    }
+    if (count >= layouts.length) {
+      return null;
+    }
+    for (Layout layout : layouts[count]) {
+      CommonName parsed = match(layout, cn);
+      if (parsed != null) {
+        return parsed;
+      }
+    }
+    return null;
+  }
+
+  private CommonName match(Layout layout, CharSequence cn) {
+    String[] literals = layout.literals;
+    Field[] fields = layout.fields;
+    if (!regionMatches(cn, 0, literals[0])) {
+      return null;
+    }
+    int pos = literals[0].length();
+    String lastName = null;
+    String firstName = null;
+    String middleName = null;
+    String suffix = null;
+    long edipi = CommonName.NO_EDIPI;
+    for (int f = 0; f < fields.length; f++) {
+      String next = literals[f + 1];
+      int end;
+      if (f == fields.length - 1) {
+        end = cn.length() - next.length();
+        if (end < pos || !regionMatches(cn, end, next)) {
+          return null;
+        }
+      } else {
+        end = indexOf(cn, next, pos);
+        if (end < 0) {
+          return null;
+        }
+      }
+      switch (fields[f]) {
+        case EDIPI:
+          edipi = parseDigits(cn, pos, end);
+          if (edipi < 0) {
+            return null;
+          }
+          break;
+        case SUFFIX:
+          suffix = cn.subSequence(pos, end).toString();
+          if (!SUFFIXES.contains(suffix)) {
+            return null;
+          }
+          break;
+        default:
+          if (!isName(cn, pos, end)) {
+            return null;
+          }
+          String value = cn.subSequence(pos, end).toString();
+          if (fields[f] == Field.LAST) {
+            lastName = value;
+          } else if (fields[f] == Field.FIRST) {
+            firstName = value;
+          } else {
+            middleName = value;
+          }
+          break;
+      }
+      pos = end + next.length();
+    }
+    return new CommonName(edipi, lastName, firstName, middleName, suffix);
+  }
+
+  private boolean isName(CharSequence cn, int start, int end) {
+    if (start == end || cn.charAt(start) == ' ' || cn.charAt(end - 1) == ' ') {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      char ch = cn.charAt(i);
+      if (literalChars.indexOf(ch) >= 0
+          || !(Character.isLetter(ch) || ch == '-' || ch == '\'' || ch == ' ')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long parseDigits(CharSequence cn, int start, int end) {
+    if (end - start <= 0 || end - start > MAX_EDIPI_DIGITS) {
+      return -1;
+    }
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      char ch = cn.charAt(i);
+      if (ch < '0' || ch > '9') {
+        return -1;
+      }
+      value = value * 10 + (ch - '0');
+    }
+    return value;
+  }
+
+  private static boolean regionMatches(CharSequence text, int start, String literal) {
+    if (start + literal.length() > text.length()) {
+      return false;
+    }
+    for (int i = 0; i < literal.length(); i++) {
+      if (text.charAt(start + i) != literal.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(CharSequence text, String literal, int from) {
+    for (int i = from; i + literal.length() <= text.length(); i++) {
+      if (regionMatches(text, i, literal)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public String toString() {
+    return "CnPattern[" + name + ": " + pattern + "]";
+  }
+}
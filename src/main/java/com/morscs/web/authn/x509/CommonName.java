@@ -20,9 +20,15 @@ package com.morscs.web.authn.x509;
 
 public class CommonName {
 
+  /**
+   * EDIPI of a common name whose format carries none.
+   */
+  public static final long NO_EDIPI = -1L;
+
   private final String firstName;
   private final String lastName;
   private final String middleName;
+  private final String suffix;
   private final long edipi;
 
   /**
@@ -34,10 +40,25 @@ public class CommonName {
    * @param middle middle name or null if unavailable
    */
   public CommonName(long edipi, String lastName, String firstName, String middle) {
+    this(edipi, lastName, firstName, middle, null);
+  }
+
+  /**
+   * Construct common name object with a generation qualifier.
+   *
+   * @param edipi 10 digit edipi identifier, or {@link #NO_EDIPI}
+   * @param lastName last name
+   * @param firstName first name
+   * @param middle middle name or null if unavailable
+   * @param suffix generation qualifier such as JR, or null if unavailable
+   */
+  public CommonName(long edipi, String lastName, String firstName, String middle,
+      String suffix) {
     this.edipi = edipi;
     this.lastName = lastName;
     this.firstName = firstName;
     this.middleName = middle;
+    this.suffix = suffix;
   }
 
   public String getFirstName() {
@@ -52,6 +73,10 @@ public class CommonName {
     return middleName;
   }
 
+  public String getSuffix() {
+    return suffix;
+  }
+
   public long getEdipi() {
     return edipi;
   }
@@ -0,0 +1,487 @@
+/*
+ *  CrlIndex.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Compact, memory mapped index of revoked serial numbers compiled from CRL files.
+ * <p>
+ * File layout, big endian:
+ * <pre>
+ *   magic "X5CRLIDX", version (int), issuer count (int), entry count (int),
+ *   source fingerprint (32 bytes),
+ *   issuers: issuer key (20 bytes), next update millis (long), sorted by key
+ *   entries: issuer key (20 bytes), serial (24 bytes, sign extended), sorted
+ * </pre>
+ * The issuer key is the CRL authority key identifier, or the SHA-1 of the DER issuer name when
+ * the CRL carries none; identifiers that are not 20 bytes long are reduced with SHA-1 as well.
+ * Lookups are binary searches straight over the mapping and allocate nothing.
+ */
+final class CrlIndex {
+
+  static final int KEY_BYTES = 20;
+  static final int SERIAL_BYTES = 24;
+  static final long NOT_FOUND = Long.MIN_VALUE;
+
+  private static final byte[] MAGIC = {'X', '5', 'C', 'R', 'L', 'I', 'D', 'X'};
+  private static final int VERSION = 1;
+  private static final int SOURCE_BYTES = 32;
+  private static final int ENTRY_COUNT_OFF = MAGIC.length + 8;
+  private static final int HEADER_BYTES = MAGIC.length + 12 + SOURCE_BYTES;
+  private static final int ISSUER_BYTES = KEY_BYTES + 8;
+  private static final int ENTRY_BYTES = KEY_BYTES + SERIAL_BYTES;
+  private static final byte[] OID_AUTHORITY_KEY_ID = {0x55, 0x1d, 0x23};
+  private static final int TAG_EXPLICIT_EXTENSIONS = 0xa0;
+  private static final int TAG_KEY_IDENTIFIER = 0x80;
+
+  private final ByteBuffer index;
+  private final byte[] source;
+  private final int issuerCount;
+  private final int entryCount;
+  private final int entriesOff;
+
+  private CrlIndex(ByteBuffer index) throws X509Exception {
+    if (index.limit() < HEADER_BYTES) {
+      throw new X509Exception("CRL index truncated");
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (index.get(i) != MAGIC[i]) {
+        throw new X509Exception("not a CRL index file");
+      }
+    }
+    int version = index.getInt(MAGIC.length);
+    if (version != VERSION) {
+      throw new X509Exception("unsupported CRL index version " + version);
+    }
+    this.index = index;
+    this.issuerCount = index.getInt(MAGIC.length + 4);
+    this.entryCount = index.getInt(ENTRY_COUNT_OFF);
+    this.source = new byte[SOURCE_BYTES];
+    for (int i = 0; i < SOURCE_BYTES; i++) {
+      source[i] = index.get(MAGIC.length + 12 + i);
+    }
+    this.entriesOff = HEADER_BYTES + issuerCount * ISSUER_BYTES;
+    if (issuerCount < 0 || entryCount < 0
+        || (long) entriesOff + (long) entryCount * ENTRY_BYTES != index.limit()) {
+      throw new X509Exception("CRL index size does not match its header");
+    }
+  }
+
+  /**
+   * Map an index file read-only. The mapping outlives the file, so the file may be replaced
+   * while the index is in use.
+   *
+   * @param file compiled index
+   * @return index
+   * @throws X509Exception when the file cannot be mapped or is not a valid index
+   */
+  static CrlIndex open(Path file) throws X509Exception {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new X509Exception("CRL index too large: " + file);
+      }
+      return new CrlIndex(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+    } catch (IOException exc) {
+      throw new X509Exception("failed to map CRL index " + file, exc);
+    }
+  }
+
+  /**
+   * Fingerprint of the CRL files the index was compiled from.
+   */
+  byte[] getSource() {
+    return source.clone();
+  }
+
+  boolean hasSource(byte[] expected) {
+    return Arrays.equals(source, expected);
+  }
+
+  int getIssuerCount() {
+    return issuerCount;
+  }
+
+  int getEntryCount() {
+    return entryCount;
+  }
+
+  /**
+   * Next update time of the newest CRL seen for an issuer.
+   *
+   * @param key 20 byte issuer key at keyOff
+   * @return epoch millis, Long.MAX_VALUE when the CRL names none, or {@link #NOT_FOUND}
+   */
+  long nextUpdate(byte[] key, int keyOff) {
+    int lo = 0;
+    int hi = issuerCount - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int pos = HEADER_BYTES + mid * ISSUER_BYTES;
+      int cmp = compareKey(pos, key, keyOff);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return index.getLong(pos + KEY_BYTES);
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  /**
+   * Whether a serial is listed as revoked by an issuer.
+   *
+   * @param key 20 byte issuer key at keyOff
+   * @param serial buffer holding the INTEGER content octets of the serial
+   * @param serialOff offset of the serial content
+   * @param serialLen length of the serial content
+   * @return true when revoked
+   */
+  boolean contains(byte[] key, int keyOff, byte[] serial, int serialOff, int serialLen) {
+    if (serialLen <= 0 || serialLen > SERIAL_BYTES) {
+      // such serials are rejected at compile time, so cannot be listed
+      return false;
+    }
+    int lo = 0;
+    int hi = entryCount - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int pos = entriesOff + mid * ENTRY_BYTES;
+      int cmp = compareKey(pos, key, keyOff);
+      if (cmp == 0) {
+        cmp = compareSerial(pos + KEY_BYTES, serial, serialOff, serialLen);
+      }
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int compareKey(int pos, byte[] key, int keyOff) {
+    for (int i = 0; i < KEY_BYTES; i++) {
+      int diff = (index.get(pos + i) & 0xff) - (key[keyOff + i] & 0xff);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return 0;
+  }
+
+  private int compareSerial(int pos, byte[] serial, int serialOff, int serialLen) {
+    for (int i = 0; i < SERIAL_BYTES; i++) {
+      int diff = (index.get(pos + i) & 0xff) - serialByte(serial, serialOff, serialLen, i);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Byte i of a serial sign extended to {@link #SERIAL_BYTES}, without copying it.
+   */
+  private static int serialByte(byte[] serial, int off, int len, int i) {
+    int pad = SERIAL_BYTES - len;
+    if (i < pad) {
+      return serial[off] < 0 ? 0xff : 0;
+    }
+    return serial[off + i - pad] & 0xff;
+  }
+
+  /**
+   * Issuer key for a key identifier, reduced with SHA-1 unless already 20 bytes long.
+   */
+  static byte[] normalizeKey(byte[] der, int off, int len) {
+    return len == KEY_BYTES ? Arrays.copyOfRange(der, off, off + len) : sha1(der, off, len);
+  }
+
+  /**
+   * Issuer key for issuers identified by DER encoded name only.
+   */
+  static byte[] nameKey(byte[] der, int off, int len) {
+    return sha1(der, off, len);
+  }
+
+  /**
+   * Locate the keyIdentifier of an AuthorityKeyIdentifier SEQUENCE.
+   *
+   * @return offset of the [0] keyIdentifier element, or -1 when absent
+   */
+  static int keyIdentifierOffset(byte[] der, int aki, int limit) throws X509Exception {
+    DerReader.expectTag(der, aki, limit, DerReader.TAG_SEQUENCE);
+    int akiEnd = DerReader.end(der, aki, limit);
+    int p = DerReader.contentOffset(der, aki, akiEnd);
+    return p < akiEnd && DerReader.tag(der, p) == TAG_KEY_IDENTIFIER ? p : -1;
+  }
+
+  private static byte[] sha1(byte[] data, int off, int len) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(data, off, len);
+      return digest.digest();
+    } catch (NoSuchAlgorithmException exc) {
+      // every conforming JRE ships SHA-1
+      throw new IllegalStateException("SHA-1 not available", exc);
+    }
+  }
+
+  /**
+   * Compile CRL files into an index file. The file is written next to its final location and
+   * moved into place atomically, so readers of a previous index are never disturbed.
+   *
+   * @param crlFiles DER or PEM encoded CRL files, each holding one or more CRLs
+   * @param source fingerprint of the CRL files, recorded in the header
+   * @param trustStore CA certificates that must have signed each CRL, or null to skip
+   *     signature verification
+   * @param file index file to create or replace
+   * @throws X509Exception when a CRL cannot be read, parsed or verified
+   */
+  static void compile(List<Path> crlFiles, byte[] source, X509TrustStore trustStore, Path file)
+      throws X509Exception {
+    Builder builder = new Builder(trustStore);
+    for (Path crlFile : crlFiles) {
+      byte[] data;
+      try {
+        data = Files.readAllBytes(crlFile);
+      } catch (IOException exc) {
+        throw new X509Exception("failed to read CRL file " + crlFile, exc);
+      }
+      byte[] der = data;
+      int length = data.length;
+      if (length > 0 && DerReader.tag(data, 0) != DerReader.TAG_SEQUENCE) {
+        String text = new String(data, StandardCharsets.ISO_8859_1);
+        der = CertificateHeaderDecoder.newBuffer(text);
+        try {
+          length = CertificateHeaderDecoder.decode(text, der);
+        } catch (IllegalArgumentException exc) {
+          throw new X509Exception("not a DER or PEM CRL file: " + crlFile, exc);
+        }
+      }
+      for (int p = 0; p < length; ) {
+        p = builder.add(der, p, length);
+      }
+    }
+    builder.write(source, file);
+  }
+
+  private static int compare(byte[] a, int aoff, byte[] b, int boff, int len) {
+    for (int i = 0; i < len; i++) {
+      int diff = (a[aoff + i] & 0xff) - (b[boff + i] & 0xff);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Accumulates revoked entries from CRLs before they are sorted and written.
+   */
+  private static final class Builder {
+    private final X509TrustStore trustStore;
+    private final Map<ByteBuffer, Long> issuers = new HashMap<>();
+    private byte[] entries = new byte[ENTRY_BYTES * 1024];
+    private int count;
+
+    Builder(X509TrustStore trustStore) {
+      this.trustStore = trustStore;
+    }
+
+    /**
+     * Add the CRL at off.
+     *
+     * @return offset just past the CRL
+     */
+    int add(byte[] der, int off, int limit) throws X509Exception {
+      DerReader.expectTag(der, off, limit, DerReader.TAG_SEQUENCE);
+      int end = DerReader.end(der, off, limit);
+      int tbs = DerReader.contentOffset(der, off, end);
+      DerReader.expectTag(der, tbs, end, DerReader.TAG_SEQUENCE);
+      int tbsEnd = DerReader.end(der, tbs, end);
+      int signatureAlgorithm = tbsEnd;
+      DerReader.expectTag(der, signatureAlgorithm, end, DerReader.TAG_SEQUENCE);
+      int signature = DerReader.end(der, signatureAlgorithm, end);
+      DerReader.expectTag(der, signature, end, DerReader.TAG_BIT_STRING);
+
+      int p = DerReader.contentOffset(der, tbs, tbsEnd);
+      if (p < tbsEnd && DerReader.tag(der, p) == DerReader.TAG_INTEGER) {
+        p = DerReader.end(der, p, tbsEnd); // version
+      }
+      DerReader.expectTag(der, p, tbsEnd, DerReader.TAG_SEQUENCE); // signature algorithm
+      p = DerReader.end(der, p, tbsEnd);
+      DerReader.expectTag(der, p, tbsEnd, DerReader.TAG_SEQUENCE);
+      int issuer = p;
+      p = DerReader.end(der, p, tbsEnd);
+      DerReader.decodeTime(der, p, tbsEnd); // this update
+      p = DerReader.end(der, p, tbsEnd);
+      long nextUpdate = Long.MAX_VALUE;
+      if (p < tbsEnd && (DerReader.tag(der, p) == DerReader.TAG_UTC_TIME
+          || DerReader.tag(der, p) == DerReader.TAG_GENERALIZED_TIME)) {
+        nextUpdate = DerReader.decodeTime(der, p, tbsEnd);
+        p = DerReader.end(der, p, tbsEnd);
+      }
+      int revoked = -1;
+      if (p < tbsEnd && DerReader.tag(der, p) == DerReader.TAG_SEQUENCE) {
+        revoked = p;
+        p = DerReader.end(der, p, tbsEnd);
+      }
+      int extensions = -1;
+      if (p < tbsEnd && DerReader.tag(der, p) == TAG_EXPLICIT_EXTENSIONS) {
+        extensions = DerReader.contentOffset(der, p, tbsEnd);
+        DerReader.expectTag(der, extensions, tbsEnd, DerReader.TAG_SEQUENCE);
+      }
+
+      if (trustStore != null) {
+        verify(der, tbs, tbsEnd, signatureAlgorithm, signature, issuer, end);
+      }
+      byte[] key = issuerKey(der, issuer, extensions, tbsEnd);
+      issuers.merge(ByteBuffer.wrap(key), nextUpdate, Math::max);
+      if (revoked >= 0) {
+        int revokedEnd = DerReader.end(der, revoked, tbsEnd);
+        for (int entry = DerReader.contentOffset(der, revoked, revokedEnd); entry < revokedEnd;
+            entry = DerReader.end(der, entry, revokedEnd)) {
+          DerReader.expectTag(der, entry, revokedEnd, DerReader.TAG_SEQUENCE);
+          int serial = DerReader.contentOffset(der, entry, revokedEnd);
+          DerReader.expectTag(der, serial, revokedEnd, DerReader.TAG_INTEGER);
+          int serialLen = DerReader.contentLength(der, serial, revokedEnd);
+          if (serialLen == 0 || serialLen > SERIAL_BYTES) {
+            throw new X509Exception("unsupported CRL entry serial length " + serialLen
+                + " for " + X509Names.format(der, issuer, tbsEnd));
+          }
+          append(key, der, DerReader.contentOffset(der, serial, revokedEnd), serialLen);
+        }
+      }
+      return end;
+    }
+
+    private static byte[] issuerKey(byte[] der, int issuer, int extensions, int limit)
+        throws X509Exception {
+      if (extensions >= 0) {
+        int extEnd = DerReader.end(der, extensions, limit);
+        for (int p = DerReader.contentOffset(der, extensions, extEnd); p < extEnd;
+            p = DerReader.end(der, p, extEnd)) {
+          int itemEnd = DerReader.end(der, p, extEnd);
+          int q = DerReader.contentOffset(der, p, itemEnd);
+          if (!DerReader.oidEquals(der, q, itemEnd, OID_AUTHORITY_KEY_ID)) {
+            continue;
+          }
+          q = DerReader.end(der, q, itemEnd);
+          if (q < itemEnd && DerReader.tag(der, q) == DerReader.TAG_BOOLEAN) {
+            q = DerReader.end(der, q, itemEnd); // critical flag
+          }
+          DerReader.expectTag(der, q, itemEnd, DerReader.TAG_OCTET_STRING);
+          int keyId = keyIdentifierOffset(der, DerReader.contentOffset(der, q, itemEnd), itemEnd);
+          if (keyId >= 0) {
+            return normalizeKey(der, DerReader.contentOffset(der, keyId, itemEnd),
+                DerReader.contentLength(der, keyId, itemEnd));
+          }
+        }
+      }
+      return nameKey(der, issuer, DerReader.end(der, issuer, limit) - issuer);
+    }
+
+    private void verify(byte[] der, int tbs, int tbsEnd, int signatureAlgorithm, int signature,
+        int issuer, int limit) throws X509Exception {
+      String issuerDn = X509Names.format(der, issuer, tbsEnd);
+      String algorithm = SignatureVerifier.algorithm(der, signatureAlgorithm, limit);
+      X500Principal name = new X500Principal(
+          Arrays.copyOfRange(der, issuer, DerReader.end(der, issuer, tbsEnd)));
+      for (X509Certificate ca : trustStore.findCaCertificates(name)) {
+        if (SignatureVerifier.verify(algorithm, ca.getPublicKey(), der, tbs, tbsEnd - tbs,
+            signature, limit)) {
+          return;
+        }
+      }
+      throw new X509Exception("CRL signature not verified by a trusted CA for " + issuerDn);
+    }
+
+    private void append(byte[] key, byte[] der, int serialOff, int serialLen) {
+      if ((count + 1) * ENTRY_BYTES > entries.length) {
+        entries = Arrays.copyOf(entries, entries.length * 2);
+      }
+      int pos = count * ENTRY_BYTES;
+      System.arraycopy(key, 0, entries, pos, KEY_BYTES);
+      for (int i = 0; i < SERIAL_BYTES; i++) {
+        entries[pos + KEY_BYTES + i] = (byte) serialByte(der, serialOff, serialLen, i);
+      }
+      count++;
+    }
+
+    void write(byte[] source, Path file) throws X509Exception {
+      Integer[] order = new Integer[count];
+      for (int i = 0; i < count; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) ->
+          compare(entries, a * ENTRY_BYTES, entries, b * ENTRY_BYTES, ENTRY_BYTES));
+      ByteBuffer[] keys = issuers.keySet().toArray(new ByteBuffer[0]);
+      Arrays.sort(keys, (a, b) -> compare(a.array(), 0, b.array(), 0, KEY_BYTES));
+
+      ByteBuffer out = ByteBuffer.allocate(
+          HEADER_BYTES + keys.length * ISSUER_BYTES + count * ENTRY_BYTES);
+      out.put(MAGIC).putInt(VERSION).putInt(keys.length).putInt(0).put(source);
+      for (ByteBuffer key : keys) {
+        out.put(key.array()).putLong(issuers.get(key));
+      }
+      int written = 0;
+      int previous = -1;
+      for (int i : order) {
+        int pos = i * ENTRY_BYTES;
+        if (previous < 0 || compare(entries, previous, entries, pos, ENTRY_BYTES) != 0) {
+          out.put(entries, pos, ENTRY_BYTES);
+          previous = pos;
+          written++;
+        }
+      }
+      out.putInt(ENTRY_COUNT_OFF, written);
+      out.flip();
+      replace(out, file);
+    }
+
+    private static void replace(ByteBuffer content, Path file) throws X509Exception {
+      try {
+        DataFiles.replace(content, file);
+      } catch (IOException exc) {
+        throw new X509Exception("failed to write CRL index " + file, exc);
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ *  DataFiles.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Writing and change detection of the files behind the memory-mapped indexes and the identity
+ * cache snapshot.
+ */
+final class DataFiles {
+
+  private DataFiles() {
+  }
+
+  /**
+   * Replace a file atomically: the content is written to a temporary file in the same
+   * directory, forced to disk and moved over the target, so readers see the old or the new
+   * file and never a partial one.
+   *
+   * @param content bytes from position to limit are written
+   * @param file file to replace
+   * @throws IOException when writing or moving fails; the temporary file is removed
+   */
+  static void replace(ByteBuffer content, Path file) throws IOException {
+    Path dir = file.toAbsolutePath().getParent();
+    Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        while (content.hasRemaining()) {
+          channel.write(content);
+        }
+        channel.force(true);
+      }
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      tmp = null;
+    } finally {
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException exc) {
+          // best effort; a stray temp file does no harm
+        }
+      }
+    }
+  }
+
+  /**
+   * Digest of names, sizes and modification times, enough to notice a replaced source file.
+   *
+   * @param files source files
+   * @return SHA-256 digest
+   * @throws IOException when a file cannot be read
+   */
+  static byte[] fingerprint(List<Path> files) throws IOException {
+    MessageDigest digest = X509Fingerprint.newDigest();
+    for (Path file : files) {
+      digest.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+      long size = Files.size(file);
+      long modified = Files.getLastModifiedTime(file).toMillis();
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        digest.update((byte) (size >>> shift));
+        digest.update((byte) (modified >>> shift));
+      }
+    }
+    return digest.digest();
+  }
+}
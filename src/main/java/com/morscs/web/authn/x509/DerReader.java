@@ -0,0 +1,276 @@
+/*
+ *  DerReader.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Minimal DER walker working on offsets into a byte array.
+ * <p>
+ * Elements are addressed by the offset of their tag byte. Only single byte tags and definite
+ * lengths are supported, which is all DER permits for the structures in an X.509 certificate.
+ */
+final class DerReader {
+
+  static final int TAG_BOOLEAN = 0x01;
+  static final int TAG_INTEGER = 0x02;
+  static final int TAG_BIT_STRING = 0x03;
+  static final int TAG_OCTET_STRING = 0x04;
+  static final int TAG_NULL = 0x05;
+  static final int TAG_OID = 0x06;
+  static final int TAG_ENUMERATED = 0x0a;
+  static final int TAG_UTF8_STRING = 0x0c;
+  static final int TAG_NUMERIC_STRING = 0x12;
+  static final int TAG_PRINTABLE_STRING = 0x13;
+  static final int TAG_TELETEX_STRING = 0x14;
+  static final int TAG_IA5_STRING = 0x16;
+  static final int TAG_UTC_TIME = 0x17;
+  static final int TAG_GENERALIZED_TIME = 0x18;
+  static final int TAG_VISIBLE_STRING = 0x1a;
+  static final int TAG_UNIVERSAL_STRING = 0x1c;
+  static final int TAG_BMP_STRING = 0x1e;
+  static final int TAG_SEQUENCE = 0x30;
+  static final int TAG_SET = 0x31;
+
+  private static final Charset UTF_32BE = Charset.forName("UTF-32BE");
+
+  private DerReader() {
+  }
+
+  static int tag(byte[] der, int off) {
+    return der[off] & 0xff;
+  }
+
+  /**
+   * Offset of the first content byte of the element at off.
+   *
+   * @throws X509Exception when the header is truncated or uses an unsupported form
+   */
+  static int contentOffset(byte[] der, int off, int limit) throws X509Exception {
+    if (off + 2 > limit) {
+      throw new X509Exception("truncated DER element at offset " + off);
+    }
+    if ((der[off] & 0x1f) == 0x1f) {
+      throw new X509Exception("unsupported multi byte DER tag at offset " + off);
+    }
+    int first = der[off + 1] & 0xff;
+    if (first < 0x80) {
+      return off + 2;
+    }
+    int lengthBytes = first & 0x7f;
+    if (lengthBytes == 0 || lengthBytes > 4) {
+      throw new X509Exception("unsupported DER length form at offset " + off);
+    }
+    return off + 2 + lengthBytes;
+  }
+
+  /**
+   * Number of content bytes of the element at off.
+   *
+   * @throws X509Exception when the header is truncated or the content overruns limit
+   */
+  static int contentLength(byte[] der, int off, int limit) throws X509Exception {
+    int start = contentOffset(der, off, limit);
+    int first = der[off + 1] & 0xff;
+    long length;
+    if (first < 0x80) {
+      length = first;
+    } else {
+      if (start > limit) {
+        throw new X509Exception("truncated DER length at offset " + off);
+      }
+      length = 0;
+      for (int i = off + 2; i < start; i++) {
+        length = length << 8 | (der[i] & 0xff);
+      }
+    }
+    if (start + length > limit) {
+      throw new X509Exception("DER element at offset " + off + " overruns its container");
+    }
+    return (int) length;
+  }
+
+  /**
+   * Offset just past the element at off.
+   */
+  static int end(byte[] der, int off, int limit) throws X509Exception {
+    return contentOffset(der, off, limit) + contentLength(der, off, limit);
+  }
+
+  /**
+   * Offset of the first content byte of the element at off, or -1 where
+   * {@link #contentOffset} would throw. For prechecks of untrusted input, where building
+   * exceptions would cost more than the check.
+   */
+  static int tryContentOffset(byte[] der, int off, int limit) {
+    if (off + 2 > limit || (der[off] & 0x1f) == 0x1f) {
+      return -1;
+    }
+    int first = der[off + 1] & 0xff;
+    if (first < 0x80) {
+      return off + 2;
+    }
+    int lengthBytes = first & 0x7f;
+    return lengthBytes == 0 || lengthBytes > 4 ? -1 : off + 2 + lengthBytes;
+  }
+
+  /**
+   * Offset just past the element at off, or -1 where {@link #end} would throw.
+   */
+  static int tryEnd(byte[] der, int off, int limit) {
+    int start = tryContentOffset(der, off, limit);
+    if (start < 0 || start > limit) {
+      return -1;
+    }
+    long length = der[off + 1] & 0xff;
+    if (length >= 0x80) {
+      length = 0;
+      for (int i = off + 2; i < start; i++) {
+        length = length << 8 | (der[i] & 0xff);
+      }
+    }
+    return start + length > limit ? -1 : (int) (start + length);
+  }
+
+  static void expectTag(byte[] der, int off, int limit, int expected) throws X509Exception {
+    if (off >= limit) {
+      throw new X509Exception(
+          "missing DER element, expected tag " + Integer.toHexString(expected));
+    }
+    if (tag(der, off) != expected) {
+      throw new X509Exception("unexpected DER tag " + Integer.toHexString(tag(der, off))
+          + " at offset " + off + ", expected " + Integer.toHexString(expected));
+    }
+  }
+
+  /**
+   * Compare the content of the OID element at off with an encoded OID body.
+   */
+  static boolean oidEquals(byte[] der, int off, int limit, byte[] oidBody) throws X509Exception {
+    if (tag(der, off) != TAG_OID || contentLength(der, off, limit) != oidBody.length) {
+      return false;
+    }
+    int start = contentOffset(der, off, limit);
+    for (int i = 0; i < oidBody.length; i++) {
+      if (der[start + i] != oidBody[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Render an OID element in dotted decimal form.
+   */
+  static String oidToString(byte[] der, int off, int limit) throws X509Exception {
+    int start = contentOffset(der, off, limit);
+    int end = start + contentLength(der, off, limit);
+    StringBuilder out = new StringBuilder();
+    long value = 0;
+    boolean first = true;
+    for (int i = start; i < end; i++) {
+      value = value << 7 | (der[i] & 0x7f);
+      if ((der[i] & 0x80) == 0) {
+        if (first) {
+          int arc = value < 80 ? (int) (value / 40) : 2;
+          out.append(arc).append('.').append(value - arc * 40L);
+          first = false;
+        } else {
+          out.append('.').append(value);
+        }
+        value = 0;
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * Decode one of the ASN.1 character string types.
+   *
+   * @return decoded string, or null when the element is not a supported string type
+   */
+  static String decodeString(byte[] der, int off, int limit) throws X509Exception {
+    int start = contentOffset(der, off, limit);
+    int length = contentLength(der, off, limit);
+    switch (tag(der, off)) {
+      case TAG_UTF8_STRING:
+        return new String(der, start, length, StandardCharsets.UTF_8);
+      case TAG_PRINTABLE_STRING:
+      case TAG_IA5_STRING:
+      case TAG_NUMERIC_STRING:
+      case TAG_VISIBLE_STRING:
+        return new String(der, start, length, StandardCharsets.US_ASCII);
+      case TAG_TELETEX_STRING:
+        return new String(der, start, length, StandardCharsets.ISO_8859_1);
+      case TAG_BMP_STRING:
+        return new String(der, start, length, StandardCharsets.UTF_16BE);
+      case TAG_UNIVERSAL_STRING:
+        return new String(der, start, length, UTF_32BE);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Decode a UTCTime or GeneralizedTime element as epoch millis.
+   */
+  static long decodeTime(byte[] der, int off, int limit) throws X509Exception {
+    int start = contentOffset(der, off, limit);
+    int length = contentLength(der, off, limit);
+    int tag = tag(der, off);
+    int year;
+    int i;
+    if (tag == TAG_UTC_TIME && length == 13) {
+      year = digits(der, start, 2);
+      year += year < 50 ? 2000 : 1900;
+      i = start + 2;
+    } else if (tag == TAG_GENERALIZED_TIME && length == 15) {
+      year = digits(der, start, 4);
+      i = start + 4;
+    } else {
+      throw new X509Exception("unsupported certificate time encoding at offset " + off);
+    }
+    if (der[start + length - 1] != 'Z') {
+      throw new X509Exception("certificate time not in UTC at offset " + off);
+    }
+    try {
+      return LocalDateTime.of(year, digits(der, i, 2), digits(der, i + 2, 2),
+          digits(der, i + 4, 2), digits(der, i + 6, 2), digits(der, i + 8, 2))
+          .toInstant(ZoneOffset.UTC).toEpochMilli();
+    } catch (DateTimeException exc) {
+      throw new X509Exception("invalid certificate time at offset " + off, exc);
+    }
+  }
+
+  private static int digits(byte[] der, int off, int count) throws X509Exception {
+    int value = 0;
+    for (int i = off; i < off + count; i++) {
+      int digit = der[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new X509Exception("invalid digit in certificate time at offset " + i);
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ *  DerWriter.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Minimal DER encoder for the few small structures the library sends, such as OCSP requests.
+ */
+final class DerWriter {
+
+  private DerWriter() {
+  }
+
+  /**
+   * Encode an element from its tag and the concatenation of already encoded contents.
+   *
+   * @param tag identifier octet
+   * @param contents content parts, concatenated in order
+   * @return encoded element
+   */
+  static byte[] element(int tag, byte[]... contents) {
+    int length = 0;
+    for (byte[] content : contents) {
+      length += content.length;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+    out.write(tag);
+    if (length < 0x80) {
+      out.write(length);
+    } else {
+      int lengthBytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+      out.write(0x80 | lengthBytes);
+      for (int shift = (lengthBytes - 1) * 8; shift >= 0; shift -= 8) {
+        out.write(length >>> shift);
+      }
+    }
+    for (byte[] content : contents) {
+      out.write(content, 0, content.length);
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] sequence(byte[]... contents) {
+    return element(DerReader.TAG_SEQUENCE, contents);
+  }
+
+  static byte[] octetString(byte[] value) {
+    return element(DerReader.TAG_OCTET_STRING, value);
+  }
+
+  /**
+   * INTEGER from its two's complement big endian value, e.g. {@code BigInteger.toByteArray()}.
+   */
+  static byte[] integer(byte[] value) {
+    return element(DerReader.TAG_INTEGER, value);
+  }
+
+  static byte[] nullValue() {
+    return element(DerReader.TAG_NULL);
+  }
+
+  /**
+   * OBJECT IDENTIFIER from its dotted decimal form.
+   *
+   * @param dotted e.g. "1.3.14.3.2.26"
+   * @return encoded element
+   */
+  static byte[] oid(String dotted) {
+    String[] arcs = dotted.split("\\.");
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    writeArc(body, Long.parseLong(arcs[0]) * 40 + Long.parseLong(arcs[1]));
+    for (int i = 2; i < arcs.length; i++) {
+      writeArc(body, Long.parseLong(arcs[i]));
+    }
+    return element(DerReader.TAG_OID, body.toByteArray());
+  }
+
+  private static void writeArc(ByteArrayOutputStream out, long arc) {
+    int groups = Math.max(1, (64 - Long.numberOfLeadingZeros(arc) + 6) / 7);
+    for (int i = groups - 1; i > 0; i--) {
+      out.write((int) (arc >>> (i * 7)) & 0x7f | 0x80);
+    }
+    out.write((int) arc & 0x7f);
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ *  DnScanner.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import com.morscs.web.authn.x509.X509Exception.Code;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single pass, index based scanner for RFC 4514 distinguished names and DoD style CN values.
+ * <p>
+ * Handles backslash escapes (both special characters and hex pairs), quoted values as produced
+ * by {@code X509Certificate.getSubjectDN().getName()}, multi-valued RDNs joined with '+' and the
+ * legacy ';' RDN separator. Values are only materialized as strings when they are actually
+ * requested, and not at all when only the EDIPI is needed.
+ */
+final class DnScanner {
+
+  static final long NOT_FOUND = -1L;
+
+  private static final int IDX_LAST_NAME = 0;
+  private static final int IDX_FIRST_NAME = 1;
+  private static final int IDX_MIDDLE_NAME = 2; // if present
+  private static final int MAX_CN_PARTS = 4;
+  private static final int MAX_EDIPI_DIGITS = 18; // always fits in a long
+
+  private DnScanner() {
+  }
+
+  /**
+   * Locate the raw value of the first attribute with the given type.
+   *
+   * @param dn distinguished name
+   * @param type attribute type such as "CN", compared ignoring case
+   * @return value range packed as {@code start << 32 | end}, or {@link #NOT_FOUND}
+   */
+  static long findValue(CharSequence dn, String type) {
+    int len = dn.length();
+    int i = 0;
+    while (i < len) {
+      i = skipSpaces(dn, i, len);
+      int typeStart = i;
+      while (i < len && dn.charAt(i) != '=' && !isRdnSeparator(dn.charAt(i))) {
+        i++;
+      }
+      if (i >= len || dn.charAt(i) != '=') {
+        // malformed attribute without a value; move on to the next one
+        i++;
+        continue;
+      }
+      int typeEnd = trimTrailingSpaces(dn, typeStart, i);
+      i = skipSpaces(dn, i + 1, len);
+      int valueStart = i;
+      int valueEnd = skipValue(dn, i, len);
+      if (typeMatches(dn, typeStart, typeEnd, type)) {
+        int end = trimValueEnd(dn, valueStart, valueEnd);
+        return (long) valueStart << 32 | end;
+      }
+      i = valueEnd + 1;
+    }
+    return NOT_FOUND;
+  }
+
+  static int rangeStart(long range) {
+    return (int) (range >>> 32);
+  }
+
+  static int rangeEnd(long range) {
+    return (int) range;
+  }
+
+  /**
+   * Find and unescape the value of the first attribute with the given type.
+   *
+   * @param dn distinguished name
+   * @param type attribute type such as "CN"
+   * @return unescaped value, or null if missing or empty
+   */
+  static String findDecodedValue(CharSequence dn, String type) {
+    long range = findValue(dn, type);
+    if (range == NOT_FOUND || rangeStart(range) == rangeEnd(range)) {
+      return null;
+    }
+    return decodeValue(dn, rangeStart(range), rangeEnd(range));
+  }
+
+  /**
+   * Unescape a raw attribute value.
+   *
+   * @param dn text holding the value
+   * @param start first char of the raw value
+   * @param end end of the raw value, exclusive
+   * @return unescaped value
+   */
+  static String decodeValue(CharSequence dn, int start, int end) {
+    if (!needsDecoding(dn, start, end)) {
+      return dn.subSequence(start, end).toString();
+    }
+    boolean quoted = dn.charAt(start) == '"';
+    int i = quoted ? start + 1 : start;
+    int stop = quoted && end - 1 > start && dn.charAt(end - 1) == '"' ? end - 1 : end;
+    StringBuilder out = new StringBuilder(stop - i);
+    ByteArrayOutputStream pendingBytes = null;
+    while (i < stop) {
+      char ch = dn.charAt(i);
+      if (ch == '\\' && i + 1 < stop) {
+        char next = dn.charAt(i + 1);
+        if (i + 2 < stop && isHex(next) && isHex(dn.charAt(i + 2))) {
+          if (pendingBytes == null) {
+            pendingBytes = new ByteArrayOutputStream(4);
+          }
+          pendingBytes.write(hexValue(next) << 4 | hexValue(dn.charAt(i + 2)));
+          i += 3;
+          continue;
+        }
+        flushBytes(pendingBytes, out);
+        out.append(next);
+        i += 2;
+        continue;
+      }
+      flushBytes(pendingBytes, out);
+      out.append(ch);
+      i++;
+    }
+    flushBytes(pendingBytes, out);
+    return out.toString();
+  }
+
+  /**
+   * Parse the EDIPI from the trailing component of a DoD style CN without creating strings.
+   *
+   * @param cn text holding the CN
+   * @param start first char of the CN
+   * @param end end of the CN, exclusive
+   * @return edipi
+   * @throws X509Exception when the CN layout or the EDIPI digits are invalid
+   */
+  static long parseEdipi(CharSequence cn, int start, int end) throws X509Exception {
+    int dots = 0;
+    int lastDot = -1;
+    for (int i = start; i < end; i++) {
+      if (cn.charAt(i) == '.') {
+        dots++;
+        lastDot = i;
+      }
+    }
+    int parts = dots + 1;
+    if (parts != MAX_CN_PARTS && parts != MAX_CN_PARTS - 1) {
+      throw failure("unexpected parts in cn, expected 3-4, but parsed ", parts);
+    }
+    return parseDigits(cn, lastDot + 1, end);
+  }
+
+  /**
+   * Parse a DoD style CN of the form LAST.FIRST[.MIDDLE].EDIPI.
+   *
+   * @param cn text holding the CN
+   * @param start first char of the CN
+   * @param end end of the CN, exclusive
+   * @return parsed common name
+   * @throws X509Exception when the CN layout or the EDIPI digits are invalid
+   */
+  static CommonName parseCommonName(CharSequence cn, int start, int end) throws X509Exception {
+    int[] dots = new int[MAX_CN_PARTS - 1];
+    int count = 0;
+    for (int i = start; i < end; i++) {
+      if (cn.charAt(i) == '.') {
+        if (count == dots.length) {
+          throw failure("unexpected parts in cn, expected 3-4, but parsed more", -1);
+        }
+        dots[count++] = i;
+      }
+    }
+    int parts = count + 1;
+    if (parts != MAX_CN_PARTS && parts != MAX_CN_PARTS - 1) {
+      throw failure("unexpected parts in cn, expected 3-4, but parsed ", parts);
+    }
+    long edipi = parseDigits(cn, dots[count - 1] + 1, end);
+    String lastName = cn.subSequence(start, dots[IDX_LAST_NAME]).toString();
+    String firstName = cn.subSequence(dots[IDX_LAST_NAME] + 1, dots[IDX_FIRST_NAME]).toString();
+    String middleName = parts < MAX_CN_PARTS ? null
+        : cn.subSequence(dots[IDX_FIRST_NAME] + 1, dots[IDX_MIDDLE_NAME]).toString();
+    return new CommonName(edipi, lastName, firstName, middleName);
+  }
+
+  static boolean needsDecoding(CharSequence dn, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char ch = dn.charAt(i);
+      if (ch == '\\' || ch == '"') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long parseDigits(CharSequence cn, int start, int end) throws X509Exception {
+    int digits = end - start;
+    if (digits <= 0 || digits > MAX_EDIPI_DIGITS) {
+      throw failure("failed to parse edipi, expected 1-" + MAX_EDIPI_DIGITS
+          + " digits but found ", digits);
+    }
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      char ch = cn.charAt(i);
+      if (ch < '0' || ch > '9') {
+        throw failure("failed to parse edipi, unexpected character at index ", i);
+      }
+      value = value * 10 + (ch - '0');
+    }
+    return value;
+  }
+
+  /**
+   * CN failure, the shared stackless one while an input guard is in use.
+   *
+   * @param message message, completed with detail unless detail is negative
+   */
+  private static X509Exception failure(String message, int detail) {
+    if (X509Extraction.isGuarded()) {
+      return X509Exception.preallocated(Code.CN_UNPARSEABLE);
+    }
+    return new X509Exception(Code.CN_UNPARSEABLE, detail < 0 ? message : message + detail);
+  }
+
+  private static int skipValue(CharSequence dn, int i, int len) {
+    boolean quoted = false;
+    while (i < len) {
+      char ch = dn.charAt(i);
+      if (ch == '\\') {
+        i += 2;
+        continue;
+      }
+      if (ch == '"') {
+        quoted = !quoted;
+      } else if (!quoted && (isRdnSeparator(ch) || ch == '+')) {
+        return i;
+      }
+      i++;
+    }
+    return len;
+  }
+
+  private static int trimValueEnd(CharSequence dn, int start, int end) {
+    while (end > start && dn.charAt(end - 1) == ' ') {
+      // a space preceded by a backslash is part of the value
+      int slashes = 0;
+      for (int j = end - 2; j >= start && dn.charAt(j) == '\\'; j--) {
+        slashes++;
+      }
+      if ((slashes & 1) == 1) {
+        break;
+      }
+      end--;
+    }
+    return end;
+  }
+
+  private static boolean typeMatches(CharSequence dn, int start, int end, String type) {
+    int len = end - start;
+    if (len == type.length()) {
+      return regionMatchesIgnoreCase(dn, start, type, len);
+    }
+    // legacy "OID.2.5.4.3" form
+    return len == type.length() + 4 && regionMatchesIgnoreCase(dn, start, "OID.", 4)
+        && regionMatchesIgnoreCase(dn, start + 4, type, type.length());
+  }
+
+  private static boolean regionMatchesIgnoreCase(CharSequence dn, int start, String expected,
+      int len) {
+    for (int i = 0; i < len; i++) {
+      char actual = dn.charAt(start + i);
+      char want = expected.charAt(i);
+      if (actual != want && Character.toUpperCase(actual) != Character.toUpperCase(want)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isRdnSeparator(char ch) {
+    return ch == ',' || ch == ';';
+  }
+
+  private static int skipSpaces(CharSequence dn, int i, int len) {
+    while (i < len && dn.charAt(i) == ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  private static int trimTrailingSpaces(CharSequence dn, int start, int end) {
+    while (end > start && dn.charAt(end - 1) == ' ') {
+      end--;
+    }
+    return end;
+  }
+
+  private static boolean isHex(char ch) {
+    return ch >= '0' && ch <= '9' || ch >= 'a' && ch <= 'f' || ch >= 'A' && ch <= 'F';
+  }
+
+  private static int hexValue(char ch) {
+    return ch <= '9' ? ch - '0' : (ch | 0x20) - 'a' + 10;
+  }
+
+  private static void flushBytes(ByteArrayOutputStream pendingBytes, StringBuilder out) {
+    if (pendingBytes != null && pendingBytes.size() > 0) {
+      out.append(new String(pendingBytes.toByteArray(), StandardCharsets.UTF_8));
+      pendingBytes.reset();
+    }
+  }
+}
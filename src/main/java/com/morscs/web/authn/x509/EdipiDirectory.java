@@ -0,0 +1,219 @@
+/*
+ *  EdipiDirectory.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Organization and role lookup by EDIPI, e.g. with {@link CommonName#getEdipi()} after
+ * authentication, backed by a CSV roster file.
+ * <p>
+ * The roster is compiled into a compact index file that is memory mapped as an
+ * {@link EdipiRoster}; a later start with an unchanged roster maps the existing index, which
+ * takes milliseconds regardless of roster size. {@link #reload()} recompiles when the roster
+ * changes and swaps the new snapshot in atomically; lookups in progress finish on the snapshot
+ * they started with and are never blocked. {@link #startWatching(Duration)} runs the reload
+ * periodically in the background.
+ * <p>
+ * Single lookups can go through the directory. To read several attributes of one EDIPI
+ * consistently across a reload, take {@link #getRoster()} once and read them all from it.
+ * <p>
+ * Instances are thread safe and meant to be shared for the lifetime of the application.
+ */
+public class EdipiDirectory implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EdipiDirectory.class);
+
+  private final Path rosterFile;
+  private final Path indexFile;
+  private volatile EdipiRoster roster;
+  private ScheduledExecutorService watcher;
+
+  private final LongAdder reloads = new LongAdder();
+  private final LongAdder reloadFailures = new LongAdder();
+
+  /**
+   * Construct directory and load the roster.
+   *
+   * @param rosterFile CSV roster, see {@link EdipiRoster} for the format
+   * @param indexFile where the compiled index is kept
+   * @throws X509Exception when the roster cannot be read or is malformed
+   */
+  public EdipiDirectory(Path rosterFile, Path indexFile) throws X509Exception {
+    this.rosterFile = rosterFile;
+    this.indexFile = indexFile;
+    reload();
+  }
+
+  /**
+   * Recompile and swap in the roster if the roster file changed since the last load.
+   *
+   * @return true when a new snapshot was swapped in
+   * @throws X509Exception when the roster cannot be read or is malformed; the previous
+   *     snapshot stays in use
+   */
+  public synchronized boolean reload() throws X509Exception {
+    byte[] source = fingerprint();
+    EdipiRoster current = roster;
+    if (current != null && current.hasSource(source)) {
+      return false;
+    }
+    EdipiRoster loaded = current == null ? openExisting(source) : null;
+    if (loaded == null) {
+      EdipiRoster.compile(rosterFile, source, indexFile);
+      loaded = EdipiRoster.open(indexFile);
+      reloads.increment();
+    }
+    roster = loaded;
+    return true;
+  }
+
+  /**
+   * Reload every interval on a background daemon thread until {@link #close()}. Failures are
+   * logged and the previous snapshot kept.
+   *
+   * @param interval delay between roster checks
+   * @throws IllegalStateException when already watching
+   */
+  public synchronized void startWatching(Duration interval) {
+    if (watcher != null) {
+      throw new IllegalStateException("already watching " + rosterFile);
+    }
+    watcher = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "x509-edipi-reload");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long millis = interval.toMillis();
+    watcher.scheduleWithFixedDelay(this::reloadQuietly, millis, millis, TimeUnit.MILLISECONDS);
+  }
+
+  private void reloadQuietly() {
+    try {
+      if (reload()) {
+        LOG.info("EDIPI roster reloaded from {}: {} entries", rosterFile, roster.size());
+      }
+    } catch (X509Exception | RuntimeException exc) {
+      // an exception escaping would cancel the schedule
+      reloadFailures.increment();
+      LOG.warn("EDIPI roster reload from {} failed, keeping previous roster", rosterFile, exc);
+    }
+  }
+
+  /**
+   * Stop background reloading. The mapped roster stays usable.
+   */
+  @Override
+  public synchronized void close() {
+    if (watcher != null) {
+      watcher.shutdownNow();
+      watcher = null;
+    }
+  }
+
+  /**
+   * Current roster snapshot. It stays valid and unchanged after later reloads.
+   *
+   * @return roster snapshot
+   */
+  public EdipiRoster getRoster() {
+    return roster;
+  }
+
+  public boolean contains(long edipi) {
+    return roster.contains(edipi);
+  }
+
+  /**
+   * Organization of an EDIPI.
+   *
+   * @param edipi EDIPI to look up
+   * @return organization name, or null when the EDIPI is not in the roster or has none
+   */
+  public String getOrganization(long edipi) {
+    EdipiRoster current = roster;
+    int entry = current.indexOf(edipi);
+    return entry < 0 ? null : current.getOrganization(entry);
+  }
+
+  /**
+   * Whether an EDIPI holds a role.
+   *
+   * @param edipi EDIPI to look up
+   * @param role role name
+   * @return true when the EDIPI is in the roster and holds the role
+   */
+  public boolean hasRole(long edipi, String role) {
+    EdipiRoster current = roster;
+    int entry = current.indexOf(edipi);
+    return entry >= 0 && current.hasRole(entry, role);
+  }
+
+  private EdipiRoster openExisting(byte[] source) {
+    if (!Files.isRegularFile(indexFile)) {
+      return null;
+    }
+    try {
+      EdipiRoster existing = EdipiRoster.open(indexFile);
+      return existing.hasSource(source) ? existing : null;
+    } catch (X509Exception exc) {
+      LOG.info("ignoring unusable EDIPI roster index {}: {}", indexFile, exc.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Digest of name, size and modification time, enough to notice a replaced roster file.
+   */
+  private byte[] fingerprint() throws X509Exception {
+    try {
+      return DataFiles.fingerprint(Collections.singletonList(rosterFile));
+    } catch (IOException exc) {
+      throw new X509Exception("failed to read EDIPI roster " + rosterFile, exc);
+    }
+  }
+
+  public int size() {
+    return roster.size();
+  }
+
+  /**
+   * Number of times the roster was compiled into a new index.
+   *
+   * @return reload count
+   */
+  public long getReloadCount() {
+    return reloads.sum();
+  }
+
+  public long getReloadFailureCount() {
+    return reloadFailures.sum();
+  }
+}
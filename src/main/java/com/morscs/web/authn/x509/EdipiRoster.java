@@ -0,0 +1,462 @@
+/*
+ *  EdipiRoster.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, memory mapped snapshot of an EDIPI roster: organization and roles per EDIPI.
+ * <p>
+ * EDIPIs are kept as a sorted array of primitive longs and looked up by binary search straight
+ * over the mapping, so a roster of millions of entries occupies no heap beyond its distinct
+ * organization and role names, and a lookup allocates nothing. Look an EDIPI up once with
+ * {@link #indexOf(long)}, then read its attributes by entry index.
+ * <p>
+ * File layout, big endian:
+ * <pre>
+ *   magic "X5EDIDIR", version (int), entry count (int), organization count (int),
+ *   role count (int), source fingerprint (32 bytes),
+ *   edipis: long per entry, ascending
+ *   role masks: long per entry, bit n set for role n
+ *   organizations: int per entry, index into the organization names or -1
+ *   organization names, then role names: unsigned short length and UTF-8 bytes each
+ * </pre>
+ */
+public final class EdipiRoster {
+
+  /**
+   * Largest number of distinct roles a roster can hold, one bit of the role mask each.
+   */
+  public static final int MAX_ROLES = 64;
+
+  private static final byte[] MAGIC = {'X', '5', 'E', 'D', 'I', 'D', 'I', 'R'};
+  private static final int VERSION = 1;
+  private static final int SOURCE_BYTES = 32;
+  private static final int HEADER_BYTES = MAGIC.length + 16 + SOURCE_BYTES;
+  private static final int ROSTER_COLUMNS = 3;
+
+  private final ByteBuffer index;
+  private final byte[] source;
+  private final int count;
+  private final int masksOff;
+  private final int orgsOff;
+  private final String[] organizations;
+  private final String[] roles;
+  private final Map<String, Integer> roleBits = new HashMap<>();
+
+  private EdipiRoster(ByteBuffer index) throws X509Exception {
+    if (index.limit() < HEADER_BYTES) {
+      throw new X509Exception("EDIPI roster index truncated");
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (index.get(i) != MAGIC[i]) {
+        throw new X509Exception("not an EDIPI roster index file");
+      }
+    }
+    int version = index.getInt(MAGIC.length);
+    if (version != VERSION) {
+      throw new X509Exception("unsupported EDIPI roster index version " + version);
+    }
+    this.index = index;
+    this.count = index.getInt(MAGIC.length + 4);
+    int orgCount = index.getInt(MAGIC.length + 8);
+    int roleCount = index.getInt(MAGIC.length + 12);
+    if (count < 0 || orgCount < 0 || roleCount < 0 || roleCount > MAX_ROLES
+        || HEADER_BYTES + (long) count * 20 > index.limit()) {
+      throw new X509Exception("EDIPI roster index size does not match its header");
+    }
+    this.source = new byte[SOURCE_BYTES];
+    for (int i = 0; i < SOURCE_BYTES; i++) {
+      source[i] = index.get(MAGIC.length + 16 + i);
+    }
+    this.masksOff = HEADER_BYTES + count * 8;
+    this.orgsOff = masksOff + count * 8;
+    ByteBuffer names = index.duplicate();
+    names.position(orgsOff + count * 4);
+    try {
+      this.organizations = readNames(names, orgCount);
+      this.roles = readNames(names, roleCount);
+    } catch (RuntimeException exc) {
+      throw new X509Exception("EDIPI roster index names malformed", exc);
+    }
+    if (names.hasRemaining()) {
+      throw new X509Exception("EDIPI roster index size does not match its header");
+    }
+    for (int entry = 0; entry < count; entry++) {
+      int org = index.getInt(orgsOff + entry * 4);
+      if (org < -1 || org >= orgCount) {
+        throw new X509Exception("EDIPI roster index organization " + org + " of entry " + entry
+            + " out of range");
+      }
+    }
+    for (int i = 0; i < roles.length; i++) {
+      roleBits.put(roles[i], i);
+    }
+  }
+
+  private static String[] readNames(ByteBuffer names, int nameCount) {
+    String[] result = new String[nameCount];
+    for (int i = 0; i < nameCount; i++) {
+      byte[] utf8 = new byte[names.getShort() & 0xffff];
+      names.get(utf8);
+      result[i] = new String(utf8, StandardCharsets.UTF_8);
+    }
+    return result;
+  }
+
+  /**
+   * Map an index file read-only. The mapping outlives the file, so the file may be replaced
+   * while the roster is in use.
+   *
+   * @param file compiled roster index
+   * @return roster
+   * @throws X509Exception when the file cannot be mapped or is not a valid index
+   */
+  static EdipiRoster open(Path file) throws X509Exception {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new X509Exception("EDIPI roster index too large: " + file);
+      }
+      return new EdipiRoster(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+    } catch (IOException exc) {
+      throw new X509Exception("failed to map EDIPI roster index " + file, exc);
+    }
+  }
+
+  boolean hasSource(byte[] expected) {
+    return Arrays.equals(source, expected);
+  }
+
+  /**
+   * Entry index of an EDIPI.
+   *
+   * @param edipi EDIPI to look up
+   * @return entry index, or -1 when the EDIPI is not in the roster
+   */
+  public int indexOf(long edipi) {
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long value = index.getLong(HEADER_BYTES + mid * 8);
+      if (value < edipi) {
+        low = mid + 1;
+      } else if (value > edipi) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  public boolean contains(long edipi) {
+    return indexOf(edipi) >= 0;
+  }
+
+  public long getEdipi(int entry) {
+    return index.getLong(HEADER_BYTES + checkEntry(entry) * 8);
+  }
+
+  /**
+   * Organization of an entry.
+   *
+   * @param entry entry index from {@link #indexOf(long)}
+   * @return organization name, or null when the roster names none
+   */
+  public String getOrganization(int entry) {
+    int org = index.getInt(orgsOff + checkEntry(entry) * 4);
+    return org < 0 ? null : organizations[org];
+  }
+
+  /**
+   * Roles of an entry as a bit mask over {@link #getRoleNames()}.
+   *
+   * @param entry entry index from {@link #indexOf(long)}
+   * @return role mask
+   */
+  public long getRoleMask(int entry) {
+    return index.getLong(masksOff + checkEntry(entry) * 8);
+  }
+
+  /**
+   * Whether an entry holds a role.
+   *
+   * @param entry entry index from {@link #indexOf(long)}
+   * @param role role name
+   * @return true when the entry holds the role
+   */
+  public boolean hasRole(int entry, String role) {
+    Integer bit = roleBits.get(role);
+    return bit != null && (getRoleMask(entry) >>> bit & 1) != 0;
+  }
+
+  /**
+   * Names of the roles held by an entry.
+   *
+   * @param entry entry index from {@link #indexOf(long)}
+   * @return role names, in roster order
+   */
+  public List<String> getRoles(int entry) {
+    long mask = getRoleMask(entry);
+    List<String> result = new ArrayList<>(Long.bitCount(mask));
+    for (int bit = 0; bit < roles.length; bit++) {
+      if ((mask >>> bit & 1) != 0) {
+        result.add(roles[bit]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * All role names, position n standing for bit n of the role masks.
+   *
+   * @return role names
+   */
+  public List<String> getRoleNames() {
+    return Collections.unmodifiableList(Arrays.asList(roles));
+  }
+
+  public int size() {
+    return count;
+  }
+
+  private int checkEntry(int entry) {
+    if (entry < 0 || entry >= count) {
+      throw new IndexOutOfBoundsException("no roster entry " + entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Compile a CSV roster into an index file, replacing it atomically.
+   * <p>
+   * Each line holds {@code edipi,organization,roles}, roles separated by semicolons; fields
+   * may be double quoted. Blank lines, lines starting with {@code #} and a header as the first
+   * other line, recognized by a first field that is not a number, are skipped. Organization and
+   * roles may be left out.
+   *
+   * @param roster CSV roster file
+   * @param source fingerprint of the roster, recorded in the header
+   * @param file index file to create or replace
+   * @throws X509Exception when the roster cannot be read or holds malformed or duplicate
+   *     entries, or more than {@value #MAX_ROLES} distinct roles
+   */
+  static void compile(Path roster, byte[] source, Path file) throws X509Exception {
+    Builder builder = new Builder();
+    try (BufferedReader reader = Files.newBufferedReader(roster, StandardCharsets.UTF_8)) {
+      String line;
+      int lineNumber = 0;
+      boolean first = true;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+          continue;
+        }
+        String[] fields = splitCsv(trimmed, roster, lineNumber);
+        boolean header = first;
+        first = false;
+        long edipi;
+        try {
+          edipi = Long.parseLong(fields[0]);
+        } catch (NumberFormatException exc) {
+          if (header) {
+            continue;
+          }
+          throw new X509Exception(
+              "invalid EDIPI '" + fields[0] + "' at " + roster + ":" + lineNumber);
+        }
+        builder.add(edipi, fields[1], fields[2], roster, lineNumber);
+      }
+    } catch (IOException exc) {
+      throw new X509Exception("failed to read EDIPI roster " + roster, exc);
+    }
+    replace(builder.build(source), file);
+  }
+
+  /**
+   * Split a CSV line into exactly edipi, organization and roles, honoring double quotes.
+   */
+  private static String[] splitCsv(String line, Path roster, int lineNumber)
+      throws X509Exception {
+    String[] fields = {"", "", ""};
+    int field = 0;
+    StringBuilder value = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          value.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          value.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        if (++field == ROSTER_COLUMNS) {
+          throw new X509Exception("too many fields at " + roster + ":" + lineNumber);
+        }
+        fields[field - 1] = value.toString().trim();
+        value.setLength(0);
+      } else {
+        value.append(c);
+      }
+    }
+    if (quoted) {
+      throw new X509Exception("unterminated quote at " + roster + ":" + lineNumber);
+    }
+    fields[field] = value.toString().trim();
+    return fields;
+  }
+
+  private static void replace(ByteBuffer content, Path file) throws X509Exception {
+    try {
+      DataFiles.replace(content, file);
+    } catch (IOException exc) {
+      throw new X509Exception("failed to write EDIPI roster index " + file, exc);
+    }
+  }
+
+  /**
+   * Accumulates roster entries in primitive arrays before they are sorted and written.
+   */
+  private static final class Builder {
+    private final Map<String, Integer> organizations = new LinkedHashMap<>();
+    private final Map<String, Integer> roles = new LinkedHashMap<>();
+    private long[] edipis = new long[1024];
+    private long[] masks = new long[1024];
+    private int[] orgs = new int[1024];
+    private int count;
+
+    void add(long edipi, String organization, String roleList, Path roster, int lineNumber)
+        throws X509Exception {
+      long mask = 0;
+      for (String role : roleList.split(";")) {
+        String name = role.trim();
+        if (name.isEmpty()) {
+          continue;
+        }
+        Integer bit = roles.get(name);
+        if (bit == null) {
+          if (roles.size() == MAX_ROLES) {
+            throw new X509Exception("more than " + MAX_ROLES + " distinct roles at " + roster
+                + ":" + lineNumber);
+          }
+          bit = roles.size();
+          roles.put(checkName(name, roster, lineNumber), bit);
+        }
+        mask |= 1L << bit;
+      }
+      int org = -1;
+      if (!organization.isEmpty()) {
+        Integer known = organizations.get(organization);
+        if (known == null) {
+          known = organizations.size();
+          organizations.put(checkName(organization, roster, lineNumber), known);
+        }
+        org = known;
+      }
+      if (count == edipis.length) {
+        edipis = Arrays.copyOf(edipis, count * 2);
+        masks = Arrays.copyOf(masks, count * 2);
+        orgs = Arrays.copyOf(orgs, count * 2);
+      }
+      edipis[count] = edipi;
+      masks[count] = mask;
+      orgs[count] = org;
+      count++;
+    }
+
+    private static String checkName(String name, Path roster, int lineNumber)
+        throws X509Exception {
+      if (name.getBytes(StandardCharsets.UTF_8).length > 0xffff) {
+        throw new X509Exception("name too long at " + roster + ":" + lineNumber);
+      }
+      return name;
+    }
+
+    ByteBuffer build(byte[] source) throws X509Exception {
+      long[] sorted = Arrays.copyOf(edipis, count);
+      Arrays.sort(sorted);
+      for (int i = 1; i < count; i++) {
+        if (sorted[i] == sorted[i - 1]) {
+          throw new X509Exception("duplicate EDIPI " + sorted[i] + " in roster");
+        }
+      }
+      // place the attributes of each entry at the sorted position of its EDIPI
+      long[] sortedMasks = new long[count];
+      int[] sortedOrgs = new int[count];
+      for (int i = 0; i < count; i++) {
+        int pos = Arrays.binarySearch(sorted, edipis[i]);
+        sortedMasks[pos] = masks[i];
+        sortedOrgs[pos] = orgs[i];
+      }
+
+      List<byte[]> names = new ArrayList<>();
+      int namesBytes = 0;
+      for (String name : organizations.keySet()) {
+        names.add(name.getBytes(StandardCharsets.UTF_8));
+      }
+      for (String name : roles.keySet()) {
+        names.add(name.getBytes(StandardCharsets.UTF_8));
+      }
+      for (byte[] name : names) {
+        namesBytes += 2 + name.length;
+      }
+      long size = HEADER_BYTES + (long) count * 20 + namesBytes;
+      if (size > Integer.MAX_VALUE) {
+        throw new X509Exception("EDIPI roster too large for one index file");
+      }
+      ByteBuffer out = ByteBuffer.allocate((int) size);
+      out.put(MAGIC).putInt(VERSION).putInt(count).putInt(organizations.size())
+          .putInt(roles.size()).put(source);
+      out.asLongBuffer().put(sorted);
+      out.position(out.position() + count * 8);
+      out.asLongBuffer().put(sortedMasks);
+      out.position(out.position() + count * 8);
+      out.asIntBuffer().put(sortedOrgs);
+      out.position(out.position() + count * 4);
+      for (byte[] name : names) {
+        out.putShort((short) name.length).put(name);
+      }
+      out.flip();
+      return out;
+    }
+  }
+}
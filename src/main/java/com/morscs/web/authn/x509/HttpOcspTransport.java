@@ -0,0 +1,100 @@
+/*
+ *  HttpOcspTransport.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.time.Duration;
+
+/**
+ * OCSP over HTTP POST, as described in RFC 6960 appendix A.
+ */
+public class HttpOcspTransport implements OcspTransport {
+
+  // OCSP responses are a few kilobytes; anything far larger is not a response
+  private static final int MAX_RESPONSE_BYTES = 64 * 1024;
+
+  private final int timeoutMillis;
+  private final URI responderOverride;
+
+  /**
+   * Construct transport posting to the responder named by each certificate.
+   *
+   * @param timeout connect and read timeout
+   */
+  public HttpOcspTransport(Duration timeout) {
+    this(timeout, null);
+  }
+
+  /**
+   * Construct transport posting every request to one responder, e.g. a local OCSP proxy.
+   *
+   * @param timeout connect and read timeout
+   * @param responderOverride responder used instead of the certificate's, or null
+   */
+  public HttpOcspTransport(Duration timeout, URI responderOverride) {
+    this.timeoutMillis = (int) Math.min(Integer.MAX_VALUE, timeout.toMillis());
+    this.responderOverride = responderOverride;
+  }
+
+  @Override
+  public byte[] send(URI responder, byte[] request) throws IOException {
+    URI target = responderOverride != null ? responderOverride : responder;
+    HttpURLConnection connection = (HttpURLConnection) target.toURL().openConnection();
+    try {
+      connection.setConnectTimeout(timeoutMillis);
+      connection.setReadTimeout(timeoutMillis);
+      connection.setUseCaches(false);
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type", "application/ocsp-request");
+      connection.setRequestProperty("Accept", "application/ocsp-response");
+      connection.setFixedLengthStreamingMode(request.length);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(request);
+      }
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("OCSP responder " + target + " answered HTTP " + status);
+      }
+      try (InputStream in = connection.getInputStream()) {
+        return readLimited(in, target);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static byte[] readLimited(InputStream in, URI target) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+    byte[] buffer = new byte[4096];
+    for (int read; (read = in.read(buffer)) > 0; ) {
+      if (out.size() + read > MAX_RESPONSE_BYTES) {
+        throw new IOException("OCSP response from " + target + " exceeds "
+            + MAX_RESPONSE_BYTES + " bytes");
+      }
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
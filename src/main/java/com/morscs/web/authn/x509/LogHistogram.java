@@ -0,0 +1,120 @@
+/*
+ *  LogHistogram.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non-negative values in log-linear buckets, in the manner of
+ * HdrHistogram: each power of two range is split into {@value #SUB_BUCKETS} equal sub-buckets,
+ * so any recorded value is reported within 12.5% over the whole long range. Recording is a
+ * handful of arithmetic instructions and one atomic increment, without allocation.
+ */
+final class LogHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  void record(long value) {
+    long v = Math.max(0, value);
+    counts.incrementAndGet(index(v));
+    total.increment();
+    sum.add(v);
+    if (v > max.get()) {
+      max.accumulateAndGet(v, Math::max);
+    }
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  /**
+   * Largest value that falls in a bucket.
+   */
+  static long highestInBucket(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long sub = SUB_BUCKETS + index % SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  long getCount() {
+    return total.sum();
+  }
+
+  long getMax() {
+    return max.get();
+  }
+
+  double getMean() {
+    long count = total.sum();
+    return count == 0 ? 0 : (double) sum.sum() / count;
+  }
+
+  /**
+   * Value at or below which the given percentage of recorded values fall, reported as the
+   * highest value of its bucket and never above the recorded maximum.
+   *
+   * @param percentile percentage between 0 and 100
+   * @return value at percentile, 0 when nothing was recorded
+   */
+  long valueAtPercentile(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= target) {
+        return Math.min(highestInBucket(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    total.reset();
+    sum.reset();
+    max.set(0);
+  }
+}
@@ -0,0 +1,356 @@
+/*
+ *  OcspMessages.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Encoding of RFC 6960 OCSP requests and decoding and verification of basic OCSP responses.
+ * <p>
+ * Requests identify the certificate by a SHA-1 CertID, as RFC 5019 lightweight responders
+ * expect, and carry no nonce so responses can be cached by responders and by the client.
+ */
+final class OcspMessages {
+
+  static final long NO_NEXT_UPDATE = Long.MIN_VALUE;
+
+  private static final String AUTHORITY_INFO_ACCESS = "1.3.6.1.5.5.7.1.1";
+  private static final String SHA1 = "1.3.14.3.2.26";
+  private static final byte[] OID_AD_OCSP = {0x2b, 0x06, 0x01, 0x05, 0x05, 0x07, 0x30, 0x01};
+  private static final byte[] OID_OCSP_BASIC = {0x2b, 0x06, 0x01, 0x05, 0x05, 0x07, 0x30, 0x01,
+      0x01};
+  private static final String OCSP_SIGNING = "1.3.6.1.5.5.7.3.9";
+  private static final int TAG_URI = 0x86;
+  private static final int TAG_EXPLICIT_0 = 0xa0;
+  private static final int TAG_STATUS_GOOD = 0x80;
+  private static final int TAG_STATUS_REVOKED = 0xa1;
+  private static final int TAG_STATUS_UNKNOWN = 0x82;
+  // tolerated difference between the responder clock and ours
+  private static final long CLOCK_SKEW_MILLIS = 5 * 60 * 1000L;
+  private static final String[] RESPONSE_STATUS = {"successful", "malformedRequest",
+      "internalError", "tryLater", "4", "sigRequired", "unauthorized"};
+
+  private OcspMessages() {
+  }
+
+  /**
+   * Certificate status as decoded from a verified response.
+   */
+  static final class Response {
+    final RevocationStatus status;
+    final long thisUpdate;
+    final long nextUpdate;
+
+    Response(RevocationStatus status, long thisUpdate, long nextUpdate) {
+      this.status = status;
+      this.thisUpdate = thisUpdate;
+      this.nextUpdate = nextUpdate;
+    }
+  }
+
+  /**
+   * OCSP responder URI from the authority information access extension.
+   *
+   * @param cert certificate to check
+   * @return first OCSP access location, or null when the certificate names none
+   * @throws X509Exception when the extension is malformed
+   */
+  static URI responderUri(X509Certificate cert) throws X509Exception {
+    byte[] ext = cert.getExtensionValue(AUTHORITY_INFO_ACCESS);
+    if (ext == null) {
+      return null;
+    }
+    int aia = DerReader.contentOffset(ext, 0, ext.length);
+    DerReader.expectTag(ext, aia, ext.length, DerReader.TAG_SEQUENCE);
+    int aiaEnd = DerReader.end(ext, aia, ext.length);
+    for (int p = DerReader.contentOffset(ext, aia, aiaEnd); p < aiaEnd;
+        p = DerReader.end(ext, p, aiaEnd)) {
+      int itemEnd = DerReader.end(ext, p, aiaEnd);
+      int method = DerReader.contentOffset(ext, p, itemEnd);
+      if (!DerReader.oidEquals(ext, method, itemEnd, OID_AD_OCSP)) {
+        continue;
+      }
+      int location = DerReader.end(ext, method, itemEnd);
+      if (location < itemEnd && DerReader.tag(ext, location) == TAG_URI) {
+        String uri = new String(ext, DerReader.contentOffset(ext, location, itemEnd),
+            DerReader.contentLength(ext, location, itemEnd), StandardCharsets.US_ASCII);
+        try {
+          return new URI(uri);
+        } catch (URISyntaxException exc) {
+          throw new X509Exception("invalid OCSP responder URI " + uri, exc);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * SHA-1 CertID of a certificate.
+   *
+   * @param cert certificate to check
+   * @param issuer certificate of its issuer
+   * @return encoded CertID
+   * @throws X509Exception when the issuer public key is malformed
+   */
+  static byte[] certId(X509Certificate cert, X509Certificate issuer) throws X509Exception {
+    byte[] spki = issuer.getPublicKey().getEncoded();
+    int spkiEnd = DerReader.end(spki, 0, spki.length);
+    int keyBits = DerReader.end(spki, DerReader.contentOffset(spki, 0, spkiEnd), spkiEnd);
+    DerReader.expectTag(spki, keyBits, spkiEnd, DerReader.TAG_BIT_STRING);
+    // the key hash excludes the unused bits count
+    int key = DerReader.contentOffset(spki, keyBits, spkiEnd) + 1;
+    int keyLen = DerReader.contentLength(spki, keyBits, spkiEnd) - 1;
+    byte[] name = issuer.getSubjectX500Principal().getEncoded();
+
+    MessageDigest sha1 = sha1();
+    byte[] nameHash = sha1.digest(name);
+    sha1.update(spki, key, keyLen);
+    byte[] keyHash = sha1.digest();
+    return DerWriter.sequence(
+        DerWriter.sequence(DerWriter.oid(SHA1), DerWriter.nullValue()),
+        DerWriter.octetString(nameHash),
+        DerWriter.octetString(keyHash),
+        DerWriter.integer(cert.getSerialNumber().toByteArray()));
+  }
+
+  /**
+   * Unsigned OCSP request for a single certificate.
+   *
+   * @param certId encoded CertID
+   * @return encoded OCSPRequest
+   */
+  static byte[] request(byte[] certId) {
+    return DerWriter.sequence(DerWriter.sequence(DerWriter.sequence(
+        DerWriter.sequence(certId))));
+  }
+
+  /**
+   * Decode a response and verify it answers for the CertID, is signed by the issuer or a
+   * responder the issuer authorized, and is current.
+   *
+   * @param der encoded OCSPResponse
+   * @param certId encoded CertID that was requested
+   * @param issuer certificate of the issuer of the checked certificate
+   * @param now current time, epoch millis
+   * @return status for the CertID
+   * @throws X509Exception when the response is malformed, unsuccessful, not verified or stale
+   */
+  static Response parse(byte[] der, byte[] certId, X509Certificate issuer, long now)
+      throws X509Exception {
+    DerReader.expectTag(der, 0, der.length, DerReader.TAG_SEQUENCE);
+    int limit = DerReader.end(der, 0, der.length);
+    int p = DerReader.contentOffset(der, 0, limit);
+    DerReader.expectTag(der, p, limit, DerReader.TAG_ENUMERATED);
+    if (DerReader.contentLength(der, p, limit) != 1) {
+      throw new X509Exception("malformed OCSP response status");
+    }
+    int responseStatus = der[DerReader.contentOffset(der, p, limit)];
+    if (responseStatus != 0) {
+      String name = responseStatus > 0 && responseStatus < RESPONSE_STATUS.length
+          ? RESPONSE_STATUS[responseStatus] : String.valueOf(responseStatus);
+      throw new X509Exception("OCSP responder answered " + name);
+    }
+    p = DerReader.end(der, p, limit);
+    DerReader.expectTag(der, p, limit, TAG_EXPLICIT_0);
+    int responseBytes = DerReader.contentOffset(der, p, limit);
+    DerReader.expectTag(der, responseBytes, limit, DerReader.TAG_SEQUENCE);
+    int responseBytesEnd = DerReader.end(der, responseBytes, limit);
+    int type = DerReader.contentOffset(der, responseBytes, responseBytesEnd);
+    if (!DerReader.oidEquals(der, type, responseBytesEnd, OID_OCSP_BASIC)) {
+      throw new X509Exception("unsupported OCSP response type "
+          + DerReader.oidToString(der, type, responseBytesEnd));
+    }
+    int octets = DerReader.end(der, type, responseBytesEnd);
+    DerReader.expectTag(der, octets, responseBytesEnd, DerReader.TAG_OCTET_STRING);
+    int basic = DerReader.contentOffset(der, octets, responseBytesEnd);
+    return parseBasic(der, basic, DerReader.end(der, basic, responseBytesEnd), certId, issuer,
+        now);
+  }
+
+  private static Response parseBasic(byte[] der, int basic, int limit, byte[] certId,
+      X509Certificate issuer, long now) throws X509Exception {
+    DerReader.expectTag(der, basic, limit, DerReader.TAG_SEQUENCE);
+    int tbs = DerReader.contentOffset(der, basic, limit);
+    DerReader.expectTag(der, tbs, limit, DerReader.TAG_SEQUENCE);
+    int tbsEnd = DerReader.end(der, tbs, limit);
+    int signatureAlgorithm = tbsEnd;
+    DerReader.expectTag(der, signatureAlgorithm, limit, DerReader.TAG_SEQUENCE);
+    int signature = DerReader.end(der, signatureAlgorithm, limit);
+    int certs = DerReader.end(der, signature, limit);
+    verifySigner(der, tbs, tbsEnd, signatureAlgorithm, signature,
+        certs < limit && DerReader.tag(der, certs) == TAG_EXPLICIT_0 ? certs : -1, limit,
+        issuer, now);
+
+    int p = DerReader.contentOffset(der, tbs, tbsEnd);
+    if (DerReader.tag(der, p) == TAG_EXPLICIT_0) {
+      p = DerReader.end(der, p, tbsEnd); // version
+    }
+    p = DerReader.end(der, p, tbsEnd); // responder id
+    p = DerReader.end(der, p, tbsEnd); // produced at
+    DerReader.expectTag(der, p, tbsEnd, DerReader.TAG_SEQUENCE);
+    int responsesEnd = DerReader.end(der, p, tbsEnd);
+    for (int single = DerReader.contentOffset(der, p, responsesEnd); single < responsesEnd;
+        single = DerReader.end(der, single, responsesEnd)) {
+      int singleEnd = DerReader.end(der, single, responsesEnd);
+      int id = DerReader.contentOffset(der, single, singleEnd);
+      if (sameCertId(der, id, singleEnd, certId)) {
+        return parseSingle(der, DerReader.end(der, id, singleEnd), singleEnd, now);
+      }
+    }
+    throw new X509Exception("OCSP response does not cover the requested certificate");
+  }
+
+  private static Response parseSingle(byte[] der, int p, int limit, long now)
+      throws X509Exception {
+    RevocationStatus status;
+    switch (DerReader.tag(der, p)) {
+      case TAG_STATUS_GOOD:
+        status = RevocationStatus.GOOD;
+        break;
+      case TAG_STATUS_REVOKED:
+        status = RevocationStatus.REVOKED;
+        break;
+      case TAG_STATUS_UNKNOWN:
+        status = RevocationStatus.UNKNOWN;
+        break;
+      default:
+        throw new X509Exception("unexpected OCSP cert status tag "
+            + Integer.toHexString(DerReader.tag(der, p)));
+    }
+    p = DerReader.end(der, p, limit);
+    long thisUpdate = DerReader.decodeTime(der, p, limit);
+    p = DerReader.end(der, p, limit);
+    long nextUpdate = NO_NEXT_UPDATE;
+    if (p < limit && DerReader.tag(der, p) == TAG_EXPLICIT_0) {
+      nextUpdate = DerReader.decodeTime(der, DerReader.contentOffset(der, p, limit), limit);
+    }
+    if (thisUpdate > now + CLOCK_SKEW_MILLIS) {
+      throw new X509Exception("OCSP response thisUpdate is in the future");
+    }
+    if (nextUpdate != NO_NEXT_UPDATE && nextUpdate < now - CLOCK_SKEW_MILLIS) {
+      throw new X509Exception("OCSP response is past its nextUpdate");
+    }
+    return new Response(status, thisUpdate, nextUpdate);
+  }
+
+  /**
+   * Compare the hash algorithm, hashes and serial of two CertIDs. Only the algorithm OID is
+   * compared, since responders differ in whether they encode the NULL parameters.
+   */
+  private static boolean sameCertId(byte[] der, int id, int limit, byte[] certId)
+      throws X509Exception {
+    int idEnd = DerReader.end(der, id, limit);
+    int p = DerReader.contentOffset(der, id, idEnd);
+    int q = DerReader.contentOffset(certId, 0, certId.length);
+    if (!sameElement(der, DerReader.contentOffset(der, p, idEnd), idEnd,
+        certId, DerReader.contentOffset(certId, q, certId.length), certId.length)) {
+      return false;
+    }
+    for (int i = 0; i < 3; i++) {
+      p = DerReader.end(der, p, idEnd);
+      q = DerReader.end(certId, q, certId.length);
+      if (p >= idEnd || !sameElement(der, p, idEnd, certId, q, certId.length)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean sameElement(byte[] a, int aoff, int alimit, byte[] b, int boff,
+      int blimit) throws X509Exception {
+    int length = DerReader.end(a, aoff, alimit) - aoff;
+    if (DerReader.end(b, boff, blimit) - boff != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (a[aoff + i] != b[boff + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Accept a response signed by the issuer itself, or by a certificate included in the response
+   * that the issuer signed for OCSP signing and that is currently valid.
+   */
+  private static void verifySigner(byte[] der, int tbs, int tbsEnd, int signatureAlgorithm,
+      int signature, int certs, int limit, X509Certificate issuer, long now)
+      throws X509Exception {
+    String algorithm = SignatureVerifier.algorithm(der, signatureAlgorithm, limit);
+    if (SignatureVerifier.verify(algorithm, issuer.getPublicKey(), der, tbs, tbsEnd - tbs,
+        signature, limit)) {
+      return;
+    }
+    if (certs >= 0) {
+      int list = DerReader.contentOffset(der, certs, limit);
+      int listEnd = DerReader.end(der, list, limit);
+      int length = listEnd - DerReader.contentOffset(der, list, listEnd);
+      X509Certificate[] responders = length == 0 ? new X509Certificate[0]
+          : X509Extraction.generateCertChain(
+              Arrays.copyOfRange(der, DerReader.contentOffset(der, list, listEnd), listEnd),
+              length);
+      for (X509Certificate responder : responders) {
+        if (isAuthorizedResponder(responder, issuer, now)
+            && SignatureVerifier.verify(algorithm, responder.getPublicKey(), der, tbs,
+            tbsEnd - tbs, signature, limit)) {
+          return;
+        }
+      }
+    }
+    throw new X509Exception("OCSP response not signed by the issuer or an authorized responder");
+  }
+
+  private static boolean isAuthorizedResponder(X509Certificate responder,
+      X509Certificate issuer, long now) {
+    try {
+      if (!responder.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+        return false;
+      }
+      List<String> usages = responder.getExtendedKeyUsage();
+      if (usages == null || !usages.contains(OCSP_SIGNING)) {
+        return false;
+      }
+      responder.checkValidity(new Date(now));
+      responder.verify(issuer.getPublicKey());
+      return true;
+    } catch (GeneralSecurityException exc) {
+      // unreadable extension, expired or not yet valid, or not signed by the issuer
+      return false;
+    }
+  }
+
+  private static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException exc) {
+      // every conforming JRE ships SHA-1
+      throw new IllegalStateException("SHA-1 not available", exc);
+    }
+  }
+}
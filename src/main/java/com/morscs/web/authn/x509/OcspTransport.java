@@ -0,0 +1,39 @@
+/*
+ *  OcspTransport.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Delivers OCSP requests to a responder. {@link HttpOcspTransport} is the standard
+ * implementation; others may route through a proxy or answer in process.
+ */
+public interface OcspTransport {
+
+  /**
+   * Send a DER encoded OCSP request and return the DER encoded response.
+   *
+   * @param responder responder location taken from the certificate
+   * @param request encoded OCSPRequest
+   * @return encoded OCSPResponse
+   * @throws IOException when the responder cannot be reached or answers with an error
+   */
+  byte[] send(URI responder, byte[] request) throws IOException;
+}
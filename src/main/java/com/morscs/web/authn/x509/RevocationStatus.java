@@ -0,0 +1,40 @@
+/*
+ *  RevocationStatus.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+/**
+ * Outcome of a certificate revocation check.
+ */
+public enum RevocationStatus {
+
+  /**
+   * Current revocation data for the issuer does not list the certificate.
+   */
+  GOOD,
+
+  /**
+   * The issuer has revoked the certificate.
+   */
+  REVOKED,
+
+  /**
+   * No current revocation data covers the issuer; the caller decides whether to accept.
+   */
+  UNKNOWN
+}
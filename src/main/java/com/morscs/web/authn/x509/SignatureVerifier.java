@@ -0,0 +1,94 @@
+/*
+ *  SignatureVerifier.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Verifies signatures over DER structures signed by a CA or OCSP responder, straight from the
+ * encoded bytes.
+ */
+final class SignatureVerifier {
+
+  private static final Map<String, String> ALGORITHMS = new HashMap<>();
+
+  static {
+    ALGORITHMS.put("1.2.840.113549.1.1.5", "SHA1withRSA");
+    ALGORITHMS.put("1.2.840.113549.1.1.11", "SHA256withRSA");
+    ALGORITHMS.put("1.2.840.113549.1.1.12", "SHA384withRSA");
+    ALGORITHMS.put("1.2.840.113549.1.1.13", "SHA512withRSA");
+    ALGORITHMS.put("1.2.840.10045.4.1", "SHA1withECDSA");
+    ALGORITHMS.put("1.2.840.10045.4.3.2", "SHA256withECDSA");
+    ALGORITHMS.put("1.2.840.10045.4.3.3", "SHA384withECDSA");
+    ALGORITHMS.put("1.2.840.10045.4.3.4", "SHA512withECDSA");
+  }
+
+  private SignatureVerifier() {
+  }
+
+  /**
+   * JCA name of the signature algorithm in an AlgorithmIdentifier.
+   *
+   * @param der buffer holding the AlgorithmIdentifier SEQUENCE at off
+   * @return algorithm name
+   * @throws X509Exception when the algorithm is malformed or not supported
+   */
+  static String algorithm(byte[] der, int off, int limit) throws X509Exception {
+    String oid = DerReader.oidToString(der, DerReader.contentOffset(der, off, limit), limit);
+    String algorithm = ALGORITHMS.get(oid);
+    if (algorithm == null) {
+      throw new X509Exception("unsupported signature algorithm " + oid);
+    }
+    return algorithm;
+  }
+
+  /**
+   * Verify a signature held in a BIT STRING element.
+   *
+   * @param algorithm JCA algorithm name
+   * @param key signer public key
+   * @param der buffer holding the signed data and the signature
+   * @param dataOff offset of the signed data
+   * @param dataLen length of the signed data
+   * @param signature offset of the BIT STRING element holding the signature
+   * @param limit end of valid data in der
+   * @return true when the signature is valid for the key
+   * @throws X509Exception when the BIT STRING is malformed
+   */
+  static boolean verify(String algorithm, PublicKey key, byte[] der, int dataOff, int dataLen,
+      int signature, int limit) throws X509Exception {
+    DerReader.expectTag(der, signature, limit, DerReader.TAG_BIT_STRING);
+    // the first content byte counts unused bits, always zero for signatures
+    int bits = DerReader.contentOffset(der, signature, limit) + 1;
+    int bitsLen = DerReader.contentLength(der, signature, limit) - 1;
+    try {
+      Signature verifier = Signature.getInstance(algorithm);
+      verifier.initVerify(key);
+      verifier.update(der, dataOff, dataLen);
+      return verifier.verify(der, bits, bitsLen);
+    } catch (GeneralSecurityException exc) {
+      // wrong key type for the algorithm, or a signature value that does not decode
+      return false;
+    }
+  }
+}
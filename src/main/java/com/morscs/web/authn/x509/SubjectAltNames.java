@@ -0,0 +1,294 @@
+/*
+ *  SubjectAltNames.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Identities from the subject alternative names extension of a certificate: rfc822Name
+ * (email), Microsoft user principal name (UPN otherName), dNSName and URI entries, in the order
+ * the certificate lists them. Other name forms are skipped.
+ * <p>
+ * The extension is decoded once, straight from its DER encoding, into one string array per
+ * name form. Instances are immutable.
+ */
+public final class SubjectAltNames {
+
+  private static final String[] EMPTY_NAMES = new String[0];
+
+  /**
+   * Subject alternative names of a certificate without the extension.
+   */
+  public static final SubjectAltNames EMPTY =
+      new SubjectAltNames(EMPTY_NAMES, EMPTY_NAMES, EMPTY_NAMES, EMPTY_NAMES);
+
+  static final byte[] OID_SUBJECT_ALT_NAME = {0x55, 0x1d, 0x11};
+  // 1.3.6.1.4.1.311.20.2.3
+  private static final byte[] OID_UPN =
+      {0x2b, 0x06, 0x01, 0x04, 0x01, (byte) 0x82, 0x37, 0x14, 0x02, 0x03};
+  private static final String SUBJECT_ALT_NAME = "2.5.29.17";
+  private static final int TAG_OTHER_NAME = 0xa0;
+  private static final int TAG_RFC822_NAME = 0x81;
+  private static final int TAG_DNS_NAME = 0x82;
+  private static final int TAG_URI = 0x86;
+  private static final int TAG_EXPLICIT_VALUE = 0xa0;
+  private static final int MAX_LOCAL_PART = 64;
+  private static final int MAX_DOMAIN = 255;
+  // RFC 5322 atext other than letters and digits
+  private static final String ATEXT_SYMBOLS = "!#$%&'*+-/=?^_`{|}~";
+
+  private final String[] emails;
+  private final String[] upns;
+  private final String[] dnsNames;
+  private final String[] uris;
+
+  private SubjectAltNames(String[] emails, String[] upns, String[] dnsNames, String[] uris) {
+    this.emails = emails;
+    this.upns = upns;
+    this.dnsNames = dnsNames;
+    this.uris = uris;
+  }
+
+  /**
+   * Names known only by their primary entries, e.g. as carried by an identity token.
+   *
+   * @param email primary email or null
+   * @param upn primary user principal name or null
+   * @return names holding at most one email and one UPN
+   */
+  static SubjectAltNames primary(String email, String upn) {
+    if (email == null && upn == null) {
+      return EMPTY;
+    }
+    return new SubjectAltNames(email == null ? EMPTY_NAMES : new String[] {email},
+        upn == null ? EMPTY_NAMES : new String[] {upn}, EMPTY_NAMES, EMPTY_NAMES);
+  }
+
+  /**
+   * Decode a GeneralNames SEQUENCE.
+   *
+   * @param der buffer holding the GeneralNames SEQUENCE at off
+   * @param off offset of the SEQUENCE
+   * @param limit end of valid data in der
+   * @return decoded names
+   * @throws X509Exception when the structure is malformed
+   */
+  static SubjectAltNames decode(byte[] der, int off, int limit) throws X509Exception {
+    DerReader.expectTag(der, off, limit, DerReader.TAG_SEQUENCE);
+    int end = DerReader.end(der, off, limit);
+    List<String> emails = null;
+    List<String> upns = null;
+    List<String> dnsNames = null;
+    List<String> uris = null;
+    for (int p = DerReader.contentOffset(der, off, end); p < end; p = DerReader.end(der, p, end)) {
+      switch (DerReader.tag(der, p)) {
+        case TAG_RFC822_NAME:
+          emails = add(emails, ascii(der, p, end));
+          break;
+        case TAG_DNS_NAME:
+          dnsNames = add(dnsNames, ascii(der, p, end));
+          break;
+        case TAG_URI:
+          uris = add(uris, ascii(der, p, end));
+          break;
+        case TAG_OTHER_NAME:
+          String upn = upn(der, p, end);
+          if (upn != null) {
+            upns = add(upns, upn);
+          }
+          break;
+        default:
+          // x400Address, directoryName, ediPartyName, iPAddress, registeredID
+          break;
+      }
+    }
+    return new SubjectAltNames(toArray(emails), toArray(upns), toArray(dnsNames),
+        toArray(uris));
+  }
+
+  /**
+   * Decode the subject alternative names of a certificate.
+   *
+   * @param cert certificate
+   * @return decoded names, or null when the certificate has no such extension
+   * @throws X509Exception when the extension is malformed
+   */
+  static SubjectAltNames of(X509Certificate cert) throws X509Exception {
+    // the extension value comes wrapped in its OCTET STRING
+    byte[] value = cert.getExtensionValue(SUBJECT_ALT_NAME);
+    if (value == null) {
+      return null;
+    }
+    DerReader.expectTag(value, 0, value.length, DerReader.TAG_OCTET_STRING);
+    return decode(value, DerReader.contentOffset(value, 0, value.length), value.length);
+  }
+
+  private static String ascii(byte[] der, int p, int limit) throws X509Exception {
+    return new String(der, DerReader.contentOffset(der, p, limit),
+        DerReader.contentLength(der, p, limit), StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Value of an otherName when it is a UPN.
+   *
+   * @return principal name, or null for other types of otherName
+   */
+  private static String upn(byte[] der, int p, int limit) throws X509Exception {
+    int end = DerReader.end(der, p, limit);
+    int typeId = DerReader.contentOffset(der, p, end);
+    if (!DerReader.oidEquals(der, typeId, end, OID_UPN)) {
+      return null;
+    }
+    int value = DerReader.end(der, typeId, end);
+    DerReader.expectTag(der, value, end, TAG_EXPLICIT_VALUE);
+    return DerReader.decodeString(der, DerReader.contentOffset(der, value, end), end);
+  }
+
+  private static List<String> add(List<String> list, String value) {
+    List<String> names = list == null ? new ArrayList<>(2) : list;
+    names.add(value);
+    return names;
+  }
+
+  private static String[] toArray(List<String> list) {
+    return list == null ? EMPTY_NAMES : list.toArray(new String[list.size()]);
+  }
+
+  /**
+   * Lightweight syntax check of an email address: a dot-atom local part and a domain of
+   * letter, digit and hyphen labels. Far cheaper than full RFC 822 parsing, and enough to reject
+   * values that cannot be an address.
+   *
+   * @param email candidate address
+   * @return true when the address is plausible
+   */
+  public static boolean isValidEmail(CharSequence email) {
+    if (email == null) {
+      return false;
+    }
+    int at = -1;
+    for (int i = 0; i < email.length(); i++) {
+      if (email.charAt(i) == '@') {
+        if (at >= 0) {
+          return false;
+        }
+        at = i;
+      }
+    }
+    int length = email.length();
+    return at > 0 && at <= MAX_LOCAL_PART && length - at - 1 <= MAX_DOMAIN
+        && isDotAtom(email, 0, at, false) && isDotAtom(email, at + 1, length, true);
+  }
+
+  private static boolean isDotAtom(CharSequence text, int start, int end, boolean domain) {
+    if (start == end || text.charAt(start) == '.' || text.charAt(end - 1) == '.') {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c == '.') {
+        if (text.charAt(i - 1) == '.') {
+          return false;
+        }
+      } else if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+          || (domain ? c == '-' : ATEXT_SYMBOLS.indexOf(c) >= 0))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The rfc822Name entries.
+   *
+   * @return email addresses as listed, unvalidated
+   */
+  public List<String> getEmails() {
+    return list(emails);
+  }
+
+  /**
+   * The UPN otherName entries, e.g. {@code 1234567890@mil} on CAC certificates.
+   *
+   * @return user principal names
+   */
+  public List<String> getUserPrincipalNames() {
+    return list(upns);
+  }
+
+  public List<String> getDnsNames() {
+    return list(dnsNames);
+  }
+
+  public List<String> getUris() {
+    return list(uris);
+  }
+
+  private static List<String> list(String[] names) {
+    return Collections.unmodifiableList(Arrays.asList(names));
+  }
+
+  /**
+   * First rfc822Name entry.
+   *
+   * @return email address or null if there is none
+   */
+  public String getPrimaryEmail() {
+    return emails.length == 0 ? null : emails[0];
+  }
+
+  /**
+   * First rfc822Name entry that passes {@link #isValidEmail(CharSequence)}.
+   *
+   * @return email address or null if there is none
+   */
+  public String getPrimaryValidEmail() {
+    for (String email : emails) {
+      if (isValidEmail(email)) {
+        return email;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * First UPN otherName entry.
+   *
+   * @return user principal name or null if there is none
+   */
+  public String getPrimaryUserPrincipalName() {
+    return upns.length == 0 ? null : upns[0];
+  }
+
+  public boolean isEmpty() {
+    return emails.length == 0 && upns.length == 0 && dnsNames.length == 0 && uris.length == 0;
+  }
+
+  @Override
+  public String toString() {
+    return "SubjectAltNames{emails=" + Arrays.toString(emails) + ", upns="
+        + Arrays.toString(upns) + ", dnsNames=" + Arrays.toString(dnsNames) + ", uris="
+        + Arrays.toString(uris) + "}";
+  }
+}
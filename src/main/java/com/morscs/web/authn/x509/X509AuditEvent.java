@@ -0,0 +1,171 @@
+/*
+ *  X509AuditEvent.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+
+/**
+ * One authentication decision recorded by {@link X509AuditTrail}.
+ * <p>
+ * The request thread only captures the identity or the failure; DN, EDIPI, serial number and
+ * issuer are read from them when the event is written, on the audit thread.
+ */
+public final class X509AuditEvent {
+
+  /**
+   * Result of the authentication decision.
+   */
+  public enum Outcome {
+    /** A client certificate was read and its identity accepted. */
+    ACCEPTED,
+    /** A client certificate or identity token could not be read. */
+    REJECTED
+  }
+
+  private static final JsonFactory JSON =
+      new JsonFactory().enable(JsonGenerator.Feature.ESCAPE_NON_ASCII);
+
+  private final long time;
+  private final Outcome outcome;
+  private final X509Identity identity;
+  private final String reason;
+
+  X509AuditEvent(long time, Outcome outcome, X509Identity identity, String reason) {
+    this.time = time;
+    this.outcome = outcome;
+    this.identity = identity;
+    this.reason = reason;
+  }
+
+  static X509AuditEvent accepted(long time, X509Identity identity) {
+    return new X509AuditEvent(time, Outcome.ACCEPTED, identity, null);
+  }
+
+  static X509AuditEvent rejected(long time, Exception failure) {
+    String message = failure.getMessage();
+    return new X509AuditEvent(time, Outcome.REJECTED, null,
+        message == null ? failure.getClass().getSimpleName() : message);
+  }
+
+  /**
+   * Time of the decision.
+   *
+   * @return milliseconds since the epoch
+   */
+  public long getTime() {
+    return time;
+  }
+
+  public Outcome getOutcome() {
+    return outcome;
+  }
+
+  /**
+   * Subject DN of the accepted identity.
+   *
+   * @return subject DN or null for rejections
+   */
+  public String getSubjectDn() {
+    return identity == null ? null : identity.getSubjectDn();
+  }
+
+  /**
+   * EDIPI of the accepted identity.
+   *
+   * @return EDIPI or {@link CommonName#NO_EDIPI} when the CN carries none
+   */
+  public long getEdipi() {
+    CommonName commonName = identity == null ? null : identity.getParsedCommonName();
+    return commonName == null ? CommonName.NO_EDIPI : commonName.getEdipi();
+  }
+
+  /**
+   * Serial number of the client certificate, in hex.
+   *
+   * @return serial number or null when no certificate was accepted
+   */
+  public String getSerialNumber() {
+    X509Certificate cert = identity == null ? null : identity.getCertificate();
+    return cert == null ? null : cert.getSerialNumber().toString(16);
+  }
+
+  /**
+   * Issuer DN of the client certificate.
+   *
+   * @return issuer DN or null when no certificate was accepted
+   */
+  public String getIssuerDn() {
+    X509Certificate cert = identity == null ? null : identity.getCertificate();
+    return cert == null ? null : cert.getIssuerX500Principal().getName();
+  }
+
+  /**
+   * Why the request was rejected.
+   *
+   * @return reason or null for accepted identities
+   */
+  public String getReason() {
+    return reason;
+  }
+
+  /**
+   * The event as a single line JSON object, with absent values left out. Control characters
+   * and characters outside ASCII are escaped, so the line length is also its size in bytes.
+   *
+   * @return JSON object
+   */
+  public String toJson() {
+    StringWriter out = new StringWriter(256);
+    try (JsonGenerator json = JSON.createGenerator(out)) {
+      json.writeStartObject();
+      json.writeStringField("time", Instant.ofEpochMilli(time).toString());
+      json.writeStringField("outcome", outcome.name());
+      writeField(json, "subjectDn", getSubjectDn());
+      long edipi = getEdipi();
+      if (edipi != CommonName.NO_EDIPI) {
+        json.writeNumberField("edipi", edipi);
+      }
+      writeField(json, "serialNumber", getSerialNumber());
+      writeField(json, "issuerDn", getIssuerDn());
+      writeField(json, "reason", reason);
+      json.writeEndObject();
+    } catch (IOException exc) {
+      // a StringWriter does not fail
+      throw new IllegalStateException(exc);
+    }
+    return out.toString();
+  }
+
+  private static void writeField(JsonGenerator json, String name, String value)
+      throws IOException {
+    if (value != null) {
+      json.writeStringField(name, value);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return toJson();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ *  X509AuditFileSink.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * {@link X509AuditSink} appending JSON lines to a local file that rolls over by size.
+ * <p>
+ * Each batch is written through one buffer and flushed once. When the file reaches the size
+ * limit it is renamed to {@code <file>.1}, older files move up by one and the oldest beyond
+ * the retained count is deleted, in the manner of common rolling file appenders.
+ */
+public final class X509AuditFileSink implements X509AuditSink {
+
+  private final Path file;
+  private final long maxBytes;
+  private final int maxFiles;
+  private Writer writer;
+  private long size;
+
+  /**
+   * Construct sink. The file is opened on the first write.
+   *
+   * @param file file to append to
+   * @param maxBytes size at which the file is rolled over
+   * @param maxFiles number of rolled over files kept
+   * @throws IllegalArgumentException when maxBytes is not positive or maxFiles negative
+   */
+  public X509AuditFileSink(Path file, long maxBytes, int maxFiles) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be positive, got " + maxBytes);
+    }
+    if (maxFiles < 0) {
+      throw new IllegalArgumentException("maxFiles must not be negative, got " + maxFiles);
+    }
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.maxFiles = maxFiles;
+  }
+
+  @Override
+  public synchronized void write(List<X509AuditEvent> events) throws IOException {
+    if (writer == null) {
+      open();
+    }
+    for (X509AuditEvent event : events) {
+      String line = event.toJson();
+      writer.write(line);
+      writer.write('\n');
+      // events escape non-ASCII, so characters are bytes
+      size += line.length() + 1;
+    }
+    writer.flush();
+    if (size >= maxBytes) {
+      roll();
+    }
+  }
+
+  private void open() throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+    size = Files.size(file);
+  }
+
+  private void roll() throws IOException {
+    writer.close();
+    writer = null;
+    if (maxFiles == 0) {
+      Files.delete(file);
+      return;
+    }
+    for (int i = maxFiles - 1; i >= 1; i--) {
+      Path older = rolled(i);
+      if (Files.exists(older)) {
+        Files.move(older, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private Path rolled(int index) {
+    return file.resolveSibling(file.getFileName() + "." + index);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "X509AuditFileSink[" + file + "]";
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ *  X509AuditLoggerSink.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link X509AuditSink} logging each event as a JSON line at INFO, for applications whose log
+ * pipeline already ships audit records.
+ */
+public final class X509AuditLoggerSink implements X509AuditSink {
+
+  /**
+   * Logger name used by default.
+   */
+  public static final String DEFAULT_LOGGER = "com.morscs.web.authn.x509.audit";
+
+  private final Logger log;
+
+  public X509AuditLoggerSink() {
+    this(DEFAULT_LOGGER);
+  }
+
+  /**
+   * Construct sink.
+   *
+   * @param loggerName name of the logger events go to
+   */
+  public X509AuditLoggerSink(String loggerName) {
+    this.log = LoggerFactory.getLogger(loggerName);
+  }
+
+  @Override
+  public void write(List<X509AuditEvent> events) {
+    for (X509AuditEvent event : events) {
+      log.info("{}", event.toJson());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "X509AuditLoggerSink[" + log.getName() + "]";
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ *  X509AuditSink.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of the events buffered by {@link X509AuditTrail}.
+ * <p>
+ * {@link X509AuditFileSink} writes a rolling local file and {@link X509AuditLoggerSink} an slf4j
+ * logger. Batches are written from the single audit thread, never from request threads.
+ */
+public interface X509AuditSink extends Closeable {
+
+  /**
+   * Write a batch of events.
+   *
+   * @param events events in the order they were recorded
+   * @throws IOException when the events could not be written; they are counted as lost
+   */
+  void write(List<X509AuditEvent> events) throws IOException;
+
+  @Override
+  default void close() throws IOException {
+  }
+}
@@ -0,0 +1,349 @@
+/*
+ *  X509AuditTrail.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Audit trail of authentication decisions, written in batches off the request thread.
+ * <p>
+ * Once {@link #install installed}, {@link X509AuthenticationFilter},
+ * {@link X509Identity#fromRequest} and {@link X509IdentityCache#extractFromRequestHeader}
+ * record one {@link X509AuditEvent} per decision: the identity accepted, or the reason the
+ * certificate was rejected. Recording claims a slot of a bounded lock-free ring buffer with one
+ * compare-and-set and never touches the sink; a background daemon thread drains the buffer
+ * every flush interval and hands the events to the {@link X509AuditSink} in batches.
+ * <p>
+ * When the buffer is full, the {@link OverflowPolicy} decides between dropping the event, so
+ * requests are never held up, and waiting for room, so no event is lost while the sink keeps
+ * up. Dropped events and events lost to sink failures are counted.
+ */
+public final class X509AuditTrail implements Closeable {
+
+  /**
+   * What recording does when the buffer is full.
+   */
+  public enum OverflowPolicy {
+    /** Drop the event and count it. */
+    DROP,
+    /** Wait until the audit thread makes room, or the trail is closed. */
+    BLOCK
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(X509AuditTrail.class);
+  private static final int MAX_CAPACITY = 1 << 30;
+  private static final int MAX_BATCH = 1024;
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private static volatile X509AuditTrail installed;
+
+  private final X509AuditSink sink;
+  private final OverflowPolicy policy;
+  private final Clock clock;
+  private final ScheduledExecutorService writer;
+
+  // ring buffer: a slot is free for position p when its sequence is p, filled when p + 1
+  private final AtomicReferenceArray<X509AuditEvent> slots;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  // advanced by the audit thread only
+  private volatile long head;
+
+  private final LongAdder written = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private volatile boolean closed;
+  // producers between their check of closed and the end of their offer
+  private final AtomicInteger recording = new AtomicInteger();
+
+  /**
+   * Construct trail draining every 100 milliseconds.
+   *
+   * @param sink destination of the events
+   * @param capacity number of events buffered, rounded up to a power of two
+   * @param policy what to do when the buffer is full
+   */
+  public X509AuditTrail(X509AuditSink sink, int capacity, OverflowPolicy policy) {
+    this(sink, capacity, policy, Duration.ofMillis(100), Clock.systemUTC());
+  }
+
+  /**
+   * Construct trail with an explicit flush interval and clock.
+   *
+   * @param sink destination of the events
+   * @param capacity number of events buffered, rounded up to a power of two
+   * @param policy what to do when the buffer is full
+   * @param flushInterval delay between drains of the buffer
+   * @param clock time source of the event times
+   * @throws IllegalArgumentException when capacity or flushInterval is out of range
+   */
+  public X509AuditTrail(X509AuditSink sink, int capacity, OverflowPolicy policy,
+      Duration flushInterval, Clock clock) {
+    if (capacity <= 0 || capacity > MAX_CAPACITY) {
+      throw new IllegalArgumentException("capacity must be between 1 and " + MAX_CAPACITY
+          + ", got " + capacity);
+    }
+    if (flushInterval.isNegative() || flushInterval.isZero()) {
+      throw new IllegalArgumentException("flushInterval must be positive, got " + flushInterval);
+    }
+    int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    this.sink = sink;
+    this.policy = policy;
+    this.clock = clock;
+    this.slots = new AtomicReferenceArray<>(size);
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+    this.mask = size - 1;
+    this.writer = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "x509-audit");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long nanos = flushInterval.toNanos();
+    writer.scheduleWithFixedDelay(this::drain, nanos, nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Make a trail receive the decisions of the library, replacing any installed before.
+   *
+   * @param trail trail to install, or null to stop auditing
+   */
+  public static void install(X509AuditTrail trail) {
+    installed = trail;
+  }
+
+  /**
+   * Currently installed trail.
+   *
+   * @return installed trail or null
+   */
+  public static X509AuditTrail getInstalled() {
+    return installed;
+  }
+
+  static void accepted(X509Identity identity) {
+    X509AuditTrail trail = installed;
+    if (trail != null) {
+      trail.record(X509AuditEvent.accepted(trail.clock.millis(), identity));
+    }
+  }
+
+  static void accepted(X509CachedIdentity cached) {
+    X509AuditTrail trail = installed;
+    if (trail != null) {
+      trail.record(X509AuditEvent.accepted(trail.clock.millis(), new X509Identity(cached)));
+    }
+  }
+
+  static void rejected(Exception failure) {
+    X509AuditTrail trail = installed;
+    if (trail != null) {
+      trail.record(X509AuditEvent.rejected(trail.clock.millis(), failure));
+    }
+  }
+
+  /**
+   * Buffer an event for the audit thread.
+   *
+   * @param event event to record
+   * @return false when the event was dropped
+   */
+  boolean record(X509AuditEvent event) {
+    recording.incrementAndGet();
+    try {
+      if (!closed) {
+        if (offer(event)) {
+          return true;
+        }
+        while (policy == OverflowPolicy.BLOCK && !closed) {
+          LockSupport.parkNanos(BLOCK_PARK_NANOS);
+          if (offer(event)) {
+            return true;
+          }
+        }
+      }
+    } finally {
+      recording.decrementAndGet();
+    }
+    dropped.increment();
+    return false;
+  }
+
+  private boolean offer(X509AuditEvent event) {
+    while (true) {
+      long position = tail.get();
+      int index = (int) position & mask;
+      long lag = sequences.get(index) - position;
+      if (lag < 0) {
+        return false;
+      }
+      if (lag == 0 && tail.compareAndSet(position, position + 1)) {
+        slots.lazySet(index, event);
+        // publishes the event to the audit thread
+        sequences.lazySet(index, position + 1);
+        return true;
+      }
+      // another thread claimed the slot first
+    }
+  }
+
+  private X509AuditEvent poll() {
+    long position = head;
+    int index = (int) position & mask;
+    if (sequences.get(index) != position + 1) {
+      return null;
+    }
+    X509AuditEvent event = slots.get(index);
+    slots.lazySet(index, null);
+    sequences.lazySet(index, position + mask + 1);
+    head = position + 1;
+    return event;
+  }
+
+  private void drain() {
+    try {
+      List<X509AuditEvent> batch = new ArrayList<>();
+      X509AuditEvent event;
+      while ((event = poll()) != null) {
+        batch.add(event);
+        if (batch.size() == MAX_BATCH) {
+          writeBatch(batch);
+          batch.clear();
+        }
+      }
+      if (!batch.isEmpty()) {
+        writeBatch(batch);
+      }
+    } catch (RuntimeException exc) {
+      // an exception escaping would cancel the schedule
+      LOG.error("audit trail drain failed", exc);
+    }
+  }
+
+  private void writeBatch(List<X509AuditEvent> batch) {
+    try {
+      sink.write(batch);
+      written.add(batch.size());
+    } catch (IOException | RuntimeException exc) {
+      failed.add(batch.size());
+      LOG.error("audit sink {} failed, {} events lost", sink, batch.size(), exc);
+    }
+  }
+
+  /**
+   * Stop recording, write the buffered events and close the sink. Uninstalls the trail if it is
+   * installed.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    if (installed == this) {
+      installed = null;
+    }
+    // an event offered after the final drain would be neither written nor counted
+    while (recording.get() != 0) {
+      LockSupport.parkNanos(BLOCK_PARK_NANOS);
+    }
+    writer.shutdown();
+    try {
+      if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+        LOG.warn("audit sink {} still busy, abandoning {} buffered events", sink,
+            getPendingCount());
+        return;
+      }
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    drain();
+    try {
+      sink.close();
+    } catch (IOException exc) {
+      LOG.warn("closing audit sink {} failed", sink, exc);
+    }
+  }
+
+  /**
+   * Events handed to the sink.
+   *
+   * @return written event count
+   */
+  public long getWrittenCount() {
+    return written.sum();
+  }
+
+  /**
+   * Events dropped because the buffer was full or the trail closed.
+   *
+   * @return dropped event count
+   */
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /**
+   * Events lost because the sink failed to write them.
+   *
+   * @return failed event count
+   */
+  public long getFailedCount() {
+    return failed.sum();
+  }
+
+  /**
+   * Events buffered and not yet written.
+   *
+   * @return pending event count
+   */
+  public long getPendingCount() {
+    return Math.max(0, tail.get() - head);
+  }
+
+  public int getCapacity() {
+    return mask + 1;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return policy;
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ *  X509AuthenticationFilter.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.Principal;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Authenticates requests by client certificate, once per request.
+ * <p>
+ * The certificate chain is read from the first configured source that carries one, the
+ * identity is kept as the {@link X509Identity#REQUEST_ATTRIBUTE} request attribute, and the
+ * request is passed on wrapped so that {@code getUserPrincipal()} returns an
+ * {@link X509IdentityPrincipal}. Everything downstream, including
+ * {@link X509Identity#fromRequest(HttpServletRequest)} and the CDI producer of
+ * {@link X509IdentityProducingServletListener}, reuses that identity instead of parsing the
+ * chain again.
+ * <p>
+ * Requests without a certificate, or with an anonymous one, pass through untouched. Certificate
+ * data that is present but does not decode is answered with 400 Bad Request.
+ * <p>
+ * The {@value #SOURCES_PARAM} init parameter lists the sources in order of precedence, comma
+ * separated: {@code attribute} for the chain the container took from the TLS handshake, and
+ * {@code header:<name>} for a chain a TLS terminating proxy forwards in a request header,
+ * {@code xfcc:<name>} for the certificate in the element the nearest proxy added to an Envoy
+ * {@link X509ForwardedClientCert XFCC} header, and {@code token:<name>} for an
+ * {@link X509IdentityTokenCodec} token an upstream service forwards in place of the
+ * certificate. The default is {@code attribute}. Token sources need the shared
+ * key, read from the file named by the {@value #TOKEN_KEY_FILE_PARAM} init parameter; tokens
+ * that fail verification are answered with 400 Bad Request like unreadable certificates.
+ */
+//@WebFilter
+public class X509AuthenticationFilter implements Filter {
+
+  /**
+   * Init parameter listing the certificate sources in order of precedence.
+   */
+  public static final String SOURCES_PARAM = "sources";
+
+  /**
+   * Init parameter naming the file that holds the raw identity token key.
+   */
+  public static final String TOKEN_KEY_FILE_PARAM = "tokenKeyFile";
+
+  /**
+   * Init parameter setting the identity token lifetime in ISO-8601 duration syntax.
+   */
+  public static final String TOKEN_TTL_PARAM = "tokenTtl";
+
+  private static final Logger LOG = LoggerFactory.getLogger(X509AuthenticationFilter.class);
+  private static final String ATTRIBUTE_SOURCE = "attribute";
+  private static final String HEADER_SOURCE = "header:";
+  private static final String TOKEN_SOURCE = "token:";
+  private static final String XFCC_SOURCE = "xfcc:";
+  private static final Duration DEFAULT_TOKEN_TTL = Duration.ofMinutes(5);
+
+  // sources in order of precedence
+  private Source[] sources;
+  private final X509IdentityCache cache;
+  private X509IdentityTokenCodec tokens;
+
+  /**
+   * Construct filter configured by init parameters, for declaration in web.xml.
+   */
+  public X509AuthenticationFilter() {
+    this.sources = null;
+    this.cache = null;
+    this.tokens = null;
+  }
+
+  /**
+   * Construct filter for programmatic registration. Init parameters are ignored.
+   *
+   * @param sources certificate sources in order of precedence, in {@value #SOURCES_PARAM} syntax
+   * @param cache cache for chains read from headers, or null to parse every request
+   * @throws IllegalArgumentException when a source is not recognized
+   */
+  public X509AuthenticationFilter(List<String> sources, X509IdentityCache cache) {
+    this(sources, cache, null);
+  }
+
+  /**
+   * Construct filter for programmatic registration, accepting identity tokens. Init parameters
+   * are ignored.
+   *
+   * @param sources certificate sources in order of precedence, in {@value #SOURCES_PARAM} syntax
+   * @param cache cache for chains read from headers, or null to parse every request
+   * @param tokens verifier for {@code token:} sources, or null when there are none
+   * @throws IllegalArgumentException when a source is not recognized, or a token source is
+   *     configured without a verifier
+   */
+  public X509AuthenticationFilter(List<String> sources, X509IdentityCache cache,
+      X509IdentityTokenCodec tokens) {
+    this.sources = parseSources(sources);
+    this.cache = cache;
+    this.tokens = tokens;
+    requireTokens(this.sources, tokens);
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+    if (sources != null) {
+      return;
+    }
+    String param = filterConfig.getInitParameter(SOURCES_PARAM);
+    Source[] parsed;
+    try {
+      parsed = parseSources(Arrays.asList(
+          param == null ? new String[] {ATTRIBUTE_SOURCE} : param.split(",")));
+    } catch (IllegalArgumentException exc) {
+      throw new ServletException("invalid " + SOURCES_PARAM + " init parameter", exc);
+    }
+    String keyFile = filterConfig.getInitParameter(TOKEN_KEY_FILE_PARAM);
+    if (keyFile != null) {
+      String ttl = filterConfig.getInitParameter(TOKEN_TTL_PARAM);
+      try {
+        tokens = new X509IdentityTokenCodec(Files.readAllBytes(Paths.get(keyFile.trim())),
+            ttl == null ? DEFAULT_TOKEN_TTL : Duration.parse(ttl.trim()));
+      } catch (IOException | RuntimeException exc) {
+        throw new ServletException("invalid identity token configuration", exc);
+      }
+    }
+    try {
+      requireTokens(parsed, tokens);
+    } catch (IllegalArgumentException exc) {
+      throw new ServletException("missing " + TOKEN_KEY_FILE_PARAM + " init parameter", exc);
+    }
+    sources = parsed;
+  }
+
+  private static Source[] parseSources(List<String> specs) {
+    List<Source> parsed = new ArrayList<>();
+    for (String spec : specs) {
+      String source = spec.trim();
+      if (ATTRIBUTE_SOURCE.equals(source)) {
+        parsed.add(new Source(null, Source.Kind.ATTRIBUTE));
+      } else if (source.startsWith(HEADER_SOURCE)
+          && source.length() > HEADER_SOURCE.length()) {
+        parsed.add(new Source(source.substring(HEADER_SOURCE.length()).trim(),
+            Source.Kind.HEADER));
+      } else if (source.startsWith(TOKEN_SOURCE)
+          && source.length() > TOKEN_SOURCE.length()) {
+        parsed.add(new Source(source.substring(TOKEN_SOURCE.length()).trim(),
+            Source.Kind.TOKEN));
+      } else if (source.startsWith(XFCC_SOURCE)
+          && source.length() > XFCC_SOURCE.length()) {
+        parsed.add(new Source(source.substring(XFCC_SOURCE.length()).trim(), Source.Kind.XFCC));
+      } else {
+        throw new IllegalArgumentException("unknown certificate source '" + source + "'");
+      }
+    }
+    if (parsed.isEmpty()) {
+      throw new IllegalArgumentException("no certificate source configured");
+    }
+    return parsed.toArray(new Source[0]);
+  }
+
+  private static void requireTokens(Source[] sources, X509IdentityTokenCodec tokens) {
+    for (Source source : sources) {
+      if (source.kind == Source.Kind.TOKEN && tokens == null) {
+        throw new IllegalArgumentException("token source '" + source.header
+            + "' configured without a token key");
+      }
+    }
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    if (!(request instanceof HttpServletRequest)) {
+      chain.doFilter(request, response);
+      return;
+    }
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    X509Identity identity;
+    try {
+      identity = authenticate(httpRequest);
+    } catch (X509Exception | IllegalArgumentException exc) {
+      LOG.debug("rejecting request with unreadable client certificate", exc);
+      X509AuditTrail.rejected(exc);
+      ((HttpServletResponse) response).sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "unreadable client certificate");
+      return;
+    }
+    if (identity == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+    chain.doFilter(new AuthenticatedRequest(httpRequest, identity), response);
+  }
+
+  /**
+   * Identity of the request, from an earlier pass or the first source that carries a chain.
+   *
+   * @return identity or null for requests without a certificate or with an anonymous one
+   */
+  private X509Identity authenticate(HttpServletRequest request) throws X509Exception {
+    Object existing = request.getAttribute(X509Identity.REQUEST_ATTRIBUTE);
+    if (existing instanceof X509Identity) {
+      // forwarded or included request that was authenticated already
+      X509Identity identity = (X509Identity) existing;
+      return identity.hasCert() ? identity : null;
+    }
+    for (Source source : sources) {
+      X509Identity identity;
+      switch (source.kind) {
+        case ATTRIBUTE:
+          identity = fromChain(X509Extraction.extractCertChainFromRequestAttribute(request));
+          break;
+        case TOKEN:
+          identity = fromToken(request.getHeader(source.header));
+          break;
+        case XFCC:
+          identity = fromForwardedClientCert(
+              X509Extraction.extractForwardedClientCertFromRequestHeader(request, source.header));
+          break;
+        default:
+          identity = fromHeader(request.getHeader(source.header));
+          break;
+      }
+      if (identity != null) {
+        if (!identity.hasCert()) {
+          return null;
+        }
+        request.setAttribute(X509Identity.REQUEST_ATTRIBUTE, identity);
+        X509AuditTrail.accepted(identity);
+        return identity;
+      }
+    }
+    return null;
+  }
+
+  private static X509Identity fromChain(X509Certificate[] certChain) throws X509Exception {
+    if (certChain == null || certChain.length == 0) {
+      return null;
+    }
+    return new X509Identity(X509Extraction.extractPrimaryCertFromChain(certChain));
+  }
+
+  private X509Identity fromHeader(String headerValue) throws X509Exception {
+    if (headerValue == null || headerValue.isEmpty()) {
+      return null;
+    }
+    if (cache != null) {
+      return new X509Identity(cache.lookup(headerValue));
+    }
+    return fromChain(X509Extraction.buildCertChainFromEncodedHeader(headerValue));
+  }
+
+  private X509Identity fromForwardedClientCert(X509ForwardedClientCert element)
+      throws X509Exception {
+    if (element == null || element.getEncodedCertChain() == null) {
+      return null;
+    }
+    if (cache != null) {
+      return new X509Identity(cache.lookup(element));
+    }
+    return fromChain(element.buildCertChain());
+  }
+
+  private X509Identity fromToken(String headerValue) throws X509Exception {
+    if (headerValue == null || headerValue.isEmpty()) {
+      return null;
+    }
+    return tokens.verify(headerValue);
+  }
+
+  @Override
+  public void destroy() {
+    // nothing held
+  }
+
+  /**
+   * Where a request may carry its client identity.
+   */
+  private static final class Source {
+    enum Kind {
+      ATTRIBUTE,
+      HEADER,
+      TOKEN,
+      XFCC
+    }
+
+    // null for the container attribute
+    private final String header;
+    private final Kind kind;
+
+    Source(String header, Kind kind) {
+      this.header = header;
+      this.kind = kind;
+    }
+  }
+
+  /**
+   * Request as seen downstream of the filter, authenticated by its client certificate.
+   */
+  private static final class AuthenticatedRequest extends HttpServletRequestWrapper {
+    private final X509IdentityPrincipal principal;
+
+    AuthenticatedRequest(HttpServletRequest request, X509Identity identity) {
+      super(request);
+      this.principal = new X509IdentityPrincipal(identity);
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+      return principal;
+    }
+
+    @Override
+    public String getRemoteUser() {
+      return principal.getName();
+    }
+
+    @Override
+    public String getAuthType() {
+      return HttpServletRequest.CLIENT_CERT_AUTH;
+    }
+  }
+}
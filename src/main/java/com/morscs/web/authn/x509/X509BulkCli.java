@@ -0,0 +1,227 @@
+/*
+ *  X509BulkCli.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.function.Consumer;
+
+/**
+ * Command line front end of {@link X509BulkProcessor}.
+ * <pre>
+ *   java com.morscs.web.authn.x509.X509BulkCli [--format csv|jsonl] [--threads n] [directory]
+ * </pre>
+ * Reads encoded certificate chains from standard input, one per line, or the certificate files
+ * of a directory tree, and writes one CSV row or JSON object per distinct certificate to
+ * standard output. Exits with 0 after writing all results, including those reporting errors,
+ * 1 when input or output fails and 2 on invalid arguments.
+ */
+public final class X509BulkCli {
+
+  static final String[] COLUMNS = {"source", "subjectDn", "cn", "lastName", "firstName",
+      "middleName", "edipi", "email", "serialNumber", "notBefore", "notAfter", "error"};
+  private static final int EDIPI_COLUMN = 6;
+
+  private X509BulkCli() {
+  }
+
+  public static void main(String[] args) {
+    System.exit(run(args, System.in, System.out, System.err));
+  }
+
+  /**
+   * Run the command.
+   *
+   * @param args command line arguments
+   * @param in standard input
+   * @param out standard output
+   * @param err standard error
+   * @return exit status
+   */
+  static int run(String[] args, InputStream in, OutputStream out, PrintStream err) {
+    String format = "csv";
+    int threads = Runtime.getRuntime().availableProcessors();
+    Path directory = null;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if ("--format".equals(args[i]) && i + 1 < args.length) {
+          format = args[++i];
+        } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+          threads = Integer.parseInt(args[++i]);
+        } else if (directory == null && !args[i].startsWith("--")) {
+          directory = Paths.get(args[i]);
+        } else {
+          throw new IllegalArgumentException("unexpected argument " + args[i]);
+        }
+      }
+      if (!"csv".equals(format) && !"jsonl".equals(format)) {
+        throw new IllegalArgumentException("unknown format " + format);
+      }
+      if (threads <= 0) {
+        throw new IllegalArgumentException("threads must be positive");
+      }
+      if (directory != null && !Files.isDirectory(directory)) {
+        throw new IllegalArgumentException("not a directory: " + directory);
+      }
+    } catch (IllegalArgumentException exc) {
+      err.println(exc.getMessage());
+      err.println("usage: X509BulkCli [--format csv|jsonl] [--threads n] [directory]");
+      return 2;
+    }
+
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8),
+        1 << 16);
+    try (X509BulkProcessor processor = new X509BulkProcessor(threads)) {
+      ResultWriter results = "csv".equals(format) ? new CsvWriter(writer) : new JsonWriter(writer);
+      if (directory == null) {
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16);
+        processor.processEncoded(reader.lines().filter(line -> !line.trim().isEmpty()), results);
+      } else {
+        processor.processDirectory(directory, results);
+      }
+      results.finish();
+      writer.flush();
+      err.println(processor.getResultCount() + " certificates, " + processor.getFailureCount()
+          + " errors, " + processor.getDuplicateCount() + " duplicates");
+      return 0;
+    } catch (IOException | UncheckedIOException exc) {
+      err.println("failed: " + exc.getMessage());
+      return 1;
+    }
+  }
+
+  /**
+   * Writes results to the output, failing with UncheckedIOException.
+   */
+  private abstract static class ResultWriter implements Consumer<X509BulkResult> {
+    @Override
+    public void accept(X509BulkResult result) {
+      try {
+        write(result);
+      } catch (IOException exc) {
+        throw new UncheckedIOException(exc);
+      }
+    }
+
+    abstract void write(X509BulkResult result) throws IOException;
+
+    void finish() throws IOException {
+    }
+
+    static String[] values(X509BulkResult result) {
+      boolean read = !result.isFailure();
+      return new String[] {result.getSource(), result.getSubjectDn(), result.getCn(),
+          result.getLastName(), result.getFirstName(), result.getMiddleName(),
+          result.getEdipi() == CommonName.NO_EDIPI ? null : Long.toString(result.getEdipi()),
+          result.getEmail(), result.getSerialNumber(),
+          read ? Instant.ofEpochMilli(result.getNotBefore()).toString() : null,
+          read ? Instant.ofEpochMilli(result.getNotAfter()).toString() : null,
+          result.getError()};
+    }
+  }
+
+  private static final class CsvWriter extends ResultWriter {
+    private final Writer out;
+
+    CsvWriter(Writer out) throws IOException {
+      this.out = out;
+      out.write(String.join(",", COLUMNS));
+      out.write('\n');
+    }
+
+    @Override
+    void write(X509BulkResult result) throws IOException {
+      String[] values = values(result);
+      for (int i = 0; i < values.length; i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        writeField(values[i]);
+      }
+      out.write('\n');
+    }
+
+    private void writeField(String value) throws IOException {
+      if (value == null) {
+        return;
+      }
+      boolean quote = false;
+      for (int i = 0; i < value.length() && !quote; i++) {
+        char c = value.charAt(i);
+        quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (!quote) {
+        out.write(value);
+        return;
+      }
+      out.write('"');
+      out.write(value.replace("\"", "\"\""));
+      out.write('"');
+    }
+  }
+
+  private static final class JsonWriter extends ResultWriter {
+    private final JsonGenerator json;
+
+    JsonWriter(Writer out) throws IOException {
+      this.json = new JsonFactory().createGenerator(out);
+      json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      // lines are ended below; the default separator would start each one with a space
+      json.setRootValueSeparator(null);
+    }
+
+    @Override
+    void write(X509BulkResult result) throws IOException {
+      String[] values = values(result);
+      json.writeStartObject();
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] != null) {
+          if (i == EDIPI_COLUMN) {
+            json.writeNumberField(COLUMNS[i], result.getEdipi());
+          } else {
+            json.writeStringField(COLUMNS[i], values[i]);
+          }
+        }
+      }
+      json.writeEndObject();
+      json.writeRaw('\n');
+    }
+
+    @Override
+    void finish() throws IOException {
+      json.flush();
+    }
+  }
+}
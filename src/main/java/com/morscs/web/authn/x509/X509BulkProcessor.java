@@ -0,0 +1,322 @@
+/*
+ *  X509BulkProcessor.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Parallel identity extraction from large numbers of encoded certificate headers or
+ * certificate files, e.g. archived access logs and PEM bundles.
+ * <p>
+ * Inputs are taken in batches and processed on a fork-join pool, at most a few batches per
+ * worker ahead of the consumer, so the inputs and results held at once do not grow with the
+ * length of the input. Results are handed to the consumer on the calling thread, in input order
+ * apart from duplicates: each distinct encoded input, and each distinct certificate of the
+ * processed files, is reported once. Certificates are read with {@link X509CertificateView}
+ * and never built into JCA certificate objects.
+ * <p>
+ * Recognizing duplicates means remembering a SHA-256 fingerprint of every distinct input, on
+ * the order of a hundred bytes of heap each, so that set does grow with the number of distinct
+ * inputs. One processor can run several jobs one after the other; duplicates are recognized
+ * across all of them until {@link #clear()}, which also frees the fingerprints. Jobs must not
+ * run concurrently on the same processor.
+ */
+public class X509BulkProcessor implements Closeable {
+
+  private static final int BATCH_SIZE = 256;
+  private static final String[] CERT_SUFFIXES = {".pem", ".cer", ".crt", ".der"};
+
+  private final ForkJoinPool pool;
+  private final boolean ownsPool;
+  private final int maxBatchesInFlight;
+  private final Set<X509Fingerprint> seen = ConcurrentHashMap.newKeySet();
+
+  private final LongAdder results = new LongAdder();
+  private final LongAdder duplicates = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+
+  /**
+   * Construct processor with its own pool.
+   *
+   * @param parallelism number of worker threads
+   */
+  public X509BulkProcessor(int parallelism) {
+    this(new ForkJoinPool(parallelism), true);
+  }
+
+  /**
+   * Construct processor that runs on an existing pool, left open by {@link #close()}.
+   *
+   * @param pool fork-join pool to process on
+   */
+  public X509BulkProcessor(ForkJoinPool pool) {
+    this(pool, false);
+  }
+
+  private X509BulkProcessor(ForkJoinPool pool, boolean ownsPool) {
+    this.pool = pool;
+    this.ownsPool = ownsPool;
+    this.maxBatchesInFlight = 2 * pool.getParallelism();
+  }
+
+  /**
+   * Process Base64, PEM or URL escaped PEM certificate chains as sent in proxy headers. Each
+   * result describes the primary certificate of a chain.
+   *
+   * @param encoded encoded chains, e.g. the header column of an access log
+   * @param sink receives the results
+   */
+  public void processEncoded(Iterator<String> encoded, Consumer<? super X509BulkResult> sink) {
+    run(encoded, this::processEncoded, sink);
+  }
+
+  public void processEncoded(Stream<String> encoded, Consumer<? super X509BulkResult> sink) {
+    processEncoded(encoded.iterator(), sink);
+  }
+
+  /**
+   * Process DER or PEM certificate files. Each certificate of a file is a result of its own.
+   *
+   * @param files certificate files
+   * @param sink receives the results
+   */
+  public void processFiles(Iterator<Path> files, Consumer<? super X509BulkResult> sink) {
+    run(files, this::processFile, sink);
+  }
+
+  public void processFiles(Stream<Path> files, Consumer<? super X509BulkResult> sink) {
+    processFiles(files.iterator(), sink);
+  }
+
+  /**
+   * Process the certificate files (.pem, .cer, .crt, .der) of a directory tree.
+   *
+   * @param directory directory to walk
+   * @param sink receives the results
+   * @throws IOException when the directory cannot be walked
+   */
+  public void processDirectory(Path directory, Consumer<? super X509BulkResult> sink)
+      throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      processFiles(files.filter(X509BulkProcessor::isCertFile), sink);
+    }
+  }
+
+  private static boolean isCertFile(Path file) {
+    String name = file.getFileName().toString().toLowerCase();
+    for (String suffix : CERT_SUFFIXES) {
+      if (name.endsWith(suffix)) {
+        return Files.isRegularFile(file);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Work on one input, adding its outcomes to the batch output.
+   */
+  private interface Work<T> {
+    void process(T input, long ordinal, Batch out);
+  }
+
+  private <T> void run(Iterator<T> inputs, Work<T> work, Consumer<? super X509BulkResult> sink) {
+    ArrayDeque<ForkJoinTask<Batch>> inFlight = new ArrayDeque<>();
+    long ordinal = 1;
+    while (inputs.hasNext()) {
+      List<T> inputBatch = new ArrayList<>(BATCH_SIZE);
+      while (inputBatch.size() < BATCH_SIZE && inputs.hasNext()) {
+        inputBatch.add(inputs.next());
+      }
+      long first = ordinal;
+      ordinal += inputBatch.size();
+      inFlight.add(pool.submit(() -> {
+        Batch out = new Batch(inputBatch.size());
+        for (int i = 0; i < inputBatch.size(); i++) {
+          work.process(inputBatch.get(i), first + i, out);
+        }
+        return out;
+      }));
+      if (inFlight.size() >= maxBatchesInFlight) {
+        emit(inFlight.poll(), sink);
+      }
+    }
+    while (!inFlight.isEmpty()) {
+      emit(inFlight.poll(), sink);
+    }
+  }
+
+  /**
+   * Hand the outcomes of a batch to the sink. Batches run concurrently, so whether an input is
+   * the first of its kind is only settled here, in input order.
+   */
+  private void emit(ForkJoinTask<Batch> task, Consumer<? super X509BulkResult> sink) {
+    Batch batch = task.join();
+    duplicates.add(batch.skipped);
+    for (int i = 0; i < batch.results.size(); i++) {
+      X509Fingerprint key = batch.keys.get(i);
+      if (key != null && !seen.add(key)) {
+        duplicates.increment();
+        continue;
+      }
+      X509BulkResult result = batch.results.get(i);
+      results.increment();
+      if (result.isFailure()) {
+        failures.increment();
+      }
+      sink.accept(result);
+    }
+  }
+
+  private void processEncoded(String encoded, long ordinal, Batch out) {
+    String source = Long.toString(ordinal);
+    if (encoded == null || encoded.isEmpty()) {
+      out.add(null, X509BulkResult.failure(source, new X509Exception("no certificate data")));
+      return;
+    }
+    X509Fingerprint key = X509Fingerprint.of(encoded);
+    if (out.isDuplicate(key)) {
+      return;
+    }
+    try {
+      X509CertificateView[] chain =
+          X509Extraction.buildCertViewChainFromBase64Encoding(encoded);
+      out.add(key, X509BulkResult.of(source,
+          X509Extraction.extractPrimaryCertViewFromChain(chain)));
+    } catch (X509Exception | IllegalArgumentException exc) {
+      out.add(key, X509BulkResult.failure(source, exc));
+    }
+  }
+
+  private void processFile(Path file, long ordinal, Batch out) {
+    String source = file.toString();
+    X509CertificateView[] certs;
+    try {
+      byte[] data = Files.readAllBytes(file);
+      byte[] der = data;
+      int length = data.length;
+      if (length > 0 && DerReader.tag(data, 0) != DerReader.TAG_SEQUENCE) {
+        String text = new String(data, StandardCharsets.ISO_8859_1);
+        der = CertificateHeaderDecoder.newBuffer(text);
+        length = CertificateHeaderDecoder.decode(text, der);
+      }
+      certs = X509CertificateView.parseChain(der, length);
+      if (certs.length == 0) {
+        throw new X509Exception("no certificate in file");
+      }
+    } catch (IOException | X509Exception | IllegalArgumentException exc) {
+      out.add(null, X509BulkResult.failure(source, exc));
+      return;
+    }
+    for (int i = 0; i < certs.length; i++) {
+      X509Fingerprint key = X509Fingerprint.of(certs[i].getEncoded());
+      if (out.isDuplicate(key)) {
+        continue;
+      }
+      String certSource = i == 0 ? source : source + "#" + (i + 1);
+      try {
+        out.add(key, X509BulkResult.of(certSource, certs[i]));
+      } catch (X509Exception exc) {
+        out.add(key, X509BulkResult.failure(certSource, exc));
+      }
+    }
+  }
+
+  /**
+   * Outcomes of one batch, each with the key it is deduplicated by, or null for failures that
+   * are always reported.
+   */
+  private final class Batch {
+    private final List<X509Fingerprint> keys;
+    private final List<X509BulkResult> results;
+    private final Set<X509Fingerprint> local = new HashSet<>();
+    private long skipped;
+
+    Batch(int capacity) {
+      this.keys = new ArrayList<>(capacity);
+      this.results = new ArrayList<>(capacity);
+    }
+
+    /**
+     * Whether the key is certain to be a duplicate: reported by an earlier batch, or already
+     * seen earlier in this one. Such inputs are not parsed at all.
+     */
+    boolean isDuplicate(X509Fingerprint key) {
+      if (seen.contains(key) || !local.add(key)) {
+        skipped++;
+        return true;
+      }
+      return false;
+    }
+
+    void add(X509Fingerprint key, X509BulkResult result) {
+      keys.add(key);
+      results.add(result);
+    }
+  }
+
+  /**
+   * Forget the inputs seen so far, so they are reported again.
+   */
+  public void clear() {
+    seen.clear();
+  }
+
+  /**
+   * Shut down the pool, unless it was supplied by the caller.
+   */
+  @Override
+  public void close() {
+    if (ownsPool) {
+      pool.shutdown();
+    }
+  }
+
+  public long getResultCount() {
+    return results.sum();
+  }
+
+  /**
+   * Number of inputs or certificates skipped because they were seen before.
+   *
+   * @return duplicate count
+   */
+  public long getDuplicateCount() {
+    return duplicates.sum();
+  }
+
+  public long getFailureCount() {
+    return failures.sum();
+  }
+}
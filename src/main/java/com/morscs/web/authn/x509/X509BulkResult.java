@@ -0,0 +1,151 @@
+/*
+ *  X509BulkResult.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+/**
+ * Identity fields of one certificate processed by {@link X509BulkProcessor}, or the error that
+ * kept it from being read.
+ */
+public final class X509BulkResult {
+
+  private final String source;
+  private final String subjectDn;
+  private final String cn;
+  private final String lastName;
+  private final String firstName;
+  private final String middleName;
+  private final long edipi;
+  private final String email;
+  private final String serialNumber;
+  private final long notBefore;
+  private final long notAfter;
+  private final String error;
+
+  private X509BulkResult(String source, String subjectDn, String cn, CommonName commonName,
+      String email, String serialNumber, long notBefore, long notAfter, String error) {
+    this.source = source;
+    this.subjectDn = subjectDn;
+    this.cn = cn;
+    this.lastName = commonName == null ? null : commonName.getLastName();
+    this.firstName = commonName == null ? null : commonName.getFirstName();
+    this.middleName = commonName == null ? null : commonName.getMiddleName();
+    this.edipi = commonName == null ? CommonName.NO_EDIPI : commonName.getEdipi();
+    this.email = email;
+    this.serialNumber = serialNumber;
+    this.notBefore = notBefore;
+    this.notAfter = notAfter;
+    this.error = error;
+  }
+
+  static X509BulkResult of(String source, X509CertificateView cert) throws X509Exception {
+    String cn = cert.getSubjectCn();
+    CommonName commonName = null;
+    if (cn != null) {
+      try {
+        // in the format of the issuer, as for certificates read per request
+        CnFormats formats = X509Extraction.getCnFormats();
+        commonName = formats == null ? X509Extraction.scanCommonNameFromCn(cn)
+            : formats.parse(cert.getIssuerDn(), cn);
+      } catch (X509Exception exc) {
+        // not every certificate carries a CN in a known format
+      }
+    }
+    return new X509BulkResult(source, cert.getSubjectDn(), cn, commonName,
+        cert.getRfc822Name(), cert.getSerialNumber().toString(16),
+        cert.getNotBefore().toEpochMilli(), cert.getNotAfter().toEpochMilli(), null);
+  }
+
+  static X509BulkResult failure(String source, Exception exc) {
+    return new X509BulkResult(source, null, null, null, null, null, 0, 0,
+        exc.getMessage() == null ? exc.getClass().getSimpleName() : exc.getMessage());
+  }
+
+  /**
+   * Where the certificate came from: the input ordinal, counted from 1, for encoded inputs,
+   * and the file path for files, with {@code #n} appended for the n-th certificate of a bundle.
+   *
+   * @return source
+   */
+  public String getSource() {
+    return source;
+  }
+
+  public String getSubjectDn() {
+    return subjectDn;
+  }
+
+  public String getCn() {
+    return cn;
+  }
+
+  public String getLastName() {
+    return lastName;
+  }
+
+  public String getFirstName() {
+    return firstName;
+  }
+
+  public String getMiddleName() {
+    return middleName;
+  }
+
+  /**
+   * EDIPI parsed from the CN.
+   *
+   * @return edipi or {@link CommonName#NO_EDIPI}
+   */
+  public long getEdipi() {
+    return edipi;
+  }
+
+  public String getEmail() {
+    return email;
+  }
+
+  /**
+   * Serial number in lower case hexadecimal.
+   *
+   * @return serial number or null on error
+   */
+  public String getSerialNumber() {
+    return serialNumber;
+  }
+
+  public long getNotBefore() {
+    return notBefore;
+  }
+
+  public long getNotAfter() {
+    return notAfter;
+  }
+
+  /**
+   * Why the input could not be read.
+   *
+   * @return error message, or null when the certificate was read
+   */
+  public String getError() {
+    return error;
+  }
+
+  public boolean isFailure() {
+    return error != null;
+  }
+}
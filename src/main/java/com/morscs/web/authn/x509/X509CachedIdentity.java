@@ -0,0 +1,185 @@
+/*
+ *  X509CachedIdentity.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.security.cert.X509Certificate;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Parsed certificate chain and the identity values derived from it, as held by
+ * {@link X509IdentityCache}.
+ * <p>
+ * Values that could not be derived from the certificate (for example a CN that does not follow
+ * the expected layout, or a certificate without an email SAN) are null.
+ * <p>
+ * Entries restored from an {@link X509IdentitySnapshot} carry the derived values only: their
+ * certificate chain is empty and their subject alternative names hold at most the primary email
+ * and UPN.
+ */
+public final class X509CachedIdentity {
+
+  private final X509Fingerprint fingerprint;
+  private final X509Certificate[] certChain;
+  private final String subjectDn;
+  private final String cn;
+  private final CommonName commonName;
+  private final SubjectAltNames subjectAltNames;
+  private final InternetAddress email;
+  private final long expiresAt;
+
+  X509CachedIdentity(X509Fingerprint fingerprint, X509Certificate[] certChain, String subjectDn,
+      String cn, CommonName commonName, SubjectAltNames subjectAltNames, InternetAddress email,
+      long expiresAt) {
+    this.fingerprint = fingerprint;
+    this.certChain = certChain;
+    this.subjectDn = subjectDn;
+    this.cn = cn;
+    this.commonName = commonName;
+    this.subjectAltNames = subjectAltNames;
+    this.email = email;
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * Parse the chain and derive all identity values.
+   *
+   * @param fingerprint lookup key of the encoded chain
+   * @param certChain parsed chain
+   * @param ttlExpiresAt latest expiry allowed by configuration, epoch millis
+   * @return cache entry
+   * @throws X509Exception when the chain has no primary certificate or subject
+   */
+  static X509CachedIdentity build(X509Fingerprint fingerprint, X509Certificate[] certChain,
+      long ttlExpiresAt) throws X509Exception {
+    X509Certificate primary = X509Extraction.extractPrimaryCertFromChain(certChain);
+    String subjectDn = X509Extraction.extractPrimarySubjectDnFromCert(primary);
+    String cn = X509Extraction.scanCnFromSubjectDn(subjectDn);
+    CommonName commonName = null;
+    if (cn != null) {
+      try {
+        commonName = X509Extraction.parseCommonNameFromCn(primary.getIssuerX500Principal(), cn);
+      } catch (X509Exception exc) {
+        // not every certificate carries a parseable CN; leave it unset
+      }
+    }
+    SubjectAltNames subjectAltNames = SubjectAltNames.EMPTY;
+    InternetAddress email = null;
+    try {
+      subjectAltNames = X509Extraction.extractSubjectAltNamesFromCert(primary);
+      email = X509Extraction.readEmail(subjectAltNames);
+    } catch (X509Exception exc) {
+      // SANs are optional
+    }
+    long expiresAt = Math.min(ttlExpiresAt, earliestNotAfter(certChain));
+    return new X509CachedIdentity(fingerprint, certChain, subjectDn, cn, commonName,
+        subjectAltNames, email, expiresAt);
+  }
+
+  /**
+   * Entry restored from a snapshot, without its certificate chain.
+   *
+   * @param fingerprint lookup key of the encoded chain
+   * @param expiresAt expiry in epoch millis
+   * @return cache entry
+   */
+  static X509CachedIdentity restore(X509Fingerprint fingerprint, String subjectDn, String cn,
+      CommonName commonName, SubjectAltNames subjectAltNames, long expiresAt) {
+    InternetAddress email = null;
+    try {
+      email = X509Extraction.readEmail(subjectAltNames);
+    } catch (X509Exception exc) {
+      // SANs are optional
+    }
+    return new X509CachedIdentity(fingerprint, new X509Certificate[0], subjectDn, cn,
+        commonName, subjectAltNames, email, expiresAt);
+  }
+
+  private static long earliestNotAfter(X509Certificate[] certChain) {
+    long earliest = Long.MAX_VALUE;
+    for (X509Certificate cert : certChain) {
+      earliest = Math.min(earliest, cert.getNotAfter().getTime());
+    }
+    return earliest;
+  }
+
+  public X509Fingerprint getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * Certificate chain, primary certificate first.
+   *
+   * @return copy of the cached chain, empty for an entry restored from a snapshot
+   */
+  public X509Certificate[] getCertChain() {
+    return certChain.clone();
+  }
+
+  /**
+   * Primary certificate of the chain.
+   *
+   * @return primary certificate, or null for an entry restored from a snapshot
+   */
+  public X509Certificate getPrimaryCert() {
+    return certChain.length == 0 ? null : certChain[0];
+  }
+
+  public String getSubjectDn() {
+    return subjectDn;
+  }
+
+  public String getCn() {
+    return cn;
+  }
+
+  public CommonName getCommonName() {
+    return commonName;
+  }
+
+  /**
+   * Email, UPN, DNS and URI entries of the subject alternative names.
+   *
+   * @return decoded names, empty if the certificate has none or they are malformed
+   */
+  public SubjectAltNames getSubjectAltNames() {
+    return subjectAltNames;
+  }
+
+  /**
+   * Primary email address from the subject alternative names.
+   *
+   * @return copy of the cached address, or null if the certificate has no email SAN
+   */
+  public InternetAddress getEmail() {
+    return email == null ? null : (InternetAddress) email.clone();
+  }
+
+  /**
+   * Time after which this entry must no longer be served.
+   *
+   * @return expiry in epoch millis
+   */
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  boolean isExpired(long now) {
+    return now >= expiresAt;
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ *  X509CertificateView.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Read-only, identity oriented view over a DER encoded X.509 certificate.
+ * <p>
+ * Construction only walks the outer TBSCertificate structure and records where the serial,
+ * issuer, validity, subject and extensions live. Each field is decoded on first access and
+ * remembered. Nothing is verified, and no JCA objects are created unless
+ * {@link #toX509Certificate()} is called for callers that need the full certificate.
+ * <p>
+ * Views are safe to share between threads. The backing array is retained, not copied, and must
+ * not be modified once a view is built.
+ */
+public final class X509CertificateView {
+
+  // OID bodies (without tag and length) of the attributes and extensions we care about
+  private static final byte[] OID_CN = {0x55, 0x04, 0x03};
+  private static final byte[] OID_SUBJECT_ALT_NAME = {0x55, 0x1d, 0x11};
+  private static final int TAG_EXPLICIT_VERSION = 0xa0;
+  private static final int TAG_EXPLICIT_EXTENSIONS = 0xa3;
+  // marks optional fields that were looked up and found missing
+  private static final String ABSENT = new String();
+
+  private final byte[] der;
+  private final int start;
+  private final int end;
+  private final int serialOff;
+  private final int issuerOff;
+  private final int validityOff;
+  private final int subjectOff;
+  private final int extensionsOff;
+
+  private String subjectDn;
+  private String issuerDn;
+  private String subjectCn;
+  private BigInteger serialNumber;
+  private Instant notBefore;
+  private Instant notAfter;
+  private SubjectAltNames subjectAltNames;
+  private volatile X509Certificate certificate;
+
+  private X509CertificateView(byte[] der, int start, int limit) throws X509Exception {
+    DerReader.expectTag(der, start, limit, DerReader.TAG_SEQUENCE);
+    this.der = der;
+    this.start = start;
+    this.end = DerReader.end(der, start, limit);
+
+    int tbs = DerReader.contentOffset(der, start, end);
+    DerReader.expectTag(der, tbs, end, DerReader.TAG_SEQUENCE);
+    int tbsEnd = DerReader.end(der, tbs, end);
+    int p = DerReader.contentOffset(der, tbs, tbsEnd);
+    if (p < tbsEnd && DerReader.tag(der, p) == TAG_EXPLICIT_VERSION) {
+      p = DerReader.end(der, p, tbsEnd);
+    }
+    DerReader.expectTag(der, p, tbsEnd, DerReader.TAG_INTEGER);
+    serialOff = p;
+    p = DerReader.end(der, p, tbsEnd);
+    DerReader.expectTag(der, p, tbsEnd, DerReader.TAG_SEQUENCE); // signature algorithm
+    p = DerReader.end(der, p, tbsEnd);
+    DerReader.expectTag(der, p, tbsEnd, DerReader.TAG_SEQUENCE);
+    issuerOff = p;
+    p = DerReader.end(der, p, tbsEnd);
+    DerReader.expectTag(der, p, tbsEnd, DerReader.TAG_SEQUENCE);
+    validityOff = p;
+    p = DerReader.end(der, p, tbsEnd);
+    DerReader.expectTag(der, p, tbsEnd, DerReader.TAG_SEQUENCE);
+    subjectOff = p;
+    p = DerReader.end(der, p, tbsEnd);
+    DerReader.expectTag(der, p, tbsEnd, DerReader.TAG_SEQUENCE); // subject public key info
+    p = DerReader.end(der, p, tbsEnd);
+    int extensions = -1;
+    while (p < tbsEnd) {
+      // skip the optional issuer and subject unique ids
+      if (DerReader.tag(der, p) == TAG_EXPLICIT_EXTENSIONS) {
+        extensions = DerReader.contentOffset(der, p, tbsEnd);
+        DerReader.expectTag(der, extensions, tbsEnd, DerReader.TAG_SEQUENCE);
+      }
+      p = DerReader.end(der, p, tbsEnd);
+    }
+    extensionsOff = extensions;
+  }
+
+  /**
+   * Build a view over one DER encoded certificate.
+   *
+   * @param der DER encoded certificate, retained by the view
+   * @return certificate view
+   * @throws X509Exception when the data is not a well formed certificate structure
+   */
+  public static X509CertificateView parse(byte[] der) throws X509Exception {
+    return parse(der, 0, der.length);
+  }
+
+  /**
+   * Build a view over the certificate at the start of a byte range.
+   *
+   * @param der buffer holding DER data, retained by the view
+   * @param offset offset of the certificate
+   * @param limit end of valid data in der, exclusive
+   * @return certificate view, see {@link #getEncodedLength()} for the bytes consumed
+   * @throws X509Exception when the data is not a well formed certificate structure
+   */
+  public static X509CertificateView parse(byte[] der, int offset, int limit)
+      throws X509Exception {
+    return new X509CertificateView(der, offset, limit);
+  }
+
+  /**
+   * Build a view over the certificate at the buffer's position. Array backed buffers are used
+   * in place, others are copied once. The buffer position is advanced past the certificate.
+   *
+   * @param buffer buffer holding DER data
+   * @return certificate view
+   * @throws X509Exception when the data is not a well formed certificate structure
+   */
+  public static X509CertificateView parse(ByteBuffer buffer) throws X509Exception {
+    X509CertificateView view;
+    if (buffer.hasArray()) {
+      int offset = buffer.arrayOffset() + buffer.position();
+      view = parse(buffer.array(), offset, buffer.arrayOffset() + buffer.limit());
+    } else {
+      byte[] copy = new byte[buffer.remaining()];
+      buffer.duplicate().get(copy);
+      view = parse(copy, 0, copy.length);
+    }
+    buffer.position(buffer.position() + view.getEncodedLength());
+    return view;
+  }
+
+  /**
+   * Split concatenated DER certificates into views sharing one buffer.
+   *
+   * @param der concatenated DER certificates, retained by the views
+   * @param length number of valid bytes in der
+   * @return certificate views in encoded order
+   * @throws X509Exception when any certificate is malformed
+   */
+  static X509CertificateView[] parseChain(byte[] der, int length) throws X509Exception {
+    X509CertificateView[] chain = new X509CertificateView[1];
+    int count = 0;
+    int p = 0;
+    while (p < length) {
+      X509CertificateView view = parse(der, p, length);
+      if (count == chain.length) {
+        chain = Arrays.copyOf(chain, count * 2);
+      }
+      chain[count++] = view;
+      p = view.end;
+    }
+    return count == chain.length ? chain : Arrays.copyOf(chain, count);
+  }
+
+  /**
+   * Subject DN in RFC 4514 form, most specific RDN first.
+   *
+   * @return subject DN
+   * @throws X509Exception when the subject name is malformed
+   */
+  public String getSubjectDn() throws X509Exception {
+    String dn = subjectDn;
+    if (dn == null) {
+      dn = X509Names.format(der, subjectOff, end);
+      subjectDn = dn;
+    }
+    return dn;
+  }
+
+  /**
+   * Issuer DN in RFC 4514 form, most specific RDN first.
+   *
+   * @return issuer DN
+   * @throws X509Exception when the issuer name is malformed
+   */
+  public String getIssuerDn() throws X509Exception {
+    String dn = issuerDn;
+    if (dn == null) {
+      dn = X509Names.format(der, issuerOff, end);
+      issuerDn = dn;
+    }
+    return dn;
+  }
+
+  /**
+   * Most specific CN attribute of the subject, decoded straight from DER without formatting
+   * the whole DN.
+   *
+   * @return common name or null if the subject has no CN
+   * @throws X509Exception when the subject name is malformed
+   */
+  public String getSubjectCn() throws X509Exception {
+    String cn = subjectCn;
+    if (cn == null) {
+      cn = X509Names.findAttribute(der, subjectOff, end, OID_CN);
+      subjectCn = cn == null ? ABSENT : cn;
+    }
+    return cn == ABSENT ? null : cn;
+  }
+
+  /**
+   * Serial number as encoded by the issuer.
+   *
+   * @return serial number
+   */
+  public BigInteger getSerialNumber() {
+    BigInteger serial = serialNumber;
+    if (serial == null) {
+      try {
+        int content = DerReader.contentOffset(der, serialOff, end);
+        serial = new BigInteger(Arrays.copyOfRange(der, content,
+            content + DerReader.contentLength(der, serialOff, end)));
+      } catch (X509Exception exc) {
+        // bounds were verified during construction
+        throw new IllegalStateException(exc);
+      }
+      serialNumber = serial;
+    }
+    return serial;
+  }
+
+  /**
+   * Start of the validity period.
+   *
+   * @return not before instant
+   * @throws X509Exception when the validity is malformed
+   */
+  public Instant getNotBefore() throws X509Exception {
+    Instant instant = notBefore;
+    if (instant == null) {
+      int p = DerReader.contentOffset(der, validityOff, end);
+      instant = Instant.ofEpochMilli(DerReader.decodeTime(der, p, end));
+      notBefore = instant;
+    }
+    return instant;
+  }
+
+  /**
+   * End of the validity period.
+   *
+   * @return not after instant
+   * @throws X509Exception when the validity is malformed
+   */
+  public Instant getNotAfter() throws X509Exception {
+    Instant instant = notAfter;
+    if (instant == null) {
+      int p = DerReader.contentOffset(der, validityOff, end);
+      p = DerReader.end(der, p, end);
+      instant = Instant.ofEpochMilli(DerReader.decodeTime(der, p, end));
+      notAfter = instant;
+    }
+    return instant;
+  }
+
+  /**
+   * First rfc822Name (email) entry of the subject alternative names extension.
+   *
+   * @return email string or null if the certificate carries none
+   * @throws X509Exception when the extension is malformed
+   */
+  public String getRfc822Name() throws X509Exception {
+    return getSubjectAltNames().getPrimaryEmail();
+  }
+
+  /**
+   * All email, UPN, DNS and URI entries of the subject alternative names extension.
+   *
+   * @return decoded names, {@link SubjectAltNames#EMPTY} if the certificate carries none
+   * @throws X509Exception when the extension is malformed
+   */
+  public SubjectAltNames getSubjectAltNames() throws X509Exception {
+    SubjectAltNames names = subjectAltNames;
+    if (names == null) {
+      int value = findExtensionValue(OID_SUBJECT_ALT_NAME);
+      names = value < 0 ? SubjectAltNames.EMPTY : SubjectAltNames.decode(der, value, end);
+      subjectAltNames = names;
+    }
+    return names;
+  }
+
+  /**
+   * Locate the value of an extension.
+   *
+   * @param oidBody encoded OID of the extension, without tag and length
+   * @return offset of the DER element wrapped by the extension's OCTET STRING, or -1
+   */
+  int findExtensionValue(byte[] oidBody) throws X509Exception {
+    if (extensionsOff < 0) {
+      return -1;
+    }
+    int extEnd = DerReader.end(der, extensionsOff, end);
+    for (int p = DerReader.contentOffset(der, extensionsOff, extEnd); p < extEnd;
+        p = DerReader.end(der, p, extEnd)) {
+      DerReader.expectTag(der, p, extEnd, DerReader.TAG_SEQUENCE);
+      int itemEnd = DerReader.end(der, p, extEnd);
+      int q = DerReader.contentOffset(der, p, itemEnd);
+      if (!DerReader.oidEquals(der, q, itemEnd, oidBody)) {
+        continue;
+      }
+      q = DerReader.end(der, q, itemEnd);
+      if (q < itemEnd && DerReader.tag(der, q) == DerReader.TAG_BOOLEAN) {
+        q = DerReader.end(der, q, itemEnd); // critical flag
+      }
+      DerReader.expectTag(der, q, itemEnd, DerReader.TAG_OCTET_STRING);
+      return DerReader.contentOffset(der, q, itemEnd);
+    }
+    return -1;
+  }
+
+  byte[] buffer() {
+    return der;
+  }
+
+  int serialOffset() {
+    return serialOff;
+  }
+
+  int issuerOffset() {
+    return issuerOff;
+  }
+
+  int limit() {
+    return end;
+  }
+
+  /**
+   * Number of bytes the certificate occupies in the backing buffer.
+   *
+   * @return encoded length
+   */
+  public int getEncodedLength() {
+    return end - start;
+  }
+
+  /**
+   * Copy of the DER encoding.
+   *
+   * @return encoded certificate
+   */
+  public byte[] getEncoded() {
+    return Arrays.copyOfRange(der, start, end);
+  }
+
+  /**
+   * Full JCA certificate for callers that need signature, key or extension access. Parsed on
+   * first call and remembered.
+   *
+   * @return certificate object
+   * @throws X509Exception when the certificate factory rejects the encoding
+   */
+  public X509Certificate toX509Certificate() throws X509Exception {
+    X509Certificate cert = certificate;
+    if (cert == null) {
+      cert = X509Extraction.generateCert(der, start, end - start);
+      certificate = cert;
+    }
+    return cert;
+  }
+}
@@ -0,0 +1,384 @@
+/*
+ *  X509ChainValidator.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.PKIXCertPathValidatorResult;
+import java.security.cert.PKIXParameters;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * PKIX validation of client certificate chains against a preloaded {@link X509TrustStore}.
+ * <p>
+ * The path is built from the leaf up, taking each issuer from the supplied chain or else from
+ * the intermediates of the trust store, and validated with a copy of PKIX parameters prepared
+ * once at construction. Revocation is not checked here.
+ * <p>
+ * Results are cached by the SHA-256 fingerprint of the supplied chain: a valid chain until the
+ * earliest notAfter on its path, a rejected one for the configured failure time to live.
+ * Concurrent validations of the same chain are collapsed, so only one thread runs the PKIX
+ * algorithm and the others wait for its result. When full, the oldest entries are evicted
+ * first.
+ * <p>
+ * Instances are thread safe and meant to be shared for the lifetime of the application.
+ */
+public class X509ChainValidator {
+
+  private static final String ALGORITHM = "PKIX";
+  // guards against issuer loops in malformed chains; real client paths are 2 to 4 long
+  private static final int MAX_PATH_LENGTH = 10;
+
+  private final X509TrustStore trustStore;
+  private final PKIXParameters parameters;
+  private final ConcurrentHashMap<X509Fingerprint, Result> results = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<X509Fingerprint, CompletableFuture<Result>> inFlight =
+      new ConcurrentHashMap<>();
+  private final Queue<Result> insertionOrder = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final int maxEntries;
+  private final long failureTtlMillis;
+  private final Clock clock;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder validations = new LongAdder();
+  private final LongAdder collapsed = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+
+  /**
+   * Construct validator.
+   *
+   * @param trustStore trust anchors and intermediates
+   * @param maxEntries maximum number of chain results held at once
+   * @param failureTtl how long a rejected chain is remembered before it is validated again
+   */
+  public X509ChainValidator(X509TrustStore trustStore, int maxEntries, Duration failureTtl) {
+    this(trustStore, maxEntries, failureTtl, Clock.systemUTC());
+  }
+
+  /**
+   * Construct validator with an explicit clock.
+   *
+   * @param trustStore trust anchors and intermediates
+   * @param maxEntries maximum number of chain results held at once
+   * @param failureTtl how long a rejected chain is remembered before it is validated again
+   * @param clock time source used for validity checks and expiry decisions
+   */
+  public X509ChainValidator(X509TrustStore trustStore, int maxEntries, Duration failureTtl,
+      Clock clock) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive, got " + maxEntries);
+    }
+    if (failureTtl.isNegative()) {
+      throw new IllegalArgumentException("failureTtl must not be negative, got " + failureTtl);
+    }
+    this.trustStore = trustStore;
+    this.maxEntries = maxEntries;
+    this.failureTtlMillis = failureTtl.toMillis();
+    this.clock = clock;
+    try {
+      this.parameters = new PKIXParameters(trustStore.getTrustAnchors());
+    } catch (InvalidAlgorithmParameterException exc) {
+      // the trust store never hands out an empty anchor set
+      throw new IllegalStateException("invalid trust anchors", exc);
+    }
+    parameters.setRevocationEnabled(false);
+  }
+
+  /**
+   * Validate a chain and extract its first certificate as the primary client identity.
+   *
+   * @param certChain certificate chain, leaf first
+   * @return primary certificate of a valid chain
+   * @throws X509Exception when certChain is null or empty, or the chain is not valid
+   */
+  public X509Certificate extractValidatedPrimaryCert(X509Certificate[] certChain)
+      throws X509Exception {
+    X509Certificate primary = X509Extraction.extractPrimaryCertFromChain(certChain);
+    validateSelected(certChain);
+    return primary;
+  }
+
+  /**
+   * Validate a certificate chain, answering from the cache when the same chain was seen before.
+   *
+   * @param certChain certificate chain, leaf first; the root may be included or left out
+   * @return PKIX result of a valid chain
+   * @throws X509Exception when certChain is null or empty, or the chain is not valid
+   */
+  public PKIXCertPathValidatorResult validate(X509Certificate[] certChain) throws X509Exception {
+    X509Extraction.extractPrimaryCertFromChain(certChain);
+    return validateSelected(certChain);
+  }
+
+  // certChain has passed primary certificate selection, so it is neither null nor empty
+  private PKIXCertPathValidatorResult validateSelected(X509Certificate[] certChain)
+      throws X509Exception {
+    X509Fingerprint key = fingerprint(certChain);
+    Result result = cached(key);
+    if (result == null) {
+      result = validateOnce(key, certChain);
+    }
+    return result.get();
+  }
+
+  private Result cached(X509Fingerprint key) {
+    Result result = results.get(key);
+    if (result == null) {
+      return null;
+    }
+    if (result.expiresAt <= clock.millis()) {
+      results.remove(key, result);
+      return null;
+    }
+    hits.increment();
+    return result;
+  }
+
+  private Result validateOnce(X509Fingerprint key, X509Certificate[] certChain) {
+    CompletableFuture<Result> mine = new CompletableFuture<>();
+    CompletableFuture<Result> running = inFlight.putIfAbsent(key, mine);
+    if (running != null) {
+      collapsed.increment();
+      try {
+        return running.join();
+      } catch (CompletionException exc) {
+        throw (RuntimeException) exc.getCause();
+      }
+    }
+    try {
+      // another thread may have finished between the cache lookup and claiming the key
+      Result result = cached(key);
+      if (result == null) {
+        result = compute(key, certChain);
+        store(result);
+      }
+      mine.complete(result);
+      return result;
+    } catch (RuntimeException exc) {
+      mine.completeExceptionally(exc);
+      throw exc;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  private Result compute(X509Fingerprint key, X509Certificate[] certChain) {
+    validations.increment();
+    long now = clock.millis();
+    try {
+      List<X509Certificate> path = buildPath(certChain);
+      PKIXParameters params = (PKIXParameters) parameters.clone();
+      params.setDate(new Date(now));
+      PKIXCertPathValidatorResult validated = (PKIXCertPathValidatorResult) CertPathValidator
+          .getInstance(ALGORITHM).validate(X509Extraction.generateCertPath(path), params);
+      return new Result(key, validated, null, earliestNotAfter(path, validated));
+    } catch (X509Exception exc) {
+      failures.increment();
+      return new Result(key, null, exc, now + failureTtlMillis);
+    } catch (CertPathValidatorException exc) {
+      failures.increment();
+      return new Result(key, null,
+          new X509Exception("certificate chain not valid: " + exc.getMessage(), exc),
+          now + failureTtlMillis);
+    } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException exc) {
+      // every conforming JRE ships a PKIX validator accepting PKIXParameters
+      throw new IllegalStateException(ALGORITHM + " validation not available", exc);
+    }
+  }
+
+  /**
+   * Order the chain leaf to anchor, filling gaps from the trust store and leaving out the
+   * anchor itself, as {@link CertPathValidator} expects.
+   */
+  private List<X509Certificate> buildPath(X509Certificate[] certChain) throws X509Exception {
+    List<X509Certificate> path = new ArrayList<>(certChain.length);
+    X509Certificate current = certChain[0];
+    path.add(current);
+    while (!trustStore.isAnchorSubject(current.getIssuerX500Principal())) {
+      X500Principal issuer = current.getIssuerX500Principal();
+      if (issuer.equals(current.getSubjectX500Principal())) {
+        throw new X509Exception("untrusted self-signed certificate " + issuer.getName());
+      }
+      if (path.size() == MAX_PATH_LENGTH) {
+        throw new X509Exception("certificate path longer than " + MAX_PATH_LENGTH);
+      }
+      X509Certificate next = findIssuer(current, certChain);
+      if (next == null) {
+        throw new X509Exception("no trusted issuer found for " + issuer.getName());
+      }
+      path.add(next);
+      current = next;
+    }
+    return path;
+  }
+
+  private X509Certificate findIssuer(X509Certificate cert, X509Certificate[] certChain) {
+    X500Principal issuer = cert.getIssuerX500Principal();
+    for (X509Certificate candidate : certChain) {
+      if (candidate != cert && issuer.equals(candidate.getSubjectX500Principal())) {
+        return candidate;
+      }
+    }
+    List<X509Certificate> known = trustStore.findIntermediates(issuer);
+    if (known.size() == 1) {
+      return known.get(0);
+    }
+    // a re-keyed CA leaves several certificates with one subject; pick the one that signed
+    for (X509Certificate candidate : known) {
+      try {
+        cert.verify(candidate.getPublicKey());
+        return candidate;
+      } catch (GeneralSecurityException exc) {
+        // not this one
+      }
+    }
+    return null;
+  }
+
+  private static long earliestNotAfter(List<X509Certificate> path,
+      PKIXCertPathValidatorResult validated) {
+    long earliest = Long.MAX_VALUE;
+    for (X509Certificate cert : path) {
+      earliest = Math.min(earliest, cert.getNotAfter().getTime());
+    }
+    X509Certificate anchor = validated.getTrustAnchor().getTrustedCert();
+    if (anchor != null) {
+      earliest = Math.min(earliest, anchor.getNotAfter().getTime());
+    }
+    return earliest;
+  }
+
+  private void store(Result result) {
+    if (result.expiresAt <= clock.millis()) {
+      return;
+    }
+    results.put(result.key, result);
+    insertionOrder.add(result);
+    queued.incrementAndGet();
+    // expired entries leave stale queue slots behind, so the queue is trimmed as well
+    while (results.size() > maxEntries || queued.get() > 2L * maxEntries) {
+      Result oldest = insertionOrder.poll();
+      if (oldest == null) {
+        return;
+      }
+      queued.decrementAndGet();
+      results.remove(oldest.key, oldest);
+    }
+  }
+
+  private static X509Fingerprint fingerprint(X509Certificate[] certChain) throws X509Exception {
+    MessageDigest digest = X509Fingerprint.newDigest();
+    try {
+      for (X509Certificate cert : certChain) {
+        digest.update(cert.getEncoded());
+      }
+    } catch (CertificateEncodingException exc) {
+      throw new X509Exception("failed to encode certificate chain", exc);
+    }
+    return X509Fingerprint.fromDigest(digest.digest());
+  }
+
+  /**
+   * Drop all cached results. Counters are left untouched.
+   */
+  public void clear() {
+    results.clear();
+    insertionOrder.clear();
+    queued.set(0);
+  }
+
+  public int size() {
+    return results.size();
+  }
+
+  public X509TrustStore getTrustStore() {
+    return trustStore;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * Number of times the PKIX algorithm actually ran.
+   *
+   * @return validation count
+   */
+  public long getValidationCount() {
+    return validations.sum();
+  }
+
+  /**
+   * Number of callers that waited for a validation of the same chain already in progress.
+   *
+   * @return collapsed call count
+   */
+  public long getCollapsedCount() {
+    return collapsed.sum();
+  }
+
+  public long getFailureCount() {
+    return failures.sum();
+  }
+
+  /**
+   * Outcome of one validation, either a PKIX result or the reason the chain was rejected.
+   */
+  private static final class Result {
+    private final X509Fingerprint key;
+    private final PKIXCertPathValidatorResult validated;
+    private final X509Exception failure;
+    private final long expiresAt;
+
+    Result(X509Fingerprint key, PKIXCertPathValidatorResult validated, X509Exception failure,
+        long expiresAt) {
+      this.key = key;
+      this.validated = validated;
+      this.failure = failure;
+      this.expiresAt = expiresAt;
+    }
+
+    PKIXCertPathValidatorResult get() throws X509Exception {
+      if (failure != null) {
+        // a fresh exception per caller, so stack traces point at the caller
+        throw new X509Exception(failure.getCode(), failure.getMessage(), failure.getCause());
+      }
+      return validated;
+    }
+  }
+}
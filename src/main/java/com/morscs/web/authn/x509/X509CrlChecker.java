@@ -0,0 +1,333 @@
+/*
+ *  X509CrlChecker.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Offline revocation checks against the CRL files of a local directory.
+ * <p>
+ * The CRLs are compiled into a compact index file that is memory mapped, so a check is two
+ * binary searches over the mapping instead of a lookup in large JCA CRL objects. The index is
+ * compiled on construction, or reused when a previous run left one compiled from the same files.
+ * {@link #reload()} recompiles when the set of CRL files changes and swaps the new index in
+ * atomically; checks in progress finish on the index they started with and are never blocked.
+ * {@link #startWatching(Duration)} runs the reload periodically in the background.
+ * <p>
+ * A certificate whose issuer has no CRL in the directory, or whose CRL is past its next update,
+ * is reported {@link RevocationStatus#UNKNOWN}. Delta CRLs are treated like full CRLs.
+ * <p>
+ * Instances are thread safe and meant to be shared for the lifetime of the application.
+ */
+public class X509CrlChecker implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(X509CrlChecker.class);
+  private static final String[] CRL_SUFFIXES = {".crl", ".pem", ".der"};
+  private static final byte[] OID_AUTHORITY_KEY_ID = {0x55, 0x1d, 0x23};
+  private static final String AUTHORITY_KEY_ID = "2.5.29.35";
+
+  private final Path crlDirectory;
+  private final Path indexFile;
+  private final X509TrustStore trustStore;
+  private final Clock clock;
+  private volatile CrlIndex index;
+  private ScheduledExecutorService watcher;
+
+  private final LongAdder revoked = new LongAdder();
+  private final LongAdder unknown = new LongAdder();
+  private final LongAdder reloads = new LongAdder();
+  private final LongAdder reloadFailures = new LongAdder();
+
+  /**
+   * Construct checker and load the index.
+   *
+   * @param crlDirectory directory of DER or PEM CRL files (.crl, .pem, .der)
+   * @param indexFile where the compiled index is kept, outside crlDirectory or with a suffix
+   *     other than those of CRL files
+   * @param trustStore CA certificates that must have signed each CRL, or null to accept the
+   *     files unverified
+   * @throws X509Exception when the CRLs cannot be read, parsed or verified
+   */
+  public X509CrlChecker(Path crlDirectory, Path indexFile, X509TrustStore trustStore)
+      throws X509Exception {
+    this(crlDirectory, indexFile, trustStore, Clock.systemUTC());
+  }
+
+  /**
+   * Construct checker with an explicit clock and load the index.
+   *
+   * @param crlDirectory directory of DER or PEM CRL files (.crl, .pem, .der)
+   * @param indexFile where the compiled index is kept, outside crlDirectory or with a suffix
+   *     other than those of CRL files
+   * @param trustStore CA certificates that must have signed each CRL, or null to accept the
+   *     files unverified
+   * @param clock time source used to detect CRLs past their next update
+   * @throws X509Exception when the CRLs cannot be read, parsed or verified
+   */
+  public X509CrlChecker(Path crlDirectory, Path indexFile, X509TrustStore trustStore,
+      Clock clock) throws X509Exception {
+    this.crlDirectory = crlDirectory;
+    this.indexFile = indexFile;
+    this.trustStore = trustStore;
+    this.clock = clock;
+    reload();
+  }
+
+  /**
+   * Recompile and swap in the index if the CRL files changed since the last load.
+   *
+   * @return true when a new index was swapped in
+   * @throws X509Exception when the CRLs cannot be read, parsed or verified; the previous index
+   *     stays in use
+   */
+  public synchronized boolean reload() throws X509Exception {
+    List<Path> files = listCrlFiles();
+    byte[] source = fingerprint(files);
+    CrlIndex current = index;
+    if (current != null && current.hasSource(source)) {
+      return false;
+    }
+    CrlIndex loaded = current == null ? openExisting(source) : null;
+    if (loaded == null) {
+      CrlIndex.compile(files, source, trustStore, indexFile);
+      loaded = CrlIndex.open(indexFile);
+      reloads.increment();
+    }
+    index = loaded;
+    return true;
+  }
+
+  /**
+   * Reload every interval on a background daemon thread until {@link #close()}. Failures are
+   * logged and the previous index kept.
+   *
+   * @param interval delay between directory checks
+   * @throws IllegalStateException when already watching
+   */
+  public synchronized void startWatching(Duration interval) {
+    if (watcher != null) {
+      throw new IllegalStateException("already watching " + crlDirectory);
+    }
+    watcher = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "x509-crl-reload");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long millis = interval.toMillis();
+    watcher.scheduleWithFixedDelay(this::reloadQuietly, millis, millis, TimeUnit.MILLISECONDS);
+  }
+
+  private void reloadQuietly() {
+    try {
+      if (reload()) {
+        CrlIndex current = index;
+        LOG.info("CRL index reloaded from {}: {} issuers, {} revoked serials", crlDirectory,
+            current.getIssuerCount(), current.getEntryCount());
+      }
+    } catch (X509Exception | RuntimeException exc) {
+      // an exception escaping would cancel the schedule
+      reloadFailures.increment();
+      LOG.warn("CRL reload from {} failed, keeping previous index", crlDirectory, exc);
+    }
+  }
+
+  /**
+   * Stop background reloading. The mapped index stays usable.
+   */
+  @Override
+  public synchronized void close() {
+    if (watcher != null) {
+      watcher.shutdownNow();
+      watcher = null;
+    }
+  }
+
+  /**
+   * Revocation status of a certificate view. Allocates nothing when the certificate carries a
+   * 20 byte authority key identifier, as CA issued certificates do.
+   *
+   * @param cert certificate view
+   * @return revocation status
+   * @throws X509Exception when the certificate extensions are malformed
+   */
+  public RevocationStatus check(X509CertificateView cert) throws X509Exception {
+    CrlIndex current = index;
+    byte[] der = cert.buffer();
+    int limit = cert.limit();
+    byte[] key;
+    int keyOff;
+    int aki = cert.findExtensionValue(OID_AUTHORITY_KEY_ID);
+    int keyId = aki < 0 ? -1 : CrlIndex.keyIdentifierOffset(der, aki, limit);
+    if (keyId < 0) {
+      int issuer = cert.issuerOffset();
+      key = CrlIndex.nameKey(der, issuer, DerReader.end(der, issuer, limit) - issuer);
+      keyOff = 0;
+    } else if (DerReader.contentLength(der, keyId, limit) == CrlIndex.KEY_BYTES) {
+      key = der;
+      keyOff = DerReader.contentOffset(der, keyId, limit);
+    } else {
+      key = CrlIndex.normalizeKey(der, DerReader.contentOffset(der, keyId, limit),
+          DerReader.contentLength(der, keyId, limit));
+      keyOff = 0;
+    }
+    int serial = cert.serialOffset();
+    return status(current, key, keyOff, der, DerReader.contentOffset(der, serial, limit),
+        DerReader.contentLength(der, serial, limit));
+  }
+
+  /**
+   * Revocation status of a certificate.
+   *
+   * @param cert certificate
+   * @return revocation status
+   * @throws X509Exception when the authority key identifier extension is malformed
+   */
+  public RevocationStatus check(X509Certificate cert) throws X509Exception {
+    CrlIndex current = index;
+    byte[] key = null;
+    byte[] ext = cert.getExtensionValue(AUTHORITY_KEY_ID);
+    if (ext != null) {
+      // the extension value comes wrapped in its OCTET STRING
+      int keyId = CrlIndex.keyIdentifierOffset(ext,
+          DerReader.contentOffset(ext, 0, ext.length), ext.length);
+      if (keyId >= 0) {
+        key = CrlIndex.normalizeKey(ext, DerReader.contentOffset(ext, keyId, ext.length),
+            DerReader.contentLength(ext, keyId, ext.length));
+      }
+    }
+    if (key == null) {
+      byte[] issuer = cert.getIssuerX500Principal().getEncoded();
+      key = CrlIndex.nameKey(issuer, 0, issuer.length);
+    }
+    byte[] serial = cert.getSerialNumber().toByteArray();
+    return status(current, key, 0, serial, 0, serial.length);
+  }
+
+  private RevocationStatus status(CrlIndex current, byte[] key, int keyOff, byte[] serial,
+      int serialOff, int serialLen) {
+    long nextUpdate = current.nextUpdate(key, keyOff);
+    if (nextUpdate == CrlIndex.NOT_FOUND || nextUpdate < clock.millis()) {
+      unknown.increment();
+      return RevocationStatus.UNKNOWN;
+    }
+    if (current.contains(key, keyOff, serial, serialOff, serialLen)) {
+      revoked.increment();
+      return RevocationStatus.REVOKED;
+    }
+    return RevocationStatus.GOOD;
+  }
+
+  private CrlIndex openExisting(byte[] source) {
+    if (!Files.isRegularFile(indexFile)) {
+      return null;
+    }
+    try {
+      CrlIndex existing = CrlIndex.open(indexFile);
+      return existing.hasSource(source) ? existing : null;
+    } catch (X509Exception exc) {
+      LOG.info("ignoring unusable CRL index {}: {}", indexFile, exc.getMessage());
+      return null;
+    }
+  }
+
+  private List<Path> listCrlFiles() throws X509Exception {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> entries =
+        Files.newDirectoryStream(crlDirectory, X509CrlChecker::isCrlFile)) {
+      for (Path file : entries) {
+        files.add(file);
+      }
+    } catch (IOException exc) {
+      throw new X509Exception("failed to list CRL directory " + crlDirectory, exc);
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  private static boolean isCrlFile(Path file) {
+    String name = file.getFileName().toString().toLowerCase();
+    for (String suffix : CRL_SUFFIXES) {
+      if (name.endsWith(suffix)) {
+        return Files.isRegularFile(file);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Digest of names, sizes and modification times, enough to notice a replaced CRL file.
+   */
+  private byte[] fingerprint(List<Path> files) throws X509Exception {
+    try {
+      return DataFiles.fingerprint(files);
+    } catch (IOException exc) {
+      throw new X509Exception("failed to read CRL directory " + crlDirectory, exc);
+    }
+  }
+
+  public int getIssuerCount() {
+    return index.getIssuerCount();
+  }
+
+  /**
+   * Number of distinct revoked serials in the current index.
+   *
+   * @return entry count
+   */
+  public int getEntryCount() {
+    return index.getEntryCount();
+  }
+
+  public long getRevokedCount() {
+    return revoked.sum();
+  }
+
+  public long getUnknownCount() {
+    return unknown.sum();
+  }
+
+  /**
+   * Number of times the CRL files were compiled into a new index.
+   *
+   * @return reload count
+   */
+  public long getReloadCount() {
+    return reloads.sum();
+  }
+
+  public long getReloadFailureCount() {
+    return reloadFailures.sum();
+  }
+}
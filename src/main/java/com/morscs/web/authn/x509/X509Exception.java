@@ -18,16 +18,99 @@
 
 package com.morscs.web.authn.x509;
 
+import java.util.EnumMap;
+import java.util.Map;
+
 /**
  * When issues encountered while parsing X509 certificates.
+ * <p>
+ * Every exception carries a machine-readable {@link Code}. Rejections of untrusted input made
+ * under an {@link X509InputGuard} are shared, preallocated instances without a stack trace, so
+ * a flood of junk costs no allocation or stack walk; their cause cannot be set and suppressed
+ * exceptions are not recorded.
  */
 public class X509Exception extends Exception {
 
+  /**
+   * What went wrong, for callers that act on the kind of failure rather than the message.
+   */
+  public enum Code {
+    /** No more specific code applies. */
+    UNSPECIFIED("certificate processing failed"),
+    /** The encoded chain is longer than the configured maximum. */
+    HEADER_TOO_LARGE("encoded certificate chain too large"),
+    /** The text is not Base64, PEM or URL escaped PEM. */
+    MALFORMED_ENCODING("malformed certificate chain encoding"),
+    /** The decoded bytes are not a sequence of DER encoded certificates. */
+    MALFORMED_DER("malformed DER certificate structure"),
+    /** The chain holds more certificates than the configured maximum. */
+    CHAIN_TOO_LONG("too many certificates in chain"),
+    /** The certificate factory could not read a well formed certificate. */
+    CERTIFICATE_UNREADABLE("unreadable certificate"),
+    /** No certificate chain was supplied, or it was empty. */
+    CHAIN_MISSING("certificate chain missing"),
+    /** The common name does not follow an expected format. */
+    CN_UNPARSEABLE("unparseable common name");
+
+    private final String description;
+
+    Code(String description) {
+      this.description = description;
+    }
+
+    public String getDescription() {
+      return description;
+    }
+  }
+
+  private static final Map<Code, X509Exception> PREALLOCATED = new EnumMap<>(Code.class);
+
+  static {
+    for (Code code : Code.values()) {
+      PREALLOCATED.put(code, new X509Exception(code));
+    }
+  }
+
+  private final Code code;
+
   public X509Exception(String message) {
-    super(message);
+    this(Code.UNSPECIFIED, message);
   }
 
   public X509Exception(String message, Throwable cause) {
+    this(Code.UNSPECIFIED, message, cause);
+  }
+
+  public X509Exception(Code code, String message) {
+    super(message);
+    this.code = code;
+  }
+
+  public X509Exception(Code code, String message, Throwable cause) {
     super(message, cause);
+    this.code = code;
+  }
+
+  /**
+   * Stackless instance, see {@link #preallocated(Code)}.
+   */
+  private X509Exception(Code code) {
+    super(code.getDescription(), null, false, false);
+    this.code = code;
+  }
+
+  /**
+   * Shared stackless exception for a code, thrown where the cost of building a message and
+   * capturing a stack trace would let hostile input burn CPU.
+   *
+   * @param code failure code
+   * @return preallocated exception
+   */
+  static X509Exception preallocated(Code code) {
+    return PREALLOCATED.get(code);
+  }
+
+  public Code getCode() {
+    return code;
   }
 }
@@ -18,20 +18,24 @@
 
 package com.morscs.web.authn.x509;
 
-import java.io.BufferedInputStream;
+import com.morscs.web.authn.x509.X509Exception.Code;
+import com.morscs.web.authn.x509.X509Metrics.Stage;
 import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.io.InputStream;
 import java.security.Principal;
+import java.security.Provider;
+import java.security.Security;
+import java.security.cert.CertPath;
+import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
-import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
-import java.util.Base64;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
+import javax.security.auth.x500.X500Principal;
 import javax.servlet.http.HttpServletRequest;
 
 /**
@@ -69,6 +73,10 @@ import javax.servlet.http.HttpServletRequest;
  *        - extractPrimaryEmailFromCert(X509Cert cert) <br>
  *        InternetAddress (object wrapper for email)
  *      </li>
+ *      <li>
+ *        - extractSubjectAltNamesFromCert(X509Cert cert) <br>
+ *        SubjectAltNames (email, UPN, DNS and URI entries)
+ *      </li>
  *   </ul>
  * </li>
  * </ol>
@@ -78,6 +86,194 @@ public class X509Extraction {
   private static final int IDX_FIRST_NAME = 1;
   private static final int IDX_MIDDLE_NAME = 2; // if present
   private static final int MAX_CN_PARTS = 4;
+  // the JDK X.509 factory keeps no per-call state, so one instance serves all threads
+  private static final CertificateFactory DEFAULT_FACTORY = newDefaultCertificateFactory();
+  // factories of another provider, which may keep parse state, so each call borrows its own
+  private static volatile ProviderFactories providerFactories;
+  // CN formats by issuer, null for the built-in LAST.FIRST[.MIDDLE].EDIPI layout
+  private static volatile CnFormats cnFormats;
+  // defensive decoding of untrusted headers, null when off
+  private static volatile X509InputGuard inputGuard;
+  // lightweight syntax check in place of the RFC 822 parse of email addresses
+  private static volatile boolean lightweightEmailCheck;
+
+  private static CertificateFactory newDefaultCertificateFactory() {
+    try {
+      return CertificateFactory.getInstance("X.509");
+    } catch (CertificateException exc) {
+      // every conforming JRE ships an X.509 certificate factory
+      throw new IllegalStateException("X.509 certificate factory not available", exc);
+    }
+  }
+
+  private static Collection<? extends Certificate> parseCertificates(InputStream in)
+      throws CertificateException {
+    ProviderFactories factories = providerFactories;
+    if (factories == null) {
+      return DEFAULT_FACTORY.generateCertificates(in);
+    }
+    CertificateFactory factory = factories.borrow();
+    try {
+      return factory.generateCertificates(in);
+    } finally {
+      factories.giveBack(factory);
+    }
+  }
+
+  private static Certificate parseCertificate(InputStream in) throws CertificateException {
+    ProviderFactories factories = providerFactories;
+    if (factories == null) {
+      return DEFAULT_FACTORY.generateCertificate(in);
+    }
+    CertificateFactory factory = factories.borrow();
+    try {
+      return factory.generateCertificate(in);
+    } finally {
+      factories.giveBack(factory);
+    }
+  }
+
+  private static CertPath newCertPath(List<X509Certificate> certs) throws CertificateException {
+    ProviderFactories factories = providerFactories;
+    if (factories == null) {
+      return DEFAULT_FACTORY.generateCertPath(certs);
+    }
+    CertificateFactory factory = factories.borrow();
+    try {
+      return factory.generateCertPath(certs);
+    } finally {
+      factories.giveBack(factory);
+    }
+  }
+
+  /**
+   * Idle X.509 factories of one provider. A call takes a factory to itself for its duration
+   * and creates another one when none is idle; at most a few per processor are kept.
+   */
+  private static final class ProviderFactories {
+    private final Provider provider;
+    private final ArrayBlockingQueue<CertificateFactory> idle =
+        new ArrayBlockingQueue<>(2 * Runtime.getRuntime().availableProcessors());
+
+    ProviderFactories(Provider provider) throws CertificateException {
+      this.provider = provider;
+      idle.offer(CertificateFactory.getInstance("X.509", provider));
+    }
+
+    CertificateFactory borrow() throws CertificateException {
+      CertificateFactory factory = idle.poll();
+      return factory == null ? CertificateFactory.getInstance("X.509", provider) : factory;
+    }
+
+    void giveBack(CertificateFactory factory) {
+      idle.offer(factory);
+    }
+  }
+
+  /**
+   * Select the security provider whose X.509 certificate factory parses certificates, e.g. a
+   * FIPS provider. The provider is resolved and its first factory created here, rather than on
+   * the first request. As providers other than the JRE default are not known to be thread
+   * safe, each parse borrows a factory from a small pool of idle ones, so concurrent requests
+   * neither share a factory nor wait on each other. Select null again when the application
+   * stops, so a provider bundled with it can be unloaded.
+   *
+   * @param providerName name of an installed provider, or null for the JRE default
+   * @throws X509Exception when the provider is not installed or has no X.509 factory
+   */
+  public static void useProvider(String providerName) throws X509Exception {
+    if (providerName == null) {
+      providerFactories = null;
+      return;
+    }
+    Provider provider = Security.getProvider(providerName);
+    if (provider == null) {
+      throw new X509Exception("security provider not installed: " + providerName);
+    }
+    try {
+      providerFactories = new ProviderFactories(provider);
+    } catch (CertificateException exc) {
+      throw new X509Exception("no X.509 certificate factory in provider " + providerName, exc);
+    }
+  }
+
+  /**
+   * Name of the provider certificates are parsed with.
+   *
+   * @return provider name
+   */
+  public static String getProviderName() {
+    ProviderFactories factories = providerFactories;
+    return (factories == null ? DEFAULT_FACTORY.getProvider() : factories.provider).getName();
+  }
+
+  /**
+   * Select the CN formats that {@link X509Identity} and {@link X509IdentityCache} parse common
+   * names with, chosen by certificate issuer.
+   *
+   * @param formats CN formats, or null for the built-in LAST.FIRST[.MIDDLE].EDIPI layout
+   */
+  public static void useCnFormats(CnFormats formats) {
+    cnFormats = formats;
+  }
+
+  /**
+   * CN formats selected with {@link #useCnFormats(CnFormats)}.
+   *
+   * @return CN formats, or null when the built-in layout is used
+   */
+  public static CnFormats getCnFormats() {
+    return cnFormats;
+  }
+
+  /**
+   * Decode header chains defensively, see {@link X509InputGuard}. While a guard is in use,
+   * invalid encodings are reported as {@link X509Exception} with a {@link Code} rather than as
+   * IllegalArgumentException, and all rejections are shared stackless exceptions.
+   *
+   * @param guard guard to use, or null to decode without prechecks
+   */
+  public static void useInputGuard(X509InputGuard guard) {
+    inputGuard = guard;
+  }
+
+  /**
+   * Guard used for header chains.
+   *
+   * @return guard or null when off
+   */
+  public static X509InputGuard getInputGuard() {
+    return inputGuard;
+  }
+
+  /**
+   * Check SAN email addresses with {@link SubjectAltNames#isValidEmail(CharSequence)} instead
+   * of parsing them as RFC 822 addresses. The trade-off: the check is much cheaper, but it is
+   * not stricter. It accepts only the common dot-atom form, so it rejects valid addresses the
+   * parser accepts, such as quoted local parts.
+   *
+   * @param lightweight true for the lightweight check, false for the RFC 822 parse
+   */
+  public static void useLightweightEmailCheck(boolean lightweight) {
+    lightweightEmailCheck = lightweight;
+  }
+
+  /**
+   * Whether SAN email addresses get the lightweight check, see
+   * {@link #useLightweightEmailCheck(boolean)}.
+   *
+   * @return true for the lightweight check
+   */
+  public static boolean isLightweightEmailCheck() {
+    return lightweightEmailCheck;
+  }
+
+  /**
+   * Whether rejections should be cheap, stackless exceptions rather than descriptive ones.
+   */
+  static boolean isGuarded() {
+    return inputGuard != null;
+  }
 
   /**
    * Extract X509 certificate chain from request.
@@ -102,8 +298,43 @@ public class X509Extraction {
     return buildCertChainFromBase64Encoding(request.getHeader(headerName));
   }
 
+  /**
+   * Split an Envoy {@code x-forwarded-client-cert} (XFCC) header into its elements without
+   * copying it, see {@link X509ForwardedClientCert}.
+   *
+   * @param headerValue XFCC header value
+   * @return elements in header order, the one added by the nearest proxy last
+   * @throws X509Exception when the header is not valid XFCC syntax
+   * @throws NullPointerException when headerValue is null
+   */
+  public static List<X509ForwardedClientCert> parseForwardedClientCert(CharSequence headerValue)
+      throws X509Exception {
+    return X509ForwardedClientCert.parse(headerValue);
+  }
+
+  /**
+   * Extract the XFCC element added by the nearest proxy from the named request header.
+   *
+   * @param request servlet request
+   * @param headerName http header name, usually {@link X509ForwardedClientCert#HEADER}
+   * @return last element of the header, or null when the header is absent or empty
+   * @throws X509Exception when the header is not valid XFCC syntax
+   */
+  public static X509ForwardedClientCert extractForwardedClientCertFromRequestHeader(
+      HttpServletRequest request, String headerName) throws X509Exception {
+    String headerValue = request.getHeader(headerName);
+    if (headerValue == null) {
+      return null;
+    }
+    List<X509ForwardedClientCert> elements = parseForwardedClientCert(headerValue);
+    return elements.isEmpty() ? null : elements.get(elements.size() - 1);
+  }
+
   /**
    * Decode certificate chain from base 64 encoded certificate data.
+   * <p>
+   * PEM and URL escaped PEM are accepted as well, see
+   * {@link #buildCertChainFromEncodedHeader(CharSequence)}.
    *
    * @param certEncoded base64 encoded cert chain
    * @return cert chain
@@ -112,21 +343,133 @@ public class X509Extraction {
    */
   public static X509Certificate[] buildCertChainFromBase64Encoding(String certEncoded)
       throws X509Exception {
-    byte[] bytes = Base64.getDecoder().decode(certEncoded);
-    BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(bytes));
+    return buildCertChainFromEncodedHeader(certEncoded);
+  }
 
+  /**
+   * Decode certificate chain from a header value in any of the formats proxies commonly send:
+   * raw Base64 of concatenated DER certificates, PEM with or without line breaks, or either of
+   * those URL escaped (nginx {@code $ssl_client_escaped_cert}).
+   * <p>
+   * The value is decoded in one pass into a single buffer and the whole chain is read with one
+   * {@code CertificateFactory.generateCertificates} call.
+   *
+   * @param headerValue encoded cert chain
+   * @return cert chain
+   * @throws X509Exception when any error building from encoded data
+   * @throws IllegalArgumentException when given invalid encoding data and no
+   *     {@link X509InputGuard} is in use
+   */
+  public static X509Certificate[] buildCertChainFromEncodedHeader(CharSequence headerValue)
+      throws X509Exception {
+    return buildCertChainFromEncodedHeader(headerValue, null);
+  }
+
+  /**
+   * Decode a header chain whose fingerprint the caller computed already, so the guard's
+   * negative cache can use it.
+   */
+  static X509Certificate[] buildCertChainFromEncodedHeader(CharSequence headerValue,
+      X509Fingerprint fingerprint) throws X509Exception {
+    X509InputGuard guard = inputGuard;
+    if (guard != null) {
+      return guard.buildCertChain(headerValue, fingerprint);
+    }
+    byte[] der = CertificateHeaderDecoder.newBuffer(headerValue);
+    return generateCertChain(der, decodeHeader(headerValue, der));
+  }
+
+  private static int decodeHeader(CharSequence headerValue, byte[] der) {
+    long start = X509Metrics.start();
     try {
-      CertificateFactory cf = CertificateFactory.getInstance("X.509");
-      List<X509Certificate> certChain = new ArrayList<>();
-      while (bis.available() > 0) {
-        certChain.add((X509Certificate) cf.generateCertificate(bis));
-      }
-      return certChain.toArray(new X509Certificate[0]);
-    } catch (IOException | CertificateException exc) {
-      throw new X509Exception("failed to read certificate from base64 data", exc);
+      int length = CertificateHeaderDecoder.decode(headerValue, der);
+      X509Metrics.completed(Stage.BASE64_DECODE, start);
+      return length;
+    } catch (RuntimeException exc) {
+      X509Metrics.failed(Stage.BASE64_DECODE, start, exc);
+      throw exc;
+    }
+  }
+
+  static X509Certificate[] generateCertChain(byte[] der, int length) throws X509Exception {
+    if (length == 0) {
+      return new X509Certificate[0];
+    }
+    long start = X509Metrics.start();
+    try {
+      Collection<? extends Certificate> certs =
+          parseCertificates(new ByteArrayInputStream(der, 0, length));
+      X509Certificate[] chain = certs.toArray(new X509Certificate[0]);
+      X509Metrics.completed(Stage.CERT_GENERATION, start);
+      X509Metrics.chainDecoded(der, length, chain.length);
+      return chain;
+    } catch (CertificateException exc) {
+      X509Exception failure = new X509Exception(Code.CERTIFICATE_UNREADABLE,
+          "failed to read certificate from base64 data", exc);
+      X509Metrics.failed(Stage.CERT_GENERATION, start, failure);
+      throw failure;
+    }
+  }
+
+  static X509Certificate generateCert(byte[] der, int offset, int length) throws X509Exception {
+    try {
+      return (X509Certificate) parseCertificate(new ByteArrayInputStream(der, offset, length));
+    } catch (CertificateException exc) {
+      throw new X509Exception(Code.CERTIFICATE_UNREADABLE,
+          "failed to read certificate from DER data", exc);
+    }
+  }
+
+  static CertPath generateCertPath(List<X509Certificate> certs) throws X509Exception {
+    try {
+      return newCertPath(certs);
+    } catch (CertificateException exc) {
+      throw new X509Exception("failed to build certificate path", exc);
     }
   }
 
+  /**
+   * Identity-only decode of a base 64 encoded certificate chain.
+   * <p>
+   * Returns lightweight views that decode the subject, issuer, serial, validity and SANs
+   * straight from the DER bytes on demand, without going through {@code CertificateFactory}.
+   * Use {@link X509CertificateView#toX509Certificate()} when a full certificate is needed.
+   *
+   * @param certEncoded base64 encoded cert chain
+   * @return certificate views, in encoded order
+   * @throws X509Exception when the decoded data is not a well formed certificate chain
+   * @throws IllegalArgumentException when given invalid encoding data
+   */
+  public static X509CertificateView[] buildCertViewChainFromBase64Encoding(String certEncoded)
+      throws X509Exception {
+    byte[] der = CertificateHeaderDecoder.newBuffer(certEncoded);
+    int length = decodeHeader(certEncoded, der);
+    long start = X509Metrics.start();
+    try {
+      X509CertificateView[] chain = X509CertificateView.parseChain(der, length);
+      X509Metrics.completed(Stage.CERT_GENERATION, start);
+      X509Metrics.chainDecoded(der, length, chain.length);
+      return chain;
+    } catch (X509Exception exc) {
+      X509Metrics.failed(Stage.CERT_GENERATION, start, exc);
+      throw exc;
+    }
+  }
+
+  /**
+   * Extract the first certificate view in the chain as the primary client identity.
+   *
+   * @param certChain certificate view chain
+   * @return primary certificate view
+   * @throws X509Exception when certChain is null or empty
+   */
+  public static X509CertificateView extractPrimaryCertViewFromChain(
+      X509CertificateView[] certChain) throws X509Exception {
+    long start = X509Metrics.start();
+    checkChain(certChain == null ? -1 : certChain.length, start);
+    return certChain[0];
+  }
+
   /**
    * Extract the first certificate in the chain as the primary client identity.
    *
@@ -136,15 +479,26 @@ public class X509Extraction {
    */
   public static X509Certificate extractPrimaryCertFromChain(X509Certificate[] certChain)
       throws X509Exception {
-    if (certChain == null) {
-      throw new X509Exception("cert chain not available");
-    }
-    if (certChain.length == 0) {
-      throw new X509Exception("cert chain empty");
-    }
+    long start = X509Metrics.start();
+    checkChain(certChain == null ? -1 : certChain.length, start);
     return certChain[0];
   }
 
+  /**
+   * Primary certificate selection: the first certificate, so only its presence is checked.
+   *
+   * @param length chain length, -1 when there is no chain
+   */
+  private static void checkChain(int length, long start) throws X509Exception {
+    if (length <= 0) {
+      X509Exception failure = new X509Exception(Code.CHAIN_MISSING,
+          length < 0 ? "cert chain not available" : "cert chain empty");
+      X509Metrics.failed(Stage.PRIMARY_CERT_SELECTION, start, failure);
+      throw failure;
+    }
+    X509Metrics.completed(Stage.PRIMARY_CERT_SELECTION, start);
+  }
+
   /**
    * Extract subject DN from first certificate in chain.
    *
@@ -153,15 +507,24 @@ public class X509Extraction {
    */
   public static String extractPrimarySubjectDnFromCert(X509Certificate certObj)
       throws X509Exception {
+    long start = X509Metrics.start();
     Principal subject = certObj.getSubjectDN();
     if (subject == null) {
-      throw new X509Exception("null subject in X509Certificate object");
+      X509Exception failure = new X509Exception("null subject in X509Certificate object");
+      X509Metrics.failed(Stage.DN_PARSE, start, failure);
+      throw failure;
     }
-    return subject.getName();
+    String subjectDn = subject.getName();
+    X509Metrics.completed(Stage.DN_PARSE, start);
+    return subjectDn;
   }
 
   /**
    * Extract email address from certificate.
+   * <p>
+   * The address is parsed as an RFC 822 address, or checked with
+   * {@link SubjectAltNames#isValidEmail(CharSequence)} alone after
+   * {@link #useLightweightEmailCheck(boolean)}.
    *
    * @param cert primary client certificate
    * @return email object
@@ -169,28 +532,76 @@ public class X509Extraction {
    */
   public static InternetAddress extractPrimaryEmailFromCert(X509Certificate cert)
       throws X509Exception {
-    String emailString = null;
-    try {
-      Collection<List<?>> sans = cert.getSubjectAlternativeNames();
-      if (sans != null && sans.size() > 0) {
-        for (List<?> item : sans) {
-          Integer type = (Integer) item.get(0);
-          if (type == 1) {
-            emailString = (String) item.get(1);
-            break;
-          }
-        }
-        if (emailString == null || emailString.isEmpty()) {
-          throw new X509Exception("email type found in SAN, but value was null or empty");
-        }
+    long start = X509Metrics.start();
+    try {
+      InternetAddress email = readEmail(readSubjectAltNames(cert));
+      X509Metrics.completed(Stage.EMAIL_EXTRACTION, start);
+      return email;
+    } catch (X509Exception exc) {
+      X509Metrics.failed(Stage.EMAIL_EXTRACTION, start, exc);
+      throw exc;
+    }
+  }
+
+  /**
+   * Extract all email, UPN, DNS and URI identities from the certificate subject alternative
+   * names, decoding the extension once.
+   *
+   * @param cert primary client certificate
+   * @return decoded names, {@link SubjectAltNames#EMPTY} if the certificate carries none
+   * @throws X509Exception when the extension is malformed
+   */
+  public static SubjectAltNames extractSubjectAltNamesFromCert(X509Certificate cert)
+      throws X509Exception {
+    long start = X509Metrics.start();
+    try {
+      SubjectAltNames names = readSubjectAltNames(cert);
+      X509Metrics.completed(Stage.SUBJECT_ALT_NAMES, start);
+      return names == null ? SubjectAltNames.EMPTY : names;
+    } catch (X509Exception exc) {
+      X509Metrics.failed(Stage.SUBJECT_ALT_NAMES, start, exc);
+      throw exc;
+    }
+  }
+
+  private static SubjectAltNames readSubjectAltNames(X509Certificate cert)
+      throws X509Exception {
+    try {
+      return SubjectAltNames.of(cert);
+    } catch (X509Exception exc) {
+      throw new X509Exception("failed to parse Subject Alternative Names from cert", exc);
+    }
+  }
+
+  /**
+   * Primary email address of decoded subject alternative names.
+   *
+   * @param names decoded names, or null when the certificate has no such extension
+   * @return email object
+   * @throws X509Exception if unable to identify email
+   */
+  static InternetAddress readEmail(SubjectAltNames names) throws X509Exception {
+    if (names == null) {
+      throw new X509Exception("Subject Alternative List is empty");
+    }
+    String emailString = names.getPrimaryEmail();
+    if (emailString == null || emailString.isEmpty()) {
+      throw new X509Exception("email type found in SAN, but value was null or empty");
+    }
+    if (!lightweightEmailCheck) {
+      try {
         return new InternetAddress(emailString);
+      } catch (AddressException exc) {
+        throw new X509Exception("failed to parse email address string: " + emailString, exc);
       }
-      throw new X509Exception("Subject Alternative List is empty");
-    } catch (CertificateParsingException exc) {
-      throw new X509Exception("failed to parse Subject Alternative Names from cert", exc);
-    } catch (AddressException exc) {
-      throw new X509Exception("failed to parse email address string: " + emailString, exc);
     }
+    if (!SubjectAltNames.isValidEmail(emailString)) {
+      throw new X509Exception("failed to parse email address string: " + emailString);
+    }
+    // setAddress skips the RFC 822 parse the String constructor runs
+    InternetAddress email = new InternetAddress();
+    email.setAddress(emailString);
+    return email;
   }
 
   /**
@@ -211,6 +622,119 @@ public class X509Extraction {
     return null;
   }
 
+  /**
+   * Find the CN value in a DN using a single pass RFC 4514 aware scan.
+   * <p>
+   * Unlike {@link #extractCnFromSubjectDn(String)} this honors escaped and quoted values and
+   * multi-valued RDNs, e.g. {@code CN=DOE.JOHN.1234567890+UID=jdoe,O=U.S. Government\, Inc.}.
+   *
+   * @param subjectDn formatted DN expected to include CN stanza
+   * @return unescaped common name or null if not found
+   * @throws NullPointerException when subjectDn parameter is null
+   */
+  public static String scanCnFromSubjectDn(CharSequence subjectDn) {
+    return scanAttributeFromSubjectDn(subjectDn, "CN");
+  }
+
+  /**
+   * Find the value of any attribute in a DN using a single pass RFC 4514 aware scan.
+   *
+   * @param subjectDn formatted DN
+   * @param attributeType attribute type such as "OU" or "2.5.4.3", compared ignoring case
+   * @return unescaped value of the first matching attribute or null if not found
+   * @throws NullPointerException when subjectDn parameter is null
+   */
+  public static String scanAttributeFromSubjectDn(CharSequence subjectDn, String attributeType) {
+    return DnScanner.findDecodedValue(subjectDn, attributeType);
+  }
+
+  /**
+   * Parse the edipi straight out of the CN in a DN, without building the CN string.
+   *
+   * @param subjectDn formatted DN expected to include CN stanza
+   * @return edipi
+   * @throws X509Exception if no CN is present or the cn format is unparseable
+   */
+  public static long scanEdipiFromSubjectDn(CharSequence subjectDn) throws X509Exception {
+    long started = X509Metrics.start();
+    try {
+      long range = DnScanner.findValue(subjectDn, "CN");
+      if (range == DnScanner.NOT_FOUND) {
+        throw new X509Exception(Code.CN_UNPARSEABLE, "no CN found in subject DN");
+      }
+      int start = DnScanner.rangeStart(range);
+      int end = DnScanner.rangeEnd(range);
+      long edipi;
+      if (DnScanner.needsDecoding(subjectDn, start, end)) {
+        String cn = DnScanner.decodeValue(subjectDn, start, end);
+        edipi = DnScanner.parseEdipi(cn, 0, cn.length());
+      } else {
+        edipi = DnScanner.parseEdipi(subjectDn, start, end);
+      }
+      X509Metrics.completed(Stage.COMMON_NAME_PARSE, started);
+      return edipi;
+    } catch (X509Exception exc) {
+      X509Metrics.failed(Stage.COMMON_NAME_PARSE, started, exc);
+      throw exc;
+    }
+  }
+
+  /**
+   * Parse only the edipi from a LAST.FIRST[.MIDDLE].EDIPI cn, without creating strings.
+   *
+   * @param cn common name string from certificate
+   * @return edipi
+   * @throws X509Exception if cn format is unparseable
+   * @throws NullPointerException when cn parameter is null
+   */
+  public static long scanEdipiFromCn(CharSequence cn) throws X509Exception {
+    long start = X509Metrics.start();
+    try {
+      long edipi = DnScanner.parseEdipi(cn, 0, cn.length());
+      X509Metrics.completed(Stage.COMMON_NAME_PARSE, start);
+      return edipi;
+    } catch (X509Exception exc) {
+      X509Metrics.failed(Stage.COMMON_NAME_PARSE, start, exc);
+      throw exc;
+    }
+  }
+
+  /**
+   * Single pass equivalent of {@link #extractCommonNameFromCn(String)}.
+   *
+   * @param cn common name string from certificate
+   * @return cn information in parsed object form
+   * @throws X509Exception if cn format is unparseable
+   * @throws NullPointerException when cn parameter is null
+   */
+  public static CommonName scanCommonNameFromCn(CharSequence cn) throws X509Exception {
+    long start = X509Metrics.start();
+    try {
+      CommonName commonName = DnScanner.parseCommonName(cn, 0, cn.length());
+      X509Metrics.completed(Stage.COMMON_NAME_PARSE, start);
+      return commonName;
+    } catch (X509Exception exc) {
+      X509Metrics.failed(Stage.COMMON_NAME_PARSE, start, exc);
+      throw exc;
+    }
+  }
+
+  /**
+   * Parse a cn in the format of its issuer, as selected with {@link #useCnFormats(CnFormats)}.
+   * Without selected formats this is {@link #scanCommonNameFromCn(CharSequence)}.
+   *
+   * @param issuer issuer of the certificate, or null when unknown
+   * @param cn common name string from certificate
+   * @return cn information in parsed object form
+   * @throws X509Exception if cn format is unparseable
+   * @throws NullPointerException when cn parameter is null
+   */
+  public static CommonName parseCommonNameFromCn(X500Principal issuer, CharSequence cn)
+      throws X509Exception {
+    CnFormats formats = cnFormats;
+    return formats == null ? scanCommonNameFromCn(cn) : formats.parse(issuer, cn);
+  }
+
   /**
    * Extract commmon name object with last name / first name and edipi from cn string.
    *
@@ -219,6 +743,18 @@ public class X509Extraction {
    * @throws X509Exception if cn format is unparseable
    */
   public static CommonName extractCommonNameFromCn(String cn) throws X509Exception {
+    long start = X509Metrics.start();
+    try {
+      CommonName commonName = splitCommonName(cn);
+      X509Metrics.completed(Stage.COMMON_NAME_PARSE, start);
+      return commonName;
+    } catch (X509Exception exc) {
+      X509Metrics.failed(Stage.COMMON_NAME_PARSE, start, exc);
+      throw exc;
+    }
+  }
+
+  private static CommonName splitCommonName(String cn) throws X509Exception {
     String[] parts = cn.split("\\.");
     if (parts.length == MAX_CN_PARTS || parts.length == MAX_CN_PARTS - 1) {
       String lastName = parts[IDX_LAST_NAME];
@@ -229,12 +765,15 @@ public class X509Extraction {
       try {
         edipi = Long.parseLong(edipiString);
       } catch (NumberFormatException exc) {
-        throw new X509Exception(
-            "failed to parse edipi from string " + edipiString + " in CN " + cn);
+        // guarded rejections leave the untrusted CN out of the message
+        throw isGuarded() ? X509Exception.preallocated(Code.CN_UNPARSEABLE)
+            : new X509Exception(Code.CN_UNPARSEABLE,
+                "failed to parse edipi from string " + edipiString + " in CN " + cn);
       }
       return new CommonName(edipi, lastName, firstName, middleName);
     }
-    throw new X509Exception(
-        "unexpected parts in cn " + cn + ", expected 3-4, but parsed " + parts.length);
+    throw isGuarded() ? X509Exception.preallocated(Code.CN_UNPARSEABLE)
+        : new X509Exception(Code.CN_UNPARSEABLE,
+            "unexpected parts in cn " + cn + ", expected 3-4, but parsed " + parts.length);
   }
 }
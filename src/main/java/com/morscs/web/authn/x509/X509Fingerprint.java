@@ -0,0 +1,154 @@
+/*
+ *  X509Fingerprint.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-256 digest used as a compact lookup key for certificate data.
+ * <p>
+ * A collision resistant digest is required because a fingerprint match is treated as proof
+ * that two inputs carry the same certificate; a weaker hash would let one client be served
+ * another client's identity.
+ */
+public final class X509Fingerprint {
+
+  private static final String ALGORITHM = "SHA-256";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final byte[] digest;
+  private final int hash;
+
+  private X509Fingerprint(byte[] digest) {
+    this.digest = digest;
+    // digest bytes are already uniformly distributed, so the leading bytes make a fine hash
+    this.hash = (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16
+        | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+  }
+
+  /**
+   * Fingerprint of raw header or encoded certificate text.
+   *
+   * @param encoded encoded certificate data as received
+   * @return fingerprint
+   * @throws NullPointerException when encoded is null
+   */
+  public static X509Fingerprint of(String encoded) {
+    return of(encoded.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  /**
+   * Fingerprint of binary data, typically the DER encoding of a certificate.
+   *
+   * @param data bytes to digest
+   * @return fingerprint
+   */
+  public static X509Fingerprint of(byte[] data) {
+    return new X509Fingerprint(newDigest().digest(data));
+  }
+
+  /**
+   * Wrap an existing SHA-256 digest value.
+   *
+   * @param digest 32 byte digest
+   * @return fingerprint
+   * @throws IllegalArgumentException when digest is not 32 bytes long
+   */
+  public static X509Fingerprint fromDigest(byte[] digest) {
+    if (digest.length != 32) {
+      throw new IllegalArgumentException("expected 32 byte SHA-256 digest, got " + digest.length);
+    }
+    return new X509Fingerprint(digest.clone());
+  }
+
+  /**
+   * Parse a hex rendered SHA-256 digest, as in {@link #toHex()}, in either case.
+   *
+   * @param text text holding the digest
+   * @param start first hex digit
+   * @param end end of the digest, exclusive
+   * @return fingerprint, or null when the range is not 64 hex digits
+   */
+  static X509Fingerprint fromHex(CharSequence text, int start, int end) {
+    if (end - start != 64) {
+      return null;
+    }
+    byte[] digest = new byte[32];
+    for (int i = 0; i < digest.length; i++) {
+      int high = hexValue(text.charAt(start + i * 2));
+      int low = hexValue(text.charAt(start + i * 2 + 1));
+      if (high < 0 || low < 0) {
+        return null;
+      }
+      digest[i] = (byte) (high << 4 | low);
+    }
+    return new X509Fingerprint(digest);
+  }
+
+  private static int hexValue(char ch) {
+    // Character.digit would accept non-ASCII digits too
+    return ch < 128 ? Character.digit(ch, 16) : -1;
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException exc) {
+      // every conforming JRE ships SHA-256
+      throw new IllegalStateException(ALGORITHM + " not available", exc);
+    }
+  }
+
+  public byte[] getDigest() {
+    return digest.clone();
+  }
+
+  /**
+   * Lower case hex rendering of the digest.
+   *
+   * @return 64 character hex string
+   */
+  public String toHex() {
+    char[] out = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      out[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+      out[i * 2 + 1] = HEX[digest[i] & 0xf];
+    }
+    return new String(out);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return this == other || other instanceof X509Fingerprint
+        && Arrays.equals(digest, ((X509Fingerprint) other).digest);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return toHex();
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ *  X509ForwardedClientCert.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import com.morscs.web.authn.x509.X509Exception.Code;
+import java.nio.CharBuffer;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One element of an Envoy {@code x-forwarded-client-cert} (XFCC) header, as returned by
+ * {@link X509Extraction#parseForwardedClientCert(CharSequence)}.
+ * <p>
+ * An XFCC header holds comma separated elements, one per proxy, each a semicolon separated list
+ * of {@code Key=value} pairs: {@code By}, {@code Hash}, {@code Cert}, {@code Chain},
+ * {@code Subject}, {@code URI} and {@code DNS}. Values holding {@code , ; =} are double quoted,
+ * with embedded quotes backslash escaped. Keys are matched ignoring case and unknown keys are
+ * skipped.
+ * <p>
+ * Elements do not copy the header: they keep the offsets of the values, and {@link #getCert()}
+ * and {@link #getChain()} are views over the header text that the decoder reads in place.
+ * <p>
+ * The {@code Subject}, {@code URI} and {@code DNS} values and the {@code Hash} are only as
+ * trustworthy as the proxy that set them. Use them in place of the certificate only behind a
+ * proxy that replaces any XFCC header sent by the client, e.g. Envoy with
+ * {@code forward_client_cert_details: SANITIZE_SET}.
+ */
+public final class X509ForwardedClientCert {
+
+  /**
+   * Header name Envoy uses.
+   */
+  public static final String HEADER = "x-forwarded-client-cert";
+
+  private static final String[] KEYS = {"By", "Hash", "Cert", "Chain", "Subject", "URI", "DNS"};
+  private static final int BY = 0;
+  private static final int HASH = 1;
+  private static final int CERT = 2;
+  private static final int CHAIN = 3;
+  private static final int SUBJECT = 4;
+  private static final int URI = 5;
+  private static final int DNS = 6;
+  private static final int KEY_MASK = 0xff;
+  private static final int UNKNOWN = KEY_MASK;
+  // set on the key of a quoted value holding backslash escapes
+  private static final int ESCAPED = 0x100;
+
+  private final CharSequence header;
+  // key, value start, value end per field
+  private final int[] fields;
+  private final int count;
+
+  private X509ForwardedClientCert(CharSequence header, int[] fields, int count) {
+    this.header = header;
+    this.fields = fields;
+    this.count = count;
+  }
+
+  /**
+   * Split an XFCC header into its elements in a single pass.
+   *
+   * @param header header value
+   * @return elements in header order, empty ones skipped
+   * @throws X509Exception with {@link Code#MALFORMED_ENCODING} when a pair lacks its '=' or a
+   *     quoted value is not terminated
+   */
+  static List<X509ForwardedClientCert> parse(CharSequence header) throws X509Exception {
+    List<X509ForwardedClientCert> elements = new ArrayList<>(1);
+    int[] fields = new int[3 * KEYS.length];
+    int count = 0;
+    int len = header.length();
+    int i = 0;
+    while (i < len) {
+      i = skipSpaces(header, i, len);
+      if (i == len) {
+        break;
+      }
+      char ch = header.charAt(i);
+      if (ch == ',' || ch == ';') {
+        // empty pair, or the end of an element
+        if (ch == ',' && count > 0) {
+          elements.add(new X509ForwardedClientCert(header, fields, count));
+          fields = new int[3 * KEYS.length];
+          count = 0;
+        }
+        i++;
+        continue;
+      }
+      int keyStart = i;
+      while (i < len && header.charAt(i) != '=') {
+        ch = header.charAt(i);
+        if (ch == ',' || ch == ';') {
+          throw malformed("missing '=' in XFCC pair at index ", keyStart);
+        }
+        i++;
+      }
+      if (i == len) {
+        throw malformed("missing '=' in XFCC pair at index ", keyStart);
+      }
+      int key = key(header, keyStart, trimEnd(header, keyStart, i));
+      int start = i + 1;
+      int end;
+      if (start < len && header.charAt(start) == '"') {
+        start++;
+        end = start;
+        while (end < len && header.charAt(end) != '"') {
+          if (header.charAt(end) == '\\') {
+            key |= ESCAPED;
+            end++;
+          }
+          end++;
+        }
+        if (end >= len) {
+          throw malformed("unterminated quoted XFCC value at index ", start - 1);
+        }
+        i = skipSpaces(header, end + 1, len);
+        if (i < len && header.charAt(i) != ',' && header.charAt(i) != ';') {
+          throw malformed("unexpected text after quoted XFCC value at index ", i);
+        }
+      } else {
+        i = start;
+        while (i < len && header.charAt(i) != ',' && header.charAt(i) != ';') {
+          i++;
+        }
+        end = trimEnd(header, start, i);
+      }
+      if ((key & KEY_MASK) != UNKNOWN) {
+        if (count * 3 == fields.length) {
+          fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        fields[count * 3] = key;
+        fields[count * 3 + 1] = start;
+        fields[count * 3 + 2] = end;
+        count++;
+      }
+    }
+    if (count > 0) {
+      elements.add(new X509ForwardedClientCert(header, fields, count));
+    }
+    return elements;
+  }
+
+  private static int key(CharSequence header, int start, int end) {
+    for (int k = 0; k < KEYS.length; k++) {
+      if (keyEquals(header, start, end, KEYS[k])) {
+        return k;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  private static boolean keyEquals(CharSequence header, int start, int end, String name) {
+    if (end - start != name.length()) {
+      return false;
+    }
+    for (int c = 0; c < name.length(); c++) {
+      if (Character.toUpperCase(header.charAt(start + c))
+          != Character.toUpperCase(name.charAt(c))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int skipSpaces(CharSequence header, int i, int len) {
+    while (i < len && header.charAt(i) == ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  private static int trimEnd(CharSequence header, int start, int end) {
+    while (end > start && header.charAt(end - 1) == ' ') {
+      end--;
+    }
+    return end;
+  }
+
+  private static X509Exception malformed(String message, int index) {
+    return X509Extraction.isGuarded() ? X509Exception.preallocated(Code.MALFORMED_ENCODING)
+        : new X509Exception(Code.MALFORMED_ENCODING, message + index);
+  }
+
+  private int find(int key) {
+    for (int f = 0; f < count; f++) {
+      if ((fields[f * 3] & KEY_MASK) == key) {
+        return f;
+      }
+    }
+    return -1;
+  }
+
+  private CharSequence view(int field) {
+    return field < 0 ? null
+        : CharBuffer.wrap(header, fields[field * 3 + 1], fields[field * 3 + 2]);
+  }
+
+  private String string(int field) {
+    if (field < 0) {
+      return null;
+    }
+    int start = fields[field * 3 + 1];
+    int end = fields[field * 3 + 2];
+    if ((fields[field * 3] & ESCAPED) == 0) {
+      return header.subSequence(start, end).toString();
+    }
+    StringBuilder out = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char ch = header.charAt(i);
+      if (ch == '\\' && i + 1 < end) {
+        ch = header.charAt(++i);
+      }
+      out.append(ch);
+    }
+    return out.toString();
+  }
+
+  private List<String> strings(int key) {
+    List<String> values = null;
+    for (int f = 0; f < count; f++) {
+      if ((fields[f * 3] & KEY_MASK) == key) {
+        if (values == null) {
+          values = new ArrayList<>(2);
+        }
+        values.add(string(f));
+      }
+    }
+    return values == null ? Collections.emptyList() : Collections.unmodifiableList(values);
+  }
+
+  /**
+   * SHA-256 fingerprint of the client certificate DER, as computed by the proxy. Usable as a
+   * lookup key without decoding or hashing the certificate.
+   *
+   * @return fingerprint, or null when the element has no Hash
+   * @throws X509Exception with {@link Code#MALFORMED_ENCODING} when the Hash is not a hex
+   *     SHA-256 digest
+   */
+  public X509Fingerprint getHash() throws X509Exception {
+    int field = find(HASH);
+    if (field < 0) {
+      return null;
+    }
+    X509Fingerprint hash =
+        X509Fingerprint.fromHex(header, fields[field * 3 + 1], fields[field * 3 + 2]);
+    if (hash == null) {
+      throw malformed("XFCC Hash is not a hex SHA-256 digest at index ", fields[field * 3 + 1]);
+    }
+    return hash;
+  }
+
+  /**
+   * URL escaped PEM of the client certificate, as a view over the header.
+   *
+   * @return encoded certificate or null when the element has no Cert
+   */
+  public CharSequence getCert() {
+    return view(find(CERT));
+  }
+
+  /**
+   * URL escaped PEM of the whole client chain, leaf included, as a view over the header.
+   *
+   * @return encoded chain or null when the element has no Chain
+   */
+  public CharSequence getChain() {
+    return view(find(CHAIN));
+  }
+
+  /**
+   * Chain when the proxy sent one, otherwise the certificate.
+   *
+   * @return encoded certificates or null when the element carries neither
+   */
+  public CharSequence getEncodedCertChain() {
+    int field = find(CHAIN);
+    return view(field < 0 ? find(CERT) : field);
+  }
+
+  /**
+   * Decode the certificates of the element, see {@link #getEncodedCertChain()}.
+   *
+   * @return cert chain, empty when the element carries no certificate
+   * @throws X509Exception when any error building from encoded data
+   */
+  public X509Certificate[] buildCertChain() throws X509Exception {
+    CharSequence encoded = getEncodedCertChain();
+    if (encoded == null) {
+      return new X509Certificate[0];
+    }
+    // the unverified Hash must not key the input guard's negative cache
+    return X509Extraction.buildCertChainFromEncodedHeader(encoded, null);
+  }
+
+  /**
+   * Subject DN of the client certificate in RFC 2253 form, as rendered by the proxy.
+   *
+   * @return subject DN or null when the element has no Subject
+   */
+  public String getSubject() {
+    return string(find(SUBJECT));
+  }
+
+  /**
+   * URI subject alternative names of the client certificate, e.g. SPIFFE IDs.
+   *
+   * @return URIs in header order, possibly empty
+   */
+  public List<String> getUris() {
+    return strings(URI);
+  }
+
+  /**
+   * DNS subject alternative names of the client certificate.
+   *
+   * @return DNS names in header order, possibly empty
+   */
+  public List<String> getDnsNames() {
+    return strings(DNS);
+  }
+
+  /**
+   * URI subject alternative name of the proxy's own certificate that added the element.
+   *
+   * @return proxy URI or null when the element has no By
+   */
+  public String getBy() {
+    return string(find(BY));
+  }
+
+  @Override
+  public String toString() {
+    return "X509ForwardedClientCert[by=" + getBy() + ", subject=" + getSubject() + "]";
+  }
+}
@@ -18,21 +18,272 @@
 
 package com.morscs.web.authn.x509;
 
-public class X509Identity {
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import javax.mail.internet.InternetAddress;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Immutable identity of the client of one request.
+ * <p>
+ * Holds no thread bound state, so an instance may be handed between threads freely, e.g. to
+ * async servlet processing or virtual thread executors. Derived values (CN, parsed common name,
+ * subject alternative names, email and fingerprint) are computed on first use, at most once per
+ * instance, and remembered. That computation never blocks, so the short lock guarding it is
+ * harmless to virtual threads.
+ */
+public final class X509Identity {
+
+  /**
+   * Request attribute under which the identity of the current request is kept.
+   */
+  public static final String REQUEST_ATTRIBUTE = X509Identity.class.getName();
 
   private static final String ANONYMOUS = "anonymous";
-  private static final ThreadLocal<String> SUBJECT_DN = new ThreadLocal<>();
+  // marks derived values that were computed and found missing
+  private static final Object NONE = new Object();
+
+  private final String subjectDn;
+  private final X509Certificate cert;
+
+  private volatile Object cn;
+  private volatile Object commonName;
+  private volatile SubjectAltNames subjectAltNames;
+  private volatile Object email;
+  private volatile Object fingerprint;
 
+  /**
+   * Identity known only by subject DN.
+   *
+   * @param subjectDn subject DN of the client certificate
+   */
   public X509Identity(String subjectDn) {
-    SUBJECT_DN.set(subjectDn);
+    this.subjectDn = subjectDn;
+    this.cert = null;
+  }
+
+  /**
+   * Identity of the holder of a client certificate.
+   *
+   * @param cert primary client certificate
+   * @throws X509Exception when the certificate has no subject
+   */
+  public X509Identity(X509Certificate cert) throws X509Exception {
+    this.subjectDn = X509Extraction.extractPrimarySubjectDnFromCert(cert);
+    this.cert = cert;
+  }
+
+  /**
+   * Identity from a cache entry, reusing the values the cache already derived.
+   *
+   * @param cached cache entry
+   */
+  public X509Identity(X509CachedIdentity cached) {
+    this.subjectDn = cached.getSubjectDn();
+    this.cert = cached.getPrimaryCert();
+    this.cn = orNone(cached.getCn());
+    this.commonName = orNone(cached.getCommonName());
+    this.subjectAltNames = cached.getSubjectAltNames();
+    this.email = orNone(cached.getEmail());
   }
 
+  /**
+   * Identity rebuilt from the values carried by a verified {@link X509IdentityTokenCodec} token.
+   */
+  X509Identity(String subjectDn, String cn, CommonName commonName,
+      SubjectAltNames subjectAltNames, X509Fingerprint fingerprint) {
+    this.subjectDn = subjectDn;
+    this.cert = null;
+    this.cn = orNone(cn);
+    this.commonName = orNone(commonName);
+    this.subjectAltNames = subjectAltNames;
+    this.email = orNone(extractEmail(subjectAltNames));
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * Identity of the current request, built from the container supplied certificate chain on
+   * first call and kept as the {@link #REQUEST_ATTRIBUTE} request attribute after that.
+   *
+   * @param request servlet request
+   * @return client identity
+   * @throws X509Exception when no client certificate is available
+   */
+  public static X509Identity fromRequest(HttpServletRequest request) throws X509Exception {
+    Object existing = request.getAttribute(REQUEST_ATTRIBUTE);
+    if (existing instanceof X509Identity) {
+      return (X509Identity) existing;
+    }
+    X509Identity identity;
+    try {
+      identity = new X509Identity(X509Extraction.extractPrimaryCertFromChain(
+          X509Extraction.extractCertChainFromRequestAttribute(request)));
+    } catch (X509Exception exc) {
+      X509AuditTrail.rejected(exc);
+      throw exc;
+    }
+    request.setAttribute(REQUEST_ATTRIBUTE, identity);
+    X509AuditTrail.accepted(identity);
+    return identity;
+  }
+
+  public String getSubjectDn() {
+    return subjectDn;
+  }
+
+  /**
+   * Client certificate, when the identity was built from one rather than from a subject DN or
+   * an identity token.
+   *
+   * @return primary client certificate or null
+   */
+  public X509Certificate getCertificate() {
+    return cert;
+  }
+
+  /**
+   * CN value of the subject DN.
+   *
+   * @return common name or null if the subject DN has none
+   */
   public String getCommonName() {
-    return X509Extraction.extractCnFromSubjectDn(SUBJECT_DN.get());
+    Object value = cn;
+    if (value == null) {
+      synchronized (this) {
+        value = cn;
+        if (value == null) {
+          value = orNone(subjectDn == null ? null : X509Extraction.scanCnFromSubjectDn(subjectDn));
+          cn = value;
+        }
+      }
+    }
+    return value == NONE ? null : (String) value;
+  }
+
+  /**
+   * Common name parsed in the format of the certificate issuer, see
+   * {@link X509Extraction#useCnFormats(CnFormats)}.
+   *
+   * @return parsed common name or null if the CN is missing or in an unknown format
+   */
+  public CommonName getParsedCommonName() {
+    Object value = commonName;
+    if (value == null) {
+      synchronized (this) {
+        value = commonName;
+        if (value == null) {
+          value = orNone(parseCommonName(cert, getCommonName()));
+          commonName = value;
+        }
+      }
+    }
+    return value == NONE ? null : (CommonName) value;
+  }
+
+  /**
+   * Email, UPN, DNS and URI entries of the certificate subject alternative names.
+   *
+   * @return decoded names, empty without a certificate, SAN extension or with a malformed one
+   */
+  public SubjectAltNames getSubjectAltNames() {
+    SubjectAltNames value = subjectAltNames;
+    if (value == null) {
+      synchronized (this) {
+        value = subjectAltNames;
+        if (value == null) {
+          value = extractSubjectAltNames(cert);
+          subjectAltNames = value;
+        }
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Primary email address from the certificate subject alternative names.
+   *
+   * @return copy of the address, or null without a certificate or email SAN
+   */
+  public InternetAddress getEmail() {
+    Object value = email;
+    if (value == null) {
+      synchronized (this) {
+        value = email;
+        if (value == null) {
+          value = orNone(cert == null ? null : extractEmail(getSubjectAltNames()));
+          email = value;
+        }
+      }
+    }
+    return value == NONE ? null : (InternetAddress) ((InternetAddress) value).clone();
+  }
+
+  /**
+   * SHA-256 fingerprint of the DER encoded client certificate.
+   *
+   * @return fingerprint or null without a certificate or identity token
+   */
+  public X509Fingerprint getFingerprint() {
+    Object value = fingerprint;
+    if (value == null) {
+      synchronized (this) {
+        value = fingerprint;
+        if (value == null) {
+          value = orNone(cert == null ? null : X509Fingerprint.of(encoded(cert)));
+          fingerprint = value;
+        }
+      }
+    }
+    return value == NONE ? null : (X509Fingerprint) value;
   }
 
   public boolean hasCert() {
-    String commonName = getCommonName();
-    return commonName != null && !commonName.isEmpty() && !ANONYMOUS.equals(commonName);
+    String cnValue = getCommonName();
+    return cnValue != null && !cnValue.isEmpty() && !ANONYMOUS.equals(cnValue);
+  }
+
+  private static CommonName parseCommonName(X509Certificate cert, String rawCn) {
+    if (rawCn != null) {
+      try {
+        return X509Extraction.parseCommonNameFromCn(
+            cert == null ? null : cert.getIssuerX500Principal(), rawCn);
+      } catch (X509Exception exc) {
+        // not every certificate carries a CN in a known format
+      }
+    }
+    return null;
+  }
+
+  private static SubjectAltNames extractSubjectAltNames(X509Certificate cert) {
+    if (cert != null) {
+      try {
+        return X509Extraction.extractSubjectAltNamesFromCert(cert);
+      } catch (X509Exception exc) {
+        // SANs are optional
+      }
+    }
+    return SubjectAltNames.EMPTY;
+  }
+
+  private static InternetAddress extractEmail(SubjectAltNames names) {
+    try {
+      return X509Extraction.readEmail(names);
+    } catch (X509Exception exc) {
+      // email SAN is optional
+      return null;
+    }
+  }
+
+  private static Object orNone(Object value) {
+    return value == null ? NONE : value;
+  }
+
+  private static byte[] encoded(X509Certificate cert) {
+    try {
+      return cert.getEncoded();
+    } catch (CertificateEncodingException exc) {
+      // a parsed certificate always has its encoding at hand
+      throw new IllegalStateException("certificate encoding unavailable", exc);
+    }
   }
 }
@@ -0,0 +1,412 @@
+/*
+ *  X509IdentityCache.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import com.morscs.web.authn.x509.X509Exception.Code;
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size bounded cache of parsed certificate chains keyed by the SHA-256 fingerprint of the
+ * encoded header value.
+ * <p>
+ * Clients behind a TLS terminating proxy send the same certificate header on every request, so
+ * the Base64 decode and certificate parse only needs to happen once per client. Entries expire
+ * at the earliest notAfter of the chain or after the configured time to live, whichever comes
+ * first. When full, the oldest entries are evicted first.
+ * <p>
+ * The derived identity values can be saved to an {@link X509IdentitySnapshot} file, once with
+ * {@link #saveSnapshot(Path)} or periodically with {@link #startSnapshots(Path, Duration)}, and
+ * loaded at startup with {@link #loadSnapshot(Path)}, so a restarted instance serves returning
+ * clients without parsing their certificates. Restored entries have no certificate chain.
+ * <p>
+ * Entries looked up by the {@code Hash} of an {@link X509ForwardedClientCert XFCC} element are
+ * kept apart, keyed by the SHA-256 of the leaf certificate DER, and only after the Hash was
+ * found to match the certificate it came with. They are not written to snapshots.
+ * <p>
+ * Instances are thread safe and meant to be shared for the lifetime of the application.
+ */
+public class X509IdentityCache implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(X509IdentityCache.class);
+
+  private final ConcurrentHashMap<X509Fingerprint, X509CachedIdentity> entries =
+      new ConcurrentHashMap<>();
+  // keyed by verified XFCC Hash, the SHA-256 of the leaf certificate DER
+  private final ConcurrentHashMap<X509Fingerprint, X509CachedIdentity> certEntries =
+      new ConcurrentHashMap<>();
+  private final Queue<X509CachedIdentity> insertionOrder = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final Clock clock;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+
+  private ScheduledExecutorService snapshotter;
+  private Path snapshotFile;
+
+  /**
+   * Construct cache.
+   *
+   * @param maxEntries maximum number of chains held at once
+   * @param ttl maximum time an entry is served before the header is parsed again
+   */
+  public X509IdentityCache(int maxEntries, Duration ttl) {
+    this(maxEntries, ttl, Clock.systemUTC());
+  }
+
+  /**
+   * Construct cache with an explicit clock.
+   *
+   * @param maxEntries maximum number of chains held at once
+   * @param ttl maximum time an entry is served before the header is parsed again
+   * @param clock time source used for expiry decisions
+   */
+  public X509IdentityCache(int maxEntries, Duration ttl, Clock clock) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive, got " + maxEntries);
+    }
+    if (ttl.isNegative() || ttl.isZero()) {
+      throw new IllegalArgumentException("ttl must be positive, got " + ttl);
+    }
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttl.toMillis();
+    this.clock = clock;
+  }
+
+  /**
+   * Look up or parse the certificate chain carried in the named request header.
+   *
+   * @param request servlet request
+   * @param headerName http header name
+   * @return cached identity
+   * @throws X509Exception when error converting header value to certificate object
+   */
+  public X509CachedIdentity extractFromRequestHeader(HttpServletRequest request,
+      String headerName) throws X509Exception {
+    X509CachedIdentity identity;
+    try {
+      identity = lookup(request.getHeader(headerName));
+    } catch (X509Exception | IllegalArgumentException exc) {
+      X509AuditTrail.rejected(exc);
+      throw exc;
+    }
+    X509AuditTrail.accepted(identity);
+    return identity;
+  }
+
+  /**
+   * Look up or parse the client certificate of the nearest proxy's element of the named XFCC
+   * header, see {@link #lookup(X509ForwardedClientCert)}.
+   *
+   * @param request servlet request
+   * @param headerName http header name, usually {@link X509ForwardedClientCert#HEADER}
+   * @return cached identity
+   * @throws X509Exception when the header is missing, malformed or carries no certificate, or
+   *     error converting it to certificate object
+   */
+  public X509CachedIdentity extractFromForwardedClientCertHeader(HttpServletRequest request,
+      String headerName) throws X509Exception {
+    X509CachedIdentity identity;
+    try {
+      X509ForwardedClientCert element =
+          X509Extraction.extractForwardedClientCertFromRequestHeader(request, headerName);
+      if (element == null) {
+        throw new X509Exception(Code.CHAIN_MISSING, "no " + headerName + " header");
+      }
+      identity = lookup(element);
+    } catch (X509Exception | IllegalArgumentException exc) {
+      X509AuditTrail.rejected(exc);
+      throw exc;
+    }
+    X509AuditTrail.accepted(identity);
+    return identity;
+  }
+
+  /**
+   * Look up or parse a base64 encoded certificate chain.
+   *
+   * @param certEncoded base64 encoded cert chain
+   * @return cached identity
+   * @throws X509Exception when any error building from encoded data
+   * @throws IllegalArgumentException when given invalid encoding data
+   * @throws NullPointerException when certEncoded is null
+   */
+  public X509CachedIdentity lookup(String certEncoded) throws X509Exception {
+    checkLength(certEncoded);
+    X509Fingerprint key = X509Fingerprint.of(certEncoded);
+    long now = clock.millis();
+    X509CachedIdentity cached = cached(entries, key, now);
+    if (cached != null) {
+      return cached;
+    }
+    misses.increment();
+    return store(entries, key,
+        X509Extraction.buildCertChainFromEncodedHeader(certEncoded, key), now);
+  }
+
+  /**
+   * Look up or parse the certificates of an XFCC element. The proxy supplied Hash is the key
+   * when present, so hits need neither hashing nor decoding. A chain parsed on a miss is only
+   * kept under the Hash when the Hash matches its leaf certificate; otherwise, and without a
+   * Hash, the encoded certificates are fingerprinted as by {@link #lookup(String)}.
+   *
+   * @param element XFCC element carrying a Cert or Chain
+   * @return cached identity
+   * @throws X509Exception when the element carries no certificate, or any error building from
+   *     encoded data
+   */
+  public X509CachedIdentity lookup(X509ForwardedClientCert element) throws X509Exception {
+    CharSequence certEncoded = element.getEncodedCertChain();
+    if (certEncoded == null) {
+      throw new X509Exception(Code.CHAIN_MISSING, "no Cert or Chain in XFCC element");
+    }
+    checkLength(certEncoded);
+    X509Fingerprint hash = element.getHash();
+    long now = clock.millis();
+    if (hash != null) {
+      X509CachedIdentity cached = cached(certEntries, hash, now);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    X509Fingerprint key = X509Fingerprint.of(certEncoded.toString());
+    X509CachedIdentity cached = cached(entries, key, now);
+    if (cached != null) {
+      return cached;
+    }
+    misses.increment();
+    // the claimed Hash must not key anything, negative cache included, before it is verified
+    X509Certificate[] certChain = X509Extraction.buildCertChainFromEncodedHeader(certEncoded, key);
+    if (hash != null && certChain.length > 0 && hash.equals(leafFingerprint(certChain[0]))) {
+      return store(certEntries, hash, certChain, now);
+    }
+    if (hash != null) {
+      LOG.debug("XFCC Hash {} does not match its certificate, keying by certificate text", hash);
+    }
+    return store(entries, key, certChain, now);
+  }
+
+  private static X509Fingerprint leafFingerprint(X509Certificate leaf) throws X509Exception {
+    try {
+      return X509Fingerprint.of(leaf.getEncoded());
+    } catch (CertificateEncodingException exc) {
+      throw new X509Exception(Code.CERTIFICATE_UNREADABLE, "failed to encode certificate", exc);
+    }
+  }
+
+  private static void checkLength(CharSequence certEncoded) throws X509Exception {
+    X509InputGuard guard = X509Extraction.getInputGuard();
+    if (guard != null) {
+      // oversized headers are not worth hashing
+      guard.checkLength(certEncoded);
+    }
+  }
+
+  private X509CachedIdentity cached(ConcurrentHashMap<X509Fingerprint, X509CachedIdentity> map,
+      X509Fingerprint key, long now) {
+    X509CachedIdentity cached = map.get(key);
+    if (cached != null) {
+      if (!cached.isExpired(now)) {
+        hits.increment();
+        return cached;
+      }
+      if (map.remove(key, cached)) {
+        expirations.increment();
+      }
+    }
+    return null;
+  }
+
+  private X509CachedIdentity store(ConcurrentHashMap<X509Fingerprint, X509CachedIdentity> map,
+      X509Fingerprint key, X509Certificate[] certChain, long now) throws X509Exception {
+    X509CachedIdentity parsed = X509CachedIdentity.build(key, certChain, now + ttlMillis);
+    if (parsed.isExpired(now)) {
+      // already past notAfter; hand it back but do not keep it around
+      return parsed;
+    }
+    X509CachedIdentity raced = map.putIfAbsent(key, parsed);
+    if (raced != null) {
+      return raced;
+    }
+    insertionOrder.add(parsed);
+    queued.incrementAndGet();
+    evictOverflow();
+    return parsed;
+  }
+
+  /**
+   * Write the identity values of all live entries to a snapshot file, replacing it atomically.
+   *
+   * @param file snapshot file
+   * @return number of entries written
+   * @throws X509Exception when the file cannot be written
+   */
+  public int saveSnapshot(Path file) throws X509Exception {
+    return X509IdentitySnapshot.write(entries.values(), clock.millis(), file);
+  }
+
+  /**
+   * Add the still valid entries of a snapshot file, up to the size bound. Entries already in
+   * the cache are kept, and restored entries expire no later than the time to live from now.
+   *
+   * @param file snapshot file written by {@link #saveSnapshot(Path)}
+   * @return number of entries added
+   * @throws X509Exception when the file cannot be read or is not a valid snapshot
+   */
+  public int loadSnapshot(Path file) throws X509Exception {
+    long now = clock.millis();
+    int added = 0;
+    for (X509CachedIdentity restored : X509IdentitySnapshot.read(file, now, now + ttlMillis)) {
+      if (size() >= maxEntries) {
+        break;
+      }
+      if (entries.putIfAbsent(restored.getFingerprint(), restored) == null) {
+        insertionOrder.add(restored);
+        queued.incrementAndGet();
+        added++;
+      }
+    }
+    evictOverflow();
+    return added;
+  }
+
+  /**
+   * Save a snapshot every interval on a background daemon thread, and once more on
+   * {@link #close()}. Failures are logged and the previous file kept.
+   *
+   * @param file snapshot file
+   * @param interval delay between snapshots
+   * @throws IllegalStateException when already saving snapshots
+   */
+  public synchronized void startSnapshots(Path file, Duration interval) {
+    if (snapshotter != null) {
+      throw new IllegalStateException("already saving snapshots to " + snapshotFile);
+    }
+    snapshotFile = file;
+    snapshotter = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "x509-identity-snapshot");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long millis = interval.toMillis();
+    snapshotter.scheduleWithFixedDelay(() -> saveSnapshotQuietly(file), millis, millis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void saveSnapshotQuietly(Path file) {
+    try {
+      saveSnapshot(file);
+    } catch (X509Exception | RuntimeException exc) {
+      // an exception escaping would cancel the schedule
+      LOG.warn("identity cache snapshot to {} failed, keeping previous file", file, exc);
+    }
+  }
+
+  /**
+   * Stop periodic snapshots, saving a final one. The cache stays usable.
+   */
+  @Override
+  public synchronized void close() {
+    if (snapshotter != null) {
+      snapshotter.shutdownNow();
+      snapshotter = null;
+      saveSnapshotQuietly(snapshotFile);
+      snapshotFile = null;
+    }
+  }
+
+  private void evictOverflow() {
+    // expired entries leave stale queue slots behind, so the queue is trimmed as well
+    while (size() > maxEntries || queued.get() > 2L * maxEntries) {
+      X509CachedIdentity oldest = insertionOrder.poll();
+      if (oldest == null) {
+        return;
+      }
+      queued.decrementAndGet();
+      if (entries.remove(oldest.getFingerprint(), oldest)
+          || certEntries.remove(oldest.getFingerprint(), oldest)) {
+        evictions.increment();
+      }
+    }
+  }
+
+  /**
+   * Drop all entries. Counters are left untouched.
+   */
+  public void clear() {
+    entries.clear();
+    certEntries.clear();
+    insertionOrder.clear();
+    queued.set(0);
+  }
+
+  public int size() {
+    return entries.size() + certEntries.size();
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Number of entries removed to keep the cache within its size bound.
+   *
+   * @return eviction count
+   */
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * Number of entries discarded because they outlived their certificate or time to live.
+   *
+   * @return expiration count
+   */
+  public long getExpirationCount() {
+    return expirations.sum();
+  }
+}
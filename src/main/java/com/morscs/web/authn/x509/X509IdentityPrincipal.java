@@ -0,0 +1,63 @@
+/*
+ *  X509IdentityPrincipal.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.security.Principal;
+
+/**
+ * User principal of a request authenticated by client certificate, named by the subject DN.
+ */
+public final class X509IdentityPrincipal implements Principal {
+
+  private final X509Identity identity;
+
+  public X509IdentityPrincipal(X509Identity identity) {
+    this.identity = identity;
+  }
+
+  /**
+   * Subject DN of the client certificate.
+   *
+   * @return subject DN
+   */
+  @Override
+  public String getName() {
+    return identity.getSubjectDn();
+  }
+
+  public X509Identity getIdentity() {
+    return identity;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof X509IdentityPrincipal
+        && getName().equals(((X509IdentityPrincipal) other).getName());
+  }
+
+  @Override
+  public int hashCode() {
+    return getName().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "X509IdentityPrincipal[" + getName() + "]";
+  }
+}
@@ -24,32 +24,32 @@ import javax.servlet.ServletRequestEvent;
 import javax.servlet.ServletRequestListener;
 import javax.servlet.http.HttpServletRequest;
 
+/**
+ * Produces the {@link X509Identity} of the current request for CDI injection.
+ * <p>
+ * The request comes from the container's built-in {@code HttpServletRequest} bean and the
+ * identity is kept as a request attribute, so it follows the request across async dispatch and
+ * executor hand-offs instead of being tied to the thread that started it. Behind
+ * {@link X509AuthenticationFilter} the identity the filter published is injected as is.
+ */
 //@WebListener
 public class X509IdentityProducingServletListener implements ServletRequestListener {
 
-  private static final ThreadLocal<ServletRequest> SERVLET_REQUESTS = new ThreadLocal<>();
-
   @Override
   public void requestInitialized(ServletRequestEvent sre) {
-    SERVLET_REQUESTS.set(sre.getServletRequest());
+    // identity is produced lazily from the request itself
   }
 
   @Override
   public void requestDestroyed(ServletRequestEvent sre) {
-    SERVLET_REQUESTS.remove();
-  }
-
-  private HttpServletRequest obtainHttp() {
-    ServletRequest req = SERVLET_REQUESTS.get();
-    return req instanceof HttpServletRequest ? (HttpServletRequest) req : null;
+    ServletRequest request = sre.getServletRequest();
+    if (request != null) {
+      request.removeAttribute(X509Identity.REQUEST_ATTRIBUTE);
+    }
   }
 
   @Produces
-  private X509Identity obtainX509Identity() throws X509Exception {
-    return new X509Identity(X509Extraction.extractPrimarySubjectDnFromCert(X509Extraction
-        .extractPrimaryCertFromChain(
-            X509Extraction.extractCertChainFromRequestAttribute(obtainHttp()))));
+  private X509Identity obtainX509Identity(HttpServletRequest request) throws X509Exception {
+    return X509Identity.fromRequest(request);
   }
 }
-
-
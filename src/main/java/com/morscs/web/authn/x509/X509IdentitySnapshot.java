@@ -0,0 +1,235 @@
+/*
+ *  X509IdentitySnapshot.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Binary snapshot of {@link X509IdentityCache} entries, so a restarted instance can serve
+ * returning clients without parsing their certificates again.
+ * <p>
+ * Only derived identity values are kept, not the certificates; restored entries have no
+ * certificate chain. Entries are decoded sequentially from a read-only mapping of the file.
+ * <p>
+ * File layout, big endian:
+ * <pre>
+ *   magic "X5IDSNAP", version (int), entry count (int),
+ *   per entry: header fingerprint (32 bytes), expiry epoch millis (long), EDIPI (long, -1 for
+ *   none), then subject DN, CN, last, first and middle name, suffix, email and UPN: unsigned
+ *   short length and UTF-8 bytes each, length 0xffff marking a missing value
+ * </pre>
+ * Version 1 files lack the suffix and are rejected rather than restored with suffixes missing.
+ */
+final class X509IdentitySnapshot {
+
+  private static final byte[] MAGIC = {'X', '5', 'I', 'D', 'S', 'N', 'A', 'P'};
+  // 2 added the common name suffix
+  private static final int VERSION = 2;
+  private static final int STRING_FIELDS = 8;
+  private static final int HEADER_BYTES = MAGIC.length + 8;
+  private static final int FINGERPRINT_BYTES = 32;
+  private static final int ABSENT = 0xffff;
+
+  private X509IdentitySnapshot() {
+  }
+
+  /**
+   * Write entries to a snapshot file, replacing it atomically. Entries expired at now are left
+   * out.
+   *
+   * @param entries cache entries
+   * @param now current time, epoch millis
+   * @param file snapshot file to create or replace
+   * @return number of entries written
+   * @throws X509Exception when the file cannot be written
+   */
+  static int write(Collection<X509CachedIdentity> entries, long now, Path file)
+      throws X509Exception {
+    List<byte[][]> fields = new ArrayList<>(entries.size());
+    List<X509CachedIdentity> written = new ArrayList<>(entries.size());
+    long size = HEADER_BYTES;
+    for (X509CachedIdentity entry : entries) {
+      if (entry.isExpired(now)) {
+        continue;
+      }
+      CommonName commonName = entry.getCommonName();
+      SubjectAltNames names = entry.getSubjectAltNames();
+      byte[][] values = {
+          utf8(entry.getSubjectDn()),
+          utf8(entry.getCn()),
+          utf8(commonName == null ? null : commonName.getLastName()),
+          utf8(commonName == null ? null : commonName.getFirstName()),
+          utf8(commonName == null ? null : commonName.getMiddleName()),
+          utf8(commonName == null ? null : commonName.getSuffix()),
+          utf8(entry.getEmail() == null ? null : entry.getEmail().getAddress()),
+          utf8(names.getPrimaryUserPrincipalName())
+      };
+      long entrySize = FINGERPRINT_BYTES + 16;
+      for (byte[] value : values) {
+        if (value != null && value.length >= ABSENT) {
+          entrySize = -1;
+          break;
+        }
+        entrySize += 2 + (value == null ? 0 : value.length);
+      }
+      if (entrySize < 0) {
+        continue; // too long to keep; the certificate is parsed again after restart
+      }
+      fields.add(values);
+      written.add(entry);
+      size += entrySize;
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new X509Exception("identity cache too large for one snapshot file");
+    }
+
+    ByteBuffer out = ByteBuffer.allocate((int) size);
+    out.put(MAGIC).putInt(VERSION).putInt(written.size());
+    for (int i = 0; i < written.size(); i++) {
+      X509CachedIdentity entry = written.get(i);
+      CommonName commonName = entry.getCommonName();
+      out.put(entry.getFingerprint().getDigest()).putLong(entry.getExpiresAt())
+          .putLong(commonName == null ? CommonName.NO_EDIPI : commonName.getEdipi());
+      for (byte[] value : fields.get(i)) {
+        if (value == null) {
+          out.putShort((short) ABSENT);
+        } else {
+          out.putShort((short) value.length).put(value);
+        }
+      }
+    }
+    out.flip();
+    replace(out, file);
+    return written.size();
+  }
+
+  /**
+   * Read the entries of a snapshot file that are still valid.
+   *
+   * @param file snapshot file
+   * @param now current time, epoch millis
+   * @param latestExpiry expiry given to entries stored with a later one, epoch millis
+   * @return restored entries, in file order
+   * @throws X509Exception when the file cannot be mapped or is not a valid snapshot
+   */
+  static List<X509CachedIdentity> read(Path file, long now, long latestExpiry)
+      throws X509Exception {
+    ByteBuffer in;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new X509Exception("identity cache snapshot too large: " + file);
+      }
+      in = channel.map(MapMode.READ_ONLY, 0, channel.size());
+    } catch (IOException exc) {
+      throw new X509Exception("failed to map identity cache snapshot " + file, exc);
+    }
+    if (in.limit() < HEADER_BYTES) {
+      throw new X509Exception("identity cache snapshot truncated");
+    }
+    for (byte magic : MAGIC) {
+      if (in.get() != magic) {
+        throw new X509Exception("not an identity cache snapshot file");
+      }
+    }
+    int version = in.getInt();
+    if (version == 1) {
+      throw new X509Exception("identity cache snapshot version 1 lacks name suffixes, "
+          + "it is replaced by the next snapshot written");
+    }
+    if (version != VERSION) {
+      throw new X509Exception("unsupported identity cache snapshot version " + version);
+    }
+    int count = in.getInt();
+    if (count < 0
+        || (long) count * (FINGERPRINT_BYTES + 16 + 2 * STRING_FIELDS) > in.remaining()) {
+      throw new X509Exception("identity cache snapshot size does not match its header");
+    }
+
+    List<X509CachedIdentity> restored = new ArrayList<>(count);
+    byte[] digest = new byte[FINGERPRINT_BYTES];
+    try {
+      for (int i = 0; i < count; i++) {
+        in.get(digest);
+        long expiresAt = in.getLong();
+        long edipi = in.getLong();
+        if (expiresAt <= now) {
+          // skip the strings of an expired entry without decoding them
+          for (int field = 0; field < STRING_FIELDS; field++) {
+            int length = in.getShort() & 0xffff;
+            if (length != ABSENT) {
+              in.position(in.position() + length);
+            }
+          }
+          continue;
+        }
+        String subjectDn = string(in);
+        String cn = string(in);
+        String lastName = string(in);
+        String firstName = string(in);
+        String middleName = string(in);
+        String suffix = string(in);
+        String email = string(in);
+        String upn = string(in);
+        CommonName commonName = lastName == null || firstName == null
+            ? null : new CommonName(edipi, lastName, firstName, middleName, suffix);
+        restored.add(X509CachedIdentity.restore(X509Fingerprint.fromDigest(digest), subjectDn,
+            cn, commonName, SubjectAltNames.primary(email, upn),
+            Math.min(expiresAt, latestExpiry)));
+      }
+    } catch (BufferUnderflowException | IllegalArgumentException exc) {
+      throw new X509Exception("identity cache snapshot entries malformed", exc);
+    }
+    if (in.hasRemaining()) {
+      throw new X509Exception("identity cache snapshot size does not match its header");
+    }
+    return restored;
+  }
+
+  private static byte[] utf8(String value) {
+    return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(ByteBuffer in) {
+    int length = in.getShort() & 0xffff;
+    if (length == ABSENT) {
+      return null;
+    }
+    byte[] utf8 = new byte[length];
+    in.get(utf8);
+    return new String(utf8, StandardCharsets.UTF_8);
+  }
+
+  private static void replace(ByteBuffer content, Path file) throws X509Exception {
+    try {
+      DataFiles.replace(content, file);
+    } catch (IOException exc) {
+      throw new X509Exception("failed to write identity cache snapshot " + file, exc);
+    }
+  }
+}
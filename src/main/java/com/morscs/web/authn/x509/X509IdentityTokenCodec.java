@@ -0,0 +1,277 @@
+/*
+ *  X509IdentityTokenCodec.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Mints and verifies compact identity tokens, so services behind the one that parsed the client
+ * certificate can accept its identity without decoding the certificate again.
+ * <p>
+ * A token carries the subject DN, CN, parsed common name parts and EDIPI, primary email and UPN,
+ * certificate fingerprint and expiry in a small binary layout, followed by an HMAC-SHA256 over
+ * those bytes, rendered as unpadded URL-safe Base64. Verifying one is a Base64 decode and one
+ * HMAC over a few hundred bytes; no ASN.1 is parsed. Every service that mints or verifies
+ * tokens must be configured with the same key, and the key must stay secret: anyone holding it
+ * can mint any identity.
+ * <p>
+ * A token expires at the certificate notAfter or after the configured time to live, whichever
+ * comes first. Tokens are bearer credentials and are not bound to a connection, so they should
+ * only travel between services over authenticated channels.
+ * <p>
+ * Instances are thread safe.
+ */
+public final class X509IdentityTokenCodec {
+
+  private static final String ALGORITHM = "HmacSHA256";
+  // 2 added the common name suffix
+  private static final byte VERSION = 2;
+  private static final int MIN_KEY_LENGTH = 32;
+  private static final int MAC_LENGTH = 32;
+  private static final int FINGERPRINT_LENGTH = 32;
+  // length prefix marking a field the identity does not have
+  private static final int ABSENT = 0xffff;
+  // well above any real token, bounds the work an attacker can ask of the verifier
+  private static final int MAX_TOKEN_CHARS = 4096;
+
+  private final SecretKeySpec key;
+  // initialized once and cloned per call; null when the provider's Mac cannot be cloned
+  private final Mac prototype;
+  private final long ttlMillis;
+  private final Clock clock;
+
+  /**
+   * Construct codec.
+   *
+   * @param key shared HMAC key, at least 32 bytes
+   * @param ttl maximum lifetime of a minted token
+   */
+  public X509IdentityTokenCodec(byte[] key, Duration ttl) {
+    this(key, ttl, Clock.systemUTC());
+  }
+
+  /**
+   * Construct codec with an explicit clock.
+   *
+   * @param key shared HMAC key, at least 32 bytes
+   * @param ttl maximum lifetime of a minted token
+   * @param clock time source used for expiry decisions
+   */
+  public X509IdentityTokenCodec(byte[] key, Duration ttl, Clock clock) {
+    if (key.length < MIN_KEY_LENGTH) {
+      throw new IllegalArgumentException(
+          "key must be at least " + MIN_KEY_LENGTH + " bytes, got " + key.length);
+    }
+    if (ttl.isNegative() || ttl.isZero()) {
+      throw new IllegalArgumentException("ttl must be positive, got " + ttl);
+    }
+    this.key = new SecretKeySpec(key, ALGORITHM);
+    this.prototype = clonablePrototype();
+    this.ttlMillis = ttl.toMillis();
+    this.clock = clock;
+  }
+
+  private Mac clonablePrototype() {
+    Mac instance = initializedMac();
+    try {
+      instance.clone();
+      return instance;
+    } catch (CloneNotSupportedException exc) {
+      return null;
+    }
+  }
+
+  private Mac initializedMac() {
+    try {
+      Mac instance = Mac.getInstance(ALGORITHM);
+      instance.init(key);
+      return instance;
+    } catch (GeneralSecurityException exc) {
+      // every conforming JRE ships HmacSHA256 and the key spec is always usable
+      throw new IllegalStateException(ALGORITHM + " not available", exc);
+    }
+  }
+
+  /**
+   * Mac for one token. Mac instances keep state between update and doFinal, so calls do not
+   * share one; cloning the initialized prototype skips the provider lookup and key setup.
+   */
+  private Mac newMac() {
+    if (prototype != null) {
+      try {
+        return (Mac) prototype.clone();
+      } catch (CloneNotSupportedException exc) {
+        // cloned fine when the prototype was made
+      }
+    }
+    return initializedMac();
+  }
+
+  /**
+   * Mint a token for an identity built from a client certificate.
+   *
+   * @param identity identity of the client
+   * @return token text, safe for use as an http header value
+   * @throws X509Exception when the identity has no certificate or the certificate has expired
+   */
+  public String mint(X509Identity identity) throws X509Exception {
+    X509Certificate cert = identity.getCertificate();
+    if (cert == null) {
+      throw new X509Exception("identity has no certificate to mint a token for");
+    }
+    long now = clock.millis();
+    long expiresAt = Math.min(now + ttlMillis, cert.getNotAfter().getTime());
+    if (expiresAt <= now) {
+      throw new X509Exception("certificate expired at " + cert.getNotAfter());
+    }
+    CommonName commonName = identity.getParsedCommonName();
+    SubjectAltNames names = identity.getSubjectAltNames();
+
+    byte[][] fields = {
+        utf8(identity.getSubjectDn()),
+        utf8(identity.getCommonName()),
+        utf8(commonName == null ? null : commonName.getLastName()),
+        utf8(commonName == null ? null : commonName.getFirstName()),
+        utf8(commonName == null ? null : commonName.getMiddleName()),
+        utf8(commonName == null ? null : commonName.getSuffix()),
+        utf8(names.getPrimaryValidEmail()),
+        utf8(names.getPrimaryUserPrincipalName())
+    };
+    int length = 1 + 8 + FINGERPRINT_LENGTH + 8;
+    for (byte[] field : fields) {
+      length += 2 + (field == null ? 0 : field.length);
+    }
+    ByteBuffer out = ByteBuffer.allocate(length + MAC_LENGTH);
+    out.put(VERSION);
+    out.putLong(expiresAt);
+    out.put(identity.getFingerprint().getDigest());
+    out.putLong(commonName == null ? CommonName.NO_EDIPI : commonName.getEdipi());
+    for (byte[] field : fields) {
+      if (field == null) {
+        out.putShort((short) ABSENT);
+      } else {
+        if (field.length >= ABSENT) {
+          throw new X509Exception("identity field too long for a token");
+        }
+        out.putShort((short) field.length);
+        out.put(field);
+      }
+    }
+    Mac hmac = newMac();
+    hmac.update(out.array(), 0, length);
+    try {
+      hmac.doFinal(out.array(), length);
+    } catch (GeneralSecurityException exc) {
+      // the buffer was sized for the MAC
+      throw new IllegalStateException("token buffer too short", exc);
+    }
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(out.array());
+  }
+
+  /**
+   * Verify a token and rebuild the identity it carries.
+   * <p>
+   * The identity has no certificate. Its email and subject alternative names are limited to the
+   * primary valid email and the primary UPN.
+   *
+   * @param token token text as minted by {@link #mint(X509Identity)}
+   * @return identity of the client
+   * @throws X509Exception when the token is malformed, forged, of another version or expired
+   */
+  public X509Identity verify(CharSequence token) throws X509Exception {
+    if (token == null || token.length() == 0 || token.length() > MAX_TOKEN_CHARS) {
+      throw new X509Exception("identity token missing or too long");
+    }
+    byte[] data;
+    try {
+      data = Base64.getUrlDecoder().decode(token.toString());
+    } catch (IllegalArgumentException exc) {
+      throw new X509Exception("identity token is not URL safe Base64", exc);
+    }
+    int length = data.length - MAC_LENGTH;
+    if (length < 1 + 8 + FINGERPRINT_LENGTH + 8) {
+      throw new X509Exception("identity token too short");
+    }
+    Mac hmac = newMac();
+    hmac.update(data, 0, length);
+    byte[] expected = hmac.doFinal();
+    byte[] actual = new byte[MAC_LENGTH];
+    System.arraycopy(data, length, actual, 0, MAC_LENGTH);
+    // constant time comparison, so timing reveals nothing about the expected MAC
+    if (!MessageDigest.isEqual(expected, actual)) {
+      throw new X509Exception("identity token signature mismatch");
+    }
+
+    ByteBuffer in = ByteBuffer.wrap(data, 0, length);
+    if (in.get() != VERSION) {
+      throw new X509Exception("unsupported identity token version");
+    }
+    long expiresAt = in.getLong();
+    if (clock.millis() >= expiresAt) {
+      throw new X509Exception("identity token expired");
+    }
+    byte[] digest = new byte[FINGERPRINT_LENGTH];
+    in.get(digest);
+    long edipi = in.getLong();
+    String subjectDn = string(in);
+    String cn = string(in);
+    String lastName = string(in);
+    String firstName = string(in);
+    String middleName = string(in);
+    String suffix = string(in);
+    String email = string(in);
+    String upn = string(in);
+    if (in.hasRemaining()) {
+      throw new X509Exception("trailing data in identity token");
+    }
+    CommonName commonName = lastName == null || firstName == null
+        ? null : new CommonName(edipi, lastName, firstName, middleName, suffix);
+    return new X509Identity(subjectDn, cn, commonName, SubjectAltNames.primary(email, upn),
+        X509Fingerprint.fromDigest(digest));
+  }
+
+  private static byte[] utf8(String value) {
+    return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(ByteBuffer in) throws X509Exception {
+    if (in.remaining() < 2) {
+      throw new X509Exception("truncated identity token");
+    }
+    int length = in.getShort() & 0xffff;
+    if (length == ABSENT) {
+      return null;
+    }
+    if (in.remaining() < length) {
+      throw new X509Exception("truncated identity token");
+    }
+    String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+    in.position(in.position() + length);
+    return value;
+  }
+}
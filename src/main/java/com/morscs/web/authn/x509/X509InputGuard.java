@@ -0,0 +1,309 @@
+/*
+ *  X509InputGuard.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import com.morscs.web.authn.x509.X509Exception.Code;
+import com.morscs.web.authn.x509.X509Metrics.Stage;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Defensive decoding of untrusted certificate headers, enabled with
+ * {@link X509Extraction#useInputGuard(X509InputGuard)}.
+ * <p>
+ * Input is rejected as early and as cheaply as possible: the header length is checked before
+ * anything is decoded, Base64 errors are reported without building a message, and the DER
+ * structure of every certificate is walked before the chain goes near
+ * {@code CertificateFactory}. Rejections throw the shared stackless exception of their
+ * {@link Code}, so junk costs no allocation beyond the decode buffer. Rejected headers are
+ * remembered by fingerprint in a small negative cache, so repeating them is rejected without
+ * decoding them again. Encoding, DER and chain length failures depend on the bytes alone and
+ * are remembered until evicted. Whether a well formed chain parses also depends on the
+ * certificate factory in use, so those failures are only remembered for a limited time.
+ * <p>
+ * While a guard is in use, unparseable common names are also reported with shared stackless
+ * exceptions that leave the CN out of the message.
+ * <p>
+ * Instances are thread safe.
+ */
+public final class X509InputGuard {
+
+  /**
+   * Header length allowed by default, room for a chain of four RSA-4096 certificates in URL
+   * escaped PEM.
+   */
+  public static final int DEFAULT_MAX_HEADER_LENGTH = 32 * 1024;
+
+  /**
+   * Chain length allowed by default.
+   */
+  public static final int DEFAULT_MAX_CHAIN_LENGTH = 8;
+
+  /**
+   * Negative cache size used by default.
+   */
+  public static final int DEFAULT_NEGATIVE_CACHE_SIZE = 1024;
+
+  /**
+   * How long a well formed but unreadable chain stays in the negative cache by default.
+   */
+  public static final Duration DEFAULT_UNREADABLE_TTL = Duration.ofMinutes(1);
+
+  private static final Logger LOG = LoggerFactory.getLogger(X509InputGuard.class);
+  private static final int MAX_NEGATIVE_CACHE_SIZE = 1 << 20;
+  private static final X509Certificate[] NO_CERTS = new X509Certificate[0];
+
+  private final int maxHeaderLength;
+  private final int maxChainLength;
+  // direct mapped by fingerprint hash, a colliding rejection replaces the one before
+  private final AtomicReferenceArray<Rejection> negativeCache;
+  private final int mask;
+  private final long unreadableTtlMillis;
+  private final Clock clock;
+  private final Map<Code, LongAdder> rejections = new EnumMap<>(Code.class);
+  private final LongAdder negativeHits = new LongAdder();
+
+  public X509InputGuard() {
+    this(DEFAULT_MAX_HEADER_LENGTH, DEFAULT_MAX_CHAIN_LENGTH, DEFAULT_NEGATIVE_CACHE_SIZE);
+  }
+
+  /**
+   * Construct guard.
+   *
+   * @param maxHeaderLength longest header accepted, in characters
+   * @param maxChainLength most certificates accepted in one chain
+   * @param negativeCacheSize rejected headers remembered, rounded up to a power of two; 0 turns
+   *     the negative cache off, which saves fingerprinting headers outside the identity cache
+   * @throws IllegalArgumentException when a limit is out of range
+   */
+  public X509InputGuard(int maxHeaderLength, int maxChainLength, int negativeCacheSize) {
+    this(maxHeaderLength, maxChainLength, negativeCacheSize, DEFAULT_UNREADABLE_TTL,
+        Clock.systemUTC());
+  }
+
+  /**
+   * Construct guard with explicit negative cache expiry and clock.
+   *
+   * @param maxHeaderLength longest header accepted, in characters
+   * @param maxChainLength most certificates accepted in one chain
+   * @param negativeCacheSize rejected headers remembered, rounded up to a power of two; 0 turns
+   *     the negative cache off, which saves fingerprinting headers outside the identity cache
+   * @param unreadableTtl how long a well formed chain that failed to parse is remembered; zero
+   *     keeps such chains out of the negative cache
+   * @param clock time source for negative cache expiry
+   * @throws IllegalArgumentException when a limit is out of range
+   */
+  public X509InputGuard(int maxHeaderLength, int maxChainLength, int negativeCacheSize,
+      Duration unreadableTtl, Clock clock) {
+    if (maxHeaderLength <= 0) {
+      throw new IllegalArgumentException("maxHeaderLength must be positive, got "
+          + maxHeaderLength);
+    }
+    if (maxChainLength <= 0) {
+      throw new IllegalArgumentException("maxChainLength must be positive, got " + maxChainLength);
+    }
+    if (negativeCacheSize < 0 || negativeCacheSize > MAX_NEGATIVE_CACHE_SIZE) {
+      throw new IllegalArgumentException("negativeCacheSize must be between 0 and "
+          + MAX_NEGATIVE_CACHE_SIZE + ", got " + negativeCacheSize);
+    }
+    if (unreadableTtl.isNegative()) {
+      throw new IllegalArgumentException("unreadableTtl must not be negative, got "
+          + unreadableTtl);
+    }
+    this.maxHeaderLength = maxHeaderLength;
+    this.maxChainLength = maxChainLength;
+    int size = negativeCacheSize <= 1 ? negativeCacheSize
+        : Integer.highestOneBit(negativeCacheSize - 1) << 1;
+    this.negativeCache = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.unreadableTtlMillis = unreadableTtl.toMillis();
+    this.clock = clock;
+    for (Code code : Code.values()) {
+      rejections.put(code, new LongAdder());
+    }
+  }
+
+  /**
+   * Reject a header longer than the limit, before anything else is done with it.
+   *
+   * @param headerValue encoded cert chain
+   * @throws X509Exception with {@link Code#HEADER_TOO_LARGE} when the header is too long
+   */
+  void checkLength(CharSequence headerValue) throws X509Exception {
+    if (headerValue.length() > maxHeaderLength) {
+      throw reject(Code.HEADER_TOO_LARGE, null);
+    }
+  }
+
+  /**
+   * Decode a certificate chain from a header value.
+   *
+   * @param headerValue encoded cert chain
+   * @param fingerprint fingerprint of the header when the caller has it, otherwise null
+   * @return cert chain
+   * @throws X509Exception when the header is rejected
+   */
+  X509Certificate[] buildCertChain(CharSequence headerValue, X509Fingerprint fingerprint)
+      throws X509Exception {
+    checkLength(headerValue);
+    X509Fingerprint key = fingerprint;
+    if (key != null) {
+      checkNegativeCache(key);
+    }
+    byte[] der = CertificateHeaderDecoder.newBuffer(headerValue);
+    long start = X509Metrics.start();
+    int length = CertificateHeaderDecoder.tryDecode(headerValue, der);
+    if (length < 0) {
+      X509Exception failure = reject(Code.MALFORMED_ENCODING, key);
+      X509Metrics.failed(Stage.BASE64_DECODE, start, failure);
+      throw failure;
+    }
+    X509Metrics.completed(Stage.BASE64_DECODE, start);
+    if (length == 0) {
+      return NO_CERTS;
+    }
+    Code precheck = precheck(der, length);
+    if (precheck != null) {
+      throw reject(precheck, key);
+    }
+    if (key == null && mask >= 0) {
+      key = X509Fingerprint.of(headerValue.toString());
+      checkNegativeCache(key);
+    }
+    try {
+      return X509Extraction.generateCertChain(der, length);
+    } catch (X509Exception exc) {
+      LOG.debug("rejecting well formed but unreadable certificate chain", exc);
+      throw reject(Code.CERTIFICATE_UNREADABLE, key);
+    }
+  }
+
+  /**
+   * Walk the top level DER structure: each certificate must be a SEQUENCE of exactly a
+   * tbsCertificate SEQUENCE, a signatureAlgorithm SEQUENCE and a signature BIT STRING.
+   *
+   * @return failure code, or null when the structure is sound
+   */
+  private Code precheck(byte[] der, int length) {
+    int count = 0;
+    for (int off = 0; off < length; ) {
+      if (++count > maxChainLength) {
+        return Code.CHAIN_TOO_LONG;
+      }
+      int end = DerReader.tryEnd(der, off, length);
+      int tbs = DerReader.tryContentOffset(der, off, length);
+      if (end < 0 || DerReader.tag(der, off) != DerReader.TAG_SEQUENCE) {
+        return Code.MALFORMED_DER;
+      }
+      int algorithm = tbs < end ? DerReader.tryEnd(der, tbs, end) : -1;
+      int signature =
+          algorithm > 0 && algorithm < end ? DerReader.tryEnd(der, algorithm, end) : -1;
+      if (signature < 0 || signature >= end
+          || DerReader.tag(der, tbs) != DerReader.TAG_SEQUENCE
+          || DerReader.tag(der, algorithm) != DerReader.TAG_SEQUENCE
+          || DerReader.tag(der, signature) != DerReader.TAG_BIT_STRING
+          || DerReader.tryEnd(der, signature, end) != end) {
+        return Code.MALFORMED_DER;
+      }
+      off = end;
+    }
+    return null;
+  }
+
+  private void checkNegativeCache(X509Fingerprint key) throws X509Exception {
+    if (mask < 0) {
+      return;
+    }
+    int index = key.hashCode() & mask;
+    Rejection rejection = negativeCache.get(index);
+    if (rejection == null || !rejection.key.equals(key)) {
+      return;
+    }
+    if (rejection.expires != Long.MAX_VALUE && clock.millis() >= rejection.expires) {
+      negativeCache.compareAndSet(index, rejection, null);
+      return;
+    }
+    negativeHits.increment();
+    throw reject(rejection.code, null);
+  }
+
+  private X509Exception reject(Code code, X509Fingerprint key) {
+    rejections.get(code).increment();
+    if (key != null && mask >= 0) {
+      if (code != Code.CERTIFICATE_UNREADABLE) {
+        negativeCache.set(key.hashCode() & mask, new Rejection(key, code, Long.MAX_VALUE));
+      } else if (unreadableTtlMillis > 0) {
+        negativeCache.set(key.hashCode() & mask,
+            new Rejection(key, code, clock.millis() + unreadableTtlMillis));
+      }
+    }
+    return X509Exception.preallocated(code);
+  }
+
+  public int getMaxHeaderLength() {
+    return maxHeaderLength;
+  }
+
+  public int getMaxChainLength() {
+    return maxChainLength;
+  }
+
+  /**
+   * Headers rejected, by {@link Code} name, negative cache hits included.
+   *
+   * @return rejection counts
+   */
+  public Map<String, Long> getRejectionCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    rejections.forEach((code, count) -> counts.put(code.name(), count.sum()));
+    return counts;
+  }
+
+  /**
+   * Headers rejected from the negative cache without being decoded.
+   *
+   * @return negative cache hit count
+   */
+  public long getNegativeCacheHitCount() {
+    return negativeHits.sum();
+  }
+
+  /**
+   * A remembered rejection, valid until its expiry time, Long.MAX_VALUE for good.
+   */
+  private static final class Rejection {
+    private final X509Fingerprint key;
+    private final Code code;
+    private final long expires;
+
+    Rejection(X509Fingerprint key, Code code, long expires) {
+      this.key = key;
+      this.code = code;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ *  X509Metrics.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency and outcome metrics of the extraction pipeline in {@link X509Extraction}.
+ * <p>
+ * Each stage is timed into a log-linear histogram and counted as completed or failed, failures
+ * by the class of the exception underneath, and decoded chains add to chain length and
+ * certificate size distributions. Measurements are published through
+ * {@link X509MetricsMXBean} and handed to registered {@link X509MetricsListener}s.
+ * <p>
+ * Metrics are off unless the {@value #ENABLED_PROPERTY} system property is true or they are
+ * switched on with {@link #setEnabled(boolean)} or over JMX. While off, each stage costs one
+ * volatile read.
+ */
+public final class X509Metrics implements X509MetricsMXBean {
+
+  /**
+   * Pipeline stages that are measured.
+   */
+  public enum Stage {
+    /** Base64 or PEM decoding of an encoded chain. */
+    BASE64_DECODE,
+    /** Parsing DER into certificate objects or views. */
+    CERT_GENERATION,
+    /** Choosing the primary certificate of a chain. */
+    PRIMARY_CERT_SELECTION,
+    /** Reading the subject DN of a certificate; CN scans of that DN are not timed apart. */
+    DN_PARSE,
+    /** Parsing a LAST.FIRST[.MIDDLE].EDIPI common name. */
+    COMMON_NAME_PARSE,
+    /** Reading the email address from the subject alternative names. */
+    EMAIL_EXTRACTION,
+    /** Decoding all names of the subject alternative names extension. */
+    SUBJECT_ALT_NAMES
+  }
+
+  /**
+   * System property that switches metrics on at startup.
+   */
+  public static final String ENABLED_PROPERTY = "com.morscs.web.authn.x509.metrics";
+
+  /**
+   * Name under which {@link #registerMBean()} registers the metrics.
+   */
+  public static final String OBJECT_NAME = "com.morscs.web.authn.x509:type=X509Metrics";
+
+  static final long NOT_TIMED = Long.MIN_VALUE;
+
+  private static final Logger LOG = LoggerFactory.getLogger(X509Metrics.class);
+  private static final X509MetricsListener[] NO_LISTENERS = new X509MetricsListener[0];
+  private static final X509Metrics INSTANCE = new X509Metrics();
+
+  private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+  private final Map<Stage, LogHistogram> latencies = new EnumMap<>(Stage.class);
+  private final ConcurrentHashMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+  private final LogHistogram chainLengths = new LogHistogram();
+  private final LogHistogram certificateSizes = new LogHistogram();
+  private volatile X509MetricsListener[] listeners = NO_LISTENERS;
+
+  private X509Metrics() {
+    for (Stage stage : Stage.values()) {
+      latencies.put(stage, new LogHistogram());
+    }
+  }
+
+  public static X509Metrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Register the metrics with the platform MBean server as {@value #OBJECT_NAME}. Registering
+   * again has no effect.
+   *
+   * @return registered name
+   * @throws JMException when registration fails
+   */
+  public static ObjectName registerMBean() throws JMException {
+    ObjectName name = new ObjectName(OBJECT_NAME);
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+    } catch (InstanceAlreadyExistsException exc) {
+      // registered before
+    }
+    return name;
+  }
+
+  /**
+   * Remove the metrics from the platform MBean server, e.g. when the application is undeployed.
+   *
+   * @throws JMException when unregistration fails
+   */
+  public static void unregisterMBean() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      server.unregisterMBean(new ObjectName(OBJECT_NAME));
+    } catch (InstanceNotFoundException exc) {
+      // not registered
+    }
+  }
+
+  /**
+   * Add a listener that receives each measurement.
+   *
+   * @param listener listener to add
+   */
+  public synchronized void addListener(X509MetricsListener listener) {
+    X509MetricsListener[] current = listeners;
+    X509MetricsListener[] grown = new X509MetricsListener[current.length + 1];
+    System.arraycopy(current, 0, grown, 0, current.length);
+    grown[current.length] = listener;
+    listeners = grown;
+  }
+
+  /**
+   * Remove a listener added before.
+   *
+   * @param listener listener to remove
+   */
+  public synchronized void removeListener(X509MetricsListener listener) {
+    X509MetricsListener[] current = listeners;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] == listener) {
+        X509MetricsListener[] shrunk = new X509MetricsListener[current.length - 1];
+        System.arraycopy(current, 0, shrunk, 0, i);
+        System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+        listeners = shrunk;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Start timing a stage.
+   *
+   * @return start time to pass on to {@link #completed} or {@link #failed}, or
+   *     {@link #NOT_TIMED} while metrics are off
+   */
+  static long start() {
+    return enabled ? System.nanoTime() : NOT_TIMED;
+  }
+
+  static void completed(Stage stage, long start) {
+    if (start == NOT_TIMED) {
+      return;
+    }
+    long nanos = System.nanoTime() - start;
+    INSTANCE.latencies.get(stage).record(nanos);
+    for (X509MetricsListener listener : INSTANCE.listeners) {
+      try {
+        listener.stageCompleted(stage, nanos);
+      } catch (RuntimeException exc) {
+        LOG.warn("metrics listener {} failed", listener, exc);
+      }
+    }
+  }
+
+  static void failed(Stage stage, long start, Exception failure) {
+    if (start == NOT_TIMED) {
+      return;
+    }
+    long nanos = System.nanoTime() - start;
+    String key = stage + ":" + cause(failure).getClass().getSimpleName();
+    INSTANCE.failures.computeIfAbsent(key, k -> new LongAdder()).increment();
+    LOG.debug("{} failed", stage, failure);
+    for (X509MetricsListener listener : INSTANCE.listeners) {
+      try {
+        listener.stageFailed(stage, nanos, failure);
+      } catch (RuntimeException exc) {
+        LOG.warn("metrics listener {} failed", listener, exc);
+      }
+    }
+  }
+
+  private static Throwable cause(Exception failure) {
+    return failure instanceof X509Exception && failure.getCause() != null
+        ? failure.getCause() : failure;
+  }
+
+  /**
+   * Record the shape of a decoded chain.
+   *
+   * @param der buffer holding the concatenated DER certificates
+   * @param length end of the chain in der
+   * @param certificates number of certificates in the chain
+   */
+  static void chainDecoded(byte[] der, int length, int certificates) {
+    if (!enabled) {
+      return;
+    }
+    INSTANCE.chainLengths.record(certificates);
+    X509MetricsListener[] current = INSTANCE.listeners;
+    for (X509MetricsListener listener : current) {
+      try {
+        listener.chainDecoded(certificates);
+      } catch (RuntimeException exc) {
+        LOG.warn("metrics listener {} failed", listener, exc);
+      }
+    }
+    try {
+      for (int off = 0; off < length; ) {
+        int end = DerReader.end(der, off, length);
+        INSTANCE.certificateSizes.record(end - off);
+        for (X509MetricsListener listener : current) {
+          try {
+            listener.certificateDecoded(end - off);
+          } catch (RuntimeException exc) {
+            LOG.warn("metrics listener {} failed", listener, exc);
+          }
+        }
+        off = end;
+      }
+    } catch (X509Exception exc) {
+      // the chain was decoded already, so its elements are well formed
+    }
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void setEnabled(boolean on) {
+    enabled = on;
+  }
+
+  @Override
+  public Map<String, Distribution> getStageLatencyNanos() {
+    Map<String, Distribution> result = new TreeMap<>();
+    for (Map.Entry<Stage, LogHistogram> entry : latencies.entrySet()) {
+      result.put(entry.getKey().name(), new Distribution(entry.getValue()));
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getStageSuccessCounts() {
+    Map<String, Long> result = new TreeMap<>();
+    for (Map.Entry<Stage, LogHistogram> entry : latencies.entrySet()) {
+      result.put(entry.getKey().name(), entry.getValue().getCount());
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getStageFailureCounts() {
+    Map<String, Long> result = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> entry : failures.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().sum());
+    }
+    return result;
+  }
+
+  @Override
+  public Distribution getChainLength() {
+    return new Distribution(chainLengths);
+  }
+
+  @Override
+  public Distribution getCertificateSize() {
+    return new Distribution(certificateSizes);
+  }
+
+  @Override
+  public void reset() {
+    for (LogHistogram histogram : latencies.values()) {
+      histogram.reset();
+    }
+    failures.clear();
+    chainLengths.reset();
+    certificateSizes.reset();
+  }
+
+  /**
+   * Snapshot of a distribution of recorded values. Percentiles are exact to within 12.5%.
+   */
+  public static final class Distribution {
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    Distribution(LogHistogram histogram) {
+      this.count = histogram.getCount();
+      this.mean = histogram.getMean();
+      this.p50 = histogram.valueAtPercentile(50);
+      this.p90 = histogram.valueAtPercentile(90);
+      this.p99 = histogram.valueAtPercentile(99);
+      this.p999 = histogram.valueAtPercentile(99.9);
+      this.max = histogram.getMax();
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public double getMean() {
+      return mean;
+    }
+
+    public long getP50() {
+      return p50;
+    }
+
+    public long getP90() {
+      return p90;
+    }
+
+    public long getP99() {
+      return p99;
+    }
+
+    public long getP999() {
+      return p999;
+    }
+
+    public long getMax() {
+      return max;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ *  X509MetricsListener.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+/**
+ * Receives extraction pipeline measurements as they are taken, e.g. to bridge them into an
+ * application metrics library. Register with {@link X509Metrics#addListener}.
+ * <p>
+ * Callbacks run synchronously on the request thread while metrics are enabled, so they must be
+ * quick and thread safe. Exceptions they throw are logged and otherwise ignored.
+ */
+public interface X509MetricsListener {
+
+  /**
+   * A pipeline stage completed.
+   *
+   * @param stage completed stage
+   * @param nanos elapsed time
+   */
+  default void stageCompleted(X509Metrics.Stage stage, long nanos) {
+  }
+
+  /**
+   * A pipeline stage failed.
+   *
+   * @param stage failed stage
+   * @param nanos elapsed time until the failure
+   * @param failure exception the stage ended with
+   */
+  default void stageFailed(X509Metrics.Stage stage, long nanos, Exception failure) {
+  }
+
+  /**
+   * A certificate chain was decoded.
+   *
+   * @param certificates number of certificates in the chain
+   */
+  default void chainDecoded(int certificates) {
+  }
+
+  /**
+   * A certificate of a decoded chain.
+   *
+   * @param encodedBytes size of the DER encoding
+   */
+  default void certificateDecoded(int encodedBytes) {
+  }
+}
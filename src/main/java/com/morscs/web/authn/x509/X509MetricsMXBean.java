@@ -0,0 +1,72 @@
+/*
+ *  X509MetricsMXBean.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link X509Metrics}, registered as {@value X509Metrics#OBJECT_NAME}.
+ */
+public interface X509MetricsMXBean {
+
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  /**
+   * Latency of completed stages by stage name, in nanoseconds.
+   *
+   * @return latency distributions
+   */
+  Map<String, X509Metrics.Distribution> getStageLatencyNanos();
+
+  /**
+   * Completed stages by stage name.
+   *
+   * @return success counts
+   */
+  Map<String, Long> getStageSuccessCounts();
+
+  /**
+   * Failed stages by {@code STAGE:Cause}, where the cause is the simple class name of the
+   * exception underlying the failure.
+   *
+   * @return failure counts
+   */
+  Map<String, Long> getStageFailureCounts();
+
+  /**
+   * Number of certificates per decoded chain.
+   *
+   * @return chain length distribution
+   */
+  X509Metrics.Distribution getChainLength();
+
+  /**
+   * DER size of decoded certificates, in bytes.
+   *
+   * @return certificate size distribution
+   */
+  X509Metrics.Distribution getCertificateSize();
+
+  /**
+   * Discard all measurements taken so far.
+   */
+  void reset();
+}
@@ -0,0 +1,193 @@
+/*
+ *  X509Names.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+/**
+ * Decoding of DER encoded X.501 Names into RFC 4514 strings.
+ */
+final class X509Names {
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  // attribute type keywords, keyed by the DER body of their OID
+  private static final byte[][] KEYWORD_OIDS = {
+      {0x55, 0x04, 0x03},
+      {0x55, 0x04, 0x06},
+      {0x55, 0x04, 0x07},
+      {0x55, 0x04, 0x08},
+      {0x55, 0x04, 0x09},
+      {0x55, 0x04, 0x0a},
+      {0x55, 0x04, 0x0b},
+      {0x55, 0x04, 0x05},
+      {0x09, (byte) 0x92, 0x26, (byte) 0x89, (byte) 0x93, (byte) 0xf2, 0x2c, 0x64, 0x01, 0x19},
+      {0x09, (byte) 0x92, 0x26, (byte) 0x89, (byte) 0x93, (byte) 0xf2, 0x2c, 0x64, 0x01, 0x01},
+      {0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x09, 0x01},
+  };
+  private static final String[] KEYWORDS =
+      {"CN", "C", "L", "ST", "STREET", "O", "OU", "SERIALNUMBER", "DC", "UID", "EMAILADDRESS"};
+
+  private X509Names() {
+  }
+
+  /**
+   * Format a Name element as an RFC 4514 string, most specific RDN first.
+   *
+   * @param der buffer
+   * @param nameOff offset of the Name SEQUENCE
+   * @param limit end of valid data
+   * @return formatted DN, empty for an empty name
+   */
+  static String format(byte[] der, int nameOff, int limit) throws X509Exception {
+    DerReader.expectTag(der, nameOff, limit, DerReader.TAG_SEQUENCE);
+    int nameEnd = DerReader.end(der, nameOff, limit);
+    int count = 0;
+    for (int p = DerReader.contentOffset(der, nameOff, nameEnd); p < nameEnd;
+        p = DerReader.end(der, p, nameEnd)) {
+      count++;
+    }
+    int[] rdns = new int[count];
+    int idx = 0;
+    for (int p = DerReader.contentOffset(der, nameOff, nameEnd); p < nameEnd;
+        p = DerReader.end(der, p, nameEnd)) {
+      rdns[idx++] = p;
+    }
+    StringBuilder out = new StringBuilder(nameEnd - nameOff);
+    for (int r = count - 1; r >= 0; r--) {
+      int rdn = rdns[r];
+      DerReader.expectTag(der, rdn, nameEnd, DerReader.TAG_SET);
+      int rdnEnd = DerReader.end(der, rdn, nameEnd);
+      if (r != count - 1) {
+        out.append(',');
+      }
+      boolean firstAva = true;
+      for (int ava = DerReader.contentOffset(der, rdn, rdnEnd); ava < rdnEnd;
+          ava = DerReader.end(der, ava, rdnEnd)) {
+        if (!firstAva) {
+          out.append('+');
+        }
+        firstAva = false;
+        appendAva(der, ava, rdnEnd, out);
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * Find the most specific attribute of the given type in a Name element.
+   *
+   * @param der buffer
+   * @param nameOff offset of the Name SEQUENCE
+   * @param limit end of valid data
+   * @param oidBody DER body of the attribute type OID
+   * @return decoded value or null if absent
+   */
+  static String findAttribute(byte[] der, int nameOff, int limit, byte[] oidBody)
+      throws X509Exception {
+    DerReader.expectTag(der, nameOff, limit, DerReader.TAG_SEQUENCE);
+    int nameEnd = DerReader.end(der, nameOff, limit);
+    int match = -1;
+    for (int rdn = DerReader.contentOffset(der, nameOff, nameEnd); rdn < nameEnd;
+        rdn = DerReader.end(der, rdn, nameEnd)) {
+      int rdnEnd = DerReader.end(der, rdn, nameEnd);
+      for (int ava = DerReader.contentOffset(der, rdn, rdnEnd); ava < rdnEnd;
+          ava = DerReader.end(der, ava, rdnEnd)) {
+        int avaEnd = DerReader.end(der, ava, rdnEnd);
+        int type = DerReader.contentOffset(der, ava, avaEnd);
+        if (DerReader.oidEquals(der, type, avaEnd, oidBody)) {
+          // later RDNs are more specific, keep looking
+          match = DerReader.end(der, type, avaEnd);
+        }
+      }
+    }
+    if (match < 0) {
+      return null;
+    }
+    String value = DerReader.decodeString(der, match, limit);
+    return value != null ? value : hexValue(der, match, limit);
+  }
+
+  private static void appendAva(byte[] der, int ava, int limit, StringBuilder out)
+      throws X509Exception {
+    DerReader.expectTag(der, ava, limit, DerReader.TAG_SEQUENCE);
+    int avaEnd = DerReader.end(der, ava, limit);
+    int type = DerReader.contentOffset(der, ava, avaEnd);
+    int value = DerReader.end(der, type, avaEnd);
+    String keyword = keyword(der, type, avaEnd);
+    out.append(keyword != null ? keyword : DerReader.oidToString(der, type, avaEnd)).append('=');
+    String decoded = keyword != null ? DerReader.decodeString(der, value, avaEnd) : null;
+    if (decoded == null) {
+      out.append(hexValue(der, value, avaEnd));
+    } else {
+      appendEscaped(decoded, out);
+    }
+  }
+
+  private static String keyword(byte[] der, int type, int limit) throws X509Exception {
+    for (int i = 0; i < KEYWORD_OIDS.length; i++) {
+      if (DerReader.oidEquals(der, type, limit, KEYWORD_OIDS[i])) {
+        return KEYWORDS[i];
+      }
+    }
+    return null;
+  }
+
+  private static String hexValue(byte[] der, int off, int limit) throws X509Exception {
+    int end = DerReader.end(der, off, limit);
+    StringBuilder out = new StringBuilder(1 + (end - off) * 2).append('#');
+    for (int i = off; i < end; i++) {
+      out.append(HEX[(der[i] >> 4) & 0xf]).append(HEX[der[i] & 0xf]);
+    }
+    return out.toString();
+  }
+
+  private static void appendEscaped(String value, StringBuilder out) {
+    int len = value.length();
+    for (int i = 0; i < len; i++) {
+      char ch = value.charAt(i);
+      switch (ch) {
+        case ',':
+        case '+':
+        case '"':
+        case '\\':
+        case '<':
+        case '>':
+        case ';':
+          out.append('\\').append(ch);
+          break;
+        case '#':
+          if (i == 0) {
+            out.append('\\');
+          }
+          out.append(ch);
+          break;
+        case ' ':
+          if (i == 0 || i == len - 1) {
+            out.append('\\');
+          }
+          out.append(ch);
+          break;
+        case '\0':
+          out.append("\\00");
+          break;
+        default:
+          out.append(ch);
+      }
+    }
+  }
+}
@@ -0,0 +1,429 @@
+/*
+ *  X509OcspChecker.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Online revocation checks with OCSP, for certificates whose CA publishes no CRL.
+ * <p>
+ * Responses are verified and cached per certificate until their nextUpdate. A cached response
+ * that is used within the refresh-ahead window before its nextUpdate is refreshed in the
+ * background, so certificates in steady use never wait for the responder. Concurrent checks of
+ * the same certificate share one responder call. Each check waits at most the latency budget;
+ * a call that takes longer keeps running and fills the cache for later checks.
+ * <p>
+ * When no verified answer is available in time, because the responder is slow, unreachable or
+ * answers with an error, the {@link FailurePolicy} decides: {@code OPEN} reports
+ * {@link RevocationStatus#UNKNOWN}, {@code CLOSED} throws. Responder calls run on a bounded
+ * pool, so a slow or unreachable responder ties up a fixed number of threads; a check that
+ * finds the pool and its queue full is handled like an unanswered one.
+ * <p>
+ * The responder URI is read from the checked certificate and the issuer is taken from the
+ * presented chain, so both are under the control of the client. Check only chains that
+ * passed PKIX validation, e.g. with {@link X509ChainValidator}, or the checker makes outbound
+ * requests to any URI a client chooses.
+ * <p>
+ * Instances are thread safe and meant to be shared for the lifetime of the application.
+ */
+public class X509OcspChecker implements Closeable {
+
+  /**
+   * What to do when the responder gives no usable answer within the latency budget.
+   */
+  public enum FailurePolicy {
+    /** Report {@link RevocationStatus#UNKNOWN} and let the caller proceed. */
+    OPEN,
+    /** Throw {@link X509Exception}. */
+    CLOSED
+  }
+
+  private static final int DEFAULT_MAX_ENTRIES = 10000;
+  private static final Duration DEFAULT_REFRESH_AHEAD = Duration.ofMinutes(5);
+  private static final int DEFAULT_MAX_QUERIES = 16;
+
+  private final OcspTransport transport;
+  private final X509TrustStore trustStore;
+  private final long budgetMillis;
+  private final FailurePolicy policy;
+  private final int maxEntries;
+  private final long refreshAheadMillis;
+  private final Clock clock;
+  private final ThreadPoolExecutor executor;
+
+  private final ConcurrentHashMap<X509Fingerprint, Entry> entries = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<X509Fingerprint, CompletableFuture<Entry>> inFlight =
+      new ConcurrentHashMap<>();
+  private final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder refreshes = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+  /**
+   * Construct checker.
+   *
+   * @param transport delivers requests to responders
+   * @param trustStore where issuers missing from the checked chain are looked up, or null
+   * @param latencyBudget longest time a check waits for the responder
+   * @param policy outcome when no answer arrives within the budget
+   */
+  public X509OcspChecker(OcspTransport transport, X509TrustStore trustStore,
+      Duration latencyBudget, FailurePolicy policy) {
+    this(transport, trustStore, latencyBudget, policy, DEFAULT_MAX_ENTRIES,
+        DEFAULT_REFRESH_AHEAD, Clock.systemUTC());
+  }
+
+  /**
+   * Construct checker with explicit cache settings and clock.
+   *
+   * @param transport delivers requests to responders
+   * @param trustStore where issuers missing from the checked chain are looked up, or null
+   * @param latencyBudget longest time a check waits for the responder
+   * @param policy outcome when no answer arrives within the budget
+   * @param maxEntries maximum number of responses held at once
+   * @param refreshAhead how long before nextUpdate a used response is refreshed
+   * @param clock time source used for response validity and expiry decisions
+   */
+  public X509OcspChecker(OcspTransport transport, X509TrustStore trustStore,
+      Duration latencyBudget, FailurePolicy policy, int maxEntries, Duration refreshAhead,
+      Clock clock) {
+    this(transport, trustStore, latencyBudget, policy, maxEntries, refreshAhead,
+        DEFAULT_MAX_QUERIES, clock);
+  }
+
+  /**
+   * Construct checker with explicit cache and concurrency settings and clock.
+   *
+   * @param transport delivers requests to responders
+   * @param trustStore where issuers missing from the checked chain are looked up, or null
+   * @param latencyBudget longest time a check waits for the responder
+   * @param policy outcome when no answer arrives within the budget
+   * @param maxEntries maximum number of responses held at once
+   * @param refreshAhead how long before nextUpdate a used response is refreshed
+   * @param maxQueries maximum number of responder calls running at once; as many again may
+   *     wait for a thread, further calls are rejected
+   * @param clock time source used for response validity and expiry decisions
+   */
+  public X509OcspChecker(OcspTransport transport, X509TrustStore trustStore,
+      Duration latencyBudget, FailurePolicy policy, int maxEntries, Duration refreshAhead,
+      int maxQueries, Clock clock) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive, got " + maxEntries);
+    }
+    if (maxQueries <= 0) {
+      throw new IllegalArgumentException("maxQueries must be positive, got " + maxQueries);
+    }
+    if (latencyBudget.isNegative() || latencyBudget.isZero()) {
+      throw new IllegalArgumentException("latencyBudget must be positive, got " + latencyBudget);
+    }
+    this.transport = transport;
+    this.trustStore = trustStore;
+    this.budgetMillis = latencyBudget.toMillis();
+    this.policy = policy;
+    this.maxEntries = maxEntries;
+    this.refreshAheadMillis = refreshAhead.toMillis();
+    this.clock = clock;
+    AtomicInteger threads = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(maxQueries, maxQueries, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(maxQueries), task -> {
+          Thread thread = new Thread(task, "x509-ocsp-" + threads.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Revocation status of the primary certificate of a chain. The issuer is taken from the
+   * chain, or from the trust store when the chain holds only the leaf. The chain must have
+   * passed PKIX validation.
+   *
+   * @param certChain certificate chain, leaf first
+   * @return revocation status
+   * @throws X509Exception when certChain is null or empty, or, under the CLOSED policy, when
+   *     the issuer is unknown or no verified answer arrives within the budget
+   */
+  public RevocationStatus check(X509Certificate[] certChain) throws X509Exception {
+    X509Certificate cert = X509Extraction.extractPrimaryCertFromChain(certChain);
+    X509Certificate issuer = findIssuer(cert, certChain);
+    if (issuer == null) {
+      return fail(new X509Exception(
+          "issuer certificate not available for " + cert.getIssuerX500Principal().getName()));
+    }
+    return check(cert, issuer);
+  }
+
+  /**
+   * Revocation status of a certificate.
+   *
+   * @param cert certificate to check
+   * @param issuer certificate of its issuer
+   * @return revocation status
+   * @throws X509Exception under the CLOSED policy, when no verified answer arrives within the
+   *     budget
+   */
+  public RevocationStatus check(X509Certificate cert, X509Certificate issuer)
+      throws X509Exception {
+    byte[] certId;
+    try {
+      certId = OcspMessages.certId(cert, issuer);
+    } catch (X509Exception exc) {
+      return fail(exc);
+    }
+    X509Fingerprint key = X509Fingerprint.of(certId);
+    long now = clock.millis();
+    Entry entry = entries.get(key);
+    if (entry != null && now < entry.expiresAt) {
+      hits.increment();
+      if (now >= entry.refreshAt) {
+        fetch(key, cert, issuer, certId, true);
+      }
+      return entry.status;
+    }
+    misses.increment();
+    try {
+      return fetch(key, cert, issuer, certId, false)
+          .get(budgetMillis, TimeUnit.MILLISECONDS).status;
+    } catch (TimeoutException exc) {
+      timeouts.increment();
+      return fail(new X509Exception("no OCSP response within " + budgetMillis + " ms"));
+    } catch (ExecutionException exc) {
+      failures.increment();
+      Throwable cause = exc.getCause();
+      return fail(cause instanceof X509Exception ? (X509Exception) cause
+          : new X509Exception("OCSP check failed", cause));
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      return fail(new X509Exception("interrupted waiting for OCSP response", exc));
+    }
+  }
+
+  private RevocationStatus fail(X509Exception exc) throws X509Exception {
+    if (policy == FailurePolicy.CLOSED) {
+      throw exc;
+    }
+    return RevocationStatus.UNKNOWN;
+  }
+
+  private X509Certificate findIssuer(X509Certificate cert, X509Certificate[] certChain) {
+    for (X509Certificate candidate : certChain) {
+      if (candidate != cert && candidate.getSubjectX500Principal()
+          .equals(cert.getIssuerX500Principal())) {
+        return candidate;
+      }
+    }
+    if (trustStore != null) {
+      List<X509Certificate> known =
+          trustStore.findCaCertificates(cert.getIssuerX500Principal());
+      if (!known.isEmpty()) {
+        return known.get(0);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Start a responder call for the CertID, or join the one already running.
+   */
+  private CompletableFuture<Entry> fetch(X509Fingerprint key, X509Certificate cert,
+      X509Certificate issuer, byte[] certId, boolean refresh) {
+    CompletableFuture<Entry> mine = new CompletableFuture<>();
+    CompletableFuture<Entry> running = inFlight.putIfAbsent(key, mine);
+    if (running != null) {
+      if (!refresh) {
+        coalesced.increment();
+      }
+      return running;
+    }
+    if (refresh) {
+      refreshes.increment();
+    }
+    try {
+      executor.execute(() -> {
+        // leave inFlight before completing, so no caller that saw the result joins this call
+        try {
+          Entry entry = query(key, cert, issuer, certId);
+          store(entry);
+          inFlight.remove(key, mine);
+          mine.complete(entry);
+        } catch (X509Exception | RuntimeException exc) {
+          inFlight.remove(key, mine);
+          mine.completeExceptionally(exc);
+        }
+      });
+    } catch (RejectedExecutionException exc) {
+      inFlight.remove(key, mine);
+      if (executor.isShutdown()) {
+        mine.completeExceptionally(new X509Exception("OCSP checker closed", exc));
+      } else {
+        rejections.increment();
+        mine.completeExceptionally(new X509Exception("too many OCSP responder calls pending"));
+      }
+    }
+    return mine;
+  }
+
+  private Entry query(X509Fingerprint key, X509Certificate cert, X509Certificate issuer,
+      byte[] certId) throws X509Exception {
+    URI responder = OcspMessages.responderUri(cert);
+    if (responder == null) {
+      throw new X509Exception("no OCSP responder named in certificate "
+          + cert.getSubjectX500Principal().getName());
+    }
+    byte[] response;
+    try {
+      response = transport.send(responder, OcspMessages.request(certId));
+    } catch (IOException exc) {
+      throw new X509Exception("OCSP request to " + responder + " failed", exc);
+    }
+    long now = clock.millis();
+    OcspMessages.Response parsed = OcspMessages.parse(response, certId, issuer, now);
+    // without nextUpdate newer information is always available, so nothing is cached
+    long expiresAt = parsed.nextUpdate == OcspMessages.NO_NEXT_UPDATE ? now : parsed.nextUpdate;
+    return new Entry(key, parsed.status, expiresAt, Math.max(now, expiresAt - refreshAheadMillis));
+  }
+
+  private void store(Entry entry) {
+    if (entry.expiresAt <= clock.millis()) {
+      return;
+    }
+    entries.put(entry.key, entry);
+    insertionOrder.add(entry);
+    queued.incrementAndGet();
+    // replaced and expired entries leave stale queue slots behind, so the queue is trimmed too
+    while (entries.size() > maxEntries || queued.get() > 2L * maxEntries) {
+      Entry oldest = insertionOrder.poll();
+      if (oldest == null) {
+        return;
+      }
+      queued.decrementAndGet();
+      entries.remove(oldest.key, oldest);
+    }
+  }
+
+  /**
+   * Stop background responder calls. Checks after closing fail according to the policy.
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Drop all cached responses. Counters are left untouched.
+   */
+  public void clear() {
+    entries.clear();
+    insertionOrder.clear();
+    queued.set(0);
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public FailurePolicy getFailurePolicy() {
+    return policy;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Number of checks that joined a responder call already running for the same certificate.
+   *
+   * @return coalesced check count
+   */
+  public long getCoalescedCount() {
+    return coalesced.sum();
+  }
+
+  /**
+   * Number of background refreshes started for responses nearing their nextUpdate.
+   *
+   * @return refresh count
+   */
+  public long getRefreshCount() {
+    return refreshes.sum();
+  }
+
+  public long getTimeoutCount() {
+    return timeouts.sum();
+  }
+
+  public long getFailureCount() {
+    return failures.sum();
+  }
+
+  /**
+   * Number of responder calls not started because all query threads were busy and the queue
+   * was full. The checks that needed them fail according to the policy.
+   *
+   * @return rejected call count
+   */
+  public long getRejectedCount() {
+    return rejections.sum();
+  }
+
+  /**
+   * Verified status of one certificate.
+   */
+  private static final class Entry {
+    private final X509Fingerprint key;
+    private final RevocationStatus status;
+    private final long expiresAt;
+    private final long refreshAt;
+
+    Entry(X509Fingerprint key, RevocationStatus status, long expiresAt, long refreshAt) {
+      this.key = key;
+      this.status = status;
+      this.expiresAt = expiresAt;
+      this.refreshAt = refreshAt;
+    }
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ *  X509TrustStore.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Trust anchors and intermediate CA certificates, loaded once and indexed by subject so the
+ * issuer of a certificate is found with a single map lookup.
+ * <p>
+ * Instances are immutable and thread safe.
+ */
+public final class X509TrustStore {
+
+  private static final String[] PEM_SUFFIXES = {".pem", ".crt", ".cer"};
+
+  private final Set<TrustAnchor> anchors;
+  private final Map<X500Principal, List<TrustAnchor>> anchorsBySubject;
+  private final Map<X500Principal, List<X509Certificate>> intermediatesBySubject;
+
+  private X509TrustStore(Collection<X509Certificate> trusted,
+      Collection<X509Certificate> intermediates) {
+    if (trusted.isEmpty()) {
+      throw new IllegalArgumentException("at least one trust anchor is required");
+    }
+    Set<TrustAnchor> anchorSet = new HashSet<>();
+    Map<X500Principal, List<TrustAnchor>> anchorIndex = new HashMap<>();
+    for (X509Certificate cert : trusted) {
+      TrustAnchor anchor = new TrustAnchor(cert, null);
+      anchorSet.add(anchor);
+      anchorIndex.computeIfAbsent(cert.getSubjectX500Principal(), key -> new ArrayList<>(1))
+          .add(anchor);
+    }
+    Map<X500Principal, List<X509Certificate>> intermediateIndex = new HashMap<>();
+    for (X509Certificate cert : intermediates) {
+      intermediateIndex.computeIfAbsent(cert.getSubjectX500Principal(), key -> new ArrayList<>(1))
+          .add(cert);
+    }
+    this.anchors = Collections.unmodifiableSet(anchorSet);
+    this.anchorsBySubject = anchorIndex;
+    this.intermediatesBySubject = intermediateIndex;
+  }
+
+  /**
+   * Trust store from explicit certificate collections.
+   *
+   * @param trusted trust anchor certificates
+   * @param intermediates intermediate CA certificates used to complete client chains
+   * @return trust store
+   * @throws IllegalArgumentException when no trust anchor is given
+   */
+  public static X509TrustStore of(Collection<X509Certificate> trusted,
+      Collection<X509Certificate> intermediates) {
+    return new X509TrustStore(trusted, intermediates);
+  }
+
+  /**
+   * Trust store with every certificate entry of a key store as trust anchor.
+   *
+   * @param keyStore loaded key store
+   * @param intermediates intermediate CA certificates used to complete client chains
+   * @return trust store
+   * @throws X509Exception when the key store cannot be read or holds no certificates
+   */
+  public static X509TrustStore fromKeyStore(KeyStore keyStore,
+      Collection<X509Certificate> intermediates) throws X509Exception {
+    List<X509Certificate> trusted = new ArrayList<>();
+    try {
+      Enumeration<String> aliases = keyStore.aliases();
+      while (aliases.hasMoreElements()) {
+        String alias = aliases.nextElement();
+        Certificate cert = keyStore.getCertificate(alias);
+        if (keyStore.isCertificateEntry(alias) && cert instanceof X509Certificate) {
+          trusted.add((X509Certificate) cert);
+        }
+      }
+    } catch (KeyStoreException exc) {
+      throw new X509Exception("failed to read trusted certificates from key store", exc);
+    }
+    if (trusted.isEmpty()) {
+      throw new X509Exception("no trusted certificate entries in key store");
+    }
+    return new X509TrustStore(trusted, intermediates);
+  }
+
+  /**
+   * Trust store from the .pem, .crt and .cer files of a directory. Self-signed certificates
+   * become trust anchors and all others intermediates.
+   *
+   * @param directory directory holding PEM or DER encoded CA certificates
+   * @return trust store
+   * @throws X509Exception when a file cannot be read or parsed, or no self-signed certificate
+   *     is found
+   */
+  public static X509TrustStore fromPemDirectory(Path directory) throws X509Exception {
+    List<X509Certificate> trusted = new ArrayList<>();
+    List<X509Certificate> intermediates = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, X509TrustStore::isPem)) {
+      for (Path file : files) {
+        byte[] data = Files.readAllBytes(file);
+        for (X509Certificate cert : X509Extraction.generateCertChain(data, data.length)) {
+          if (cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal())) {
+            trusted.add(cert);
+          } else {
+            intermediates.add(cert);
+          }
+        }
+      }
+    } catch (IOException exc) {
+      throw new X509Exception("failed to read CA certificates from " + directory, exc);
+    }
+    if (trusted.isEmpty()) {
+      throw new X509Exception("no self-signed CA certificate found in " + directory);
+    }
+    return new X509TrustStore(trusted, intermediates);
+  }
+
+  private static boolean isPem(Path file) {
+    String name = file.getFileName().toString().toLowerCase();
+    for (String suffix : PEM_SUFFIXES) {
+      if (name.endsWith(suffix)) {
+        return Files.isRegularFile(file);
+      }
+    }
+    return false;
+  }
+
+  public Set<TrustAnchor> getTrustAnchors() {
+    return anchors;
+  }
+
+  boolean isAnchorSubject(X500Principal subject) {
+    return anchorsBySubject.containsKey(subject);
+  }
+
+  /**
+   * Trust anchor and intermediate certificates with the given subject.
+   *
+   * @param subject CA name
+   * @return matching certificates, empty when none
+   */
+  List<X509Certificate> findCaCertificates(X500Principal subject) {
+    List<X509Certificate> found = new ArrayList<>(findIntermediates(subject));
+    List<TrustAnchor> anchorMatches = anchorsBySubject.get(subject);
+    if (anchorMatches != null) {
+      for (TrustAnchor anchor : anchorMatches) {
+        found.add(anchor.getTrustedCert());
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Intermediate CA certificates with the given subject, normally exactly one.
+   *
+   * @param subject issuer name of the certificate whose issuer is wanted
+   * @return matching certificates, empty when none
+   */
+  List<X509Certificate> findIntermediates(X500Principal subject) {
+    List<X509Certificate> found = intermediatesBySubject.get(subject);
+    return found == null ? Collections.emptyList() : found;
+  }
+}
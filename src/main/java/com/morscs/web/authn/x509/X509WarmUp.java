@@ -0,0 +1,229 @@
+/*
+ *  X509WarmUp.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a corpus of encoded certificate chains through the full extraction path, so class
+ * loading, provider lookup and JIT compilation happen before the first real request instead of
+ * on it.
+ * <p>
+ * Each corpus entry is decoded both into JCA certificates and into {@link X509CertificateView}s,
+ * and its DN, CN, parsed common name, subject alternative names and fingerprint are extracted,
+ * as the request path does. Entries that fail to decode are counted, not thrown, so a stale
+ * corpus never blocks startup. Warm-up runs are recorded by {@link X509Metrics} like any other
+ * extraction when metrics are enabled.
+ */
+public final class X509WarmUp {
+
+  /**
+   * Classpath resource holding the corpus used when none is configured.
+   */
+  public static final String DEFAULT_CORPUS = "warmup-corpus.txt";
+
+  /**
+   * Default number of passes over the corpus, enough for the JIT to compile the hot methods.
+   */
+  public static final int DEFAULT_ITERATIONS = 2000;
+
+  private static final Logger LOG = LoggerFactory.getLogger(X509WarmUp.class);
+
+  private final List<String> corpus;
+  private final int iterations;
+
+  /**
+   * Construct warm-up.
+   *
+   * @param corpus encoded certificate chains in any format the request headers use
+   * @param iterations number of passes over the corpus
+   */
+  public X509WarmUp(List<String> corpus, int iterations) {
+    if (iterations <= 0) {
+      throw new IllegalArgumentException("iterations must be positive, got " + iterations);
+    }
+    this.corpus = Collections.unmodifiableList(new ArrayList<>(corpus));
+    this.iterations = iterations;
+  }
+
+  /**
+   * Read a corpus file, one encoded chain per line. Blank lines and lines starting with '#' are
+   * skipped.
+   *
+   * @param file corpus file
+   * @return encoded chains
+   * @throws IOException when the file cannot be read
+   */
+  public static List<String> readCorpus(Path file) throws IOException {
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+      return readCorpus(reader);
+    }
+  }
+
+  /**
+   * The corpus bundled with the library: a single DoD style client certificate.
+   *
+   * @return encoded chains
+   * @throws IOException when the resource cannot be read
+   */
+  public static List<String> defaultCorpus() throws IOException {
+    InputStream in = X509WarmUp.class.getResourceAsStream(DEFAULT_CORPUS);
+    if (in == null) {
+      throw new IOException("warm-up corpus resource missing: " + DEFAULT_CORPUS);
+    }
+    try (Reader reader = new InputStreamReader(in, StandardCharsets.US_ASCII)) {
+      return readCorpus(reader);
+    }
+  }
+
+  private static List<String> readCorpus(Reader reader) throws IOException {
+    List<String> corpus = new ArrayList<>();
+    BufferedReader lines = new BufferedReader(reader);
+    for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+      String entry = line.trim();
+      if (!entry.isEmpty() && entry.charAt(0) != '#') {
+        corpus.add(entry);
+      }
+    }
+    return corpus;
+  }
+
+  /**
+   * Run the warm-up on the calling thread.
+   *
+   * @return what was run and how long it took
+   */
+  public Result run() {
+    long start = System.nanoTime();
+    long failures = 0;
+    for (int i = 0; i < iterations; i++) {
+      for (String encoded : corpus) {
+        if (!extract(encoded)) {
+          failures++;
+        }
+      }
+    }
+    Result result = new Result(X509Extraction.getProviderName(), corpus.size(), iterations,
+        failures, Duration.ofNanos(System.nanoTime() - start));
+    LOG.info("X.509 extraction warmed up with {} in {} ms: {} entries, {} passes, {} failures",
+        result.providerName, result.duration.toMillis(), result.corpusSize, iterations,
+        failures);
+    return result;
+  }
+
+  private static boolean extract(String encoded) {
+    try {
+      X509Certificate cert = X509Extraction.extractPrimaryCertFromChain(
+          X509Extraction.buildCertChainFromEncodedHeader(encoded));
+      String subjectDn = X509Extraction.extractPrimarySubjectDnFromCert(cert);
+      X509Extraction.extractCnFromSubjectDn(subjectDn);
+      String cn = X509Extraction.scanCnFromSubjectDn(subjectDn);
+      if (cn != null) {
+        commonName(cn);
+      }
+      X509Extraction.extractSubjectAltNamesFromCert(cert).getPrimaryValidEmail();
+      X509Fingerprint.of(encoded);
+
+      X509CertificateView view = X509Extraction.extractPrimaryCertViewFromChain(
+          X509Extraction.buildCertViewChainFromBase64Encoding(encoded));
+      view.getSubjectDn();
+      view.getSubjectCn();
+      view.getSerialNumber();
+      view.getNotAfter();
+      view.getSubjectAltNames();
+      return true;
+    } catch (X509Exception | IllegalArgumentException exc) {
+      LOG.debug("warm-up corpus entry failed to decode", exc);
+      return false;
+    }
+  }
+
+  private static void commonName(String cn) {
+    try {
+      X509Extraction.scanCommonNameFromCn(cn);
+      X509Extraction.extractCommonNameFromCn(cn);
+    } catch (X509Exception exc) {
+      // the corpus may hold certificates with other CN layouts
+    }
+  }
+
+  /**
+   * Outcome of a warm-up run.
+   */
+  public static final class Result {
+    private final String providerName;
+    private final int corpusSize;
+    private final int iterations;
+    private final long failures;
+    private final Duration duration;
+
+    Result(String providerName, int corpusSize, int iterations, long failures,
+        Duration duration) {
+      this.providerName = providerName;
+      this.corpusSize = corpusSize;
+      this.iterations = iterations;
+      this.failures = failures;
+      this.duration = duration;
+    }
+
+    /**
+     * Security provider the certificates were parsed with.
+     *
+     * @return provider name
+     */
+    public String getProviderName() {
+      return providerName;
+    }
+
+    public int getCorpusSize() {
+      return corpusSize;
+    }
+
+    public int getIterations() {
+      return iterations;
+    }
+
+    /**
+     * Number of corpus entries, counted over all passes, that failed to decode.
+     *
+     * @return failure count
+     */
+    public long getFailures() {
+      return failures;
+    }
+
+    public Duration getDuration() {
+      return duration;
+    }
+  }
+}
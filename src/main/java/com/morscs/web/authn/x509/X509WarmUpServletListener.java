@@ -0,0 +1,115 @@
+/*
+ *  X509WarmUpServletListener.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Selects the security provider for certificate parsing and runs {@link X509WarmUp} while the
+ * application starts, before the container routes traffic to it, so readiness probes only pass
+ * once extraction is warm.
+ * <p>
+ * Each setting is read from the context parameter of the same name, or else from the system
+ * property:
+ * <ul>
+ *   <li>{@value #PROVIDER_PARAM}: name of an installed security provider, default JRE</li>
+ *   <li>{@value #CORPUS_PARAM}: path of a corpus file, default the bundled corpus</li>
+ *   <li>{@value #ITERATIONS_PARAM}: passes over the corpus, 0 to skip warm-up</li>
+ * </ul>
+ * Without a provider setting the current selection is kept, and only a provider selected here
+ * is cleared when the context is destroyed. A provider that is not installed or a corpus that
+ * cannot be read fails deployment. The {@link X509WarmUp.Result} is kept as the
+ * {@link #RESULT_ATTRIBUTE} context attribute.
+ */
+//@WebListener
+public class X509WarmUpServletListener implements ServletContextListener {
+
+  public static final String PROVIDER_PARAM = "com.morscs.web.authn.x509.provider";
+  public static final String CORPUS_PARAM = "com.morscs.web.authn.x509.warmup.corpus";
+  public static final String ITERATIONS_PARAM = "com.morscs.web.authn.x509.warmup.iterations";
+
+  /**
+   * Context attribute holding the warm-up result once warm-up has completed.
+   */
+  public static final String RESULT_ATTRIBUTE = X509WarmUp.Result.class.getName();
+
+  // whether this listener selected the provider, and so has to clear it again
+  private boolean providerSelected;
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext context = sce.getServletContext();
+    String provider = setting(context, PROVIDER_PARAM);
+    if (provider != null) {
+      try {
+        X509Extraction.useProvider(provider);
+      } catch (X509Exception exc) {
+        throw new IllegalStateException("invalid " + PROVIDER_PARAM, exc);
+      }
+      providerSelected = true;
+    }
+    String iterations = setting(context, ITERATIONS_PARAM);
+    int passes;
+    try {
+      passes = iterations == null ? X509WarmUp.DEFAULT_ITERATIONS : Integer.parseInt(iterations);
+    } catch (NumberFormatException exc) {
+      throw new IllegalStateException("invalid " + ITERATIONS_PARAM + ": " + iterations, exc);
+    }
+    if (passes <= 0) {
+      return;
+    }
+    String corpusFile = setting(context, CORPUS_PARAM);
+    List<String> corpus;
+    try {
+      corpus = corpusFile == null ? X509WarmUp.defaultCorpus()
+          : X509WarmUp.readCorpus(Paths.get(corpusFile));
+    } catch (IOException exc) {
+      throw new IllegalStateException("failed to read warm-up corpus", exc);
+    }
+    context.setAttribute(RESULT_ATTRIBUTE, new X509WarmUp(corpus, passes).run());
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    // the factory of a provider bundled with the application would pin its classloader; a
+    // provider selected elsewhere is left alone
+    if (!providerSelected) {
+      return;
+    }
+    providerSelected = false;
+    try {
+      X509Extraction.useProvider(null);
+    } catch (X509Exception exc) {
+      // clearing the provider cannot fail
+    }
+  }
+
+  private static String setting(ServletContext context, String name) {
+    String value = context.getInitParameter(name);
+    if (value == null || value.trim().isEmpty()) {
+      value = System.getProperty(name);
+    }
+    return value == null || value.trim().isEmpty() ? null : value.trim();
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ *  CnFormatsTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CnFormatsTest {
+  private static final String SANDBOX_CA =
+      "CN=ca.sandbox.com, O=sandbox, L=San Diego, ST=California, C=US";
+  private static final CnPattern CONTRACTOR = CnPattern.compile("contractor", "FIRST LAST EDIPI");
+
+  @AfterEach
+  public void restoreDefaultFormats() {
+    X509Extraction.useCnFormats(null);
+  }
+
+  @Test
+  public void dodPattern_variants_shouldParse() {
+    CommonName plain = CnPattern.DOD.parse("TARGARYEN.DAENERYS.1234567890");
+    assertEquals("TARGARYEN", plain.getLastName());
+    assertEquals("DAENERYS", plain.getFirstName());
+    assertNull(plain.getMiddleName());
+    assertEquals(1234567890L, plain.getEdipi());
+
+    CommonName suffixed = CnPattern.DOD.parse("STARK.EDDARD.JR.1234567890");
+    assertNull(suffixed.getMiddleName());
+    assertEquals("JR", suffixed.getSuffix());
+
+    CommonName full = CnPattern.DOD.parse("SMITH-JONES.MARY ANN.O'NEIL.III.1234567890");
+    assertEquals("SMITH-JONES", full.getLastName());
+    assertEquals("MARY ANN", full.getFirstName());
+    assertEquals("O'NEIL", full.getMiddleName());
+    assertEquals("III", full.getSuffix());
+  }
+
+  @Test
+  public void dodPattern_otherLayouts_shouldNotMatch() {
+    assertNull(CnPattern.DOD.parse("TARGARYEN.1234567890"));
+    assertNull(CnPattern.DOD.parse("TARGARYEN.DAENERYS.MIDDLE"));
+    assertNull(CnPattern.DOD.parse("A.B.C.D.E.1234567890"));
+    assertNull(CnPattern.DOD.parse("Daenerys Targaryen 1234567890"));
+    assertNull(CnPattern.DOD.parse("TARGARYEN..1234567890"));
+  }
+
+  @Test
+  public void compile_malformedPattern_shouldThrowIllegalArgumentException() {
+    assertThrows(IllegalArgumentException.class, () -> CnPattern.compile("x", "LAST.NICK"));
+    assertThrows(IllegalArgumentException.class, () -> CnPattern.compile("x", "LASTFIRST"));
+    assertThrows(IllegalArgumentException.class, () -> CnPattern.compile("x", "LAST[.FIRST]"));
+    assertThrows(IllegalArgumentException.class, () -> CnPattern.compile("x", "LAST.FIRST[.EDIPI"));
+    assertThrows(IllegalArgumentException.class,
+        () -> CnPattern.compile("x", "LAST.FIRST.LAST"));
+  }
+
+  @Test
+  public void parse_byIssuer_shouldUseIssuerFormatsThenFallback() throws X509Exception {
+    Map<String, List<CnFormat>> issuers = new HashMap<>();
+    issuers.put(SANDBOX_CA, Collections.singletonList(CONTRACTOR));
+    CnFormats formats = new CnFormats(issuers, Collections.singletonList(CnPattern.DOD));
+
+    CommonName contractor = formats.parse("cn=CA.SANDBOX.COM,o=sandbox,l=San Diego,"
+        + "st=California,c=US", "Daenerys Targaryen 1234567890");
+    assertEquals("Targaryen", contractor.getLastName());
+    assertEquals(1234567890L,
+        formats.parse(SANDBOX_CA, "TARGARYEN.DAENERYS.1234567890").getEdipi());
+    assertThrows(X509Exception.class,
+        () -> formats.parse("CN=Other CA", "Daenerys Targaryen 1234567890"));
+
+    assertEquals(Long.valueOf(2), formats.getAttemptCounts().get("contractor"));
+    assertEquals(Long.valueOf(1), formats.getMatchCounts().get("contractor"));
+    assertEquals(Long.valueOf(2), formats.getAttemptCounts().get("dod"));
+    assertEquals(Long.valueOf(1), formats.getMatchCounts().get("dod"));
+    assertEquals(1, formats.getUnmatchedCount());
+  }
+
+  @Test
+  public void construct_duplicateName_shouldThrowIllegalArgumentException() {
+    assertThrows(IllegalArgumentException.class, () -> new CnFormats(Collections.emptyMap(),
+        Arrays.asList(CnPattern.DOD, CnPattern.compile("dod", "LAST FIRST"))));
+  }
+
+  @Test
+  public void identity_selectedFormats_shouldParseByIssuer() throws X509Exception {
+    Map<String, List<CnFormat>> issuers = new HashMap<>();
+    issuers.put(SANDBOX_CA, Collections.singletonList(
+        CnPattern.compile("sandbox", "LAST.FIRST.MIDDLE.EDIPI")));
+    X509Extraction.useCnFormats(new CnFormats(issuers, Collections.emptyList()));
+
+    X509Identity identity = new X509Identity(X509Extraction.extractPrimaryCertFromChain(
+        X509Extraction.buildCertChainFromBase64Encoding(TestCertificates.BASE64_CERT)));
+    assertEquals("MIDDLE", identity.getParsedCommonName().getMiddleName());
+    assertNull(new X509Identity("CN=TARGARYEN.DAENERYS.1234567890").getParsedCommonName());
+  }
+}
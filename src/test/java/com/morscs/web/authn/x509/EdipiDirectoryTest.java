@@ -0,0 +1,194 @@
+/*
+ *  EdipiDirectoryTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class EdipiDirectoryTest {
+  private static final String ROSTER = "edipi,organization,roles\n"
+      + "# contractors\n"
+      + "1234567890,CONTRACTOR,user;auditor\n"
+      + "\n"
+      + "1000000001,\"U.S. Government, Inc.\",user;admin\n"
+      + "1000000002,,\n"
+      + "1000000003\n";
+
+  private Path directory;
+  private Path roster;
+  private Path indexFile;
+
+  @BeforeEach
+  public void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("edipi");
+    roster = directory.resolve("roster.csv");
+    indexFile = directory.resolve("roster.idx");
+  }
+
+  @AfterEach
+  public void deleteDirectory() throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private void writeRoster(String content, long modified) throws IOException {
+    Files.write(roster, content.getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(roster, FileTime.fromMillis(modified));
+  }
+
+  @Test
+  public void lookup_rosterEntries_shouldReturnAttributes() throws Exception {
+    writeRoster(ROSTER, 1000);
+    EdipiDirectory edipis = new EdipiDirectory(roster, indexFile);
+
+    assertEquals(4, edipis.size());
+    assertEquals("CONTRACTOR", edipis.getOrganization(1234567890L));
+    assertEquals("U.S. Government, Inc.", edipis.getOrganization(1000000001L));
+    assertTrue(edipis.hasRole(1234567890L, "auditor"));
+    assertFalse(edipis.hasRole(1234567890L, "admin"));
+    assertFalse(edipis.hasRole(1234567890L, "unknown"));
+    assertNull(edipis.getOrganization(1000000002L));
+    assertTrue(edipis.contains(1000000003L));
+    assertFalse(edipis.contains(999L));
+    assertFalse(edipis.hasRole(999L, "user"));
+
+    EdipiRoster snapshot = edipis.getRoster();
+    int entry = snapshot.indexOf(1000000001L);
+    assertEquals(1000000001L, snapshot.getEdipi(entry));
+    assertEquals(Arrays.asList("user", "admin"), snapshot.getRoles(entry));
+    assertEquals(Arrays.asList("user", "auditor", "admin"), snapshot.getRoleNames());
+    assertEquals(0, snapshot.getRoleMask(snapshot.indexOf(1000000003L)));
+    assertEquals(-1, snapshot.indexOf(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void lookup_largeRoster_shouldFindEveryEntry() throws Exception {
+    Random random = new Random(7);
+    long[] edipis = random.longs(20000, 1000000000L, 9999999999L).distinct().toArray();
+    try (BufferedWriter writer = Files.newBufferedWriter(roster)) {
+      for (int i = 0; i < edipis.length; i++) {
+        writer.write(edipis[i] + ",ORG" + (i % 10) + ",role" + (i % 3) + "\n");
+      }
+    }
+    EdipiRoster snapshot = new EdipiDirectory(roster, indexFile).getRoster();
+
+    assertEquals(edipis.length, snapshot.size());
+    for (int i = 0; i < edipis.length; i++) {
+      int entry = snapshot.indexOf(edipis[i]);
+      assertEquals("ORG" + (i % 10), snapshot.getOrganization(entry));
+      assertTrue(snapshot.hasRole(entry, "role" + (i % 3)));
+    }
+    assertEquals(-1, snapshot.indexOf(5L));
+  }
+
+  @Test
+  public void reload_changedRoster_shouldSwapSnapshot() throws Exception {
+    writeRoster(ROSTER, 1000);
+    EdipiDirectory edipis = new EdipiDirectory(roster, indexFile);
+    EdipiRoster before = edipis.getRoster();
+    assertFalse(edipis.reload());
+
+    writeRoster("1234567890,CIVILIAN,user\n", 2000);
+    assertTrue(edipis.reload());
+
+    assertEquals("CIVILIAN", edipis.getOrganization(1234567890L));
+    assertFalse(edipis.contains(1000000001L));
+    // snapshots taken before the reload keep reading the old roster
+    assertEquals("CONTRACTOR", before.getOrganization(before.indexOf(1234567890L)));
+    assertEquals(2, edipis.getReloadCount());
+  }
+
+  @Test
+  public void construct_unchangedRoster_shouldReuseIndex() throws Exception {
+    writeRoster(ROSTER, 1000);
+    new EdipiDirectory(roster, indexFile);
+    FileTime compiled = Files.getLastModifiedTime(indexFile);
+    Files.setLastModifiedTime(indexFile, FileTime.fromMillis(compiled.toMillis() - 60000));
+
+    EdipiDirectory restarted = new EdipiDirectory(roster, indexFile);
+    assertEquals(0, restarted.getReloadCount());
+    assertEquals("CONTRACTOR", restarted.getOrganization(1234567890L));
+  }
+
+  @Test
+  public void reload_malformedRoster_shouldKeepPreviousSnapshot() throws Exception {
+    writeRoster(ROSTER, 1000);
+    EdipiDirectory edipis = new EdipiDirectory(roster, indexFile);
+
+    writeRoster("1234567890,A,user\n1234567890,B,user\n", 2000);
+    assertThrows(X509Exception.class, edipis::reload);
+    writeRoster("1234567890,A,user\nnot-an-edipi,B,user\n", 3000);
+    assertThrows(X509Exception.class, edipis::reload);
+
+    assertEquals("CONTRACTOR", edipis.getOrganization(1234567890L));
+  }
+
+  @Test
+  public void construct_commentBeforeHeader_shouldSkipHeader() throws Exception {
+    writeRoster("# exported roster\n\n" + ROSTER, 1000);
+    EdipiDirectory edipis = new EdipiDirectory(roster, indexFile);
+
+    assertEquals(4, edipis.size());
+    assertEquals("CONTRACTOR", edipis.getOrganization(1234567890L));
+    writeRoster("1234567890,A,user\nedipi,organization,roles\n", 2000);
+    assertThrows(X509Exception.class, edipis::reload);
+  }
+
+  @Test
+  public void open_organizationOutOfRange_shouldThrowX509Exception() throws Exception {
+    writeRoster("1234567890,ORG,user\n", 1000);
+    new EdipiDirectory(roster, indexFile);
+    byte[] index = Files.readAllBytes(indexFile);
+    // header, then one EDIPI and one role mask, then the organization of the only entry
+    ByteBuffer.wrap(index).putInt(56 + 8 + 8, 1);
+    Files.write(indexFile, index);
+
+    assertThrows(X509Exception.class, () -> EdipiRoster.open(indexFile));
+  }
+
+  @Test
+  public void construct_tooManyRoles_shouldThrowX509Exception() throws Exception {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i <= EdipiRoster.MAX_ROLES; i++) {
+      content.append(1000000000L + i).append(",ORG,role").append(i).append('\n');
+    }
+    writeRoster(content.toString(), 1000);
+    assertThrows(X509Exception.class, () -> new EdipiDirectory(roster, indexFile));
+  }
+}
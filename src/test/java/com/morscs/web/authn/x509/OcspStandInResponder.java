@@ -0,0 +1,170 @@
+/*
+ *  OcspStandInResponder.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process OCSP responder for the test PKI, answering for the intermediate CA with responses
+ * it signs itself. Requests can be held back to simulate a slow responder.
+ */
+final class OcspStandInResponder implements OcspTransport {
+  private static final DateTimeFormatter GENERALIZED_TIME =
+      DateTimeFormatter.ofPattern("yyyyMMddHHmmss'Z'").withZone(ZoneOffset.UTC);
+
+  private final X509Certificate signerCert;
+  private final Clock clock;
+  private final Set<BigInteger> revoked = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger requests = new AtomicInteger();
+  private volatile PrivateKey signerKey;
+  private volatile Duration validity = Duration.ofHours(1);
+  private volatile CountDownLatch gate;
+
+  OcspStandInResponder(Clock clock) throws Exception {
+    this.signerCert = X509ChainValidatorTest.pki("trust/intermediate-ca.pem")[0];
+    this.signerKey = loadKey("/pki/intermediate-ca.key");
+    this.clock = clock;
+  }
+
+  private static PrivateKey loadKey(String resource) throws Exception {
+    try (InputStream in = OcspStandInResponder.class.getResourceAsStream(resource);
+        Scanner scanner = new Scanner(in, StandardCharsets.US_ASCII.name())) {
+      String pem = scanner.useDelimiter("\\A").next();
+      byte[] der = CertificateHeaderDecoder.newBuffer(pem);
+      int length = CertificateHeaderDecoder.decode(pem, der);
+      return KeyFactory.getInstance("EC")
+          .generatePrivate(new PKCS8EncodedKeySpec(Arrays.copyOf(der, length)));
+    }
+  }
+
+  void revoke(BigInteger serial) {
+    revoked.add(serial);
+  }
+
+  void signWith(PrivateKey key) {
+    signerKey = key;
+  }
+
+  void setValidity(Duration validity) {
+    this.validity = validity;
+  }
+
+  /**
+   * Make requests wait until {@link #release()}.
+   */
+  void hold() {
+    gate = new CountDownLatch(1);
+  }
+
+  void release() {
+    CountDownLatch held = gate;
+    gate = null;
+    if (held != null) {
+      held.countDown();
+    }
+  }
+
+  int getRequestCount() {
+    return requests.get();
+  }
+
+  @Override
+  public byte[] send(URI responder, byte[] request) throws IOException {
+    requests.incrementAndGet();
+    CountDownLatch held = gate;
+    if (held != null) {
+      try {
+        held.await();
+      } catch (InterruptedException exc) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted", exc);
+      }
+    }
+    try {
+      return respond(request);
+    } catch (GeneralSecurityException | X509Exception exc) {
+      throw new IOException(exc);
+    }
+  }
+
+  private byte[] respond(byte[] request) throws GeneralSecurityException, X509Exception {
+    // OCSPRequest / TBSRequest / requestList / Request / CertID
+    int p = 0;
+    for (int i = 0; i < 4; i++) {
+      p = DerReader.contentOffset(request, p, request.length);
+    }
+    byte[] certId = Arrays.copyOfRange(request, p, DerReader.end(request, p, request.length));
+    int serial = DerReader.contentOffset(certId, 0, certId.length);
+    for (int i = 0; i < 3; i++) {
+      serial = DerReader.end(certId, serial, certId.length);
+    }
+    BigInteger serialNumber = new BigInteger(Arrays.copyOfRange(certId,
+        DerReader.contentOffset(certId, serial, certId.length),
+        DerReader.end(certId, serial, certId.length)));
+
+    long now = clock.millis();
+    byte[] status = revoked.contains(serialNumber)
+        ? DerWriter.element(0xa1, time(now - Duration.ofDays(1).toMillis()))
+        : DerWriter.element(0x80);
+    byte[] single = DerWriter.sequence(certId, status, time(now),
+        DerWriter.element(0xa0, time(now + validity.toMillis())));
+    byte[] responseData = DerWriter.sequence(
+        DerWriter.element(0xa1, signerCert.getSubjectX500Principal().getEncoded()),
+        time(now), DerWriter.sequence(single));
+
+    Signature signature = Signature.getInstance("SHA256withECDSA");
+    signature.initSign(signerKey);
+    signature.update(responseData);
+    byte[] signed = signature.sign();
+    byte[] bits = new byte[signed.length + 1];
+    System.arraycopy(signed, 0, bits, 1, signed.length);
+    byte[] basic = DerWriter.sequence(responseData,
+        DerWriter.sequence(DerWriter.oid("1.2.840.10045.4.3.2")),
+        DerWriter.element(DerReader.TAG_BIT_STRING, bits));
+    return DerWriter.sequence(DerWriter.element(DerReader.TAG_ENUMERATED, new byte[] {0}),
+        DerWriter.element(0xa0, DerWriter.sequence(DerWriter.oid("1.3.6.1.5.5.7.48.1.1"),
+            DerWriter.octetString(basic))));
+  }
+
+  private static byte[] time(long millis) {
+    return DerWriter.element(DerReader.TAG_GENERALIZED_TIME,
+        GENERALIZED_TIME.format(Instant.ofEpochMilli(millis)).getBytes(StandardCharsets.US_ASCII));
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ *  SubjectAltNamesTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class SubjectAltNamesTest {
+  private static final String EMAIL = "daenerys.targeryen@dragonstone.got";
+
+  private static byte[] string(int tag, String value) {
+    return DerWriter.element(tag, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] otherName(String oid, byte[] value) {
+    return DerWriter.element(0xa0, DerWriter.oid(oid), DerWriter.element(0xa0, value));
+  }
+
+  @Test
+  public void decode_allNameForms_shouldKeepEachInOrder() throws X509Exception {
+    byte[] der = DerWriter.sequence(
+        otherName("1.3.6.1.4.1.311.20.2.3", string(DerReader.TAG_UTF8_STRING, "1234567890@mil")),
+        string(0x81, EMAIL),
+        string(0x82, "host.example.mil"),
+        otherName("1.3.6.1.4.1.311.25.1", DerWriter.octetString(new byte[16])),
+        DerWriter.element(0x87, new byte[] {10, 0, 0, 1}),
+        string(0x86, "https://example.mil/id/1234567890"),
+        string(0x81, "second@example.mil"),
+        string(0x82, "alt.example.mil"));
+
+    SubjectAltNames names = SubjectAltNames.decode(der, 0, der.length);
+
+    assertEquals(Arrays.asList(EMAIL, "second@example.mil"), names.getEmails());
+    assertEquals(Collections.singletonList("1234567890@mil"), names.getUserPrincipalNames());
+    assertEquals(Arrays.asList("host.example.mil", "alt.example.mil"), names.getDnsNames());
+    assertEquals(Collections.singletonList("https://example.mil/id/1234567890"),
+        names.getUris());
+    assertEquals(EMAIL, names.getPrimaryEmail());
+    assertEquals("1234567890@mil", names.getPrimaryUserPrincipalName());
+    assertFalse(names.isEmpty());
+    assertThrows(UnsupportedOperationException.class, () -> names.getEmails().clear());
+  }
+
+  @Test
+  public void decode_malformed_shouldThrowX509Exception() {
+    byte[] der = DerWriter.sequence(string(0x81, EMAIL));
+    assertThrows(X509Exception.class, () -> SubjectAltNames.decode(der, 0, der.length - 1));
+    byte[] notSequence = string(0x81, EMAIL);
+    assertThrows(X509Exception.class,
+        () -> SubjectAltNames.decode(notSequence, 0, notSequence.length));
+  }
+
+  @Test
+  public void getPrimaryValidEmail_invalidFirstEntry_shouldSkipIt() throws X509Exception {
+    byte[] der = DerWriter.sequence(string(0x81, "not an address"), string(0x81, EMAIL));
+    SubjectAltNames names = SubjectAltNames.decode(der, 0, der.length);
+    assertEquals("not an address", names.getPrimaryEmail());
+    assertEquals(EMAIL, names.getPrimaryValidEmail());
+    assertNull(SubjectAltNames.EMPTY.getPrimaryValidEmail());
+  }
+
+  @Test
+  public void isValidEmail_shouldAcceptAddressesAndRejectGarbage() {
+    assertTrue(SubjectAltNames.isValidEmail(EMAIL));
+    assertTrue(SubjectAltNames.isValidEmail("first.m.last.civ@mail.mil"));
+    assertTrue(SubjectAltNames.isValidEmail("o'brien+tag@sub-domain.example.com"));
+    assertFalse(SubjectAltNames.isValidEmail(null));
+    assertFalse(SubjectAltNames.isValidEmail(""));
+    assertFalse(SubjectAltNames.isValidEmail("no-at-sign"));
+    assertFalse(SubjectAltNames.isValidEmail("@example.mil"));
+    assertFalse(SubjectAltNames.isValidEmail("user@"));
+    assertFalse(SubjectAltNames.isValidEmail("a@b@example.mil"));
+    assertFalse(SubjectAltNames.isValidEmail("user..name@example.mil"));
+    assertFalse(SubjectAltNames.isValidEmail(".user@example.mil"));
+    assertFalse(SubjectAltNames.isValidEmail("user@example..mil"));
+    assertFalse(SubjectAltNames.isValidEmail("user name@example.mil"));
+    assertFalse(SubjectAltNames.isValidEmail("user@exa_mple.mil"));
+    char[] longLocal = new char[65];
+    Arrays.fill(longLocal, 'a');
+    assertFalse(SubjectAltNames.isValidEmail(new String(longLocal) + "@example.mil"));
+  }
+
+  @Test
+  public void extractSubjectAltNamesFromCert_shouldMatchViewAndIdentity() throws Exception {
+    X509Certificate cert = X509Extraction.buildCertChainFromBase64Encoding(
+        TestCertificates.BASE64_CERT)[0];
+    SubjectAltNames names = X509Extraction.extractSubjectAltNamesFromCert(cert);
+    assertEquals(Collections.singletonList(EMAIL), names.getEmails());
+    assertTrue(names.getUserPrincipalNames().isEmpty());
+
+    X509CertificateView view = X509Extraction.buildCertViewChainFromBase64Encoding(
+        TestCertificates.BASE64_CERT)[0];
+    assertEquals(names.getEmails(), view.getSubjectAltNames().getEmails());
+    assertSame(view.getSubjectAltNames(), view.getSubjectAltNames());
+
+    X509Identity identity = new X509Identity(cert);
+    assertSame(identity.getSubjectAltNames(), identity.getSubjectAltNames());
+    assertEquals(EMAIL, identity.getEmail().getAddress());
+  }
+
+  @Test
+  public void extractSubjectAltNamesFromCert_noExtension_shouldReturnEmpty() throws Exception {
+    X509Certificate ca = X509ChainValidatorTest.pki("trust/root-ca.pem")[0];
+    assertSame(SubjectAltNames.EMPTY, X509Extraction.extractSubjectAltNamesFromCert(ca));
+    assertSame(SubjectAltNames.EMPTY, new X509Identity(ca).getSubjectAltNames());
+    assertThrows(X509Exception.class, () -> X509Extraction.extractPrimaryEmailFromCert(ca));
+  }
+}
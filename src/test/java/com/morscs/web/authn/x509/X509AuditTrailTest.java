@@ -0,0 +1,175 @@
+/*
+ *  X509AuditTrailTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class X509AuditTrailTest {
+  private static final Instant NOW = Instant.parse("2018-06-01T12:00:00Z");
+  private static final Clock CLOCK = Clock.fixed(NOW, ZoneOffset.UTC);
+
+  private final List<X509AuditEvent> written = Collections.synchronizedList(new ArrayList<>());
+  private final X509AuditSink collecting = written::addAll;
+
+  @AfterEach
+  public void uninstall() {
+    X509AuditTrail.install(null);
+  }
+
+  private static X509AuditEvent event(String reason) {
+    return new X509AuditEvent(NOW.toEpochMilli(), X509AuditEvent.Outcome.REJECTED, null, reason);
+  }
+
+  @Test
+  public void install_decisions_shouldBeWrittenOffRequestThread() throws Exception {
+    X509AuditTrail trail = new X509AuditTrail(collecting, 16,
+        X509AuditTrail.OverflowPolicy.DROP, Duration.ofMillis(5), CLOCK);
+    X509AuditTrail.install(trail);
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("javax.servlet.request.X509Certificate",
+        X509Extraction.buildCertChainFromBase64Encoding(TestCertificates.BASE64_CERT));
+    X509Identity.fromRequest(X509IdentityTest.request(attributes));
+    assertThrows(X509Exception.class,
+        () -> X509Identity.fromRequest(X509IdentityTest.request(new HashMap<>())));
+    trail.close();
+
+    assertNull(X509AuditTrail.getInstalled());
+    assertEquals(2, trail.getWrittenCount());
+    X509AuditEvent accepted = written.get(0);
+    assertEquals(X509AuditEvent.Outcome.ACCEPTED, accepted.getOutcome());
+    assertEquals(NOW.toEpochMilli(), accepted.getTime());
+    assertTrue(accepted.getSubjectDn().startsWith("CN=TARGARYEN.DAENERYS.MIDDLE.1234567890"));
+    assertEquals(1234567890L, accepted.getEdipi());
+    assertTrue(accepted.getIssuerDn().contains("sandbox"));
+    assertNull(accepted.getReason());
+    assertTrue(accepted.toJson().startsWith("{\"time\":\"2018-06-01T12:00:00Z\","
+        + "\"outcome\":\"ACCEPTED\",\"subjectDn\":\"CN=TARGARYEN"));
+    assertTrue(accepted.toJson().contains("\"edipi\":1234567890,\"serialNumber\":\""
+        + accepted.getSerialNumber() + "\""));
+    X509AuditEvent rejected = written.get(1);
+    assertEquals(X509AuditEvent.Outcome.REJECTED, rejected.getOutcome());
+    assertNull(rejected.getSubjectDn());
+    assertEquals(CommonName.NO_EDIPI, rejected.getEdipi());
+    assertFalse(rejected.getReason().isEmpty());
+  }
+
+  @Test
+  public void record_fullBufferDropPolicy_shouldCountDropped() {
+    X509AuditTrail trail = new X509AuditTrail(collecting, 3,
+        X509AuditTrail.OverflowPolicy.DROP, Duration.ofHours(1), CLOCK);
+    assertEquals(4, trail.getCapacity());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(trail.record(event("event " + i)));
+    }
+    assertFalse(trail.record(event("overflow")));
+    assertEquals(4, trail.getPendingCount());
+    trail.close();
+
+    assertEquals(1, trail.getDroppedCount());
+    assertEquals(4, written.size());
+    assertEquals("event 3", written.get(3).getReason());
+    assertFalse(trail.record(event("after close")));
+    assertEquals(2, trail.getDroppedCount());
+  }
+
+  @Test
+  public void record_fullBufferBlockPolicy_shouldWaitForRoom() throws Exception {
+    X509AuditTrail trail = new X509AuditTrail(collecting, 2,
+        X509AuditTrail.OverflowPolicy.BLOCK, Duration.ofMillis(1), CLOCK);
+    Thread[] producers = new Thread[4];
+    for (int p = 0; p < producers.length; p++) {
+      producers[p] = new Thread(() -> {
+        for (int i = 0; i < 50; i++) {
+          trail.record(event("event"));
+        }
+      });
+      producers[p].start();
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    trail.close();
+
+    assertEquals(0, trail.getDroppedCount());
+    assertEquals(200, trail.getWrittenCount());
+    assertEquals(200, written.size());
+  }
+
+  @Test
+  public void close_whileRecording_shouldWriteOrCountEveryEvent() throws Exception {
+    for (int round = 0; round < 20; round++) {
+      written.clear();
+      X509AuditTrail trail = new X509AuditTrail(collecting, 1024,
+          X509AuditTrail.OverflowPolicy.DROP, Duration.ofMillis(1), CLOCK);
+      Thread[] producers = new Thread[4];
+      for (int p = 0; p < producers.length; p++) {
+        producers[p] = new Thread(() -> {
+          for (int i = 0; i < 500; i++) {
+            trail.record(event("event"));
+          }
+        });
+        producers[p].start();
+      }
+      trail.close();
+      for (Thread producer : producers) {
+        producer.join();
+      }
+
+      assertEquals(2000, trail.getWrittenCount() + trail.getDroppedCount());
+      assertEquals(trail.getWrittenCount(), written.size());
+    }
+  }
+
+  @Test
+  public void fileSink_overMaxBytes_shouldRollFiles() throws Exception {
+    Path dir = Files.createTempDirectory("audit");
+    Path file = dir.resolve("x509-audit.log");
+    try (X509AuditFileSink sink = new X509AuditFileSink(file, 200, 2)) {
+      for (int i = 0; i < 10; i++) {
+        sink.write(Collections.singletonList(event("reason \"" + i + "\" \u00e9")));
+      }
+    }
+
+    assertTrue(Files.exists(dir.resolve("x509-audit.log.1")));
+    assertTrue(Files.exists(dir.resolve("x509-audit.log.2")));
+    assertFalse(Files.exists(dir.resolve("x509-audit.log.3")));
+    List<String> lines = Files.readAllLines(dir.resolve("x509-audit.log.1"));
+    assertEquals("{\"time\":\"2018-06-01T12:00:00Z\",\"outcome\":\"REJECTED\","
+        + "\"reason\":\"reason \\\"6\\\" \\u00E9\"}", lines.get(0));
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ *  X509AuthenticationFilterTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class X509AuthenticationFilterTest {
+  private static final String HEADER = "X-SSL-Client-Cert";
+  private static final String EXPECTED_DN = "CN=TARGARYEN.DAENERYS.MIDDLE.1234567890, OU=DoD,"
+      + " OU=PKI, OU=CONTRACTOR, O=sandbox, ST=California, C=US";
+
+  private final Map<String, Object> attributes = new HashMap<>();
+  private final Map<String, String> headers = new HashMap<>();
+  private final AtomicInteger error = new AtomicInteger();
+  private final AtomicReference<ServletRequest> passedOn = new AtomicReference<>();
+
+  private HttpServletRequest request() {
+    return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getAttribute":
+              return attributes.get(args[0]);
+            case "setAttribute":
+              attributes.put((String) args[0], args[1]);
+              return null;
+            case "getHeader":
+              return headers.get(args[0]);
+            default:
+              return null;
+          }
+        });
+  }
+
+  private HttpServletResponse response() {
+    return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> {
+          if ("sendError".equals(method.getName())) {
+            error.set((Integer) args[0]);
+          }
+          return null;
+        });
+  }
+
+  private static FilterConfig config(String sources) {
+    return (FilterConfig) Proxy.newProxyInstance(X509AuthenticationFilterTest.class
+        .getClassLoader(), new Class<?>[] {FilterConfig.class}, (proxy, method, args) ->
+        "getInitParameter".equals(method.getName())
+            && X509AuthenticationFilter.SOURCES_PARAM.equals(args[0]) ? sources : null);
+  }
+
+  private void filter(X509AuthenticationFilter filter, HttpServletRequest request)
+      throws Exception {
+    filter.doFilter(request, response(), (req, res) -> passedOn.set(req));
+  }
+
+  private static X509Certificate[] chain() throws X509Exception {
+    return X509Extraction.buildCertChainFromBase64Encoding(TestCertificates.BASE64_CERT);
+  }
+
+  @Test
+  public void doFilter_containerChain_shouldPublishIdentityAndPrincipal() throws Exception {
+    attributes.put("javax.servlet.request.X509Certificate", chain());
+    X509AuthenticationFilter filter = new X509AuthenticationFilter();
+    filter.init(config(null));
+    filter(filter, request());
+
+    HttpServletRequest downstream = (HttpServletRequest) passedOn.get();
+    X509Identity identity = (X509Identity) attributes.get(X509Identity.REQUEST_ATTRIBUTE);
+    assertEquals(EXPECTED_DN, identity.getSubjectDn());
+    assertTrue(downstream.getUserPrincipal() instanceof X509IdentityPrincipal);
+    assertSame(identity, ((X509IdentityPrincipal) downstream.getUserPrincipal()).getIdentity());
+    assertEquals(EXPECTED_DN, downstream.getRemoteUser());
+    assertEquals(HttpServletRequest.CLIENT_CERT_AUTH, downstream.getAuthType());
+    // the CDI producer and other consumers reuse the published identity
+    assertSame(identity, X509Identity.fromRequest(downstream));
+  }
+
+  @Test
+  public void doFilter_headerFirst_shouldFollowPrecedence() throws Exception {
+    X509AuthenticationFilter filter = new X509AuthenticationFilter();
+    filter.init(config("header:" + HEADER + ", attribute"));
+
+    attributes.put("javax.servlet.request.X509Certificate",
+        new X509Certificate[] {X509ChainValidatorTest.pki("client-4097.pem")[0]});
+    headers.put(HEADER, TestCertificates.BASE64_CERT);
+    filter(filter, request());
+    assertEquals(EXPECTED_DN,
+        ((X509Identity) attributes.get(X509Identity.REQUEST_ATTRIBUTE)).getSubjectDn());
+
+    attributes.remove(X509Identity.REQUEST_ATTRIBUTE);
+    headers.clear();
+    filter(filter, request());
+    assertEquals("CN=TARGARYEN.DAENERYS.MIDDLE.1234567890, OU=CONTRACTOR, OU=PKI, OU=DoD,"
+        + " O=U.S. Government, C=US",
+        ((X509Identity) attributes.get(X509Identity.REQUEST_ATTRIBUTE)).getSubjectDn());
+  }
+
+  @Test
+  public void doFilter_cachedHeader_shouldParseOnce() throws Exception {
+    X509IdentityCache cache = new X509IdentityCache(10, Duration.ofHours(1),
+        Clock.fixed(Instant.parse("2018-06-01T00:00:00Z"), ZoneOffset.UTC));
+    X509AuthenticationFilter filter =
+        new X509AuthenticationFilter(Collections.singletonList("header:" + HEADER), cache);
+    headers.put(HEADER, TestCertificates.BASE64_CERT);
+    filter(filter, request());
+    attributes.clear();
+    filter(filter, request());
+
+    assertEquals(EXPECTED_DN,
+        ((HttpServletRequest) passedOn.get()).getUserPrincipal().getName());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void doFilter_xfccHeader_shouldUseNearestProxyElement() throws Exception {
+    X509AuthenticationFilter filter = new X509AuthenticationFilter(
+        Collections.singletonList("xfcc:" + X509ForwardedClientCert.HEADER), null);
+    headers.put(X509ForwardedClientCert.HEADER, "By=spiffe://mesh/edge;Cert=garbage,"
+        + "By=spiffe://mesh/app;Cert=\""
+        + X509ForwardedClientCertTest.escapedPem(TestCertificates.BASE64_CERT) + "\"");
+    filter(filter, request());
+    assertEquals(EXPECTED_DN,
+        ((HttpServletRequest) passedOn.get()).getUserPrincipal().getName());
+
+    attributes.clear();
+    passedOn.set(null);
+    headers.put(X509ForwardedClientCert.HEADER, "By=spiffe://mesh/app;Subject");
+    filter(filter, request());
+    assertEquals(HttpServletResponse.SC_BAD_REQUEST, error.get());
+    assertNull(passedOn.get());
+  }
+
+  @Test
+  public void doFilter_tokenHeader_shouldAcceptVerifiedToken() throws Exception {
+    X509IdentityTokenCodec tokens = new X509IdentityTokenCodec(
+        "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII),
+        Duration.ofMinutes(5),
+        Clock.fixed(Instant.parse("2018-06-01T00:00:00Z"), ZoneOffset.UTC));
+    String token = tokens.mint(new X509Identity(chain()[0]));
+    X509AuthenticationFilter filter = new X509AuthenticationFilter(
+        Arrays.asList("token:X-Client-Identity", "header:" + HEADER), null, tokens);
+    headers.put("X-Client-Identity", token);
+    filter(filter, request());
+    assertEquals(EXPECTED_DN,
+        ((HttpServletRequest) passedOn.get()).getUserPrincipal().getName());
+
+    attributes.clear();
+    passedOn.set(null);
+    headers.put("X-Client-Identity", token.substring(1));
+    filter(filter, request());
+    assertEquals(HttpServletResponse.SC_BAD_REQUEST, error.get());
+    assertNull(passedOn.get());
+  }
+
+  @Test
+  public void doFilter_noCert_shouldPassRequestThrough() throws Exception {
+    X509AuthenticationFilter filter =
+        new X509AuthenticationFilter(Arrays.asList("attribute", "header:" + HEADER), null);
+    HttpServletRequest request = request();
+    filter(filter, request);
+    assertSame(request, passedOn.get());
+    assertNull(attributes.get(X509Identity.REQUEST_ATTRIBUTE));
+  }
+
+  @Test
+  public void doFilter_anonymousIdentity_shouldPassRequestThrough() throws Exception {
+    attributes.put(X509Identity.REQUEST_ATTRIBUTE, new X509Identity("CN=anonymous"));
+    X509AuthenticationFilter filter = new X509AuthenticationFilter();
+    filter.init(config("attribute"));
+    HttpServletRequest request = request();
+    filter(filter, request);
+    assertSame(request, passedOn.get());
+  }
+
+  @Test
+  public void doFilter_unreadableHeader_shouldRespondBadRequest() throws Exception {
+    headers.put(HEADER, "-----BEGIN CERTIFICATE-----bm90IGEgY2VydA==-----END CERTIFICATE-----");
+    X509AuthenticationFilter filter =
+        new X509AuthenticationFilter(Collections.singletonList("header:" + HEADER), null);
+    filter(filter, request());
+    assertEquals(HttpServletResponse.SC_BAD_REQUEST, error.get());
+    assertNull(passedOn.get());
+  }
+
+  @Test
+  public void init_unknownSource_shouldThrowServletException() {
+    assertThrows(ServletException.class,
+        () -> new X509AuthenticationFilter().init(config("attribute,cookie:cert")));
+    assertThrows(IllegalArgumentException.class,
+        () -> new X509AuthenticationFilter(Collections.emptyList(), null));
+    assertThrows(ServletException.class,
+        () -> new X509AuthenticationFilter().init(config("token:X-Client-Identity")));
+  }
+}
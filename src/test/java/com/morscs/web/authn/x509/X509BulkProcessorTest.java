@@ -0,0 +1,232 @@
+/*
+ *  X509BulkProcessorTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class X509BulkProcessorTest {
+  private Path directory;
+  private String pkiClient;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("bulk");
+    pkiClient = Base64.getEncoder().encodeToString(
+        X509ChainValidatorTest.pki("client-4097.pem")[0].getEncoded());
+  }
+
+  @AfterEach
+  public void deleteDirectory() throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private static void copyResource(String name, Path target) throws IOException {
+    Files.copy(X509BulkProcessorTest.class.getResourceAsStream("/pki/" + name), target);
+  }
+
+  @Test
+  public void processEncoded_duplicatesAndErrors_shouldReportEachDistinctInputOnce() {
+    List<X509BulkResult> results = new ArrayList<>();
+    List<String> inputs = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      inputs.add(i % 2 == 0 ? TestCertificates.BASE64_CERT : pkiClient);
+    }
+    inputs.add("not base64 at all!");
+    try (X509BulkProcessor processor = new X509BulkProcessor(4)) {
+      processor.processEncoded(inputs.stream(), results::add);
+
+      assertEquals(3, results.size());
+      assertEquals(998, processor.getDuplicateCount());
+      assertEquals(1, processor.getFailureCount());
+    }
+
+    X509BulkResult first = results.get(0);
+    assertEquals("1", first.getSource());
+    assertEquals("TARGARYEN.DAENERYS.MIDDLE.1234567890", first.getCn());
+    assertEquals("TARGARYEN", first.getLastName());
+    assertEquals("DAENERYS", first.getFirstName());
+    assertEquals("MIDDLE", first.getMiddleName());
+    assertEquals(1234567890L, first.getEdipi());
+    assertEquals("daenerys.targeryen@dragonstone.got", first.getEmail());
+    assertTrue(first.getNotBefore() < first.getNotAfter());
+    assertFalse(first.isFailure());
+
+    assertEquals("2", results.get(1).getSource());
+    assertEquals("1001", results.get(1).getSerialNumber());
+    assertEquals("1001", results.get(2).getSource());
+    assertTrue(results.get(2).isFailure());
+    assertNull(results.get(2).getSubjectDn());
+  }
+
+  @Test
+  public void processEncoded_configuredCnFormats_shouldParseCnInIssuerFormat() {
+    X509Extraction.useCnFormats(CnFormats.of(new CnFormat() {
+      @Override
+      public String getName() {
+        return "reversed";
+      }
+
+      @Override
+      public CommonName parse(CharSequence cn) {
+        return new CommonName(987654321L, "DAENERYS", "TARGARYEN", null);
+      }
+    }));
+    List<X509BulkResult> results = new ArrayList<>();
+    try (X509BulkProcessor processor = new X509BulkProcessor(1)) {
+      processor.processEncoded(Stream.of(TestCertificates.BASE64_CERT), results::add);
+    } finally {
+      X509Extraction.useCnFormats(null);
+    }
+
+    assertEquals("DAENERYS", results.get(0).getLastName());
+    assertNull(results.get(0).getMiddleName());
+    assertEquals(987654321L, results.get(0).getEdipi());
+  }
+
+  @Test
+  public void processEncoded_manyBatches_shouldKeepInputOrder() {
+    List<String> inputs = IntStream.range(0, 5000)
+        .mapToObj(i -> i % 7 == 0 ? "bad-" + i : TestCertificates.BASE64_CERT)
+        .collect(Collectors.toList());
+    List<X509BulkResult> results = new ArrayList<>();
+    try (X509BulkProcessor processor = new X509BulkProcessor(8)) {
+      processor.processEncoded(inputs.iterator(), results::add);
+    }
+
+    List<Long> sources = results.stream().map(result -> Long.parseLong(result.getSource()))
+        .collect(Collectors.toList());
+    List<Long> sorted = new ArrayList<>(sources);
+    Collections.sort(sorted);
+    assertEquals(sorted, sources);
+    assertEquals(1 + 715, results.size());
+  }
+
+  @Test
+  public void processDirectory_pemDerAndBundles_shouldReportEveryCertificate() throws Exception {
+    copyResource("client-4097.pem", directory.resolve("client.pem"));
+    Files.createDirectory(directory.resolve("nested"));
+    X509Certificate client = X509ChainValidatorTest.pki("client-4098.pem")[0];
+    Files.write(directory.resolve("nested").resolve("client.cer"), client.getEncoded());
+    Files.write(directory.resolve("bundle.crt"), (new String(Files.readAllBytes(
+        directory.resolve("client.pem")), StandardCharsets.US_ASCII)
+        + new String(X509ChainValidatorTest.readAll(getClass().getResourceAsStream(
+            "/pki/trust/intermediate-ca.pem")), StandardCharsets.US_ASCII))
+        .getBytes(StandardCharsets.US_ASCII));
+    Files.write(directory.resolve("broken.pem"), "garbage".getBytes(StandardCharsets.US_ASCII));
+    Files.write(directory.resolve("notes.txt"), "ignored".getBytes(StandardCharsets.US_ASCII));
+
+    List<X509BulkResult> results = new ArrayList<>();
+    try (X509BulkProcessor processor = new X509BulkProcessor(2)) {
+      processor.processDirectory(directory, results::add);
+      assertEquals(1, processor.getDuplicateCount());
+    }
+
+    assertEquals(4, results.size());
+    assertEquals(1, results.stream().filter(X509BulkResult::isFailure).count());
+    assertTrue(results.stream().anyMatch(result -> "1002".equals(result.getSerialNumber())));
+    assertTrue(results.stream().anyMatch(result -> result.getSource().endsWith("#2")
+        && result.getEdipi() == CommonName.NO_EDIPI));
+  }
+
+  @Test
+  public void cli_stdinToCsv_shouldWriteHeaderAndRows() {
+    String input = TestCertificates.BASE64_CERT + "\n\n" + pkiClient + "\n"
+        + TestCertificates.BASE64_CERT + "\n";
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    int status = X509BulkCli.run(new String[] {"--threads", "2"},
+        new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)), out,
+        new PrintStream(err));
+
+    assertEquals(0, status);
+    String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    assertEquals(3, lines.length);
+    assertEquals(String.join(",", X509BulkCli.COLUMNS), lines[0]);
+    assertTrue(lines[1].startsWith("1,\"CN=TARGARYEN.DAENERYS.MIDDLE.1234567890,"), lines[1]);
+    assertTrue(lines[2].contains(",1234567890,"), lines[2]);
+    assertTrue(new String(err.toByteArray(), StandardCharsets.UTF_8).contains("1 duplicates"));
+  }
+
+  @Test
+  public void cli_directoryToJsonLines_shouldWriteOneObjectPerCertificate() throws Exception {
+    copyResource("client-4097.pem", directory.resolve("client.pem"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int status = X509BulkCli.run(new String[] {"--format", "jsonl", directory.toString()},
+        new ByteArrayInputStream(new byte[0]), out, new PrintStream(new ByteArrayOutputStream()));
+
+    assertEquals(0, status);
+    String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    assertEquals(1, lines.length);
+    JsonNode json = new ObjectMapper().readTree(lines[0]);
+    assertEquals(1234567890L, json.get("edipi").asLong());
+    assertEquals("1001", json.get("serialNumber").asText());
+    assertFalse(json.has("error"));
+  }
+
+  @Test
+  public void cli_stdinToJsonLines_shouldWriteOneObjectPerLine() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int status = X509BulkCli.run(new String[] {"--format", "jsonl", "--threads", "1"},
+        new ByteArrayInputStream("@@\n##\n".getBytes(StandardCharsets.US_ASCII)), out,
+        new PrintStream(new ByteArrayOutputStream()));
+
+    assertEquals(0, status);
+    assertArrayEquals(("{\"source\":\"1\",\"error\":\"Illegal base64 character 40 at index 0\"}\n"
+        + "{\"source\":\"2\",\"error\":\"Illegal base64 character 23 at index 0\"}\n")
+        .getBytes(StandardCharsets.UTF_8), out.toByteArray());
+  }
+
+  @Test
+  public void cli_invalidArguments_shouldExitWithUsage() {
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    assertEquals(2, X509BulkCli.run(new String[] {"--format", "xml"},
+        new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream(),
+        new PrintStream(err)));
+    assertTrue(new String(err.toByteArray(), StandardCharsets.UTF_8).contains("usage"));
+  }
+}
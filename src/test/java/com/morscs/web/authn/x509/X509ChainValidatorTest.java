@@ -0,0 +1,157 @@
+/*
+ *  X509ChainValidatorTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.cert.PKIXCertPathValidatorResult;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class X509ChainValidatorTest {
+  private static final Clock NOW = Clock.fixed(Instant.parse("2100-01-01T00:00:00Z"),
+      ZoneOffset.UTC);
+
+  /**
+   * Certificates from a test PKI resource, see pki/generate.sh.
+   */
+  static X509Certificate[] pki(String... names) throws X509Exception, IOException {
+    List<X509Certificate> certs = new ArrayList<>();
+    for (String name : names) {
+      try (InputStream in = X509ChainValidatorTest.class.getResourceAsStream("/pki/" + name)) {
+        byte[] data = readAll(in);
+        Collections.addAll(certs, X509Extraction.generateCertChain(data, data.length));
+      }
+    }
+    return certs.toArray(new X509Certificate[0]);
+  }
+
+  static X509TrustStore trustStore() throws X509Exception, URISyntaxException {
+    Path trust = Paths.get(X509ChainValidatorTest.class.getResource("/pki/trust").toURI());
+    return X509TrustStore.fromPemDirectory(trust);
+  }
+
+  static byte[] readAll(InputStream in) throws IOException {
+    byte[] buffer = new byte[4096];
+    int length = 0;
+    for (int read; (read = in.read(buffer, length, buffer.length - length)) > 0; ) {
+      length += read;
+    }
+    return Arrays.copyOf(buffer, length);
+  }
+
+  @Test
+  public void validate_fullChain_shouldReturnRootAnchor() throws Exception {
+    X509Certificate[] root = pki("trust/root-ca.pem");
+    X509ChainValidator validator = new X509ChainValidator(trustStore(), 10, Duration.ZERO, NOW);
+    PKIXCertPathValidatorResult result =
+        validator.validate(pki("client-4097.pem", "trust/intermediate-ca.pem"));
+    assertEquals(root[0], result.getTrustAnchor().getTrustedCert());
+  }
+
+  @Test
+  public void validate_leafOnly_shouldCompleteFromIntermediateStoreAndCache() throws Exception {
+    X509Certificate[] chain = pki("client-4097.pem");
+    X509ChainValidator validator = new X509ChainValidator(trustStore(), 10, Duration.ZERO, NOW);
+    PKIXCertPathValidatorResult first = validator.validate(chain);
+    assertSame(first, validator.validate(chain));
+    assertSame(chain[0], validator.extractValidatedPrimaryCert(chain));
+    assertEquals(1, validator.getValidationCount());
+    assertEquals(2, validator.getHitCount());
+  }
+
+  @Test
+  public void validate_untrustedRoot_shouldThrowAndRememberFailure() throws Exception {
+    X509Certificate[] chain = pki("other-ca.pem");
+    X509ChainValidator validator =
+        new X509ChainValidator(trustStore(), 10, Duration.ofMinutes(1), NOW);
+    assertThrows(X509Exception.class, () -> validator.validate(chain));
+    assertThrows(X509Exception.class, () -> validator.validate(chain));
+    assertEquals(1, validator.getValidationCount());
+    assertEquals(1, validator.getFailureCount());
+  }
+
+  @Test
+  public void validate_afterNotAfter_shouldReject() throws Exception {
+    Clock later = Clock.fixed(Instant.parse("2200-01-01T00:00:00Z"), ZoneOffset.UTC);
+    X509ChainValidator validator = new X509ChainValidator(trustStore(), 10, Duration.ZERO, later);
+    assertThrows(X509Exception.class, () -> validator.validate(pki("client-4097.pem")));
+    assertEquals(0, validator.size());
+  }
+
+  @Test
+  public void validate_concurrentSameChain_shouldValidateOnce() throws Exception {
+    X509Certificate[] chain = pki("client-4098.pem", "trust/intermediate-ca.pem");
+    X509ChainValidator validator = new X509ChainValidator(trustStore(), 10, Duration.ZERO, NOW);
+    int threads = 8;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<PKIXCertPathValidatorResult>> results = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        results.add(executor.submit(() -> {
+          start.await();
+          return validator.validate(chain);
+        }));
+      }
+      start.countDown();
+      PKIXCertPathValidatorResult expected = results.get(0).get();
+      for (Future<PKIXCertPathValidatorResult> result : results) {
+        assertSame(expected, result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, validator.getValidationCount());
+    assertEquals(threads - 1, validator.getHitCount() + validator.getCollapsedCount());
+  }
+
+  @Test
+  public void fromKeyStore_trustedEntries_shouldValidate() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    keyStore.load(null, null);
+    keyStore.setCertificateEntry("root", pki("trust/root-ca.pem")[0]);
+    X509TrustStore trustStore = X509TrustStore.fromKeyStore(keyStore,
+        Arrays.asList(pki("trust/intermediate-ca.pem")));
+    X509ChainValidator validator = new X509ChainValidator(trustStore, 10, Duration.ZERO, NOW);
+    validator.validate(pki("client-4097.pem"));
+    assertEquals(1, validator.size());
+  }
+}
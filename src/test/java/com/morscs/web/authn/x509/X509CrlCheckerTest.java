@@ -0,0 +1,148 @@
+/*
+ *  X509CrlCheckerTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class X509CrlCheckerTest {
+  private static final Clock NOW = Clock.fixed(Instant.parse("2100-01-01T00:00:00Z"),
+      ZoneOffset.UTC);
+
+  private Path crlDirectory;
+  private Path indexFile;
+
+  @BeforeEach
+  public void createDirectories() throws IOException {
+    crlDirectory = Files.createTempDirectory("crl");
+    indexFile = Files.createTempDirectory("crl-index").resolve("crl.idx");
+  }
+
+  @AfterEach
+  public void deleteDirectories() throws IOException {
+    delete(crlDirectory);
+    delete(indexFile.getParent());
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private void addCrl(String name) throws IOException {
+    try (InputStream in = getClass().getResourceAsStream("/pki/crl/" + name)) {
+      Files.copy(in, crlDirectory.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  @Test
+  public void check_revokedSerial_shouldReportRevoked() throws Exception {
+    addCrl("root-ca.crl");
+    addCrl("intermediate-ca.pem");
+    X509CrlChecker checker = new X509CrlChecker(crlDirectory, indexFile,
+        X509ChainValidatorTest.trustStore(), NOW);
+    X509Certificate good = X509ChainValidatorTest.pki("client-4097.pem")[0];
+    X509Certificate revoked = X509ChainValidatorTest.pki("client-4098.pem")[0];
+    X509Certificate intermediate = X509ChainValidatorTest.pki("trust/intermediate-ca.pem")[0];
+
+    assertEquals(RevocationStatus.GOOD, checker.check(good));
+    assertEquals(RevocationStatus.REVOKED, checker.check(revoked));
+    assertEquals(RevocationStatus.GOOD, checker.check(intermediate));
+    assertEquals(RevocationStatus.GOOD,
+        checker.check(X509CertificateView.parse(good.getEncoded())));
+    assertEquals(RevocationStatus.REVOKED,
+        checker.check(X509CertificateView.parse(revoked.getEncoded())));
+    assertEquals(2, checker.getIssuerCount());
+    assertEquals(1, checker.getEntryCount());
+  }
+
+  @Test
+  public void check_issuerWithoutCrl_shouldReportUnknown() throws Exception {
+    addCrl("root-ca.crl");
+    X509CrlChecker checker = new X509CrlChecker(crlDirectory, indexFile, null, NOW);
+    assertEquals(RevocationStatus.UNKNOWN,
+        checker.check(X509ChainValidatorTest.pki("client-4098.pem")[0]));
+    assertEquals(RevocationStatus.UNKNOWN,
+        checker.check(X509ChainValidatorTest.pki("other-ca.pem")[0]));
+    assertEquals(2, checker.getUnknownCount());
+  }
+
+  @Test
+  public void check_crlPastNextUpdate_shouldReportUnknown() throws Exception {
+    addCrl("intermediate-ca.pem");
+    Clock later = Clock.fixed(Instant.parse("2200-01-01T00:00:00Z"), ZoneOffset.UTC);
+    X509CrlChecker checker = new X509CrlChecker(crlDirectory, indexFile, null, later);
+    assertEquals(RevocationStatus.UNKNOWN,
+        checker.check(X509ChainValidatorTest.pki("client-4098.pem")[0]));
+  }
+
+  @Test
+  public void reload_newCrlFile_shouldSwapIndex() throws Exception {
+    addCrl("root-ca.crl");
+    X509CrlChecker checker = new X509CrlChecker(crlDirectory, indexFile, null, NOW);
+    X509Certificate revoked = X509ChainValidatorTest.pki("client-4098.pem")[0];
+    assertEquals(RevocationStatus.UNKNOWN, checker.check(revoked));
+    assertFalse(checker.reload());
+
+    addCrl("intermediate-ca.pem");
+    assertTrue(checker.reload());
+    assertEquals(RevocationStatus.REVOKED, checker.check(revoked));
+    assertEquals(2, checker.getReloadCount());
+  }
+
+  @Test
+  public void construct_existingIndex_shouldReuseWithoutCompiling() throws Exception {
+    addCrl("intermediate-ca.pem");
+    new X509CrlChecker(crlDirectory, indexFile, null, NOW);
+    X509CrlChecker reopened = new X509CrlChecker(crlDirectory, indexFile, null, NOW);
+    assertEquals(0, reopened.getReloadCount());
+    assertEquals(RevocationStatus.REVOKED,
+        reopened.check(X509ChainValidatorTest.pki("client-4098.pem")[0]));
+  }
+
+  @Test
+  public void construct_crlNotSignedByTrustedCa_shouldThrow() throws Exception {
+    addCrl("intermediate-ca.pem");
+    X509TrustStore otherCa = X509TrustStore.of(
+        Collections.singletonList(X509ChainValidatorTest.pki("other-ca.pem")[0]),
+        Collections.emptyList());
+    assertThrows(X509Exception.class,
+        () -> new X509CrlChecker(crlDirectory, indexFile, otherCa, NOW));
+  }
+}
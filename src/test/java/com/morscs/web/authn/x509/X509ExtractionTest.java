@@ -24,8 +24,12 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import org.junit.jupiter.api.Test;
 
+import java.net.URLEncoder;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
 import javax.mail.internet.InternetAddress;
+import javax.security.auth.x500.X500Principal;
 
 public class X509ExtractionTest {
   private static final String EXPECTED_FULL_CN = "TARGARYEN.DAENERYS.MIDDLE.1234567890";
@@ -140,4 +144,201 @@ public class X509ExtractionTest {
         X509Extraction.extractPrimaryEmailFromCert(X509Extraction.extractPrimaryCertFromChain(certChain)));
   }
 
+  @Test
+  public void readEmail_quotedLocalPart_shouldOnlyFailLightweightCheck() throws X509Exception {
+    SubjectAltNames names = SubjectAltNames.primary("\"daenerys targaryen\"@dragonstone.got", null);
+    assertEquals("\"daenerys targaryen\"@dragonstone.got",
+        X509Extraction.readEmail(names).getAddress());
+    X509Extraction.useLightweightEmailCheck(true);
+    try {
+      assertThrows(X509Exception.class, () -> X509Extraction.readEmail(names));
+      assertEquals(EXPECTED_EMAIL, X509Extraction.readEmail(
+          SubjectAltNames.primary(EXPECTED_EMAIL, null)).getAddress());
+    } finally {
+      X509Extraction.useLightweightEmailCheck(false);
+    }
+  }
+
+  @Test
+  public void scanCnFromSubjectDn_validSubjectDn_shouldMatchSplitBasedExtraction() {
+    for (String subject : SUPPORTED_FULL_SUBJECT_DN) {
+      assertEquals(EXPECTED_FULL_CN, X509Extraction.scanCnFromSubjectDn(subject));
+    }
+    for (String subject : SUPPORTED_NO_MIDDLE_SUBJECT_DN) {
+      assertEquals(EXPECTED_NO_MIDDLE_CN, X509Extraction.scanCnFromSubjectDn(subject));
+    }
+    for (String subject : INVALID_SUBJECT_DN) {
+      assertNull(X509Extraction.scanCnFromSubjectDn(subject));
+    }
+    assertThrows(NullPointerException.class, () -> X509Extraction.scanCnFromSubjectDn(null));
+  }
+
+  @Test
+  public void scanCnFromSubjectDn_escapedSubjectDn_shouldHonorEscaping() {
+    assertEquals(EXPECTED_FULL_CN, X509Extraction.scanCnFromSubjectDn(
+        "O=U.S. Government\\, Inc.,CN=TARGARYEN.DAENERYS.MIDDLE.1234567890"));
+    assertEquals(EXPECTED_FULL_CN, X509Extraction.scanCnFromSubjectDn(
+        "UID=a\\=b+CN=TARGARYEN.DAENERYS.MIDDLE.1234567890, OU=DoD"));
+    assertEquals("U.S. Government, Inc.", X509Extraction.scanAttributeFromSubjectDn(
+        "CN=x, O=\"U.S. Government, Inc.\", C=US", "O"));
+    assertEquals("U.S. Government, Inc.", X509Extraction.scanAttributeFromSubjectDn(
+        "CN=x,O=U.S. Government\\2C Inc.,C=US", "o"));
+    assertEquals("caf\u00e9", X509Extraction.scanAttributeFromSubjectDn(
+        "CN=caf\\C3\\A9", "CN"));
+    assertEquals("trailing ", X509Extraction.scanAttributeFromSubjectDn(
+        "CN=trailing\\ ,C=US", "CN"));
+  }
+
+  @Test
+  public void scanEdipiFromSubjectDn_validSubjectDn_shouldExtractEdipi() throws X509Exception {
+    for (String subject : SUPPORTED_FULL_SUBJECT_DN) {
+      assertEquals(EXPECTED_EDIPI, X509Extraction.scanEdipiFromSubjectDn(subject));
+    }
+    for (String subject : SUPPORTED_NO_MIDDLE_SUBJECT_DN) {
+      assertEquals(EXPECTED_EDIPI, X509Extraction.scanEdipiFromSubjectDn(subject));
+    }
+    assertThrows(X509Exception.class, () -> X509Extraction.scanEdipiFromSubjectDn("OU=DoD"));
+    assertThrows(X509Exception.class, () ->
+        X509Extraction.scanEdipiFromSubjectDn("CN=hello.world.middle.123xxx456"));
+  }
+
+  @Test
+  public void scanCommonNameFromCn_validCn_shouldProduceCorrectCommonName()
+      throws X509Exception {
+    CommonName cnObj = X509Extraction.scanCommonNameFromCn(SUPPORTED_FULL_DN_CN);
+    assertEquals(EXPECTED_FIRST_NAME, cnObj.getFirstName());
+    assertEquals(EXPECTED_LAST_NAME, cnObj.getLastName());
+    assertEquals(EXPECTED_MIDDLE_NAME, cnObj.getMiddleName());
+    assertEquals(EXPECTED_EDIPI, cnObj.getEdipi());
+
+    cnObj = X509Extraction.scanCommonNameFromCn(SUPPORTED_NO_MIDDLE_DN_CN);
+    assertEquals(EXPECTED_FIRST_NAME, cnObj.getFirstName());
+    assertEquals(EXPECTED_LAST_NAME, cnObj.getLastName());
+    assertNull(cnObj.getMiddleName());
+    assertEquals(EXPECTED_EDIPI, cnObj.getEdipi());
+  }
+
+  @Test
+  public void scanCommonNameFromCn_invalidCn_shouldProduceException() {
+    assertThrows(NullPointerException.class, () -> X509Extraction.scanCommonNameFromCn(null));
+    assertThrows(X509Exception.class, () -> X509Extraction.scanCommonNameFromCn("hello.world"));
+    assertThrows(X509Exception.class, () ->
+        X509Extraction.scanCommonNameFromCn("hello.world.middle.123xxx456"));
+    assertThrows(X509Exception.class, () ->
+        X509Extraction.scanCommonNameFromCn("hello.world.middle.unexpectedPart.11111"));
+    assertThrows(X509Exception.class, () ->
+        X509Extraction.scanEdipiFromCn("hello.world.middle.99999999999999999999"));
+  }
+
+  @Test
+  public void buildCertViewChainFromBase64Encoding_validCert_shouldMatchFullCertificate()
+      throws X509Exception {
+    for (String encoded : new String[] {BASE64_CERT, BASE64_CERT_NOEMAIL}) {
+      X509CertificateView view = X509Extraction.extractPrimaryCertViewFromChain(
+          X509Extraction.buildCertViewChainFromBase64Encoding(encoded));
+      X509Certificate cert = X509Extraction.extractPrimaryCertFromChain(
+          X509Extraction.buildCertChainFromBase64Encoding(encoded));
+
+      assertEquals(EXPECTED_FULL_CN, view.getSubjectCn());
+      assertEquals(cert.getSubjectX500Principal(), new X500Principal(view.getSubjectDn()));
+      assertEquals(cert.getIssuerX500Principal(), new X500Principal(view.getIssuerDn()));
+      assertEquals(cert.getSerialNumber(), view.getSerialNumber());
+      assertEquals(cert.getNotBefore().toInstant(), view.getNotBefore());
+      assertEquals(cert.getNotAfter().toInstant(), view.getNotAfter());
+      assertEquals(EXPECTED_FULL_CN, X509Extraction.scanCnFromSubjectDn(view.getSubjectDn()));
+      assertEquals(cert, view.toX509Certificate());
+    }
+  }
+
+  @Test
+  public void buildCertViewChainFromBase64Encoding_sanPresent_shouldIdentifyEmail()
+      throws X509Exception {
+    X509CertificateView view = X509Extraction.extractPrimaryCertViewFromChain(
+        X509Extraction.buildCertViewChainFromBase64Encoding(BASE64_CERT));
+    assertEquals(EXPECTED_EMAIL, view.getRfc822Name());
+
+    view = X509Extraction.extractPrimaryCertViewFromChain(
+        X509Extraction.buildCertViewChainFromBase64Encoding(BASE64_CERT_NOEMAIL));
+    assertNull(view.getRfc822Name());
+  }
+
+  @Test
+  public void buildCertViewChainFromBase64Encoding_concatenatedCerts_shouldSplitChain()
+      throws X509Exception {
+    byte[] first = Base64.getDecoder().decode(BASE64_CERT);
+    byte[] second = Base64.getDecoder().decode(BASE64_CERT_NOEMAIL);
+    byte[] both = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+
+    X509CertificateView[] chain = X509Extraction
+        .buildCertViewChainFromBase64Encoding(Base64.getEncoder().encodeToString(both));
+    assertEquals(2, chain.length);
+    assertEquals(first.length, chain[0].getEncodedLength());
+    assertEquals(second.length, chain[1].getEncodedLength());
+  }
+
+  @Test
+  public void buildCertViewChainFromBase64Encoding_truncatedCert_shouldThrowX509Exception() {
+    byte[] der = Base64.getDecoder().decode(BASE64_CERT);
+    String truncated = Base64.getEncoder().encodeToString(Arrays.copyOf(der, der.length / 2));
+    assertThrows(X509Exception.class, () ->
+        X509Extraction.buildCertViewChainFromBase64Encoding(truncated));
+  }
+
+  @Test
+  public void buildCertChainFromEncodedHeader_proxyFormats_shouldProduceSameChain()
+      throws Exception {
+    X509Certificate expected = X509Extraction.extractPrimaryCertFromChain(
+        X509Extraction.buildCertChainFromBase64Encoding(BASE64_CERT));
+    String pem = toPem(BASE64_CERT);
+    String[] headers = {
+        pem,
+        pem.replace('\n', ' '),
+        "subject=/CN=TARGARYEN.DAENERYS.MIDDLE.1234567890\n" + pem,
+        URLEncoder.encode(pem, "UTF-8").replace("+", "%20"),
+        BASE64_CERT.replace("/", "%2F").replace("+", "%2B")};
+    for (String header : headers) {
+      X509Certificate[] chain = X509Extraction.buildCertChainFromEncodedHeader(header);
+      assertEquals(1, chain.length, "chain length for input(" + header + ")");
+      assertEquals(expected, chain[0]);
+    }
+  }
+
+  @Test
+  public void buildCertChainFromEncodedHeader_multipleCerts_shouldReadWholeChain()
+      throws X509Exception {
+    X509Certificate[] chain = X509Extraction.buildCertChainFromEncodedHeader(
+        toPem(BASE64_CERT) + toPem(BASE64_CERT_NOEMAIL));
+    assertEquals(2, chain.length);
+
+    byte[] first = Base64.getDecoder().decode(BASE64_CERT);
+    byte[] second = Base64.getDecoder().decode(BASE64_CERT_NOEMAIL);
+    byte[] both = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+    chain = X509Extraction.buildCertChainFromBase64Encoding(
+        Base64.getEncoder().encodeToString(both));
+    assertEquals(2, chain.length);
+    assertEquals(EXPECTED_EMAIL, X509Extraction.extractPrimaryEmailFromCert(chain[0]).getAddress());
+  }
+
+  @Test
+  public void buildCertChainFromEncodedHeader_invalidEncoding_shouldThrow() {
+    assertThrows(IllegalArgumentException.class, () ->
+        X509Extraction.buildCertChainFromEncodedHeader("not*base64"));
+    assertThrows(IllegalArgumentException.class, () ->
+        X509Extraction.buildCertChainFromEncodedHeader(BASE64_CERT.substring(3)));
+    assertThrows(X509Exception.class, () ->
+        X509Extraction.buildCertChainFromEncodedHeader(BASE64_CERT.substring(0, 400)));
+    assertThrows(NullPointerException.class, () ->
+        X509Extraction.buildCertChainFromEncodedHeader(null));
+  }
+
+  private static String toPem(String base64) {
+    StringBuilder pem = new StringBuilder("-----BEGIN CERTIFICATE-----\n");
+    for (int i = 0; i < base64.length(); i += 64) {
+      pem.append(base64, i, Math.min(base64.length(), i + 64)).append('\n');
+    }
+    return pem.append("-----END CERTIFICATE-----\n").toString();
+  }
+
 }
@@ -0,0 +1,143 @@
+/*
+ *  X509ForwardedClientCertTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.morscs.web.authn.x509.X509Exception.Code;
+import org.junit.jupiter.api.Test;
+
+import java.net.URLEncoder;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+public class X509ForwardedClientCertTest {
+  private static final String SUBJECT =
+      "CN=TARGARYEN.DAENERYS.MIDDLE.1234567890,OU=DoD,OU=PKI,OU=CONTRACTOR,O=sandbox,"
+          + "ST=California,C=US";
+
+  static String escapedPem(String base64) throws Exception {
+    String pem = "-----BEGIN CERTIFICATE-----\n" + base64 + "\n-----END CERTIFICATE-----\n";
+    return URLEncoder.encode(pem, "UTF-8").replace("+", "%20");
+  }
+
+  static String hash(String base64) {
+    return X509Fingerprint.of(Base64.getDecoder().decode(base64)).toHex();
+  }
+
+  @Test
+  public void parse_multipleElements_shouldSplitPairsAndUnquote() throws Exception {
+    String header = "By=spiffe://mesh/edge;Hash=" + hash(TestCertificates.BASE64_CERT)
+        + ";Subject=\"CN=EDGE,O=\\\"Mesh, Inc.\\\"\";URI=spiffe://mesh/client, "
+        + "By=spiffe://mesh/app;Cert=\"" + escapedPem(TestCertificates.BASE64_CERT)
+        + "\";Subject=\"" + SUBJECT + "\";URI=spiffe://mesh/edge;DNS=a.mesh;DNS=b.mesh;"
+        + "Future=ignored";
+    List<X509ForwardedClientCert> elements = X509Extraction.parseForwardedClientCert(header);
+
+    assertEquals(2, elements.size());
+    X509ForwardedClientCert edge = elements.get(0);
+    assertEquals("spiffe://mesh/edge", edge.getBy());
+    assertEquals("CN=EDGE,O=\"Mesh, Inc.\"", edge.getSubject());
+    assertEquals(Arrays.asList("spiffe://mesh/client"), edge.getUris());
+    assertNull(edge.getCert());
+    X509ForwardedClientCert app = elements.get(1);
+    assertNull(app.getHash());
+    assertEquals(SUBJECT, app.getSubject());
+    assertEquals(1234567890L, X509Extraction.scanEdipiFromSubjectDn(app.getSubject()));
+    assertEquals(Arrays.asList("a.mesh", "b.mesh"), app.getDnsNames());
+    assertEquals(escapedPem(TestCertificates.BASE64_CERT), app.getCert().toString());
+  }
+
+  @Test
+  public void parse_malformedHeader_shouldThrowCodedException() {
+    for (String header : new String[] {"By=a;Subject", "Subject=\"CN=X", "URI=\"a\"b"}) {
+      X509Exception exc = assertThrows(X509Exception.class,
+          () -> X509Extraction.parseForwardedClientCert(header));
+      assertEquals(Code.MALFORMED_ENCODING, exc.getCode());
+    }
+    X509Exception exc = assertThrows(X509Exception.class,
+        () -> X509Extraction.parseForwardedClientCert("Hash=abc").get(0).getHash());
+    assertEquals(Code.MALFORMED_ENCODING, exc.getCode());
+  }
+
+  @Test
+  public void buildCertChain_chainPresent_shouldPreferChainOverCert() throws Exception {
+    String chain = escapedPem(TestCertificates.BASE64_CERT)
+        + escapedPem(TestCertificates.BASE64_CERT_NOEMAIL);
+    X509ForwardedClientCert element = X509Extraction.parseForwardedClientCert(
+        "Cert=\"" + escapedPem(TestCertificates.BASE64_CERT) + "\";Chain=\"" + chain + "\"")
+        .get(0);
+
+    assertEquals(2, element.buildCertChain().length);
+    assertEquals(0, X509Extraction.parseForwardedClientCert("By=spiffe://mesh/app").get(0)
+        .buildCertChain().length);
+  }
+
+  @Test
+  public void lookup_proxyHash_shouldBeCacheKey() throws Exception {
+    String hash = hash(TestCertificates.BASE64_CERT);
+    X509IdentityCache cache = new X509IdentityCache(16, Duration.ofHours(1),
+        Clock.fixed(Instant.parse("2018-06-01T12:00:00Z"), ZoneOffset.UTC));
+    X509CachedIdentity first = cache.lookup(X509Extraction.parseForwardedClientCert(
+        "Hash=" + hash + ";Cert=\"" + escapedPem(TestCertificates.BASE64_CERT) + "\"").get(0));
+    // a hit decodes nothing, so the certificate text is not even looked at
+    X509CachedIdentity second = cache.lookup(X509Extraction.parseForwardedClientCert(
+        "Hash=" + hash.toUpperCase() + ";Cert=unused").get(0));
+
+    assertSame(first, second);
+    assertEquals(hash, first.getFingerprint().toHex());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void lookup_forgedHash_shouldNotPoisonVictimKey() throws Exception {
+    X509InputGuard guard = new X509InputGuard();
+    X509Extraction.useInputGuard(guard);
+    try {
+      String victim = hash(TestCertificates.BASE64_CERT);
+      X509IdentityCache cache = new X509IdentityCache(16, Duration.ofHours(1),
+          Clock.fixed(Instant.parse("2018-06-01T12:00:00Z"), ZoneOffset.UTC));
+      assertThrows(X509Exception.class, () -> cache.lookup(X509Extraction
+          .parseForwardedClientCert("Hash=" + victim + ";Cert=MAowAwIBATAAAwEA").get(0)));
+      X509CachedIdentity attacker = cache.lookup(X509Extraction.parseForwardedClientCert(
+          "Hash=" + victim + ";Cert=\"" + escapedPem(TestCertificates.BASE64_CERT_NOEMAIL)
+              + "\"").get(0));
+      X509CachedIdentity real = cache.lookup(X509Extraction.parseForwardedClientCert(
+          "Hash=" + victim + ";Cert=\"" + escapedPem(TestCertificates.BASE64_CERT) + "\"")
+          .get(0));
+
+      assertEquals(0, guard.getNegativeCacheHitCount());
+      assertNotEquals(victim, attacker.getFingerprint().toHex());
+      assertEquals(victim, real.getFingerprint().toHex());
+      assertNotEquals(real.getSubjectDn(), attacker.getSubjectDn());
+      assertEquals(0, cache.getHitCount());
+    } finally {
+      X509Extraction.useInputGuard(null);
+    }
+  }
+}
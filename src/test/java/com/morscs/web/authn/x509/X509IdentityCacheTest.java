@@ -0,0 +1,263 @@
+/*
+ *  X509IdentityCacheTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Base64;
+
+public class X509IdentityCacheTest {
+  // test certificates are valid from 2018-03-10 to 2019-03-10
+  private static final Instant WHILE_VALID = Instant.parse("2018-06-01T00:00:00Z");
+  private static final Instant AFTER_EXPIRY = Instant.parse("2019-06-01T00:00:00Z");
+
+  private static Clock at(Instant instant) {
+    return Clock.fixed(instant, ZoneOffset.UTC);
+  }
+
+  private static byte[] attribute(String oid, String value) {
+    return DerWriter.sequence(DerWriter.oid(oid),
+        DerWriter.element(DerReader.TAG_UTF8_STRING, value.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  // self-signed certificate valid from 2018 to 2030 with the given subject RDNs
+  private static String selfSigned(byte[]... rdns) throws GeneralSecurityException {
+    KeyPairGenerator keys = KeyPairGenerator.getInstance("EC");
+    keys.initialize(new ECGenParameterSpec("secp256r1"));
+    KeyPair pair = keys.generateKeyPair();
+    byte[] name = DerWriter.sequence(rdns);
+    byte[] algorithm = DerWriter.sequence(DerWriter.oid("1.2.840.10045.4.3.2"));
+    byte[] tbs = DerWriter.sequence(
+        DerWriter.element(0xa0, DerWriter.integer(new byte[] {2})),
+        DerWriter.integer(BigInteger.ONE.toByteArray()),
+        algorithm,
+        name,
+        DerWriter.sequence(
+            DerWriter.element(DerReader.TAG_UTC_TIME,
+                "180101000000Z".getBytes(StandardCharsets.US_ASCII)),
+            DerWriter.element(DerReader.TAG_UTC_TIME,
+                "300101000000Z".getBytes(StandardCharsets.US_ASCII))),
+        name,
+        pair.getPublic().getEncoded());
+    Signature signature = Signature.getInstance("SHA256withECDSA");
+    signature.initSign(pair.getPrivate());
+    signature.update(tbs);
+    byte[] value = signature.sign();
+    byte[] bits = new byte[value.length + 1];
+    System.arraycopy(value, 0, bits, 1, value.length);
+    return Base64.getEncoder().encodeToString(DerWriter.sequence(tbs, algorithm,
+        DerWriter.element(DerReader.TAG_BIT_STRING, bits)));
+  }
+
+  @Test
+  public void lookup_repeatedHeader_shouldParseOnce() throws X509Exception {
+    X509IdentityCache cache = new X509IdentityCache(10, Duration.ofHours(1), at(WHILE_VALID));
+    X509CachedIdentity first = cache.lookup(TestCertificates.BASE64_CERT);
+    X509CachedIdentity second = cache.lookup(TestCertificates.BASE64_CERT);
+
+    assertSame(first, second);
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals("TARGARYEN.DAENERYS.MIDDLE.1234567890", first.getCn());
+    assertEquals(1234567890L, first.getCommonName().getEdipi());
+    assertEquals("daenerys.targeryen@dragonstone.got", first.getEmail().getAddress());
+  }
+
+  @Test
+  public void lookup_certWithoutEmail_shouldLeaveEmailUnset() throws X509Exception {
+    X509IdentityCache cache = new X509IdentityCache(10, Duration.ofHours(1), at(WHILE_VALID));
+    X509CachedIdentity identity = cache.lookup(TestCertificates.BASE64_CERT_NOEMAIL);
+    assertNull(identity.getEmail());
+    assertEquals("TARGARYEN.DAENERYS.MIDDLE.1234567890", identity.getCn());
+  }
+
+  @Test
+  public void lookup_overCapacity_shouldEvictOldest() throws X509Exception {
+    X509IdentityCache cache = new X509IdentityCache(1, Duration.ofHours(1), at(WHILE_VALID));
+    cache.lookup(TestCertificates.BASE64_CERT);
+    cache.lookup(TestCertificates.BASE64_CERT_NOEMAIL);
+
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    cache.lookup(TestCertificates.BASE64_CERT_NOEMAIL);
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void lookup_ttlElapsed_shouldParseAgain() throws X509Exception {
+    MutableClock clock = new MutableClock(WHILE_VALID);
+    X509IdentityCache cache = new X509IdentityCache(10, Duration.ofMinutes(5), clock);
+    X509CachedIdentity first = cache.lookup(TestCertificates.BASE64_CERT);
+    clock.set(WHILE_VALID.plus(Duration.ofMinutes(6)));
+    X509CachedIdentity second = cache.lookup(TestCertificates.BASE64_CERT);
+
+    assertNotSame(first, second);
+    assertEquals(1, cache.getExpirationCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void lookup_escapedOrMultiValuedCn_shouldMatchUncachedIdentity() throws Exception {
+    String[] headers = {
+        selfSigned(DerWriter.element(DerReader.TAG_SET, attribute("2.5.4.3",
+            "DOE.JOHN.1234567890"), attribute("0.9.2342.19200300.100.1.1", "jdoe"))),
+        selfSigned(DerWriter.element(DerReader.TAG_SET, attribute("2.5.4.3", "DOE, JOHN")))};
+    String[] expected = {"DOE.JOHN.1234567890", "DOE, JOHN"};
+    X509IdentityCache cache = new X509IdentityCache(10, Duration.ofHours(1), at(WHILE_VALID));
+
+    for (int i = 0; i < headers.length; i++) {
+      X509Identity uncached = new X509Identity(
+          X509Extraction.buildCertChainFromBase64Encoding(headers[i])[0]);
+      X509Identity cached = new X509Identity(cache.lookup(headers[i]));
+      assertEquals(expected[i], uncached.getCommonName());
+      assertEquals(uncached.getCommonName(), cached.getCommonName());
+      assertEquals(uncached.hasCert(), cached.hasCert());
+    }
+  }
+
+  @Test
+  public void lookup_certPastNotAfter_shouldNotBeRetained() throws X509Exception {
+    X509IdentityCache cache = new X509IdentityCache(10, Duration.ofHours(1), at(AFTER_EXPIRY));
+    cache.lookup(TestCertificates.BASE64_CERT);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void loadSnapshot_afterRestart_shouldServeWithoutParsing() throws Exception {
+    Path file = Files.createTempFile("identities", ".snap");
+    try {
+      X509IdentityCache before = new X509IdentityCache(10, Duration.ofHours(1), at(WHILE_VALID));
+      before.lookup(TestCertificates.BASE64_CERT);
+      before.lookup(TestCertificates.BASE64_CERT_NOEMAIL);
+      assertEquals(2, before.saveSnapshot(file));
+
+      X509IdentityCache after = new X509IdentityCache(10, Duration.ofHours(1), at(WHILE_VALID));
+      assertEquals(2, after.loadSnapshot(file));
+      X509CachedIdentity restored = after.lookup(TestCertificates.BASE64_CERT);
+      assertEquals(1, after.getHitCount());
+      assertEquals(0, after.getMissCount());
+      assertNull(restored.getPrimaryCert());
+      assertEquals(0, restored.getCertChain().length);
+      assertEquals("TARGARYEN.DAENERYS.MIDDLE.1234567890", restored.getCn());
+      assertEquals(1234567890L, restored.getCommonName().getEdipi());
+      assertEquals("MIDDLE", restored.getCommonName().getMiddleName());
+      assertEquals("daenerys.targeryen@dragonstone.got", restored.getEmail().getAddress());
+      assertEquals("TARGARYEN.DAENERYS.MIDDLE.1234567890",
+          new X509Identity(restored).getCommonName());
+      assertNull(after.lookup(TestCertificates.BASE64_CERT_NOEMAIL).getEmail());
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void loadSnapshot_expiredOrOverCapacity_shouldSkipEntries() throws Exception {
+    Path file = Files.createTempFile("identities", ".snap");
+    try {
+      X509IdentityCache before = new X509IdentityCache(10, Duration.ofHours(1), at(WHILE_VALID));
+      before.lookup(TestCertificates.BASE64_CERT);
+      before.lookup(TestCertificates.BASE64_CERT_NOEMAIL);
+      before.saveSnapshot(file);
+
+      assertEquals(0, new X509IdentityCache(10, Duration.ofHours(1),
+          at(WHILE_VALID.plus(Duration.ofHours(1)))).loadSnapshot(file));
+      X509IdentityCache small = new X509IdentityCache(1, Duration.ofHours(1), at(WHILE_VALID));
+      assertEquals(1, small.loadSnapshot(file));
+      assertEquals(1, small.size());
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void loadSnapshot_suffixedCommonName_shouldKeepSuffix() throws Exception {
+    Path file = Files.createTempFile("identities", ".snap");
+    X509Extraction.useCnFormats(CnFormats.of(new CnFormat() {
+      @Override
+      public String getName() {
+        return "suffixed";
+      }
+
+      @Override
+      public CommonName parse(CharSequence cn) {
+        return new CommonName(1234567890L, "TARGARYEN", "DAENERYS", null, "JR");
+      }
+    }));
+    try {
+      X509IdentityCache before = new X509IdentityCache(10, Duration.ofHours(1), at(WHILE_VALID));
+      before.lookup(TestCertificates.BASE64_CERT);
+      before.saveSnapshot(file);
+
+      X509IdentityCache after = new X509IdentityCache(10, Duration.ofHours(1), at(WHILE_VALID));
+      after.loadSnapshot(file);
+      CommonName commonName = after.lookup(TestCertificates.BASE64_CERT).getCommonName();
+      assertNull(commonName.getMiddleName());
+      assertEquals("JR", commonName.getSuffix());
+    } finally {
+      X509Extraction.useCnFormats(null);
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void loadSnapshot_versionOne_shouldThrowX509Exception() throws IOException {
+    Path file = Files.createTempFile("identities", ".snap");
+    try {
+      Files.write(file, ByteBuffer.allocate(16).put("X5IDSNAP".getBytes(StandardCharsets.US_ASCII))
+          .putInt(1).putInt(0).array());
+      X509IdentityCache cache = new X509IdentityCache(10, Duration.ofHours(1), at(WHILE_VALID));
+      assertThrows(X509Exception.class, () -> cache.loadSnapshot(file));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void loadSnapshot_foreignFile_shouldThrowX509Exception() throws IOException {
+    Path file = Files.createTempFile("identities", ".snap");
+    try {
+      Files.write(file, "not a snapshot file".getBytes(StandardCharsets.US_ASCII));
+      X509IdentityCache cache = new X509IdentityCache(10, Duration.ofHours(1), at(WHILE_VALID));
+      assertThrows(X509Exception.class, () -> cache.loadSnapshot(file));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ *  X509IdentityTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import javax.servlet.http.HttpServletRequest;
+
+public class X509IdentityTest {
+  private static final String EXPECTED_CN = "TARGARYEN.DAENERYS.MIDDLE.1234567890";
+
+  /**
+   * Request stand-in backed by an attribute map.
+   */
+  static HttpServletRequest request(Map<String, Object> attributes) {
+    return (HttpServletRequest) Proxy.newProxyInstance(X509IdentityTest.class.getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getAttribute":
+              return attributes.get(args[0]);
+            case "setAttribute":
+              attributes.put((String) args[0], args[1]);
+              return null;
+            case "removeAttribute":
+              attributes.remove(args[0]);
+              return null;
+            default:
+              return null;
+          }
+        });
+  }
+
+  @Test
+  public void identities_separateInstances_shouldNotShareState() {
+    X509Identity first = new X509Identity("CN=FIRST.USER.1111111111,O=U.S. Government");
+    X509Identity second = new X509Identity("CN=SECOND.USER.2222222222,O=U.S. Government");
+    assertEquals("FIRST.USER.1111111111", first.getCommonName());
+    assertEquals("SECOND.USER.2222222222", second.getCommonName());
+  }
+
+  @Test
+  public void identity_readOnOtherThread_shouldKeepValues() throws Exception {
+    X509Identity identity = new X509Identity(X509Extraction.extractPrimaryCertFromChain(
+        X509Extraction.buildCertChainFromBase64Encoding(TestCertificates.BASE64_CERT)));
+    String cn = CompletableFuture.supplyAsync(identity::getCommonName).get();
+    assertEquals(EXPECTED_CN, cn);
+    assertEquals(1234567890L, identity.getParsedCommonName().getEdipi());
+    assertEquals("daenerys.targeryen@dragonstone.got", identity.getEmail().getAddress());
+    assertSame(identity.getFingerprint(), identity.getFingerprint());
+    assertTrue(identity.hasCert());
+  }
+
+  @Test
+  public void identity_unparseableValues_shouldBeNull() {
+    X509Identity identity = new X509Identity("CN=anonymous");
+    assertFalse(identity.hasCert());
+    assertNull(identity.getParsedCommonName());
+    assertNull(identity.getEmail());
+    assertNull(identity.getFingerprint());
+  }
+
+  @Test
+  public void fromRequest_calledTwice_shouldBuildOnce() throws X509Exception {
+    X509Certificate[] chain =
+        X509Extraction.buildCertChainFromBase64Encoding(TestCertificates.BASE64_CERT);
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("javax.servlet.request.X509Certificate", chain);
+    HttpServletRequest request = request(attributes);
+
+    X509Identity identity = X509Identity.fromRequest(request);
+    assertSame(identity, X509Identity.fromRequest(request));
+    assertSame(identity, attributes.get(X509Identity.REQUEST_ATTRIBUTE));
+    assertEquals(EXPECTED_CN, identity.getCommonName());
+  }
+
+  @Test
+  public void fromRequest_noCert_shouldThrowX509Exception() {
+    assertThrows(X509Exception.class, () -> X509Identity.fromRequest(request(new HashMap<>())));
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ *  X509IdentityTokenCodecTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+
+public class X509IdentityTokenCodecTest {
+  // test certificates are valid from 2018-03-10 to 2019-03-10
+  private static final Instant WHILE_VALID = Instant.parse("2018-06-01T00:00:00Z");
+  private static final byte[] KEY =
+      "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  private static X509Identity identity(String encoded) throws X509Exception {
+    return new X509Identity(X509Extraction.extractPrimaryCertFromChain(
+        X509Extraction.buildCertChainFromBase64Encoding(encoded)));
+  }
+
+  @Test
+  public void verify_mintedToken_shouldCarryIdentity() throws X509Exception {
+    X509IdentityTokenCodec codec =
+        new X509IdentityTokenCodec(KEY, Duration.ofMinutes(5), new MutableClock(WHILE_VALID));
+    X509Identity original = identity(TestCertificates.BASE64_CERT);
+    X509Identity verified = codec.verify(codec.mint(original));
+
+    assertNull(verified.getCertificate());
+    assertEquals(original.getSubjectDn(), verified.getSubjectDn());
+    assertEquals("TARGARYEN.DAENERYS.MIDDLE.1234567890", verified.getCommonName());
+    CommonName commonName = verified.getParsedCommonName();
+    assertEquals(1234567890L, commonName.getEdipi());
+    assertEquals("TARGARYEN", commonName.getLastName());
+    assertEquals("DAENERYS", commonName.getFirstName());
+    assertEquals("MIDDLE", commonName.getMiddleName());
+    assertEquals("daenerys.targeryen@dragonstone.got", verified.getEmail().getAddress());
+    assertEquals(original.getFingerprint(), verified.getFingerprint());
+    assertTrue(verified.hasCert());
+  }
+
+  @Test
+  public void verify_suffixedCommonName_shouldKeepSuffix() throws X509Exception {
+    X509Extraction.useCnFormats(CnFormats.of(new CnFormat() {
+      @Override
+      public String getName() {
+        return "suffixed";
+      }
+
+      @Override
+      public CommonName parse(CharSequence cn) {
+        return new CommonName(1234567890L, "TARGARYEN", "DAENERYS", null, "JR");
+      }
+    }));
+    try {
+      X509IdentityTokenCodec codec =
+          new X509IdentityTokenCodec(KEY, Duration.ofMinutes(5), new MutableClock(WHILE_VALID));
+      CommonName commonName = codec.verify(codec.mint(identity(TestCertificates.BASE64_CERT)))
+          .getParsedCommonName();
+
+      assertNull(commonName.getMiddleName());
+      assertEquals("JR", commonName.getSuffix());
+    } finally {
+      X509Extraction.useCnFormats(null);
+    }
+  }
+
+  @Test
+  public void verify_certWithoutEmail_shouldLeaveEmailUnset() throws X509Exception {
+    X509IdentityTokenCodec codec =
+        new X509IdentityTokenCodec(KEY, Duration.ofMinutes(5), new MutableClock(WHILE_VALID));
+    X509Identity verified =
+        codec.verify(codec.mint(identity(TestCertificates.BASE64_CERT_NOEMAIL)));
+    assertNull(verified.getEmail());
+    assertTrue(verified.getSubjectAltNames().isEmpty());
+  }
+
+  @Test
+  public void verify_tamperedOrForeignToken_shouldThrowX509Exception() throws X509Exception {
+    MutableClock clock = new MutableClock(WHILE_VALID);
+    X509IdentityTokenCodec codec = new X509IdentityTokenCodec(KEY, Duration.ofMinutes(5), clock);
+    String token = codec.mint(identity(TestCertificates.BASE64_CERT));
+    char flipped = token.charAt(20) == 'A' ? 'B' : 'A';
+    String tampered = token.substring(0, 20) + flipped + token.substring(21);
+    assertThrows(X509Exception.class, () -> codec.verify(tampered));
+
+    byte[] otherKey = Arrays.copyOf(KEY, KEY.length);
+    otherKey[0] ^= 1;
+    X509IdentityTokenCodec other = new X509IdentityTokenCodec(otherKey, Duration.ofMinutes(5),
+        clock);
+    assertThrows(X509Exception.class, () -> other.verify(token));
+    assertThrows(X509Exception.class, () -> codec.verify("not a token"));
+    assertThrows(X509Exception.class, () -> codec.verify(""));
+  }
+
+  @Test
+  public void verify_ttlElapsed_shouldThrowX509Exception() throws X509Exception {
+    MutableClock clock = new MutableClock(WHILE_VALID);
+    X509IdentityTokenCodec codec = new X509IdentityTokenCodec(KEY, Duration.ofMinutes(5), clock);
+    String token = codec.mint(identity(TestCertificates.BASE64_CERT));
+    clock.set(WHILE_VALID.plus(Duration.ofMinutes(5)));
+    assertThrows(X509Exception.class, () -> codec.verify(token));
+  }
+
+  @Test
+  public void mint_identityWithoutCert_shouldThrowX509Exception() {
+    X509IdentityTokenCodec codec = new X509IdentityTokenCodec(KEY, Duration.ofMinutes(5));
+    assertThrows(X509Exception.class,
+        () -> codec.mint(new X509Identity("CN=TARGARYEN.DAENERYS.1234567890")));
+  }
+
+  @Test
+  public void construct_shortKey_shouldThrowIllegalArgumentException() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new X509IdentityTokenCodec(new byte[16], Duration.ofMinutes(5)));
+  }
+}
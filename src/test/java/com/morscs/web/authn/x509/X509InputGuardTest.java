@@ -0,0 +1,129 @@
+/*
+ *  X509InputGuardTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.morscs.web.authn.x509.X509Exception.Code;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+
+public class X509InputGuardTest {
+  // SEQUENCE { SEQUENCE { INTEGER 1 }, SEQUENCE {}, BIT STRING } - sound DER, no certificate
+  private static final String UNREADABLE_CERT = "MAowAwIBATAAAwEA";
+
+  @AfterEach
+  public void uninstall() {
+    X509Extraction.useInputGuard(null);
+  }
+
+  private static String chain(String... certs) {
+    ByteArrayOutputStream der = new ByteArrayOutputStream();
+    for (String cert : certs) {
+      byte[] bytes = Base64.getDecoder().decode(cert);
+      der.write(bytes, 0, bytes.length);
+    }
+    return Base64.getEncoder().encodeToString(der.toByteArray());
+  }
+
+  private static Code rejection(String header) {
+    X509Exception exc = assertThrows(X509Exception.class,
+        () -> X509Extraction.buildCertChainFromEncodedHeader(header));
+    assertSame(X509Exception.preallocated(exc.getCode()), exc);
+    assertEquals(0, exc.getStackTrace().length);
+    return exc.getCode();
+  }
+
+  @Test
+  public void buildCertChain_malformedInput_shouldThrowSharedStacklessExceptions() {
+    X509InputGuard guard = new X509InputGuard(64 * 1024, 2, 16);
+    X509Extraction.useInputGuard(guard);
+    String cert = TestCertificates.BASE64_CERT;
+
+    assertEquals(Code.HEADER_TOO_LARGE, rejection(new String(new char[64 * 1024 + 1])));
+    assertEquals(Code.MALFORMED_ENCODING, rejection("!!not base64!!"));
+    assertEquals(Code.MALFORMED_DER, rejection(cert.substring(0, cert.length() - 8)));
+    assertEquals(Code.CHAIN_TOO_LONG, rejection(chain(cert, cert, cert)));
+    assertEquals(1L, (long) guard.getRejectionCounts().get(Code.CHAIN_TOO_LONG.name()));
+  }
+
+  @Test
+  public void buildCertChain_validInput_shouldParseAsUnguarded() throws X509Exception {
+    X509Extraction.useInputGuard(new X509InputGuard());
+
+    assertEquals(2, X509Extraction.buildCertChainFromEncodedHeader(
+        chain(TestCertificates.BASE64_CERT,
+            TestCertificates.BASE64_CERT_NOEMAIL)).length);
+  }
+
+  @Test
+  public void lookup_repeatedUnreadableChain_shouldHitNegativeCache() {
+    X509InputGuard guard = new X509InputGuard();
+    X509Extraction.useInputGuard(guard);
+    X509IdentityCache cache = new X509IdentityCache(16, Duration.ofMinutes(1));
+
+    for (int i = 0; i < 3; i++) {
+      X509Exception exc = assertThrows(X509Exception.class, () -> cache.lookup(UNREADABLE_CERT));
+      assertEquals(Code.CERTIFICATE_UNREADABLE, exc.getCode());
+    }
+    assertEquals(2, guard.getNegativeCacheHitCount());
+    assertEquals(3L, (long) guard.getRejectionCounts().get(Code.CERTIFICATE_UNREADABLE.name()));
+  }
+
+  @Test
+  public void lookup_unreadableChainAfterTtl_shouldParseAgain() {
+    MutableClock clock = new MutableClock(Instant.parse("2018-06-01T12:00:00Z"));
+    X509InputGuard guard = new X509InputGuard(X509InputGuard.DEFAULT_MAX_HEADER_LENGTH,
+        X509InputGuard.DEFAULT_MAX_CHAIN_LENGTH, 16, Duration.ofSeconds(30), clock);
+    X509Extraction.useInputGuard(guard);
+    X509IdentityCache cache = new X509IdentityCache(16, Duration.ofMinutes(1));
+    String malformed = "!!not base64!!";
+
+    assertThrows(X509Exception.class, () -> cache.lookup(UNREADABLE_CERT));
+    assertThrows(X509Exception.class, () -> cache.lookup(malformed));
+    clock.set(clock.instant().plusSeconds(29));
+    assertThrows(X509Exception.class, () -> cache.lookup(UNREADABLE_CERT));
+    assertEquals(1, guard.getNegativeCacheHitCount());
+    clock.set(clock.instant().plusSeconds(1));
+    assertThrows(X509Exception.class, () -> cache.lookup(UNREADABLE_CERT));
+    assertEquals(1, guard.getNegativeCacheHitCount());
+    clock.set(clock.instant().plus(Duration.ofDays(1)));
+    assertThrows(X509Exception.class, () -> cache.lookup(malformed));
+    assertEquals(2, guard.getNegativeCacheHitCount());
+  }
+
+  @Test
+  public void parseCommonName_guarded_shouldLeaveCnOutOfMessage() {
+    X509Exception unguarded = assertThrows(X509Exception.class,
+        () -> DnScanner.parseCommonName("NOT.A.D.O.D.CN", 0, 14));
+    X509Extraction.useInputGuard(new X509InputGuard());
+    X509Exception guarded = assertThrows(X509Exception.class,
+        () -> DnScanner.parseCommonName("NOT.A.D.O.D.CN", 0, 14));
+
+    assertEquals(Code.CN_UNPARSEABLE, unguarded.getCode());
+    assertSame(X509Exception.preallocated(Code.CN_UNPARSEABLE), guarded);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ *  X509MetricsTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.morscs.web.authn.x509.X509Metrics.Stage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+public class X509MetricsTest {
+  private final X509Metrics metrics = X509Metrics.getInstance();
+  private final List<String> events = new ArrayList<>();
+  private final X509MetricsListener listener = new X509MetricsListener() {
+    @Override
+    public void stageCompleted(Stage stage, long nanos) {
+      events.add(stage.name());
+    }
+
+    @Override
+    public void stageFailed(Stage stage, long nanos, Exception failure) {
+      events.add(stage + " failed");
+    }
+
+    @Override
+    public void chainDecoded(int certificates) {
+      events.add("chain " + certificates);
+    }
+  };
+
+  @AfterEach
+  public void tearDown() {
+    metrics.setEnabled(false);
+    metrics.removeListener(listener);
+    metrics.reset();
+  }
+
+  private static void runPipeline() throws X509Exception {
+    X509Certificate[] chain =
+        X509Extraction.buildCertChainFromBase64Encoding(TestCertificates.BASE64_CERT);
+    X509Certificate cert = X509Extraction.extractPrimaryCertFromChain(chain);
+    String cn = X509Extraction.scanCnFromSubjectDn(
+        X509Extraction.extractPrimarySubjectDnFromCert(cert));
+    X509Extraction.scanCommonNameFromCn(cn);
+    X509Extraction.extractPrimaryEmailFromCert(cert);
+    X509Extraction.extractSubjectAltNamesFromCert(cert);
+  }
+
+  @Test
+  public void pipeline_enabled_shouldRecordEveryStage() throws Exception {
+    metrics.setEnabled(true);
+    runPipeline();
+
+    Map<String, Long> successes = metrics.getStageSuccessCounts();
+    assertEquals(Long.valueOf(1), successes.get("BASE64_DECODE"));
+    assertEquals(Long.valueOf(1), successes.get("CERT_GENERATION"));
+    assertEquals(Long.valueOf(1), successes.get("PRIMARY_CERT_SELECTION"));
+    assertEquals(Long.valueOf(1), successes.get("DN_PARSE"));
+    assertEquals(Long.valueOf(1), successes.get("COMMON_NAME_PARSE"));
+    assertEquals(Long.valueOf(1), successes.get("EMAIL_EXTRACTION"));
+    assertEquals(Long.valueOf(1), successes.get("SUBJECT_ALT_NAMES"));
+    assertTrue(metrics.getStageLatencyNanos().get("CERT_GENERATION").getMax() > 0);
+    assertEquals(1, metrics.getChainLength().getMax());
+
+    X509Certificate[] chain =
+        X509Extraction.buildCertChainFromBase64Encoding(TestCertificates.BASE64_CERT);
+    assertEquals(chain[0].getEncoded().length, metrics.getCertificateSize().getMax());
+    assertTrue(metrics.getStageFailureCounts().isEmpty());
+  }
+
+  @Test
+  public void pipeline_disabled_shouldRecordNothing() throws Exception {
+    metrics.addListener(listener);
+    runPipeline();
+
+    assertTrue(metrics.getStageSuccessCounts().values().stream().allMatch(count -> count == 0));
+    assertEquals(0, metrics.getChainLength().getCount());
+    assertTrue(events.isEmpty());
+  }
+
+  @Test
+  public void failures_shouldBeCountedByStageAndCause() throws Exception {
+    metrics.setEnabled(true);
+    metrics.addListener(listener);
+    assertThrows(X509Exception.class, () -> X509Extraction.extractCommonNameFromCn("NO.EDIPI"));
+    assertThrows(X509Exception.class, () -> X509Extraction.extractPrimaryCertFromChain(null));
+    assertThrows(X509Exception.class,
+        () -> X509Extraction.buildCertChainFromBase64Encoding("AAAAAAAA"));
+
+    Map<String, Long> failures = metrics.getStageFailureCounts();
+    assertEquals(Long.valueOf(1), failures.get("COMMON_NAME_PARSE:X509Exception"));
+    assertEquals(Long.valueOf(1), failures.get("PRIMARY_CERT_SELECTION:X509Exception"));
+    assertTrue(failures.keySet().stream().anyMatch(key -> key.startsWith("CERT_GENERATION:")),
+        failures.toString());
+    assertEquals("COMMON_NAME_PARSE failed", events.get(0));
+  }
+
+  @Test
+  public void listener_enabled_shouldReceiveEachMeasurement() throws Exception {
+    metrics.setEnabled(true);
+    metrics.addListener(listener);
+    X509Extraction.extractPrimaryCertFromChain(
+        X509Extraction.buildCertChainFromBase64Encoding(TestCertificates.BASE64_CERT));
+
+    assertEquals(4, events.size(), events.toString());
+    assertEquals("BASE64_DECODE", events.get(0));
+    assertEquals("CERT_GENERATION", events.get(1));
+    assertEquals("chain 1", events.get(2));
+    assertEquals("PRIMARY_CERT_SELECTION", events.get(3));
+  }
+
+  @Test
+  public void mbean_registered_shouldExposeMetrics() throws Exception {
+    ObjectName name = X509Metrics.registerMBean();
+    try {
+      assertEquals(name, X509Metrics.registerMBean());
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.setAttribute(name, new Attribute("Enabled", true));
+      runPipeline();
+
+      assertTrue(metrics.isEnabled());
+      CompositeData chainLength = (CompositeData) server.getAttribute(name, "ChainLength");
+      assertEquals(1L, chainLength.get("count"));
+      server.invoke(name, "reset", null, null);
+      assertEquals(0, metrics.getChainLength().getCount());
+    } finally {
+      X509Metrics.unregisterMBean();
+    }
+  }
+
+  @Test
+  public void histogram_shouldReportValuesWithinBucketPrecision() {
+    LogHistogram histogram = new LogHistogram();
+    for (long value = 1; value <= 10000; value++) {
+      histogram.record(value);
+    }
+    assertEquals(10000, histogram.getCount());
+    assertEquals(10000, histogram.getMax());
+    assertEquals(5000.5, histogram.getMean(), 0.001);
+    assertWithin(5000, histogram.valueAtPercentile(50));
+    assertWithin(9900, histogram.valueAtPercentile(99));
+    assertEquals(10000, histogram.valueAtPercentile(100));
+
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      long value = random.nextLong() >>> (1 + random.nextInt(63));
+      int index = LogHistogram.index(value);
+      assertTrue(value <= LogHistogram.highestInBucket(index));
+      assertTrue(index == 0 || value > LogHistogram.highestInBucket(index - 1));
+    }
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue(actual >= expected && actual <= expected * 1.125, expected + " vs " + actual);
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ *  X509OcspCheckerTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.morscs.web.authn.x509.X509OcspChecker.FailurePolicy;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+class X509OcspCheckerTest {
+  private static final Instant NOW = Instant.parse("2100-01-01T00:00:00Z");
+  private static final Duration BUDGET = Duration.ofSeconds(5);
+
+  private MutableClock clock;
+  private OcspStandInResponder responder;
+  private X509Certificate[] good;
+  private X509Certificate[] revoked;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    clock = new MutableClock(NOW);
+    responder = new OcspStandInResponder(clock);
+    responder.revoke(BigInteger.valueOf(4098));
+    good = X509ChainValidatorTest.pki("client-4097.pem", "trust/intermediate-ca.pem");
+    revoked = X509ChainValidatorTest.pki("client-4098.pem", "trust/intermediate-ca.pem");
+  }
+
+  private X509OcspChecker checker(Duration budget, FailurePolicy policy) throws Exception {
+    return new X509OcspChecker(responder, X509ChainValidatorTest.trustStore(), budget, policy,
+        100, Duration.ofMinutes(10), clock);
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < deadline, "condition not met in time");
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  void check_goodAndRevoked_shouldCacheResponses() throws Exception {
+    try (X509OcspChecker checker = checker(BUDGET, FailurePolicy.CLOSED)) {
+      assertEquals(RevocationStatus.GOOD, checker.check(good));
+      assertEquals(RevocationStatus.REVOKED, checker.check(revoked));
+      assertEquals(RevocationStatus.GOOD, checker.check(good));
+      assertEquals(RevocationStatus.REVOKED, checker.check(revoked));
+
+      assertEquals(2, responder.getRequestCount());
+      assertEquals(2, checker.getMissCount());
+      assertEquals(2, checker.getHitCount());
+      assertEquals(2, checker.size());
+    }
+  }
+
+  @Test
+  void check_leafOnly_shouldTakeIssuerFromTrustStore() throws Exception {
+    try (X509OcspChecker checker = checker(BUDGET, FailurePolicy.CLOSED)) {
+      assertEquals(RevocationStatus.REVOKED,
+          checker.check(X509ChainValidatorTest.pki("client-4098.pem")));
+    }
+  }
+
+  @Test
+  void check_afterNextUpdate_shouldQueryAgain() throws Exception {
+    try (X509OcspChecker checker = checker(BUDGET, FailurePolicy.CLOSED)) {
+      checker.check(good);
+      clock.set(NOW.plus(Duration.ofHours(2)));
+      assertEquals(RevocationStatus.GOOD, checker.check(good));
+      assertEquals(2, responder.getRequestCount());
+      assertEquals(0, checker.getHitCount());
+    }
+  }
+
+  @Test
+  void check_concurrent_shouldShareOneResponderCall() throws Exception {
+    int threads = 8;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try (X509OcspChecker checker = checker(BUDGET, FailurePolicy.CLOSED)) {
+      responder.hold();
+      List<Future<RevocationStatus>> results = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        results.add(pool.submit(() -> checker.check(good)));
+      }
+      await(() -> checker.getCoalescedCount() == threads - 1);
+      responder.release();
+
+      for (Future<RevocationStatus> result : results) {
+        assertEquals(RevocationStatus.GOOD, result.get());
+      }
+      assertEquals(1, responder.getRequestCount());
+    } finally {
+      responder.release();
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  void check_slowResponder_shouldApplyFailurePolicy() throws Exception {
+    responder.hold();
+    try (X509OcspChecker closed = checker(Duration.ofMillis(50), FailurePolicy.CLOSED);
+        X509OcspChecker open = checker(Duration.ofMillis(50), FailurePolicy.OPEN)) {
+      assertThrows(X509Exception.class, () -> closed.check(good));
+      assertEquals(RevocationStatus.UNKNOWN, open.check(good));
+      assertEquals(1, closed.getTimeoutCount());
+      assertEquals(1, open.getTimeoutCount());
+
+      // the calls keep running after the budget runs out and fill the caches
+      responder.release();
+      await(() -> closed.size() == 1 && open.size() == 1);
+      assertEquals(RevocationStatus.GOOD, closed.check(good));
+      assertEquals(RevocationStatus.GOOD, open.check(good));
+      assertEquals(2, responder.getRequestCount());
+    } finally {
+      responder.release();
+    }
+  }
+
+  @Test
+  void check_saturatedQueryPool_shouldRejectAccordingToPolicy() throws Exception {
+    X509Certificate[] trust = X509ChainValidatorTest.pki("trust/intermediate-ca.pem",
+        "trust/root-ca.pem");
+    responder.hold();
+    try (X509OcspChecker closed = new X509OcspChecker(responder, null, Duration.ofMillis(50),
+        FailurePolicy.CLOSED, 100, Duration.ofMinutes(10), 1, clock);
+        X509OcspChecker open = new X509OcspChecker(responder, null, Duration.ofMillis(50),
+            FailurePolicy.OPEN, 100, Duration.ofMinutes(10), 1, clock)) {
+      // one call runs against the held responder and one waits, the third finds no room
+      assertThrows(X509Exception.class, () -> closed.check(good));
+      assertThrows(X509Exception.class, () -> closed.check(revoked));
+      assertThrows(X509Exception.class, () -> closed.check(trust));
+      assertEquals(RevocationStatus.UNKNOWN, open.check(good));
+      assertEquals(RevocationStatus.UNKNOWN, open.check(revoked));
+      assertEquals(RevocationStatus.UNKNOWN, open.check(trust));
+
+      assertEquals(2, closed.getTimeoutCount());
+      assertEquals(1, closed.getRejectedCount());
+      assertEquals(1, open.getRejectedCount());
+    } finally {
+      responder.release();
+    }
+  }
+
+  @Test
+  void check_nearNextUpdate_shouldRefreshInBackground() throws Exception {
+    try (X509OcspChecker checker = checker(BUDGET, FailurePolicy.CLOSED)) {
+      checker.check(good);
+      clock.set(NOW.plus(Duration.ofMinutes(55)));
+      responder.revoke(BigInteger.valueOf(4097));
+
+      // served from the cache while the refresh runs
+      assertEquals(RevocationStatus.GOOD, checker.check(good));
+      assertEquals(1, checker.getRefreshCount());
+      await(() -> responder.getRequestCount() == 2);
+
+      clock.set(NOW.plus(Duration.ofMinutes(90)));
+      await(() -> {
+        try {
+          return checker.check(good) == RevocationStatus.REVOKED;
+        } catch (X509Exception exc) {
+          throw new IllegalStateException(exc);
+        }
+      });
+      assertEquals(2, responder.getRequestCount());
+    }
+  }
+
+  @Test
+  void check_untrustedSigner_shouldFailAccordingToPolicy() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    responder.signWith(generator.generateKeyPair().getPrivate());
+    try (X509OcspChecker closed = checker(BUDGET, FailurePolicy.CLOSED);
+        X509OcspChecker open = checker(BUDGET, FailurePolicy.OPEN)) {
+      assertThrows(X509Exception.class, () -> closed.check(good));
+      assertEquals(RevocationStatus.UNKNOWN, open.check(good));
+      assertEquals(1, closed.getFailureCount());
+      assertEquals(0, open.size());
+    }
+  }
+
+  @Test
+  void check_unknownIssuer_shouldFailAccordingToPolicy() throws Exception {
+    X509Certificate[] leafOnly = X509ChainValidatorTest.pki("client-4097.pem");
+    try (X509OcspChecker closed = new X509OcspChecker(responder, null, BUDGET,
+        FailurePolicy.CLOSED);
+        X509OcspChecker open = new X509OcspChecker(responder, null, BUDGET,
+            FailurePolicy.OPEN)) {
+      assertThrows(X509Exception.class, () -> closed.check(leafOnly));
+      assertEquals(RevocationStatus.UNKNOWN, open.check(leafOnly));
+      assertEquals(0, responder.getRequestCount());
+    }
+  }
+
+  @Test
+  void httpTransport_shouldPostRequestToResponder() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", exchange -> {
+      byte[] response;
+      try (InputStream in = exchange.getRequestBody()) {
+        response = responder.send(null, X509ChainValidatorTest.readAll(in));
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/ocsp-response");
+      exchange.sendResponseHeaders(200, response.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(response);
+      }
+    });
+    server.start();
+    URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    try (X509OcspChecker checker = new X509OcspChecker(new HttpOcspTransport(BUDGET, uri),
+        null, BUDGET, FailurePolicy.CLOSED, 100, Duration.ofMinutes(10), clock)) {
+      assertEquals(RevocationStatus.GOOD, checker.check(good));
+      assertEquals(RevocationStatus.REVOKED, checker.check(revoked));
+    } finally {
+      server.stop(0);
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ *  X509WarmUpTest.java
+ *
+ *    Copyright 2018 Moriarty Software & Consulting Services
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ */
+
+package com.morscs.web.authn.x509;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+
+public class X509WarmUpTest {
+
+  @AfterEach
+  public void resetProvider() throws X509Exception {
+    X509Extraction.useProvider(null);
+  }
+
+  private static ServletContextEvent event(Map<String, String> params,
+      Map<String, Object> attributes) {
+    ServletContext context = (ServletContext) Proxy.newProxyInstance(
+        X509WarmUpTest.class.getClassLoader(), new Class<?>[] {ServletContext.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getInitParameter":
+              return params.get(args[0]);
+            case "setAttribute":
+              attributes.put((String) args[0], args[1]);
+              return null;
+            default:
+              return null;
+          }
+        });
+    return new ServletContextEvent(context);
+  }
+
+  @Test
+  public void run_defaultCorpus_shouldExtractWithoutFailures() throws Exception {
+    List<String> corpus = X509WarmUp.defaultCorpus();
+    assertEquals(1, corpus.size());
+
+    X509WarmUp.Result result = new X509WarmUp(corpus, 5).run();
+
+    assertEquals(1, result.getCorpusSize());
+    assertEquals(5, result.getIterations());
+    assertEquals(0, result.getFailures());
+    assertEquals(X509Extraction.getProviderName(), result.getProviderName());
+    assertTrue(result.getDuration().toNanos() > 0);
+  }
+
+  @Test
+  public void run_badEntries_shouldCountFailuresAndContinue() throws Exception {
+    String client = Base64.getEncoder().encodeToString(
+        X509ChainValidatorTest.pki("client-4097.pem")[0].getEncoded());
+    X509WarmUp.Result result =
+        new X509WarmUp(Arrays.asList("garbage!", client, "AAAA"), 3).run();
+    assertEquals(6, result.getFailures());
+  }
+
+  @Test
+  public void readCorpus_shouldSkipCommentsAndBlankLines() throws Exception {
+    Path file = Files.createTempFile("corpus", ".txt");
+    try {
+      Files.write(file, ("# comment\n\n  " + TestCertificates.BASE64_CERT + "  \nAAAA\n")
+          .getBytes(StandardCharsets.US_ASCII));
+      assertEquals(Arrays.asList(TestCertificates.BASE64_CERT, "AAAA"),
+          X509WarmUp.readCorpus(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void useProvider_shouldResolveOnceAndParseWithIt() throws Exception {
+    assertThrows(X509Exception.class, () -> X509Extraction.useProvider("NoSuchProvider"));
+    assertThrows(X509Exception.class, () -> X509Extraction.useProvider("SunJCE"));
+
+    X509Extraction.useProvider("SUN");
+    assertEquals("SUN", X509Extraction.getProviderName());
+    // concurrent parses each borrow their own provider factory and must all succeed
+    assertEquals(64, IntStream.range(0, 64).parallel().map(i -> {
+      try {
+        return X509Extraction.buildCertChainFromBase64Encoding(
+            TestCertificates.BASE64_CERT).length;
+      } catch (X509Exception exc) {
+        return 0;
+      }
+    }).sum());
+  }
+
+  @Test
+  public void listener_configured_shouldWarmUpAndPublishResult() {
+    Map<String, String> params = new HashMap<>();
+    params.put(X509WarmUpServletListener.PROVIDER_PARAM, "SUN");
+    params.put(X509WarmUpServletListener.ITERATIONS_PARAM, "2");
+    Map<String, Object> attributes = new HashMap<>();
+
+    new X509WarmUpServletListener().contextInitialized(event(params, attributes));
+
+    X509WarmUp.Result result =
+        (X509WarmUp.Result) attributes.get(X509WarmUpServletListener.RESULT_ATTRIBUTE);
+    assertEquals("SUN", result.getProviderName());
+    assertEquals(2, result.getIterations());
+    assertEquals(0, result.getFailures());
+  }
+
+  @Test
+  public void contextDestroyed_providerSelectedElsewhere_shouldOnlyClearOwn() throws Exception {
+    // a second name for the JRE factory, to tell a kept selection from the default
+    Security.addProvider(new Provider("X509WarmUpTest", 1.0, "test") {
+      {
+        put("CertificateFactory.X.509", "sun.security.provider.X509Factory");
+      }
+    });
+    try {
+      X509Extraction.useProvider("X509WarmUpTest");
+      Map<String, String> params = new HashMap<>();
+      params.put(X509WarmUpServletListener.ITERATIONS_PARAM, "0");
+      X509WarmUpServletListener listener = new X509WarmUpServletListener();
+      listener.contextInitialized(event(params, new HashMap<>()));
+      listener.contextDestroyed(event(params, new HashMap<>()));
+      assertEquals("X509WarmUpTest", X509Extraction.getProviderName());
+
+      X509Extraction.useProvider(null);
+      params.put(X509WarmUpServletListener.PROVIDER_PARAM, "X509WarmUpTest");
+      listener = new X509WarmUpServletListener();
+      listener.contextInitialized(event(params, new HashMap<>()));
+      assertEquals("X509WarmUpTest", X509Extraction.getProviderName());
+      listener.contextDestroyed(event(params, new HashMap<>()));
+      assertEquals("SUN", X509Extraction.getProviderName());
+    } finally {
+      Security.removeProvider("X509WarmUpTest");
+    }
+  }
+
+  @Test
+  public void listener_misconfigured_shouldFailDeployment() {
+    Map<String, String> params = new HashMap<>();
+    Map<String, Object> attributes = new HashMap<>();
+    params.put(X509WarmUpServletListener.ITERATIONS_PARAM, "0");
+    new X509WarmUpServletListener().contextInitialized(event(params, attributes));
+    assertNull(attributes.get(X509WarmUpServletListener.RESULT_ATTRIBUTE));
+
+    params.put(X509WarmUpServletListener.PROVIDER_PARAM, "NoSuchProvider");
+    assertThrows(IllegalStateException.class,
+        () -> new X509WarmUpServletListener().contextInitialized(event(params, attributes)));
+    params.remove(X509WarmUpServletListener.PROVIDER_PARAM);
+    params.put(X509WarmUpServletListener.ITERATIONS_PARAM, "many");
+    assertThrows(IllegalStateException.class,
+        () -> new X509WarmUpServletListener().contextInitialized(event(params, attributes)));
+  }
+}
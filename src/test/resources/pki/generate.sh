@@ -0,0 +1,87 @@
+#!/bin/sh
+#
+#  generate.sh
+#
+#    Copyright 2018 Moriarty Software & Consulting Services
+#
+#     Licensed under the Apache License, Version 2.0 (the "License");
+#     you may not use this file except in compliance with the License.
+#     You may obtain a copy of the License at
+#
+#         http://www.apache.org/licenses/LICENSE-2.0
+#
+#     Unless required by applicable law or agreed to in writing, software
+#     distributed under the License is distributed on an "AS IS" BASIS,
+#     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#     See the License for the specific language governing permissions and
+#     limitations under the License.
+#
+# Regenerates the test PKI: a root CA and an intermediate CA in trust/, client certificates
+# issued by the intermediate, an unrelated self-signed CA, and in crl/ an empty root CRL (DER)
+# and an intermediate CRL revoking serial 4098 (PEM). Keys are throwaway test keys.
+#
+# Files that exist are kept, so adding a fixture leaves the others untouched. Delete a file, and
+# whatever is issued from it, to generate it again.
+
+set -e
+cd "$(dirname "$0")"
+mkdir -p trust
+
+newkey() {
+  openssl genpkey -algorithm EC -pkeyopt ec_paramgen_curve:P-256 -out "$1"
+}
+
+printf 'basicConstraints=critical,CA:true\nkeyUsage=critical,keyCertSign,cRLSign\nsubjectKeyIdentifier=hash\n' > ca.ext
+printf 'basicConstraints=CA:false\nkeyUsage=critical,digitalSignature\nauthorityKeyIdentifier=keyid\nsubjectAltName=email:daenerys.targeryen@dragonstone.got\nauthorityInfoAccess=OCSP;URI:http://ocsp.test.invalid/\n' > client.ext
+
+if [ ! -f trust/root-ca.pem ]; then
+  newkey root-ca.key
+  openssl req -x509 -new -key root-ca.key -days 36500 -out trust/root-ca.pem -set_serial 1 \
+    -subj "/C=US/O=U.S. Government/OU=DoD/OU=PKI/CN=Test Root CA" \
+    -addext "basicConstraints=critical,CA:true" -addext "keyUsage=critical,keyCertSign,cRLSign"
+fi
+
+if [ ! -f trust/intermediate-ca.pem ]; then
+  newkey intermediate-ca.key
+  openssl req -new -key intermediate-ca.key -out intermediate-ca.csr \
+    -subj "/C=US/O=U.S. Government/OU=DoD/OU=PKI/CN=Test Intermediate CA"
+  openssl x509 -req -in intermediate-ca.csr -CA trust/root-ca.pem -CAkey root-ca.key \
+    -set_serial 2 -days 36500 -extfile ca.ext -out trust/intermediate-ca.pem 2>/dev/null
+fi
+
+for serial in 4097 4098; do
+  if [ ! -f client-$serial.pem ]; then
+    newkey client-$serial.key
+    openssl req -new -key client-$serial.key -out client.csr \
+      -subj "/C=US/O=U.S. Government/OU=DoD/OU=PKI/OU=CONTRACTOR/CN=TARGARYEN.DAENERYS.MIDDLE.1234567890"
+    openssl x509 -req -in client.csr -CA trust/intermediate-ca.pem -CAkey intermediate-ca.key \
+      -set_serial $serial -days 36500 -extfile client.ext -out client-$serial.pem 2>/dev/null
+    rm client-$serial.key
+  fi
+done
+
+if [ ! -f other-ca.pem ]; then
+  newkey other-ca.key
+  openssl req -x509 -new -key other-ca.key -days 36500 -out other-ca.pem -set_serial 1 \
+    -subj "/C=US/O=Elsewhere/CN=Other Root CA" \
+    -addext "basicConstraints=critical,CA:true" -addext "keyUsage=critical,keyCertSign,cRLSign"
+  rm other-ca.key
+fi
+
+mkdir -p crl
+printf '[ca]\ndefault_ca=test\n[test]\ndatabase=index.txt\ndefault_md=sha256\n' > ca.cnf
+printf 'default_crl_days=36500\ncrl_extensions=crl_ext\n[crl_ext]\n' >> ca.cnf
+printf 'authorityKeyIdentifier=keyid\n' >> ca.cnf
+if [ ! -f crl/root-ca.crl ]; then
+  : > index.txt
+  openssl ca -gencrl -config ca.cnf -keyfile root-ca.key -cert trust/root-ca.pem \
+    -out root-ca.crl 2>/dev/null
+  openssl crl -in root-ca.crl -outform DER -out crl/root-ca.crl
+fi
+if [ ! -f crl/intermediate-ca.pem ]; then
+  printf 'R\t491231235959Z\t250101000000Z\t1002\tunknown\t/CN=revoked\n' > index.txt
+  openssl ca -gencrl -config ca.cnf -keyfile intermediate-ca.key -cert trust/intermediate-ca.pem \
+    -out crl/intermediate-ca.pem 2>/dev/null
+fi
+
+rm -f ca.ext client.ext client.csr intermediate-ca.csr ca.cnf index.txt* root-ca.crl